@@ -0,0 +1,163 @@
+package dmit2015.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The benchmarks shared by every BookService implementation.
+ * <p>
+ * The service is loaded with datasetSize books before the trial, and every write keeps the number of books
+ * constant so each iteration measures the same data set size: createBook deletes the book it replaces and
+ * deleteBookById creates a replacement for the book it removes. Each thread only writes to the slots of the
+ * data set it owns, so writes from different threads never race for the same book.
+ * <p>
+ * The readHeavy and writeHeavy groups run a mix of operations at the same time. Running with `-t` threads
+ * runs that many threads for the single operation benchmarks and as many copies of each group as fit.
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractBookServiceBenchmark {
+
+    protected BenchmarkedBookService bookService;
+
+    /**
+     * The ids of the books in the data set, replaced as books are deleted and created.
+     */
+    private AtomicReferenceArray<String> ids;
+
+    /**
+     * Create the service to benchmark, empty of any book the benchmark depends on.
+     */
+    protected abstract BenchmarkedBookService createBookService() throws Exception;
+
+    protected abstract int datasetSize();
+
+    @Setup(Level.Trial)
+    public void setUpBookService() throws Exception {
+        bookService = createBookService();
+        ids = new AtomicReferenceArray<>(datasetSize());
+        for (int index = 0; index < ids.length(); index++) {
+            ids.set(index, bookService.createBook(index));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownBookService() {
+        bookService.close();
+    }
+
+    /**
+     * The random numbers and data set slots of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private SplittableRandom random;
+
+        private int threadIndex;
+
+        private int threadCount;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threadParams) {
+            threadIndex = threadParams.getThreadIndex();
+            threadCount = threadParams.getThreadCount();
+            random = new SplittableRandom(threadIndex);
+        }
+
+        int nextSeed() {
+            return random.nextInt(Integer.MAX_VALUE);
+        }
+
+        /**
+         * A random slot of the data set that any thread may read.
+         */
+        int nextSlot(int datasetSize) {
+            return random.nextInt(datasetSize);
+        }
+
+        /**
+         * A random slot of the data set that only this thread writes to.
+         */
+        int nextOwnedSlot(int datasetSize) {
+            int ownedSlotCount = Math.max(1, (datasetSize - threadIndex + threadCount - 1) / threadCount);
+            return Math.min(datasetSize - 1, threadIndex + random.nextInt(ownedSlotCount) * threadCount);
+        }
+    }
+
+    @Benchmark
+    public Object getBookById(ThreadState threadState) {
+        return bookService.getBookById(ids.get(threadState.nextSlot(ids.length())));
+    }
+
+    @Benchmark
+    public Object getAllBooks() {
+        return bookService.getAllBooks();
+    }
+
+    @Benchmark
+    public Object updateBook(ThreadState threadState) {
+        return bookService.updateBook(ids.get(threadState.nextOwnedSlot(ids.length())), threadState.nextSeed());
+    }
+
+    /**
+     * Create a book, then delete the book it replaces in the data set.
+     */
+    @Benchmark
+    public String createBook(ThreadState threadState) {
+        int slot = threadState.nextOwnedSlot(ids.length());
+        String id = bookService.createBook(threadState.nextSeed());
+        bookService.deleteBookById(ids.getAndSet(slot, id));
+        return id;
+    }
+
+    /**
+     * Delete a book, then create its replacement in the data set.
+     */
+    @Benchmark
+    public String deleteBookById(ThreadState threadState) {
+        int slot = threadState.nextOwnedSlot(ids.length());
+        bookService.deleteBookById(ids.get(slot));
+        String id = bookService.createBook(threadState.nextSeed());
+        ids.set(slot, id);
+        return id;
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(9)
+    public Object readHeavyGetBookById(ThreadState threadState) {
+        return getBookById(threadState);
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public Object readHeavyUpdateBook(ThreadState threadState) {
+        return updateBook(threadState);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(1)
+    public Object writeHeavyGetBookById(ThreadState threadState) {
+        return getBookById(threadState);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(2)
+    public Object writeHeavyUpdateBook(ThreadState threadState) {
+        return updateBook(threadState);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(1)
+    public void writeHeavyCreateAndDeleteBook(ThreadState threadState, Blackhole blackhole) {
+        blackhole.consume(createBook(threadState));
+    }
+}
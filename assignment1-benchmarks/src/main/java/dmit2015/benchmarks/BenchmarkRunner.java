@@ -0,0 +1,61 @@
+package dmit2015.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+
+/**
+ * Run the benchmarks once per thread count and write the results of each run as JSON.
+ * <p>
+ * Every JMH command line option is accepted. Without `-t` the benchmarks run with 1, 4 and 16 threads,
+ * and without `-rff` the results are written to target/jmh-result-{threads}-threads.json so they can be
+ * compared over time, for example with https://jmh.morethan.net.
+ * <pre>
+ * java -jar target/benchmarks.jar MemoryBookServiceBenchmark -p datasetSize=100000
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    private static final List<Integer> DEFAULT_THREAD_COUNTS = List.of(1, 4, 16);
+
+    public static void main(String[] args) throws Exception {
+        var commandLineOptions = new CommandLineOptions(args);
+        if (commandLineOptions.shouldHelp() || commandLineOptions.shouldList() || commandLineOptions.shouldListWithParams()
+                || commandLineOptions.shouldListProfilers() || commandLineOptions.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        List<Integer> threadCounts = commandLineOptions.getThreads().hasValue()
+                ? List.of(commandLineOptions.getThreads().get())
+                : DEFAULT_THREAD_COUNTS;
+        for (int currentThreadCount : threadCounts) {
+            ChainedOptionsBuilder optionsBuilder = new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .threads(currentThreadCount);
+            if (!commandLineOptions.getResultFormat().hasValue()) {
+                optionsBuilder.resultFormat(ResultFormatType.JSON);
+            }
+            String result = commandLineOptions.getResult().hasValue()
+                    ? commandLineOptions.getResult().get()
+                    : "target/jmh-result.json";
+            optionsBuilder.result(threadCounts.size() > 1 ? withThreadCount(result, currentThreadCount) : result);
+            new Runner(optionsBuilder.build()).run();
+        }
+    }
+
+    /**
+     * Insert the thread count before the file extension, so target/jmh-result.json becomes target/jmh-result-4-threads.json.
+     */
+    private static String withThreadCount(String result, int threadCount) {
+        int extensionIndex = result.lastIndexOf('.');
+        if (extensionIndex <= result.lastIndexOf('/')) {
+            extensionIndex = result.length();
+        }
+        return String.format("%s-%d-threads%s", result.substring(0, extensionIndex), threadCount, result.substring(extensionIndex));
+    }
+}
@@ -0,0 +1,51 @@
+package dmit2015.benchmarks;
+
+import java.time.LocalDate;
+
+/**
+ * The CRUD operations measured by the benchmarks, adapted to each BookService implementation.
+ * <p>
+ * Books are described by an int seed so the same deterministic data set can be loaded into
+ * implementations that use different Book classes, without paying for Faker inside a measurement.
+ */
+interface BenchmarkedBookService {
+
+    String createBook(int seed);
+
+    Object getBookById(String id);
+
+    Object getAllBooks();
+
+    Object updateBook(String id, int seed);
+
+    void deleteBookById(String id);
+
+    /**
+     * Release any resource held by the service, such as a stub server.
+     */
+    default void close() {
+    }
+
+    /**
+     * The number of distinct authors in the generated data set.
+     */
+    int AUTHOR_COUNT = 1_000;
+
+    LocalDate FIRST_PUBLISH_DATE = LocalDate.of(1950, 1, 1);
+
+    static String title(int seed) {
+        return "Title " + seed;
+    }
+
+    static String author(int seed) {
+        return "Author " + Math.floorMod(seed, AUTHOR_COUNT);
+    }
+
+    static LocalDate publishDate(int seed) {
+        return FIRST_PUBLISH_DATE.plusDays(Math.floorMod(seed, 365 * 75));
+    }
+
+    static boolean readAlready(int seed) {
+        return (seed & 1) == 0;
+    }
+}
@@ -0,0 +1,66 @@
+package dmit2015.benchmarks;
+
+import dmit2015.model.Book;
+import dmit2015.service.BookService;
+
+/**
+ * Adapts a {@link dmit2015.service.BookService}, such as the indexed MemoryBookService or the
+ * FirebaseHttpClientBookService, to the benchmarked operations.
+ */
+class BookServiceAdapter implements BenchmarkedBookService {
+
+    private final BookService bookService;
+
+    private final Runnable closeAction;
+
+    BookServiceAdapter(BookService bookService) {
+        this(bookService, () -> {
+        });
+    }
+
+    BookServiceAdapter(BookService bookService, Runnable closeAction) {
+        this.bookService = bookService;
+        this.closeAction = closeAction;
+    }
+
+    static Book newBook(int seed) {
+        var newBook = new Book();
+        newBook.setTitle(BenchmarkedBookService.title(seed));
+        newBook.setAuthor(BenchmarkedBookService.author(seed));
+        newBook.setPublishDate(BenchmarkedBookService.publishDate(seed));
+        newBook.setReadAlready(BenchmarkedBookService.readAlready(seed));
+        return newBook;
+    }
+
+    @Override
+    public String createBook(int seed) {
+        return bookService.createBook(newBook(seed)).getId();
+    }
+
+    @Override
+    public Object getBookById(String id) {
+        return bookService.getBookById(id);
+    }
+
+    @Override
+    public Object getAllBooks() {
+        return bookService.getAllBooks();
+    }
+
+    @Override
+    public Object updateBook(String id, int seed) {
+        Book existingBook = newBook(seed);
+        existingBook.setId(id);
+        return bookService.updateBook(existingBook);
+    }
+
+    @Override
+    public void deleteBookById(String id) {
+        bookService.deleteBookById(id);
+    }
+
+    @Override
+    public void close() {
+        closeAction.run();
+    }
+}
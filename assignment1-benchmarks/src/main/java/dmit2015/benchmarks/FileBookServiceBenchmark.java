@@ -0,0 +1,85 @@
+package dmit2015.benchmarks;
+
+import dmit2015.service.FileBookService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark the {@link FileBookService} in a new directory under the temporary directory, measuring the latency of
+ * each operation, so the writes show the cost of the group-committed append and fsync of the log.
+ * <p>
+ * Run it on the file system the log will be on, for example with `-Djava.io.tmpdir=/var/lib/books`, since the fsync
+ * latency of the device dominates the writes.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class FileBookServiceBenchmark extends AbstractBookServiceBenchmark {
+
+    @Param({"1000", "100000"})
+    private int datasetSize;
+
+    @Param({"ALWAYS", "INTERVAL"})
+    private FileBookService.FsyncPolicy fsyncPolicy;
+
+    @Override
+    protected BenchmarkedBookService createBookService() throws Exception {
+        Path dataDirectory = Files.createTempDirectory("file-book-service-");
+        FileBookService fileBookService = newFileBookService(dataDirectory, fsyncPolicy);
+        return new BookServiceAdapter(fileBookService, () -> {
+            close(fileBookService);
+            deleteDirectory(dataDirectory);
+        });
+    }
+
+    @Override
+    protected int datasetSize() {
+        return datasetSize;
+    }
+
+    /**
+     * Wire the service the way CDI would, with a snapshot interval no benchmark reaches, and recover the books in the directory.
+     */
+    static FileBookService newFileBookService(Path dataDirectory, FileBookService.FsyncPolicy fsyncPolicy) throws ReflectiveOperationException {
+        var fileBookService = new FileBookService();
+        FirebaseBookServiceBenchmark.inject(fileBookService, "dataDirectory", dataDirectory.toString());
+        FirebaseBookServiceBenchmark.inject(fileBookService, "fsyncPolicy", fsyncPolicy);
+        FirebaseBookServiceBenchmark.inject(fileBookService, "fsyncIntervalMillis", 100L);
+        FirebaseBookServiceBenchmark.inject(fileBookService, "snapshotIntervalOperations", Long.MAX_VALUE);
+        FirebaseBookServiceBenchmark.postConstruct(fileBookService);
+        return fileBookService;
+    }
+
+    /**
+     * Write the queued records, force the log and stop the writer thread, like the @PreDestroy method when CDI shuts down.
+     */
+    static void close(FileBookService fileBookService) {
+        try {
+            Method closeMethod = FileBookService.class.getDeclaredMethod("close");
+            closeMethod.setAccessible(true);
+            closeMethod.invoke(fileBookService);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void deleteDirectory(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path currentPath : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(currentPath);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package dmit2015.benchmarks;
+
+import dmit2015.service.BookBatchResult;
+import dmit2015.service.FileBookService;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Measure how long the {@link FileBookService} takes to start on a log of logOperations book operations without
+ * a snapshot: every record is read, checked and replayed into the index, then the search index is built.
+ * <p>
+ * Half of the operations create books and the other half update them. They are written in batches of 1000 books,
+ * one record per batch like the bulk import, so the log holds logOperations / 2 books.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class FileBookServiceRecoveryBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"1000000"})
+    private int logOperations;
+
+    private Path dataDirectory;
+
+    @Setup(Level.Trial)
+    public void writeLog() throws Exception {
+        dataDirectory = Files.createTempDirectory("file-book-service-recovery-");
+        FileBookService fileBookService = FileBookServiceBenchmark.newFileBookService(dataDirectory, FileBookService.FsyncPolicy.NEVER);
+        try {
+            int bookCount = logOperations / 2;
+            for (int first = 0; first < bookCount; first += BATCH_SIZE) {
+                List<BookBatchResult> createdResults = fileBookService.createBooks(IntStream.range(first, Math.min(first + BATCH_SIZE, bookCount))
+                        .mapToObj(BookServiceAdapter::newBook)
+                        .toList());
+                fileBookService.updateBooks(createdResults.stream()
+                        .map(BookBatchResult::book)
+                        .peek(currentBook -> currentBook.setTitle(currentBook.getTitle() + " (revised)"))
+                        .toList());
+            }
+        } finally {
+            FileBookServiceBenchmark.close(fileBookService);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLog() {
+        FileBookServiceBenchmark.deleteDirectory(dataDirectory);
+    }
+
+    /**
+     * Recover the books and stop the service again. Each start opens a new empty segment, which adds nothing to the replay.
+     */
+    @Benchmark
+    public FileBookService recover() throws ReflectiveOperationException {
+        FileBookService fileBookService = FileBookServiceBenchmark.newFileBookService(dataDirectory, FileBookService.FsyncPolicy.NEVER);
+        FileBookServiceBenchmark.close(fileBookService);
+        return fileBookService;
+    }
+}
@@ -0,0 +1,167 @@
+package dmit2015.benchmarks;
+
+import dmit2015.metrics.MetricsRegistry;
+import dmit2015.service.FirebaseAsyncBookService;
+import dmit2015.service.FirebaseBookChangeFeed;
+import dmit2015.service.FirebaseHttpClientBookService;
+import dmit2015.service.FirebaseResilientHttpClient;
+import jakarta.faces.push.PushContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark the {@link FirebaseHttpClientBookService} against a {@link StubFirebaseServer} on the loopback interface,
+ * so the results show the cost of building, sending and parsing the Http Requests without the network to Firebase.
+ * With streaming on, the {@link FirebaseBookChangeFeed} keeps an in-process copy that lists and pages are read from.
+ * <p>
+ * The services are wired by hand the way CDI would: each injected field and config property is set to
+ * its microprofile-config.properties value, then the @PostConstruct method is called.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FirebaseBookServiceBenchmark extends AbstractBookServiceBenchmark {
+
+    @Param({"1000", "10000"})
+    private int datasetSize;
+
+    @Param({"8"})
+    private int serverThreads;
+
+    @Param({"false", "true"})
+    private boolean streaming;
+
+    @Override
+    protected BenchmarkedBookService createBookService() throws Exception {
+        var stubFirebaseServer = new StubFirebaseServer("Book", serverThreads);
+        // The stub server only speaks HTTP/1.1
+        var httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+
+        var resilientHttpClient = new FirebaseResilientHttpClient();
+        inject(resilientHttpClient, "httpClient", httpClient);
+        inject(resilientHttpClient, "metricsRegistry", new MetricsRegistry());
+        inject(resilientHttpClient, "retryMaxAttempts", 3);
+        inject(resilientHttpClient, "retryBaseDelayMillis", 100L);
+        inject(resilientHttpClient, "retryMaxDelayMillis", 2000L);
+        inject(resilientHttpClient, "circuitFailureThreshold", 5);
+        inject(resilientHttpClient, "circuitOpenSeconds", 30L);
+        // Never reject a benchmark thread, whatever the -t value
+        inject(resilientHttpClient, "bulkheadMaxConcurrent", Integer.MAX_VALUE);
+        postConstruct(resilientHttpClient);
+
+        var asyncBookService = new FirebaseAsyncBookService();
+        inject(asyncBookService, "firebaseRtdbBaseUrl", stubFirebaseServer.baseUrl());
+        inject(asyncBookService, "requestTimeoutSeconds", 10L);
+        inject(asyncBookService, "batchSize", 500);
+        inject(asyncBookService, "resilientHttpClient", resilientHttpClient);
+        postConstruct(asyncBookService);
+
+        FirebaseBookChangeFeed changeFeed = newChangeFeed(stubFirebaseServer.baseUrl(), httpClient, streaming);
+
+        var bookService = new FirebaseHttpClientBookService();
+        inject(bookService, "asyncBookService", asyncBookService);
+        inject(bookService, "changeFeed", changeFeed);
+        postConstruct(bookService);
+
+        return new BookServiceAdapter(bookService, () -> {
+            closeChangeFeed(changeFeed);
+            httpClient.close();
+            stubFirebaseServer.close();
+        });
+    }
+
+    /**
+     * Start a change feed and, with streaming on, wait until it has received the collection from the stub server.
+     */
+    static FirebaseBookChangeFeed newChangeFeed(String baseUrl, HttpClient httpClient, boolean streaming) throws Exception {
+        var changeFeed = new FirebaseBookChangeFeed();
+        inject(changeFeed, "firebaseRtdbBaseUrl", baseUrl);
+        inject(changeFeed, "requestTimeoutSeconds", 10L);
+        inject(changeFeed, "enabled", streaming);
+        inject(changeFeed, "idleTimeoutSeconds", 75L);
+        inject(changeFeed, "reconnectDelayMillis", 1000L);
+        inject(changeFeed, "pushIntervalMillis", 250L);
+        inject(changeFeed, "httpClient", httpClient);
+        inject(changeFeed, "pushContext", new NoViewsPushContext());
+        postConstruct(changeFeed);
+        Method startupMethod = FirebaseBookChangeFeed.class.getDeclaredMethod("onStartup", Object.class);
+        startupMethod.setAccessible(true);
+        startupMethod.invoke(changeFeed, (Object) null);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (streaming && !changeFeed.isLive()) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("The change feed did not receive the collection from the stub server");
+            }
+            Thread.sleep(10);
+        }
+        return changeFeed;
+    }
+
+    static void closeChangeFeed(FirebaseBookChangeFeed changeFeed) {
+        try {
+            Method closeMethod = FirebaseBookChangeFeed.class.getDeclaredMethod("close");
+            closeMethod.setAccessible(true);
+            closeMethod.invoke(changeFeed);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    protected int datasetSize() {
+        return datasetSize;
+    }
+
+    /**
+     * A PushContext for a benchmark without any open page to push to.
+     */
+    private static class NoViewsPushContext implements PushContext {
+
+        @Override
+        public Set<Future<Void>> send(Object message) {
+            return Set.of();
+        }
+
+        @Override
+        public <S extends Serializable> Set<Future<Void>> send(Object message, S user) {
+            return Set.of();
+        }
+
+        @Override
+        public <S extends Serializable> Map<S, Set<Future<Void>>> send(Object message, Collection<S> users) {
+            return Map.of();
+        }
+    }
+
+    static void inject(Object bean, String fieldName, Object value) throws ReflectiveOperationException {
+        Field field = bean.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(bean, value);
+    }
+
+    static void postConstruct(Object bean) throws ReflectiveOperationException {
+        Method initMethod = bean.getClass().getDeclaredMethod("init");
+        initMethod.setAccessible(true);
+        try {
+            initMethod.invoke(bean);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(String.format("Could not initialize %s", bean.getClass().getSimpleName()), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package dmit2015.benchmarks;
+
+import dmit2015.metrics.MetricsRegistry;
+import dmit2015.model.Book;
+import dmit2015.service.BookBatchResult;
+import dmit2015.service.FirebaseAsyncBookService;
+import dmit2015.service.FirebaseBookChangeFeed;
+import dmit2015.service.FirebaseHttpClientBookService;
+import dmit2015.service.FirebaseResilientHttpClient;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * A closed-loop load test of the FirebaseHttpClientBookService against a {@link StubFirebaseServer} that holds every
+ * request for a fixed latency, like the round trip to Firebase, to show how throughput scales with concurrent users.
+ * <p>
+ * Each user sends one request at a time and waits for its response, the way a browser waits for a Faces page.
+ * A request reads a random book by id, which blocks the request thread for one RTDB call. Every number of users is
+ * run in two modes:
+ * <ul>
+ *     <li>platform: requests run on a fixed pool of platform threads like the request pool of a servlet container,
+ *     and the HttpClient uses a fixed pool of firebase.rtdb.http.executor.threads platform threads,</li>
+ *     <li>virtual: every request and every HttpClient task runs on its own virtual thread, like a container running
+ *     requests on virtual threads with firebase.rtdb.http.executor.virtual=true.</li>
+ * </ul>
+ * Options are given as name=value, for example:
+ * <pre>
+ * java -cp target/benchmarks.jar dmit2015.benchmarks.FirebaseLoadTest users=10,100,1000 latencyMillis=50
+ * </pre>
+ */
+public class FirebaseLoadTest {
+
+    private static final Map<String, String> DEFAULT_OPTIONS = Map.of(
+            "users", "50,100,200,400,800",
+            "modes", "platform,virtual",
+            "latencyMillis", "100",
+            "requestThreads", "200",
+            "httpExecutorThreads", "8",
+            "datasetSize", "1000",
+            "warmupSeconds", "3",
+            "durationSeconds", "10");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULT_OPTIONS);
+        for (String currentArg : args) {
+            int separatorIndex = currentArg.indexOf('=');
+            if (separatorIndex < 0 || !DEFAULT_OPTIONS.containsKey(currentArg.substring(0, separatorIndex))) {
+                throw new IllegalArgumentException(String.format("Unknown option %s, expected one of %s as name=value", currentArg, DEFAULT_OPTIONS.keySet()));
+            }
+            options.put(currentArg.substring(0, separatorIndex), currentArg.substring(separatorIndex + 1));
+        }
+        int[] userCounts = Arrays.stream(options.get("users").split(",")).mapToInt(Integer::parseInt).toArray();
+        List<String> modes = List.of(options.get("modes").split(","));
+        var latency = Duration.ofMillis(Long.parseLong(options.get("latencyMillis")));
+        int requestThreads = Integer.parseInt(options.get("requestThreads"));
+        int httpExecutorThreads = Integer.parseInt(options.get("httpExecutorThreads"));
+        int datasetSize = Integer.parseInt(options.get("datasetSize"));
+        var warmup = Duration.ofSeconds(Long.parseLong(options.get("warmupSeconds")));
+        var duration = Duration.ofSeconds(Long.parseLong(options.get("durationSeconds")));
+
+        // The stub handles every request on its own virtual thread, so it is never the bottleneck
+        try (var stubFirebaseServer = new StubFirebaseServer("Book", Executors.newVirtualThreadPerTaskExecutor(), latency)) {
+            List<String> ids = seed(stubFirebaseServer.baseUrl(), datasetSize);
+            System.out.printf("%d books, %d ms RTDB latency, %d platform request threads, %d platform HttpClient threads%n",
+                    ids.size(), latency.toMillis(), requestThreads, httpExecutorThreads);
+            System.out.printf("%8s %10s %14s %16s %8s %18s%n",
+                    "users", "mode", "requests/s", "mean latency ms", "errors", "peak live threads");
+            for (int currentUserCount : userCounts) {
+                for (String currentMode : modes) {
+                    ExecutorService requestExecutor;
+                    ExecutorService httpExecutor;
+                    switch (currentMode) {
+                        case "platform" -> {
+                            requestExecutor = Executors.newFixedThreadPool(requestThreads);
+                            httpExecutor = Executors.newFixedThreadPool(httpExecutorThreads);
+                        }
+                        case "virtual" -> {
+                            requestExecutor = Executors.newVirtualThreadPerTaskExecutor();
+                            httpExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("firebase-http-", 1).factory());
+                        }
+                        default -> throw new IllegalArgumentException(String.format("Unknown mode %s, expected platform or virtual", currentMode));
+                    }
+                    try (requestExecutor; httpExecutor) {
+                        LoadResult result = run(stubFirebaseServer.baseUrl(), ids, currentUserCount, requestExecutor, httpExecutor, warmup, duration);
+                        System.out.printf("%8d %10s %14.0f %16.1f %8d %18d%n", currentUserCount, currentMode,
+                                result.requestsPerSecond(), result.meanLatencyMillis(), result.errors(), result.peakThreadCount());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The requests completed during the measurement, the mean time a user waited for one, the failed requests,
+     * and the largest number of live platform threads in the JVM.
+     */
+    private record LoadResult(double requestsPerSecond, double meanLatencyMillis, long errors, int peakThreadCount) {
+    }
+
+    /**
+     * Run the users against a new FirebaseHttpClientBookService for the warmup and then measure them for the duration.
+     */
+    private static LoadResult run(String baseUrl, List<String> ids, int userCount, ExecutorService requestExecutor,
+                                  ExecutorService httpExecutor, Duration warmup, Duration duration) throws Exception {
+        try (var httpClient = newHttpClient(httpExecutor)) {
+            FirebaseHttpClientBookService bookService = newBookService(baseUrl, httpClient);
+            var completedRequests = new LongAdder();
+            var totalLatencyNanos = new LongAdder();
+            var errors = new LongAdder();
+            long measureStart = System.nanoTime() + warmup.toNanos();
+            long measureEnd = measureStart + duration.toNanos();
+
+            Runnable user = () -> {
+                var random = ThreadLocalRandom.current();
+                while (System.nanoTime() < measureEnd) {
+                    String id = ids.get(random.nextInt(ids.size()));
+                    long startTime = System.nanoTime();
+                    boolean successful;
+                    try {
+                        successful = requestExecutor.submit(() -> bookService.getBookById(id)).get().isPresent();
+                    } catch (Exception e) {
+                        successful = false;
+                    }
+                    long endTime = System.nanoTime();
+                    if (startTime >= measureStart && endTime <= measureEnd) {
+                        if (successful) {
+                            completedRequests.increment();
+                            totalLatencyNanos.add(endTime - startTime);
+                        } else {
+                            errors.increment();
+                        }
+                    }
+                }
+            };
+
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            threadMXBean.resetPeakThreadCount();
+            // The users are virtual threads, so only the request and HttpClient threads differ between the modes
+            try (var users = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int index = 0; index < userCount; index++) {
+                    users.execute(user);
+                }
+            }
+            long completed = completedRequests.sum();
+            return new LoadResult(
+                    completed / (duration.toNanos() / 1e9),
+                    completed == 0 ? 0 : totalLatencyNanos.sum() / 1e6 / completed,
+                    errors.sum(),
+                    threadMXBean.getPeakThreadCount());
+        }
+    }
+
+    /**
+     * Load the stub server with the data set in batches and return the ids of the books.
+     */
+    private static List<String> seed(String baseUrl, int datasetSize) throws Exception {
+        try (ExecutorService httpExecutor = Executors.newVirtualThreadPerTaskExecutor();
+             var httpClient = newHttpClient(httpExecutor)) {
+            List<Book> newBooks = IntStream.range(0, datasetSize).mapToObj(BookServiceAdapter::newBook).toList();
+            var ids = new ArrayList<String>(datasetSize);
+            for (BookBatchResult currentResult : newBookService(baseUrl, httpClient).createBooks(newBooks)) {
+                if (!currentResult.isSuccessful()) {
+                    throw new IllegalStateException(String.format("Could not seed the stub server: %s", currentResult.errorMessage()));
+                }
+                ids.add(currentResult.id());
+            }
+            return ids;
+        }
+    }
+
+    static HttpClient newHttpClient(ExecutorService httpExecutor) {
+        // The stub server only speaks HTTP/1.1
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(httpExecutor)
+                .build();
+    }
+
+    /**
+     * Wire the services the way CDI would, with streaming off as in the default configuration.
+     */
+    static FirebaseHttpClientBookService newBookService(String baseUrl, HttpClient httpClient) throws ReflectiveOperationException {
+        return newBookService(baseUrl, httpClient, new FirebaseBookChangeFeed());
+    }
+
+    static FirebaseHttpClientBookService newBookService(String baseUrl, HttpClient httpClient, FirebaseBookChangeFeed changeFeed) throws ReflectiveOperationException {
+        var bookService = new FirebaseHttpClientBookService();
+        FirebaseBookServiceBenchmark.inject(bookService, "asyncBookService", newAsyncBookService(baseUrl, newResilientHttpClient(httpClient)));
+        FirebaseBookServiceBenchmark.inject(bookService, "changeFeed", changeFeed);
+        FirebaseBookServiceBenchmark.postConstruct(bookService);
+        return bookService;
+    }
+
+    static FirebaseAsyncBookService newAsyncBookService(String baseUrl, FirebaseResilientHttpClient resilientHttpClient) throws ReflectiveOperationException {
+        var asyncBookService = new FirebaseAsyncBookService();
+        FirebaseBookServiceBenchmark.inject(asyncBookService, "firebaseRtdbBaseUrl", baseUrl);
+        FirebaseBookServiceBenchmark.inject(asyncBookService, "requestTimeoutSeconds", 10L);
+        FirebaseBookServiceBenchmark.inject(asyncBookService, "batchSize", 500);
+        FirebaseBookServiceBenchmark.inject(asyncBookService, "resilientHttpClient", resilientHttpClient);
+        FirebaseBookServiceBenchmark.postConstruct(asyncBookService);
+        return asyncBookService;
+    }
+
+    static FirebaseResilientHttpClient newResilientHttpClient(HttpClient httpClient) throws ReflectiveOperationException {
+        var resilientHttpClient = new FirebaseResilientHttpClient();
+        FirebaseBookServiceBenchmark.inject(resilientHttpClient, "httpClient", httpClient);
+        FirebaseBookServiceBenchmark.inject(resilientHttpClient, "metricsRegistry", new MetricsRegistry());
+        FirebaseBookServiceBenchmark.inject(resilientHttpClient, "retryMaxAttempts", 3);
+        FirebaseBookServiceBenchmark.inject(resilientHttpClient, "retryBaseDelayMillis", 100L);
+        FirebaseBookServiceBenchmark.inject(resilientHttpClient, "retryMaxDelayMillis", 2000L);
+        FirebaseBookServiceBenchmark.inject(resilientHttpClient, "circuitFailureThreshold", 5);
+        FirebaseBookServiceBenchmark.inject(resilientHttpClient, "circuitOpenSeconds", 30L);
+        // Measure the threads rather than the bulkhead, which would reject the users above its limit
+        FirebaseBookServiceBenchmark.inject(resilientHttpClient, "bulkheadMaxConcurrent", Integer.MAX_VALUE);
+        FirebaseBookServiceBenchmark.postConstruct(resilientHttpClient);
+        return resilientHttpClient;
+    }
+}
@@ -0,0 +1,266 @@
+package dmit2015.benchmarks;
+
+import dmit2015.assignment01_fadekeshodeinde.service.FirebaseBookService;
+import dmit2015.model.Book;
+import dmit2015.service.BookBatchResult;
+import dmit2015.service.BookVersionConflictException;
+import dmit2015.service.FirebaseAsyncBookService;
+import dmit2015.service.FirebaseBookChangeFeed;
+import dmit2015.service.FirebaseHttpClientBookService;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Checks of the Firebase BookServices against a {@link StubFirebaseServer}, for behaviour that only shows
+ * over real HTTP round trips, such as a response lost after Firebase applied the request, or many requests in flight
+ * at once against a stub that holds each one for a round trip.
+ * <p>
+ * Every check runs against a new stub server and prints PASS or FAIL, and the exit status is 1 if any check failed:
+ * <pre>
+ * java -cp target/benchmarks.jar dmit2015.benchmarks.FirebaseStubChecks
+ * </pre>
+ */
+public class FirebaseStubChecks {
+
+    /**
+     * The latency the stub holds each request for in the concurrency checks, standing in for the round trip to Firebase.
+     */
+    private static final Duration ROUND_TRIP = Duration.ofMillis(200);
+
+    /**
+     * The number of requests sent at once in the concurrency checks. Sent one after another they would take 50 round trips.
+     */
+    private static final int CONCURRENT_REQUESTS = 50;
+
+    /**
+     * A check run against a new stub server, which throws an AssertionError if the behaviour is wrong.
+     */
+    private interface Check {
+        void run(StubFirebaseServer stubFirebaseServer, HttpClient httpClient) throws Exception;
+    }
+
+    /**
+     * A check with the collection and latency of the stub server it runs against.
+     */
+    private record StubCheck(String collectionName, Duration latency, Check check) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, StubCheck> checks = new LinkedHashMap<>();
+        checks.put("unconditional update is retried after a lost response",
+                new StubCheck("Book", Duration.ZERO, FirebaseStubChecks::unconditionalUpdateWithLostResponse));
+        checks.put("conditional update is not retried after a lost response",
+                new StubCheck("Book", Duration.ZERO, FirebaseStubChecks::conditionalUpdateWithLostResponse));
+        checks.put("conditional delete is not retried after a lost response",
+                new StubCheck("Book", Duration.ZERO, FirebaseStubChecks::conditionalDeleteWithLostResponse));
+        checks.put("conditional update of a changed book is a conflict",
+                new StubCheck("Book", Duration.ZERO, FirebaseStubChecks::conditionalUpdateOfChangedBook));
+        checks.put("concurrent async reads take about one round trip",
+                new StubCheck("Book", ROUND_TRIP, FirebaseStubChecks::concurrentAsyncReads));
+        checks.put("concurrent legacy async reads take about one round trip",
+                new StubCheck("books", ROUND_TRIP, FirebaseStubChecks::concurrentLegacyAsyncReads));
+        checks.put("streamed writes are counted once by the service that sent them and by another",
+                new StubCheck("Book", Duration.ZERO, FirebaseStubChecks::streamedWritesCountedOnce));
+
+        int failedCount = 0;
+        for (Map.Entry<String, StubCheck> currentCheck : checks.entrySet()) {
+            StubCheck stubCheck = currentCheck.getValue();
+            // The stub handles every request on its own virtual thread, so held requests do not queue behind each other
+            try (ExecutorService httpExecutor = Executors.newVirtualThreadPerTaskExecutor();
+                 HttpClient httpClient = FirebaseLoadTest.newHttpClient(httpExecutor);
+                 var stubFirebaseServer = new StubFirebaseServer(stubCheck.collectionName(), Executors.newVirtualThreadPerTaskExecutor(), stubCheck.latency())) {
+                stubCheck.check().run(stubFirebaseServer, httpClient);
+                System.out.printf("PASS %s%n", currentCheck.getKey());
+            } catch (Exception | AssertionError e) {
+                failedCount++;
+                System.out.printf("FAIL %s: %s%n", currentCheck.getKey(), e);
+            }
+        }
+        System.out.printf("%d of %d checks passed%n", checks.size() - failedCount, checks.size());
+        System.exit(failedCount == 0 ? 0 : 1);
+    }
+
+    private static void unconditionalUpdateWithLostResponse(StubFirebaseServer stubFirebaseServer, HttpClient httpClient) throws ReflectiveOperationException {
+        FirebaseHttpClientBookService bookService = FirebaseLoadTest.newBookService(stubFirebaseServer.baseUrl(), httpClient);
+        Book book = bookService.createBook(BookServiceAdapter.newBook(1));
+        book.setTitle("Changed");
+        book.setVersion(null);
+        stubFirebaseServer.dropItemWriteResponses(1);
+        bookService.updateBook(book);
+        assertTitle(bookService, book.getId(), "Changed");
+    }
+
+    /**
+     * The first attempt is applied and its response lost. A retry would fail the ETag check the first attempt changed,
+     * and report a conflict although nobody else changed the book.
+     */
+    private static void conditionalUpdateWithLostResponse(StubFirebaseServer stubFirebaseServer, HttpClient httpClient) throws ReflectiveOperationException {
+        FirebaseHttpClientBookService bookService = FirebaseLoadTest.newBookService(stubFirebaseServer.baseUrl(), httpClient);
+        String id = bookService.createBook(BookServiceAdapter.newBook(1)).getId();
+        Book book = bookService.getBookById(id).orElseThrow();
+        book.setTitle("Changed");
+        stubFirebaseServer.dropItemWriteResponses(1);
+        try {
+            bookService.updateBook(book);
+            throw new AssertionError("The update succeeded although its response was lost");
+        } catch (BookVersionConflictException e) {
+            throw new AssertionError("The retry of the applied update reported a conflict with itself", e);
+        } catch (RuntimeException e) {
+            // The lost response is reported as a failure of the request
+        }
+        assertTitle(bookService, id, "Changed");
+    }
+
+    private static void conditionalDeleteWithLostResponse(StubFirebaseServer stubFirebaseServer, HttpClient httpClient) throws ReflectiveOperationException {
+        FirebaseHttpClientBookService bookService = FirebaseLoadTest.newBookService(stubFirebaseServer.baseUrl(), httpClient);
+        String id = bookService.createBook(BookServiceAdapter.newBook(1)).getId();
+        Book book = bookService.getBookById(id).orElseThrow();
+        stubFirebaseServer.dropItemWriteResponses(1);
+        try {
+            bookService.deleteBookById(id, book.getVersion());
+            throw new AssertionError("The delete succeeded although its response was lost");
+        } catch (BookVersionConflictException e) {
+            throw new AssertionError("The retry of the applied delete reported a conflict with itself", e);
+        } catch (RuntimeException e) {
+            // The lost response is reported as a failure of the request
+        }
+        if (bookService.getBookById(id).isPresent()) {
+            throw new AssertionError(String.format("Book with id %s was not deleted", id));
+        }
+    }
+
+    private static void conditionalUpdateOfChangedBook(StubFirebaseServer stubFirebaseServer, HttpClient httpClient) throws ReflectiveOperationException {
+        FirebaseHttpClientBookService bookService = FirebaseLoadTest.newBookService(stubFirebaseServer.baseUrl(), httpClient);
+        String id = bookService.createBook(BookServiceAdapter.newBook(1)).getId();
+        Book staleBook = bookService.getBookById(id).orElseThrow();
+        Book currentBook = bookService.getBookById(id).orElseThrow();
+        currentBook.setTitle("Changed by someone else");
+        bookService.updateBook(currentBook);
+        staleBook.setTitle("Changed");
+        try {
+            bookService.updateBook(staleBook);
+            throw new AssertionError("The update of a changed book succeeded");
+        } catch (BookVersionConflictException e) {
+            // Expected
+        }
+        assertTitle(bookService, id, "Changed by someone else");
+    }
+
+    /**
+     * Read books by id with the FirebaseAsyncBookService all at once. Each read is a separate request for another id,
+     * so the reads are neither coalesced nor batched.
+     */
+    private static void concurrentAsyncReads(StubFirebaseServer stubFirebaseServer, HttpClient httpClient) throws ReflectiveOperationException {
+        FirebaseAsyncBookService asyncBookService = FirebaseLoadTest.newAsyncBookService(stubFirebaseServer.baseUrl(),
+                FirebaseLoadTest.newResilientHttpClient(httpClient));
+        List<Book> newBooks = IntStream.range(0, CONCURRENT_REQUESTS).mapToObj(BookServiceAdapter::newBook).toList();
+        List<String> ids = asyncBookService.createBooks(newBooks).join().stream().map(BookBatchResult::id).toList();
+
+        long startNanos = System.nanoTime();
+        List<CompletableFuture<Optional<Book>>> reads = ids.stream().map(asyncBookService::getBookById).toList();
+        CompletableFuture.allOf(reads.toArray(CompletableFuture[]::new)).join();
+        assertAboutOneRoundTrip(System.nanoTime() - startNanos);
+        if (!reads.stream().allMatch(currentRead -> currentRead.join().isPresent())) {
+            throw new AssertionError("Not every book was found");
+        }
+    }
+
+    /**
+     * Read books by id with the async methods of the legacy FirebaseBookService all at once.
+     */
+    private static void concurrentLegacyAsyncReads(StubFirebaseServer stubFirebaseServer, HttpClient httpClient) throws ReflectiveOperationException {
+        var legacyBookService = new FirebaseBookService();
+        FirebaseBookServiceBenchmark.inject(legacyBookService, "baseUrl", stubFirebaseServer.baseUrl());
+        FirebaseBookServiceBenchmark.inject(legacyBookService, "requestTimeoutSeconds", 10L);
+        FirebaseBookServiceBenchmark.inject(legacyBookService, "resilientHttp", FirebaseLoadTest.newResilientHttpClient(httpClient));
+        List<dmit2015.assignment01_fadekeshodeinde.model.Book> newBooks = IntStream.range(0, CONCURRENT_REQUESTS)
+                .mapToObj(LegacyBookServiceAdapter::newBook)
+                .toList();
+        CompletableFuture.allOf(newBooks.stream().map(legacyBookService::createAsync).toArray(CompletableFuture[]::new)).join();
+
+        long startNanos = System.nanoTime();
+        var reads = newBooks.stream().map(currentBook -> legacyBookService.findByIdAsync(currentBook.getId())).toList();
+        CompletableFuture.allOf(reads.toArray(CompletableFuture[]::new)).join();
+        assertAboutOneRoundTrip(System.nanoTime() - startNanos);
+        if (!reads.stream().allMatch(currentRead -> currentRead.join().isPresent())) {
+            throw new AssertionError("Not every book was found");
+        }
+    }
+
+    /**
+     * Create, update and delete a book with one of two services that each stream the collection. The writing service
+     * counts each write when it completes and must not count it again when its feed reports it back,
+     * and the other service counts each write when its feed reports it.
+     */
+    private static void streamedWritesCountedOnce(StubFirebaseServer stubFirebaseServer, HttpClient httpClient) throws Exception {
+        FirebaseBookChangeFeed writingFeed = FirebaseBookServiceBenchmark.newChangeFeed(stubFirebaseServer.baseUrl(), httpClient, true);
+        FirebaseBookChangeFeed otherFeed = FirebaseBookServiceBenchmark.newChangeFeed(stubFirebaseServer.baseUrl(), httpClient, true);
+        try {
+            FirebaseHttpClientBookService writingService = FirebaseLoadTest.newBookService(stubFirebaseServer.baseUrl(), httpClient, writingFeed);
+            FirebaseHttpClientBookService otherService = FirebaseLoadTest.newBookService(stubFirebaseServer.baseUrl(), httpClient, otherFeed);
+            long writingStart = writingService.changeCount();
+            long otherStart = otherService.changeCount();
+            long sequenceStart = writingFeed.changeSequence();
+
+            Book book = writingService.createBook(BookServiceAdapter.newBook(1));
+            assertChangeCount(writingService, writingStart + 1);
+            book.setTitle("Changed");
+            book.setVersion(null);
+            writingService.updateBook(book);
+            writingService.deleteBookById(book.getId());
+            assertChangeCount(writingService, writingStart + 3);
+
+            awaitChangeSequence(writingFeed, sequenceStart + 3);
+            awaitChangeSequence(otherFeed, sequenceStart + 3);
+            assertChangeCount(writingService, writingStart + 3);
+            assertChangeCount(otherService, otherStart + 3);
+        } finally {
+            FirebaseBookServiceBenchmark.closeChangeFeed(writingFeed);
+            FirebaseBookServiceBenchmark.closeChangeFeed(otherFeed);
+        }
+    }
+
+    private static void awaitChangeSequence(FirebaseBookChangeFeed changeFeed, long sequence) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (changeFeed.changeSequence() < sequence) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError(String.format("The feed reached change %d instead of %d", changeFeed.changeSequence(), sequence));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertChangeCount(FirebaseHttpClientBookService bookService, long expectedChangeCount) {
+        long changeCount = bookService.changeCount();
+        if (changeCount != expectedChangeCount) {
+            throw new AssertionError(String.format("The change count is %d instead of %d", changeCount, expectedChangeCount));
+        }
+    }
+
+    /**
+     * Allow two extra round trips for opening the connections and scheduling, far below the 50 of sequential requests.
+     */
+    private static void assertAboutOneRoundTrip(long elapsedNanos) {
+        if (elapsedNanos >= 3 * ROUND_TRIP.toNanos()) {
+            throw new AssertionError(String.format("%d concurrent requests took %d ms, more than 3 round trips of %d ms",
+                    CONCURRENT_REQUESTS, elapsedNanos / 1_000_000, ROUND_TRIP.toMillis()));
+        }
+    }
+
+    private static void assertTitle(FirebaseHttpClientBookService bookService, String id, String expectedTitle) {
+        String title = bookService.getBookById(id).map(Book::getTitle).orElse(null);
+        if (!expectedTitle.equals(title)) {
+            throw new AssertionError(String.format("Book with id %s has title %s instead of %s", id, title, expectedTitle));
+        }
+    }
+}
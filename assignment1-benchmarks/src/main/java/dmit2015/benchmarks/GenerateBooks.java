@@ -0,0 +1,55 @@
+package dmit2015.benchmarks;
+
+import dmit2015.generator.BookGenerationReport;
+import dmit2015.generator.BookGenerator;
+import dmit2015.generator.BookGeneratorSettings;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.RecordComponent;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Write a data set of realistic books for a load test to an NDJSON file with the {@link BookGenerator},
+ * to be loaded into a deployment with POST /book-data.
+ * <p>
+ * Options are given as name=value: out for the file, and the components of {@link BookGeneratorSettings}, for example:
+ * <pre>
+ * java -cp target/benchmarks.jar dmit2015.benchmarks.GenerateBooks out=books.ndjson count=50000000 seed=42 authorDistribution=zipf
+ * </pre>
+ */
+public class GenerateBooks {
+
+    public static void main(String[] args) throws Exception {
+        Set<String> optionNames = Arrays.stream(BookGeneratorSettings.class.getRecordComponents())
+                .map(RecordComponent::getName)
+                .collect(Collectors.toCollection(TreeSet::new));
+        optionNames.add("out");
+        Map<String, String> options = new HashMap<>();
+        for (String currentArg : args) {
+            int separatorIndex = currentArg.indexOf('=');
+            if (separatorIndex < 0 || !optionNames.contains(currentArg.substring(0, separatorIndex))) {
+                throw new IllegalArgumentException(String.format("Unknown option %s, expected one of %s as name=value", currentArg, optionNames));
+            }
+            options.put(currentArg.substring(0, separatorIndex), currentArg.substring(separatorIndex + 1));
+        }
+        BookGeneratorSettings settings = BookGeneratorSettings.parse(options::get);
+        Path outputPath = Path.of(options.getOrDefault("out", "books.ndjson"));
+
+        System.out.printf("Generating %d books with seed %d on %d threads into %s%n",
+                settings.count(), settings.seed(), settings.threads(), outputPath);
+        BookGenerationReport report;
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(outputPath), 1024 * 1024)) {
+            report = new BookGenerator(settings).writeNdjson(output);
+        }
+        System.out.printf("%d books in %.1f s, %.0f books/s, %d MiB%n", report.generatedCount(),
+                report.elapsedNanos() / 1e9, report.booksPerSecond(), Files.size(outputPath) / (1024 * 1024));
+    }
+}
@@ -0,0 +1,56 @@
+package dmit2015.benchmarks;
+
+import dmit2015.assignment01_fadekeshodeinde.model.Book;
+import dmit2015.assignment01_fadekeshodeinde.service.BookService;
+
+/**
+ * Adapts a {@link dmit2015.assignment01_fadekeshodeinde.service.BookService}, such as the original
+ * MemoryBookService backed by a single ConcurrentHashMap, to the benchmarked operations.
+ */
+class LegacyBookServiceAdapter implements BenchmarkedBookService {
+
+    private final BookService bookService;
+
+    LegacyBookServiceAdapter(BookService bookService) {
+        this.bookService = bookService;
+    }
+
+    static Book newBook(int seed) {
+        var newBook = new Book();
+        newBook.setTitle(BenchmarkedBookService.title(seed));
+        newBook.setAuthor(BenchmarkedBookService.author(seed));
+        newBook.setPublishDate(BenchmarkedBookService.publishDate(seed));
+        newBook.setReadAlready(BenchmarkedBookService.readAlready(seed));
+        return newBook;
+    }
+
+    @Override
+    public String createBook(int seed) {
+        Book newBook = newBook(seed);
+        // create assigns the id to the Book passed in
+        bookService.create(newBook);
+        return newBook.getId();
+    }
+
+    @Override
+    public Object getBookById(String id) {
+        return bookService.findById(id);
+    }
+
+    @Override
+    public Object getAllBooks() {
+        return bookService.findAll();
+    }
+
+    @Override
+    public Object updateBook(String id, int seed) {
+        Book updatedBook = newBook(seed);
+        bookService.update(id, updatedBook);
+        return updatedBook;
+    }
+
+    @Override
+    public void deleteBookById(String id) {
+        bookService.delete(id);
+    }
+}
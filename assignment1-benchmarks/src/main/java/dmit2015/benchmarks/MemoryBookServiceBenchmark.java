@@ -0,0 +1,38 @@
+package dmit2015.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the indexed {@link dmit2015.service.MemoryBookService} with the original
+ * {@link dmit2015.assignment01_fadekeshodeinde.service.MemoryBookService} across data set sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MemoryBookServiceBenchmark extends AbstractBookServiceBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int datasetSize;
+
+    @Param({"indexed", "legacy"})
+    private String implementation;
+
+    @Override
+    protected BenchmarkedBookService createBookService() {
+        return switch (implementation) {
+            // Skip init() so the service starts empty
+            case "indexed" -> new BookServiceAdapter(new dmit2015.service.MemoryBookService());
+            case "legacy" -> new LegacyBookServiceAdapter(new dmit2015.assignment01_fadekeshodeinde.service.MemoryBookService());
+            default -> throw new IllegalArgumentException(String.format("Unknown implementation: %s", implementation));
+        };
+    }
+
+    @Override
+    protected int datasetSize() {
+        return datasetSize;
+    }
+}
@@ -0,0 +1,326 @@
+package dmit2015.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dmit2015.service.FirebasePushIds;
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-process stand-in for the Firebase Realtime Database REST API of one collection.
+ * <p>
+ * It supports the requests sent by the FirebaseAsyncBookService: GET, POST and multi-path PATCH of the collection,
+ * and GET, PUT and DELETE of one item. Items are kept as JSON strings ordered by key like Firebase push ids.
+ * <p>
+ * A GET of the collection that accepts text/event-stream is answered like the Firebase streaming API for the
+ * FirebaseBookChangeFeed: a put event with the whole collection, then a put or patch event for every write.
+ * A GET, PUT or DELETE of one item that asks for the ETag gets it, and a PUT or DELETE with an if-match header
+ * that no longer matches is rejected with a 412 status code, like Firebase does.
+ * <p>
+ * Every other request can be held for a fixed latency before it is handled, to stand in for the round trip to Firebase,
+ * and the responses of the next writes of one item can be dropped after they are applied, to stand in for a response
+ * lost on the way back.
+ */
+class StubFirebaseServer implements AutoCloseable {
+
+    private final String collectionName;
+
+    private final ConcurrentNavigableMap<String, String> jsonValuesByKey = new ConcurrentSkipListMap<>();
+
+    private final HttpServer httpServer;
+
+    private final ExecutorService executorService;
+
+    private final Duration latency;
+
+    /**
+     * The open event streams. Writes and their events are sent under the lock, so every stream sees them in order.
+     */
+    private final List<OutputStream> eventStreams = new CopyOnWriteArrayList<>();
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final AtomicInteger itemWriteResponsesToDrop = new AtomicInteger();
+
+    StubFirebaseServer(String collectionName, int threads) throws IOException {
+        this(collectionName, Executors.newFixedThreadPool(threads), Duration.ZERO);
+    }
+
+    /**
+     * Serve the collection with the requests handled by the executor, which is shut down on close,
+     * and held for the latency before they are handled.
+     */
+    StubFirebaseServer(String collectionName, ExecutorService executorService, Duration latency) throws IOException {
+        this.collectionName = collectionName;
+        this.executorService = executorService;
+        this.latency = latency;
+        // Without TCP_NODELAY every response waits about 40ms for the delayed ACK of its headers
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        httpServer.createContext("/" + collectionName, this::handle);
+        httpServer.setExecutor(executorService);
+        httpServer.start();
+    }
+
+    /**
+     * The base URL to configure as firebase.rtdb.Book.base.url.
+     */
+    String baseUrl() {
+        return String.format("http://%s:%d", httpServer.getAddress().getHostString(), httpServer.getAddress().getPort());
+    }
+
+    /**
+     * Apply the next PUT or DELETE requests of one item but close their connections without a response.
+     *
+     * @param count The number of responses to drop.
+     */
+    void dropItemWriteResponses(int count) {
+        itemWriteResponsesToDrop.set(count);
+    }
+
+    @Override
+    public void close() {
+        for (OutputStream currentEventStream : eventStreams) {
+            closeQuietly(currentEventStream);
+        }
+        httpServer.stop(0);
+        executorService.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        if (accept != null && accept.contains("text/event-stream") && exchange.getRequestMethod().equals("GET")
+                && exchange.getRequestURI().getPath().equals("/" + collectionName + ".json")) {
+            openEventStream(exchange);
+            return;
+        }
+        if (!latency.isZero()) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exchange.close();
+                return;
+            }
+        }
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            String requestBody = readBody(exchange.getRequestBody());
+            if (path.equals("/" + collectionName + ".json")) {
+                handleCollection(exchange, requestBody);
+            } else if (path.startsWith("/" + collectionName + "/") && path.endsWith(".json")) {
+                String key = path.substring(collectionName.length() + 2, path.length() - ".json".length());
+                handleItem(exchange, key, requestBody);
+            } else {
+                send(exchange, 404, "{\"error\":\"Not found\"}");
+            }
+        }
+    }
+
+    private void handleCollection(HttpExchange exchange, String requestBody) throws IOException {
+        switch (exchange.getRequestMethod()) {
+            case "GET" -> {
+                String query = exchange.getRequestURI().getQuery();
+                boolean shallow = query != null && query.contains("shallow=true");
+                send(exchange, 200, collectionJson(shallow));
+            }
+            case "POST" -> {
+                String key = FirebasePushIds.next();
+                writeLock.lock();
+                try {
+                    jsonValuesByKey.put(key, requestBody);
+                    sendEvent("put", "/" + key, requestBody);
+                } finally {
+                    writeLock.unlock();
+                }
+                send(exchange, 200, String.format("{\"name\":\"%s\"}", key));
+            }
+            case "PATCH" -> {
+                JsonObject changesByKey;
+                try (var jsonReader = Json.createReader(new StringReader(requestBody))) {
+                    changesByKey = jsonReader.readObject();
+                }
+                writeLock.lock();
+                try {
+                    for (Map.Entry<String, JsonValue> currentChange : changesByKey.entrySet()) {
+                        if (currentChange.getValue().getValueType() == JsonValue.ValueType.NULL) {
+                            jsonValuesByKey.remove(currentChange.getKey());
+                        } else {
+                            jsonValuesByKey.put(currentChange.getKey(), currentChange.getValue().toString());
+                        }
+                    }
+                    sendEvent("patch", "/", requestBody);
+                } finally {
+                    writeLock.unlock();
+                }
+                send(exchange, 200, requestBody);
+            }
+            default -> send(exchange, 405, "{\"error\":\"Method not allowed\"}");
+        }
+    }
+
+    private void handleItem(HttpExchange exchange, String key, String requestBody) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (method.equals("GET")) {
+            sendItem(exchange, 200, jsonValuesByKey.getOrDefault(key, "null"));
+            return;
+        }
+        if (!method.equals("PUT") && !method.equals("DELETE")) {
+            send(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        String ifMatch = exchange.getRequestHeaders().getFirst("if-match");
+        String currentJsonValue;
+        boolean matches;
+        writeLock.lock();
+        try {
+            currentJsonValue = jsonValuesByKey.getOrDefault(key, "null");
+            matches = ifMatch == null || ifMatch.equals(etag(currentJsonValue));
+            if (matches && method.equals("PUT")) {
+                jsonValuesByKey.put(key, requestBody);
+                sendEvent("put", "/" + key, requestBody);
+            } else if (matches) {
+                jsonValuesByKey.remove(key);
+                sendEvent("put", "/" + key, "null");
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (!matches) {
+            sendItem(exchange, 412, currentJsonValue);
+            return;
+        }
+        if (itemWriteResponsesToDrop.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+            // Closing the exchange without response headers closes the connection
+            return;
+        }
+        sendItem(exchange, 200, method.equals("PUT") ? requestBody : "null");
+    }
+
+    /**
+     * Send the data of an item, with its ETag if the request asked for it.
+     */
+    private static void sendItem(HttpExchange exchange, int statusCode, String jsonValue) throws IOException {
+        if ("true".equals(exchange.getRequestHeaders().getFirst("X-Firebase-ETag"))) {
+            exchange.getResponseHeaders().set("ETag", etag(jsonValue));
+        }
+        send(exchange, statusCode, jsonValue);
+    }
+
+    /**
+     * The ETag of the data: like Firebase, the Base64 encoded SHA-1 hash of its JSON.
+     */
+    private static String etag(String jsonValue) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(jsonValue.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Start an event stream with the whole collection and keep the exchange open for the events of later writes.
+     */
+    private void openEventStream(HttpExchange exchange) throws IOException {
+        readBody(exchange.getRequestBody());
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        // A response length of 0 sends the body in chunks until the stream is closed
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream eventStream = exchange.getResponseBody();
+        writeLock.lock();
+        try {
+            if (writeEvent(eventStream, "put", "/", collectionJson(false))) {
+                eventStreams.add(eventStream);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Send the event to every open event stream. Must hold the write lock.
+     */
+    private void sendEvent(String eventName, String path, String dataJson) {
+        for (OutputStream currentEventStream : eventStreams) {
+            if (!writeEvent(currentEventStream, eventName, path, dataJson)) {
+                eventStreams.remove(currentEventStream);
+            }
+        }
+    }
+
+    /**
+     * Write one event to the stream.
+     *
+     * @return true if the event was written, false if the stream was closed and has been discarded.
+     */
+    private static boolean writeEvent(OutputStream eventStream, String eventName, String path, String dataJson) {
+        String event = String.format("event: %s\ndata: {\"path\":\"%s\",\"data\":%s}\n\n", eventName, path, dataJson);
+        try {
+            eventStream.write(event.getBytes(StandardCharsets.UTF_8));
+            eventStream.flush();
+            return true;
+        } catch (IOException e) {
+            closeQuietly(eventStream);
+            return false;
+        }
+    }
+
+    private static void closeQuietly(OutputStream outputStream) {
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            // The client is gone either way
+        }
+    }
+
+    private String collectionJson(boolean shallow) {
+        if (jsonValuesByKey.isEmpty()) {
+            return "null";
+        }
+        var json = new StringBuilder("{");
+        for (Map.Entry<String, String> currentEntry : jsonValuesByKey.entrySet()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append('"').append(currentEntry.getKey()).append("\":")
+                    .append(shallow ? "true" : currentEntry.getValue());
+        }
+        return json.append('}').toString();
+    }
+
+    private static String readBody(InputStream inputStream) throws IOException {
+        return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static void send(HttpExchange exchange, int statusCode, String responseBody) throws IOException {
+        byte[] responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(statusCode, responseBytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(responseBytes);
+        }
+    }
+}
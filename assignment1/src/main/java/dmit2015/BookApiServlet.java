@@ -0,0 +1,339 @@
+package dmit2015;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+import dmit2015.model.Book;
+import dmit2015.service.BookPage;
+import dmit2015.service.BookService;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import jakarta.servlet.http.*;
+import jakarta.servlet.annotation.*;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * A read-only JSON API over the books, made cheap to poll with HTTP caching.
+ * <ul>
+ *     <li>GET /api/books returns every book as a JSON array, or with any of offset, limit, sort, order=desc and
+ *     filter a page as {"books": [...], "totalCount": n}, like {@link BookService#page}.</li>
+ *     <li>GET /api/books/{id} returns one book, or 404 if there is no book with the id.</li>
+ * </ul>
+ * When the BookService counts its changes, the ETag is the start time of this servlet and the
+ * {@link BookService#changeCount()}, read before the books. A request whose If-None-Match has the current ETag
+ * gets a 304 without reading or serializing a book, and the last body of each URL is kept until the count moves,
+ * so a new client of an unchanged URL is served without reading the books either.
+ * When the service cannot count changes, the books are read on every request and the ETag is a digest of the body,
+ * which still saves sending it but not reading and serializing every book, so polling the whole collection is only cheap
+ * while the {@link dmit2015.service.FirebaseBookChangeFeed} is live.
+ * <p>
+ * Bodies of at least 1 KiB are gzipped for clients that accept it. The gzipped body has its own ETag, since it has other bytes.
+ * Every response has Cache-Control: max-age of api.books.max.age.seconds with must-revalidate.
+ */
+@WebServlet(name = "bookApiServlet", value = "/api/books/*")
+public class BookApiServlet extends HttpServlet {
+
+    private static final int COMPRESSION_THRESHOLD_BYTES = 1024;
+
+    private static final int MAX_CACHED_RESPONSES = 64;
+
+    private static final int MAX_CACHED_RESPONSE_BYTES = 4 * 1024 * 1024;
+
+    private static final String GZIP_SUFFIX = "-gzip";
+
+    @Inject
+    @Named("firebaseHttpClientBookService")
+    private BookService bookService;
+
+    /**
+     * The number of seconds a client may use a response before it must revalidate it.
+     */
+    @Inject
+    @ConfigProperty(name = "api.books.max.age.seconds", defaultValue = "0")
+    private long maxAgeSeconds;
+
+    /**
+     * A rendered response body with its ETag, and the gzipped body if it is large enough to compress.
+     */
+    private record Representation(String entityTag, byte[] body, byte[] gzipBody) {
+    }
+
+    /**
+     * Tells the change counts of this run apart from those of an earlier run, which start again from zero.
+     */
+    private String epoch;
+
+    private Jsonb jsonb;
+
+    /**
+     * Guards the cached representations.
+     */
+    private final ReentrantLock cacheLock = new ReentrantLock();
+
+    /**
+     * The last representation of each URL in least recently used order. Guarded by cacheLock.
+     */
+    private final Map<String, Representation> representationsByUrl = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Representation> eldest) {
+            return size() > MAX_CACHED_RESPONSES;
+        }
+    };
+
+    public void init() {
+        epoch = Long.toHexString(System.currentTimeMillis());
+        jsonb = JsonbBuilder.create();
+    }
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String pathInfo = request.getPathInfo();
+        String id = pathInfo == null || pathInfo.equals("/") ? null : pathInfo.substring(1);
+        if (id != null && id.contains("/")) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String url = request.getQueryString() == null ? request.getRequestURI() : request.getRequestURI() + "?" + request.getQueryString();
+        boolean gzipAccepted = acceptsGzip(request.getHeader("Accept-Encoding"));
+
+        response.setHeader("Cache-Control", String.format("max-age=%d, must-revalidate", maxAgeSeconds));
+        response.setHeader("Vary", "Accept-Encoding");
+
+        long changeCount = bookService.changeCount();
+        String entityTag = changeCount >= 0 ? epoch + "-" + changeCount : null;
+        if (entityTag != null && sendNotModifiedIfMatching(request, response, entityTag)) {
+            return;
+        }
+        Representation representation = null;
+        if (entityTag != null) {
+            cacheLock.lock();
+            try {
+                representation = representationsByUrl.get(url);
+            } finally {
+                cacheLock.unlock();
+            }
+        }
+        if (representation == null || !representation.entityTag().equals(entityTag)) {
+            byte[] body;
+            try {
+                body = render(id, request);
+            } catch (IllegalArgumentException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            if (body == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, String.format("Could not find Book with id: %s", id));
+                return;
+            }
+            if (entityTag == null) {
+                entityTag = digest(body);
+                if (sendNotModifiedIfMatching(request, response, entityTag)) {
+                    return;
+                }
+            }
+            representation = new Representation(entityTag, body, gzip(body));
+            if (changeCount >= 0 && body.length <= MAX_CACHED_RESPONSE_BYTES) {
+                cacheLock.lock();
+                try {
+                    representationsByUrl.put(url, representation);
+                } finally {
+                    cacheLock.unlock();
+                }
+            }
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        byte[] body = representation.body();
+        if (gzipAccepted && representation.gzipBody() != null) {
+            body = representation.gzipBody();
+            response.setHeader("Content-Encoding", "gzip");
+            response.setHeader("ETag", quote(representation.entityTag() + GZIP_SUFFIX));
+        } else {
+            response.setHeader("ETag", quote(representation.entityTag()));
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    public void destroy() {
+        if (jsonb != null) {
+            try {
+                jsonb.close();
+            } catch (Exception e) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    /**
+     * Serialize the book with the id, or the books selected by the query parameters.
+     *
+     * @return The JSON body, or null if there is no book with the id.
+     * @throws IllegalArgumentException if a query parameter is not valid.
+     */
+    private byte[] render(String id, HttpServletRequest request) throws IOException {
+        var output = new ByteArrayOutputStream();
+        try (var writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+            if (id != null) {
+                Optional<Book> singleResult = bookService.getBookById(id);
+                if (singleResult.isEmpty()) {
+                    return null;
+                }
+                writer.write(jsonb.toJson(singleResult.get()));
+            } else if (isPaged(request)) {
+                BookPage page = bookService.page(
+                        intParameter(request, "offset", 0),
+                        intParameter(request, "limit", Integer.MAX_VALUE),
+                        request.getParameter("sort"),
+                        !"desc".equalsIgnoreCase(request.getParameter("order")),
+                        request.getParameter("filter"));
+                writer.write("{\"books\":[");
+                boolean first = true;
+                for (Book currentBook : page.books()) {
+                    if (!first) {
+                        writer.write(',');
+                    }
+                    writer.write(jsonb.toJson(currentBook));
+                    first = false;
+                }
+                writer.write("],\"totalCount\":");
+                writer.write(Long.toString(page.totalCount()));
+                writer.write('}');
+            } else {
+                writer.write('[');
+                boolean[] first = {true};
+                try {
+                    bookService.forEachBook(currentBook -> {
+                        try {
+                            if (!first[0]) {
+                                writer.write(',');
+                            }
+                            writer.write(jsonb.toJson(currentBook));
+                            first[0] = false;
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                writer.write(']');
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private static boolean isPaged(HttpServletRequest request) {
+        for (String currentName : new String[]{"offset", "limit", "sort", "order", "filter"}) {
+            if (request.getParameter(currentName) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int intParameter(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("%s %s is not a whole number", name, value));
+        }
+    }
+
+    /**
+     * The gzipped body, or null if it is too small to be worth compressing.
+     */
+    private static byte[] gzip(byte[] body) throws IOException {
+        if (body.length < COMPRESSION_THRESHOLD_BYTES) {
+            return null;
+        }
+        var output = new ByteArrayOutputStream(body.length / 4);
+        try (var gzipOutput = new GZIPOutputStream(output)) {
+            gzipOutput.write(body);
+        }
+        return output.toByteArray();
+    }
+
+    private static String digest(byte[] body) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash).substring(0, 22);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Answer with 304 Not Modified if the If-None-Match header names the entity tag, echoing the tag the client sent,
+     * which names the encoding it holds.
+     *
+     * @return true if the 304 was sent.
+     */
+    private static boolean sendNotModifiedIfMatching(HttpServletRequest request, HttpServletResponse response, String entityTag) {
+        String matchingTag = matchingTag(request.getHeader("If-None-Match"), entityTag);
+        if (matchingTag == null) {
+            return false;
+        }
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        response.setHeader("ETag", matchingTag);
+        return true;
+    }
+
+    /**
+     * Find the tag in the If-None-Match header that names the entity tag in either encoding, using the weak comparison
+     * that RFC 9110 requires for If-None-Match.
+     *
+     * @return The tag as the client sent it, or null if none matches.
+     */
+    private static String matchingTag(String ifNoneMatch, String entityTag) {
+        if (ifNoneMatch == null) {
+            return null;
+        }
+        for (String currentTag : ifNoneMatch.split(",")) {
+            String tag = currentTag.strip();
+            String opaqueTag = tag.startsWith("W/") ? tag.substring(2) : tag;
+            if (opaqueTag.length() >= 2 && opaqueTag.startsWith("\"") && opaqueTag.endsWith("\"")) {
+                opaqueTag = opaqueTag.substring(1, opaqueTag.length() - 1);
+            }
+            if (opaqueTag.endsWith(GZIP_SUFFIX)) {
+                opaqueTag = opaqueTag.substring(0, opaqueTag.length() - GZIP_SUFFIX.length());
+            }
+            if (opaqueTag.equals(entityTag)) {
+                return tag;
+            }
+        }
+        return null;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String currentCoding : acceptEncoding.split(",")) {
+            String[] parts = currentCoding.strip().toLowerCase(Locale.ROOT).split(";");
+            if (parts[0].strip().equals("gzip") || parts[0].strip().equals("*")) {
+                return parts.length == 1 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static String quote(String entityTag) {
+        return "\"" + entityTag + "\"";
+    }
+}
@@ -0,0 +1,226 @@
+package dmit2015;
+
+import dmit2015.model.Book;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads and writes books as RFC 4180 CSV with a header row, one record at a time.
+ * <p>
+ * Fields that hold a comma, a double quote or a line break are quoted, and a quoted field may span lines.
+ * The columns of an imported file may come in any order, and only the title, author and publishDate columns are required.
+ */
+final class BookCsv {
+
+    static final List<String> COLUMNS = List.of("id", "title", "author", "publishDate", "readAlready");
+
+    private static final List<String> REQUIRED_COLUMNS = List.of("title", "author", "publishDate");
+
+    /**
+     * The longest record read, so a quote that is never closed cannot pull the rest of the input into memory.
+     */
+    static final int MAX_RECORD_CHARS = 1024 * 1024;
+
+    private BookCsv() {
+    }
+
+    static void writeHeader(Writer writer) throws IOException {
+        writer.write(String.join(",", COLUMNS));
+        writer.write("\r\n");
+    }
+
+    static void writeBook(Writer writer, Book book) throws IOException {
+        writeField(writer, book.getId());
+        writer.write(',');
+        writeField(writer, book.getTitle());
+        writer.write(',');
+        writeField(writer, book.getAuthor());
+        writer.write(',');
+        writeField(writer, book.getPublishDate() == null ? null : book.getPublishDate().toString());
+        writer.write(',');
+        writer.write(Boolean.toString(book.isReadAlready()));
+        writer.write("\r\n");
+    }
+
+    private static void writeField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\r') < 0 && value.indexOf('\n') < 0) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    /**
+     * Find the index of each column in the header record.
+     *
+     * @throws IllegalArgumentException if a column is unknown, repeated or a required column is missing.
+     */
+    static int[] columnIndexes(List<String> header) {
+        var indexes = new int[COLUMNS.size()];
+        Arrays.fill(indexes, -1);
+        for (int position = 0; position < header.size(); position++) {
+            String column = header.get(position).strip();
+            int columnIndex = COLUMNS.indexOf(column);
+            if (columnIndex < 0) {
+                throw new IllegalArgumentException(String.format("Unknown column %s, expected some of %s", column, COLUMNS));
+            }
+            if (indexes[columnIndex] >= 0) {
+                throw new IllegalArgumentException(String.format("Column %s is repeated", column));
+            }
+            indexes[columnIndex] = position;
+        }
+        for (String currentColumn : REQUIRED_COLUMNS) {
+            if (indexes[COLUMNS.indexOf(currentColumn)] < 0) {
+                throw new IllegalArgumentException(String.format("Column %s is missing", currentColumn));
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Convert a record into a book. Empty fields are null, so Bean Validation reports the missing values.
+     *
+     * @param columnIndexes The index of each column in the record, from {@link #columnIndexes(List)}.
+     * @throws IllegalArgumentException if the record has the wrong number of fields or a field cannot be converted.
+     */
+    static Book toBook(List<String> record, int[] columnIndexes, int columnCount) {
+        if (record.size() != columnCount) {
+            throw new IllegalArgumentException(String.format("Expected %d fields but found %d", columnCount, record.size()));
+        }
+        var book = new Book();
+        book.setId(field(record, columnIndexes, "id"));
+        book.setTitle(field(record, columnIndexes, "title"));
+        book.setAuthor(field(record, columnIndexes, "author"));
+        String publishDate = field(record, columnIndexes, "publishDate");
+        if (publishDate != null) {
+            try {
+                book.setPublishDate(LocalDate.parse(publishDate.strip()));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException(String.format("publishDate %s is not a date in the format yyyy-MM-dd", publishDate));
+            }
+        }
+        String readAlready = field(record, columnIndexes, "readAlready");
+        if (readAlready != null) {
+            book.setReadAlready(switch (readAlready.strip().toLowerCase(Locale.ROOT)) {
+                case "true" -> true;
+                case "false" -> false;
+                default -> throw new IllegalArgumentException(String.format("readAlready %s is not true or false", readAlready));
+            });
+        }
+        return book;
+    }
+
+    private static String field(List<String> record, int[] columnIndexes, String column) {
+        int position = columnIndexes[COLUMNS.indexOf(column)];
+        if (position < 0 || record.get(position).isEmpty()) {
+            return null;
+        }
+        return record.get(position);
+    }
+
+    /**
+     * Reads one record at a time from a character stream, so only the current record is held in memory.
+     */
+    static class RecordReader {
+
+        private final Reader reader;
+
+        private int peekedChar = -2;
+
+        RecordReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Read the fields of the next record, skipping blank lines.
+         *
+         * @return The fields of the record, or null at the end of the input.
+         * @throws IllegalArgumentException if the record is longer than {@link #MAX_RECORD_CHARS} or a quoted field is not closed.
+         */
+        List<String> next() throws IOException {
+            var fields = new ArrayList<String>(COLUMNS.size());
+            var field = new StringBuilder();
+            int recordChars = 0;
+            boolean quoted = false;
+            boolean fieldStarted = false;
+            while (true) {
+                int c = read();
+                if (c < 0) {
+                    if (quoted) {
+                        throw new IllegalArgumentException("A quoted field is not closed");
+                    }
+                    if (!fieldStarted && fields.isEmpty()) {
+                        return null;
+                    }
+                    fields.add(field.toString());
+                    return fields;
+                }
+                if (++recordChars > MAX_RECORD_CHARS) {
+                    throw new IllegalArgumentException(String.format("A record is longer than %d characters", MAX_RECORD_CHARS));
+                }
+                if (quoted) {
+                    if (c == '"') {
+                        if (peek() == '"') {
+                            read();
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.isEmpty()) {
+                    quoted = true;
+                    fieldStarted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                    fieldStarted = true;
+                } else if (c == '\r' || c == '\n') {
+                    if (c == '\r' && peek() == '\n') {
+                        read();
+                    }
+                    if (!fieldStarted && fields.isEmpty()) {
+                        // A blank line
+                        recordChars = 0;
+                        continue;
+                    }
+                    fields.add(field.toString());
+                    return fields;
+                } else {
+                    field.append((char) c);
+                    fieldStarted = true;
+                }
+            }
+        }
+
+        private int read() throws IOException {
+            if (peekedChar != -2) {
+                int c = peekedChar;
+                peekedChar = -2;
+                return c;
+            }
+            return reader.read();
+        }
+
+        private int peek() throws IOException {
+            if (peekedChar == -2) {
+                peekedChar = reader.read();
+            }
+            return peekedChar;
+        }
+    }
+}
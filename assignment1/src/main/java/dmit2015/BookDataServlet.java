@@ -0,0 +1,322 @@
+package dmit2015;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import dmit2015.model.Book;
+import dmit2015.service.BookBatchResult;
+import dmit2015.service.BookService;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import jakarta.json.Json;
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import jakarta.json.bind.JsonbException;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.servlet.http.*;
+import jakarta.servlet.annotation.*;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import jakarta.validation.ValidatorFactory;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Export and import all books in bulk as NDJSON, one JSON object per line, or as CSV with a header row.
+ * <p>
+ * GET streams every book with {@link BookService#forEachBook}, as NDJSON or with ?format=csv, so the books are never
+ * held in a list. POST reads a body of Content-Type application/x-ndjson or text/csv one row at a time, validates each
+ * row against the Bean Validation constraints of the {@link Book}, and writes the valid rows in batches of
+ * firebase.rtdb.Book.batch.size books. Rows without an id are created, and rows with an id are written over the book
+ * with that id. Only the current batch is in memory, so the size of an import is not limited by the heap.
+ * <p>
+ * The response to an import counts the rows read, imported and failed, and lists the first 100 failed rows with the reason.
+ * A row is numbered from 1, not counting the CSV header.
+ */
+@WebServlet(name = "bookDataServlet", value = "/book-data")
+public class BookDataServlet extends HttpServlet {
+
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    @Inject
+    @Named("firebaseHttpClientBookService")
+    private BookService bookService;
+
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.batch.size", defaultValue = "500")
+    private int batchSize;
+
+    private Jsonb jsonb;
+
+    private ValidatorFactory validatorFactory;
+
+    private Validator validator;
+
+    public void init() {
+        jsonb = JsonbBuilder.create();
+        validatorFactory = Validation.buildDefaultValidatorFactory();
+        validator = validatorFactory.getValidator();
+    }
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String format = request.getParameter("format") == null ? "ndjson" : request.getParameter("format").toLowerCase(Locale.ROOT);
+        boolean csv;
+        switch (format) {
+            case "csv" -> {
+                csv = true;
+                response.setContentType("text/csv");
+            }
+            case "ndjson" -> {
+                csv = false;
+                response.setContentType("application/x-ndjson");
+            }
+            default -> {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, String.format("Unknown format %s, expected ndjson or csv", format));
+                return;
+            }
+        }
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Content-Disposition", String.format("attachment; filename=\"books.%s\"", format));
+        response.setHeader("Cache-Control", "no-store");
+
+        // Without a content length the container sends the body in chunks as the buffer fills
+        var writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+        try {
+            if (csv) {
+                BookCsv.writeHeader(writer);
+            }
+            bookService.forEachBook(currentBook -> {
+                try {
+                    if (csv) {
+                        BookCsv.writeBook(writer, currentBook);
+                    } else {
+                        writer.write(jsonb.toJson(currentBook));
+                        writer.write('\n');
+                    }
+                } catch (IOException e) {
+                    // Stop iterating once the client has gone away
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.flush();
+    }
+
+    public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String contentType = request.getContentType() == null ? "" : request.getContentType().split(";")[0].strip().toLowerCase(Locale.ROOT);
+        boolean csv;
+        switch (contentType) {
+            case "text/csv" -> csv = true;
+            case "application/x-ndjson", "application/jsonl" -> csv = false;
+            default -> {
+                response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Expected a body of Content-Type application/x-ndjson or text/csv");
+                return;
+            }
+        }
+        if (request.getCharacterEncoding() == null) {
+            request.setCharacterEncoding("UTF-8");
+        }
+
+        var bookImport = new BookImport();
+        String errorMessage = null;
+        try (Reader reader = request.getReader()) {
+            if (csv) {
+                importCsv(reader, bookImport);
+            } else {
+                importNdjson(reader, bookImport);
+            }
+        } catch (IllegalArgumentException e) {
+            // The rest of the body cannot be read, but the rows before it are still imported
+            errorMessage = e.getMessage();
+        }
+        bookImport.flush();
+
+        response.setStatus(errorMessage == null ? HttpServletResponse.SC_OK : HttpServletResponse.SC_BAD_REQUEST);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        try (JsonGenerator generator = Json.createGenerator(response.getWriter())) {
+            generator.writeStartObject();
+            if (errorMessage != null) {
+                generator.write("error", errorMessage);
+            }
+            generator.write("rows", bookImport.rowCount);
+            generator.write("imported", bookImport.importedCount);
+            generator.write("failed", bookImport.failedCount);
+            generator.writeStartArray("errors");
+            for (RowError currentError : bookImport.rowErrors) {
+                generator.writeStartObject()
+                        .write("row", currentError.row())
+                        .write("message", currentError.message())
+                        .writeEnd();
+            }
+            generator.writeEnd();
+            generator.writeEnd();
+        }
+    }
+
+    public void destroy() {
+        if (jsonb != null) {
+            try {
+                jsonb.close();
+            } catch (Exception e) {
+                // Nothing left to release
+            }
+        }
+        if (validatorFactory != null) {
+            validatorFactory.close();
+        }
+    }
+
+    private void importCsv(Reader reader, BookImport bookImport) throws IOException {
+        var recordReader = new BookCsv.RecordReader(reader);
+        List<String> header = recordReader.next();
+        if (header == null) {
+            return;
+        }
+        int[] columnIndexes = BookCsv.columnIndexes(header);
+        List<String> currentRecord;
+        while ((currentRecord = recordReader.next()) != null) {
+            long row = ++bookImport.rowCount;
+            Book book;
+            try {
+                book = BookCsv.toBook(currentRecord, columnIndexes, header.size());
+            } catch (IllegalArgumentException e) {
+                bookImport.fail(row, e.getMessage());
+                continue;
+            }
+            bookImport.add(row, book);
+        }
+    }
+
+    private void importNdjson(Reader reader, BookImport bookImport) throws IOException {
+        var line = new StringBuilder();
+        while (readLine(reader, line)) {
+            if (line.toString().isBlank()) {
+                continue;
+            }
+            long row = ++bookImport.rowCount;
+            Book book;
+            try {
+                book = jsonb.fromJson(line.toString(), Book.class);
+            } catch (JsonbException e) {
+                bookImport.fail(row, e.getMessage());
+                continue;
+            }
+            if (book == null) {
+                bookImport.fail(row, "Expected a JSON object");
+                continue;
+            }
+            bookImport.add(row, book);
+        }
+    }
+
+    /**
+     * Read the next line into the builder without its line break.
+     *
+     * @return false at the end of the input.
+     * @throws IllegalArgumentException if the line is longer than {@link BookCsv#MAX_RECORD_CHARS}.
+     */
+    private static boolean readLine(Reader reader, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int c = reader.read();
+        if (c < 0) {
+            return false;
+        }
+        while (c >= 0 && c != '\n') {
+            if (line.length() == BookCsv.MAX_RECORD_CHARS) {
+                throw new IllegalArgumentException(String.format("A line is longer than %d characters", BookCsv.MAX_RECORD_CHARS));
+            }
+            line.append((char) c);
+            c = reader.read();
+        }
+        if (!line.isEmpty() && line.charAt(line.length() - 1) == '\r') {
+            line.setLength(line.length() - 1);
+        }
+        return true;
+    }
+
+    private record RowError(long row, String message) {
+    }
+
+    /**
+     * The counts of an import, the first failed rows, and the valid books waiting to be written in the next batch.
+     */
+    private class BookImport {
+
+        private long rowCount;
+
+        private long importedCount;
+
+        private long failedCount;
+
+        private final List<RowError> rowErrors = new ArrayList<>();
+
+        private final List<Book> newBooks = new ArrayList<>();
+
+        private final List<Long> newBookRows = new ArrayList<>();
+
+        private final List<Book> existingBooks = new ArrayList<>();
+
+        private final List<Long> existingBookRows = new ArrayList<>();
+
+        void add(long row, Book book) {
+            Set<ConstraintViolation<Book>> violations = validator.validate(book);
+            if (!violations.isEmpty()) {
+                fail(row, violations.stream()
+                        .sorted(Comparator.comparing(violation -> violation.getPropertyPath().toString()))
+                        .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+                        .collect(Collectors.joining(", ")));
+                return;
+            }
+            if (book.getId() == null) {
+                newBooks.add(book);
+                newBookRows.add(row);
+            } else {
+                existingBooks.add(book);
+                existingBookRows.add(row);
+            }
+            if (newBooks.size() + existingBooks.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        void fail(long row, String message) {
+            failedCount++;
+            if (rowErrors.size() < MAX_REPORTED_ERRORS) {
+                rowErrors.add(new RowError(row, message));
+            }
+        }
+
+        void flush() {
+            if (!newBooks.isEmpty()) {
+                countResults(bookService.createBooks(newBooks), newBookRows);
+                newBooks.clear();
+                newBookRows.clear();
+            }
+            if (!existingBooks.isEmpty()) {
+                countResults(bookService.updateBooks(existingBooks), existingBookRows);
+                existingBooks.clear();
+                existingBookRows.clear();
+            }
+        }
+
+        private void countResults(List<BookBatchResult> results, List<Long> rows) {
+            for (int index = 0; index < results.size(); index++) {
+                if (results.get(index).isSuccessful()) {
+                    importedCount++;
+                } else {
+                    fail(rows.get(index), results.get(index).errorMessage());
+                }
+            }
+        }
+    }
+}
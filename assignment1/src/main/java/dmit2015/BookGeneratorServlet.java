@@ -0,0 +1,99 @@
+package dmit2015;
+
+import java.io.*;
+
+import dmit2015.generator.BookGenerationReport;
+import dmit2015.generator.BookGenerator;
+import dmit2015.generator.BookGeneratorSettings;
+import dmit2015.service.BookService;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import jakarta.json.Json;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.servlet.http.*;
+import jakarta.servlet.annotation.*;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Generate realistic books for load tests with the {@link BookGenerator}.
+ * <p>
+ * GET streams the generated books as NDJSON, the format imported by /book-data, and POST creates them with the BookService
+ * and responds with the number of books generated and failed and the rate they were generated and written at.
+ * The query parameters are the options of {@link BookGeneratorSettings#parse}. count is required, so a request
+ * without it cannot fill the database by accident, and batchSize defaults to firebase.rtdb.Book.batch.size.
+ * threads and authorCount are capped, since a request could otherwise start any number of threads or build
+ * any number of author names before the first book is generated.
+ */
+@WebServlet(name = "bookGeneratorServlet", value = "/book-generator")
+public class BookGeneratorServlet extends HttpServlet {
+
+    private static final int MAX_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+
+    private static final int MAX_AUTHOR_COUNT = 1_000_000;
+
+    @Inject
+    @Named("firebaseHttpClientBookService")
+    private BookService bookService;
+
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.batch.size", defaultValue = "500")
+    private int batchSize;
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        BookGeneratorSettings settings = settings(request, response);
+        if (settings == null) {
+            return;
+        }
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=\"books.ndjson\"");
+        try (OutputStream output = new BufferedOutputStream(response.getOutputStream(), 64 * 1024)) {
+            new BookGenerator(settings).writeNdjson(output);
+        }
+    }
+
+    public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        BookGeneratorSettings settings = settings(request, response);
+        if (settings == null) {
+            return;
+        }
+        BookGenerationReport report = new BookGenerator(settings).writeTo(bookService);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        try (JsonGenerator generator = Json.createGenerator(response.getWriter())) {
+            generator.writeStartObject()
+                    .write("generated", report.generatedCount())
+                    .write("failed", report.failedCount())
+                    .write("elapsedMillis", report.elapsed().toMillis())
+                    .write("booksPerSecond", Math.round(report.booksPerSecond()))
+                    .writeEnd();
+        }
+    }
+
+    /**
+     * Read the settings from the query parameters, or send 400 Bad Request if they are missing or not valid.
+     *
+     * @return The settings, or null if the error was sent.
+     */
+    private BookGeneratorSettings settings(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (request.getParameter("count") == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "count is required");
+            return null;
+        }
+        try {
+            BookGeneratorSettings settings = BookGeneratorSettings.parse(name -> name.equals("batchSize") && request.getParameter(name) == null
+                    ? Integer.toString(batchSize)
+                    : request.getParameter(name));
+            if (settings.threads() > MAX_THREADS || settings.authorCount() > MAX_AUTHOR_COUNT) {
+                throw new IllegalArgumentException(String.format("threads %d must be at most %d and authorCount %d at most %d",
+                        settings.threads(), MAX_THREADS, settings.authorCount(), MAX_AUTHOR_COUNT));
+            }
+            return settings;
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package dmit2015;
+
+import java.io.*;
+
+import dmit2015.metrics.MetricsRegistry;
+import jakarta.inject.Inject;
+import jakarta.servlet.http.*;
+import jakarta.servlet.annotation.*;
+
+/**
+ * Serve the metrics of the {@link MetricsRegistry} for Prometheus to scrape.
+ */
+@WebServlet(name = "metricsServlet", value = "/metrics")
+public class MetricsServlet extends HttpServlet {
+
+    @Inject
+    private MetricsRegistry metricsRegistry;
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+
+        PrintWriter out = response.getWriter();
+        metricsRegistry.writePrometheusText(out);
+    }
+}
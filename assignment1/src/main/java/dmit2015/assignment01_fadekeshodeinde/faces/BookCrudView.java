@@ -3,12 +3,22 @@ package dmit2015.assignment01_fadekeshodeinde.faces;
 import dmit2015.assignment01_fadekeshodeinde.model.Book;
 import dmit2015.assignment01_fadekeshodeinde.service.BookService;
 import jakarta.annotation.PostConstruct;
+import jakarta.faces.context.FacesContext;
 import jakarta.faces.view.ViewScoped;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.primefaces.PrimeFaces;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serial;
 import java.io.Serializable;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 @Named("bookCrudView")
 @ViewScoped
@@ -17,35 +27,166 @@ public class BookCrudView implements Serializable {
     @Inject
     private BookService bookService;
 
-    private List<Book> books;
-    private Book selectedBook = new Book();
+    @Inject
+    private BookRowStore rowStore;
+
+    // In lean view-state mode the view keeps only the ids of its books and reads the books from the shared rowStore
+    @Inject
+    @ConfigProperty(name = "faces.book.view.state.lean", defaultValue = "true")
+    boolean leanViewState;
+
+    // The ids of the books shown, which is all of the list that is serialized with the view
+    private List<String> bookIds;
+    // The books shown when not in lean view-state mode, otherwise null
+    private transient List<Book> books;
+    private transient Book selectedBook = new Book();
+    // The change count of the service when the list was loaded or last changed by this view
+    private long knownChangeCount;
 
     @PostConstruct
     public void init() {
-        books = new ArrayList<>(bookService.findAll());
+        reload();
     }
 
     public void create() {
+        int rowIndex = -1;
         if (selectedBook.getId() == null || selectedBook.getId().isBlank()) {
             bookService.create(selectedBook);
+            rowStore.put(selectedBook);
+            if (isOnlyChangeSinceLoad()) add(selectedBook);
         } else {
             bookService.update(selectedBook.getId(), selectedBook);
+            rowStore.put(selectedBook);
+            if (isOnlyChangeSinceLoad()) rowIndex = replace(selectedBook);
         }
-        books = new ArrayList<>(bookService.findAll());
         selectedBook = new Book();
+        // Re-render only the saved row when the list is still current, otherwise the whole table
+        PrimeFaces.current().ajax().update(rowIndex >= 0 ? "bookForm:dt-books:@row(" + rowIndex + ")" : "bookForm:dt-books");
     }
 
+    // Edit a copy, since the book shown may be shared with other views through the rowStore
     public void edit(Book b) {
-        this.selectedBook = b;
+        this.selectedBook = copyOf(b);
     }
 
     public void delete(String id) {
         bookService.delete(id);
-        books = new ArrayList<>(bookService.findAll());
+        rowStore.remove(id);
+        if (isOnlyChangeSinceLoad()) {
+            int i = bookIds.indexOf(id);
+            if (i >= 0) {
+                bookIds.remove(i);
+                if (books != null) books.remove(i);
+                forgetRequestBooks();
+            }
+        }
     }
 
+    // Apply our own change to the local list unless the change count shows someone else changed the books too,
+    // in which case the list is reloaded instead. A service that cannot count changes, such as the FirebaseBookService
+    // whose books other clients write too, always reloads, since any change may not be ours.
+    private boolean isOnlyChangeSinceLoad() {
+        long changeCount = bookService.changeCount();
+        if (changeCount < 0 || changeCount != knownChangeCount + 1) {
+            reload();
+            return false;
+        }
+        knownChangeCount = changeCount;
+        return true;
+    }
 
-    public List<Book> getBooks() { return books; }
+    private void add(Book savedBook) {
+        bookIds.add(savedBook.getId());
+        if (books != null) books.add(savedBook);
+        forgetRequestBooks();
+    }
+
+    private int replace(Book savedBook) {
+        int i = bookIds.indexOf(savedBook.getId());
+        if (i < 0) {
+            add(savedBook);
+            return -1;
+        }
+        if (books != null) books.set(i, savedBook);
+        forgetRequestBooks();
+        return i;
+    }
+
+    private void reload() {
+        knownChangeCount = bookService.changeCount();
+        List<Book> allBooks = bookService.findAll();
+        rowStore.putAll(allBooks);
+        bookIds = new ArrayList<>(allBooks.stream().map(Book::getId).toList());
+        books = leanViewState ? null : new ArrayList<>(allBooks);
+        forgetRequestBooks();
+    }
+
+    // The books shown, read from the rowStore in lean view-state mode or after the view was deserialized.
+    // The books the store no longer has are read with one findByIds, and the ids of books deleted since are dropped.
+    // The list is kept for the rest of the request, since the table evaluates it many times while rendering.
+    @SuppressWarnings("unchecked")
+    public List<Book> getBooks() {
+        if (books != null) return books;
+        Map<Object, Object> requestAttributes = FacesContext.getCurrentInstance().getAttributes();
+        // Keyed by the view itself, so two views in one request keep their own lists
+        return (List<Book>) requestAttributes.computeIfAbsent(this, key -> {
+            List<Book> found = rowStore.getAll(bookIds, bookService::findByIds);
+            if (found.contains(null)) {
+                bookIds = new ArrayList<>(found.stream().filter(Objects::nonNull).map(Book::getId).toList());
+            }
+            return found.stream().filter(Objects::nonNull).toList();
+        });
+    }
+
+    // Called whenever bookIds changes, so a list already read in this request is not shown
+    private void forgetRequestBooks() {
+        FacesContext facesContext = FacesContext.getCurrentInstance();
+        if (facesContext != null) facesContext.getAttributes().remove(this);
+    }
     public Book getSelectedBook() { return selectedBook; }
     public void setSelectedBook(Book selectedBook) { this.selectedBook = selectedBook; }
+
+    private static Book copyOf(Book b) {
+        Book copy = new Book();
+        copy.setId(b.getId()); copy.setTitle(b.getTitle()); copy.setAuthor(b.getAuthor());
+        copy.setPublishDate(b.getPublishDate()); copy.setReadAlready(b.isReadAlready());
+        return copy;
+    }
+
+    // Serialize the ids and the selected book field by field instead of the books and their class descriptors
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeBoolean(selectedBook != null);
+        if (selectedBook != null) {
+            writeNullableUTF(out, selectedBook.getId());
+            writeNullableUTF(out, selectedBook.getTitle());
+            writeNullableUTF(out, selectedBook.getAuthor());
+            out.writeLong(selectedBook.getPublishDate() != null ? selectedBook.getPublishDate().toEpochDay() : Long.MIN_VALUE);
+            out.writeBoolean(selectedBook.isReadAlready());
+        }
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (in.readBoolean()) {
+            selectedBook = new Book();
+            selectedBook.setId(readNullableUTF(in));
+            selectedBook.setTitle(readNullableUTF(in));
+            selectedBook.setAuthor(readNullableUTF(in));
+            long publishEpochDay = in.readLong();
+            selectedBook.setPublishDate(publishEpochDay != Long.MIN_VALUE ? LocalDate.ofEpochDay(publishEpochDay) : null);
+            selectedBook.setReadAlready(in.readBoolean());
+        }
+    }
+
+    private static void writeNullableUTF(ObjectOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readNullableUTF(ObjectInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
 }
@@ -0,0 +1,22 @@
+package dmit2015.assignment01_fadekeshodeinde.faces;
+
+import dmit2015.assignment01_fadekeshodeinde.model.Book;
+import dmit2015.faces.SharedRowStore;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+// The books shown by every open BookCrudView, so a view in lean view-state mode only keeps their ids
+@ApplicationScoped
+public class BookRowStore extends SharedRowStore<Book> {
+
+    @Inject
+    @ConfigProperty(name = "faces.book.row.store.max.size", defaultValue = "10000")
+    int maxSize;
+
+    @Override
+    protected String rowKey(Book row) { return row.getId(); }
+
+    @Override
+    protected int maxSize() { return maxSize; }
+}
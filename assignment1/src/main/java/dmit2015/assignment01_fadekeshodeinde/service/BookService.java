@@ -2,6 +2,8 @@ package dmit2015.assignment01_fadekeshodeinde.service;
 
 import dmit2015.assignment01_fadekeshodeinde.model.Book;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -11,4 +13,14 @@ public interface BookService {
     Optional<Book> findById(String id);
     void update(String id, Book updatedBook);
     void delete(String id);
+
+    // The books with the ids that still exist, in the order of the ids; one findById per id unless overridden
+    default List<Book> findByIds(Collection<String> ids) {
+        List<Book> found = new ArrayList<>(ids.size());
+        for (String id : ids) findById(id).ifPresent(found::add);
+        return found;
+    }
+
+    // Increases on every create, update and delete so a view can tell if someone else changed the books; -1 if not counted
+    default long changeCount() { return -1; }
 }
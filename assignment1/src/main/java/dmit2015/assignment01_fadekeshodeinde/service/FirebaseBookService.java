@@ -1,19 +1,21 @@
 package dmit2015.assignment01_fadekeshodeinde.service;
 
 import dmit2015.assignment01_fadekeshodeinde.model.Book;
+import dmit2015.service.FirebaseResilientHttpClient;
 import jakarta.annotation.Priority;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.inject.Alternative;
+import jakarta.inject.Inject;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import jakarta.json.bind.Jsonb;
 import jakarta.json.bind.JsonbBuilder;
-import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 @Alternative
@@ -21,12 +23,32 @@ import java.util.stream.Collectors;
 @ApplicationScoped
 public class FirebaseBookService implements BookService {
 
+    @Inject
     @ConfigProperty(name = "firebase.rtdb.Book.base.url")
     String baseUrl;
 
-    private final HttpClient http = HttpClient.newHttpClient();
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.http.request.timeout.seconds", defaultValue = "10")
+    long requestTimeoutSeconds;
+
+    // Sends through the shared HttpClient with retries, a circuit breaker and a bulkhead
+    @Inject
+    FirebaseResilientHttpClient resilientHttp;
+
     private final Jsonb jsonb = JsonbBuilder.create();
 
+    private HttpRequest template;
+
+    // Requests are copied from a template that carries the timeout so it is not rebuilt per call
+    private HttpRequest.Builder request(String path) {
+        if (template == null) {
+            template = HttpRequest.newBuilder(URI.create(booksPath() + ".json"))
+                    .timeout(Duration.ofSeconds(requestTimeoutSeconds))
+                    .build();
+        }
+        return HttpRequest.newBuilder(template, (name, value) -> true).uri(URI.create(path));
+    }
+
     private String booksPath() {
         if (baseUrl == null || baseUrl.isBlank()) {
             throw new IllegalStateException("Config 'firebase.rtdb.Book.base.url' is missing...");
@@ -34,8 +56,42 @@ public class FirebaseBookService implements BookService {
         return baseUrl.endsWith("/") ? baseUrl + "books" : baseUrl + "/books";
     }
 
+    // The blocking methods wait on the async ones, so callers that can compose futures never hold a thread per round trip
+
     @Override
     public void create(Book newBook) {
+        join(createAsync(newBook), "Create");
+    }
+
+    @Override
+    public List<Book> findAll() {
+        return join(findAllAsync(), "findAll");
+    }
+
+    @Override
+    public Optional<Book> findById(String id) {
+        return join(findByIdAsync(id), "findById");
+    }
+
+    // Reads the books at the same time, so the lookups take about one round trip instead of one per id
+    @Override
+    public List<Book> findByIds(Collection<String> ids) {
+        List<CompletableFuture<Optional<Book>>> reads = ids.stream().map(this::findByIdAsync).toList();
+        join(CompletableFuture.allOf(reads.toArray(CompletableFuture[]::new)), "findByIds");
+        return reads.stream().map(CompletableFuture::join).flatMap(Optional::stream).collect(Collectors.toList());
+    }
+
+    @Override
+    public void update(String id, Book updatedBook) {
+        join(updateAsync(id, updatedBook), "Update");
+    }
+
+    @Override
+    public void delete(String id) {
+        join(deleteAsync(id), "Delete");
+    }
+
+    public CompletableFuture<Void> createAsync(Book newBook) {
         Book copy = new Book();
         copy.setTitle(newBook.getTitle());
         copy.setAuthor(newBook.getAuthor());
@@ -44,14 +100,11 @@ public class FirebaseBookService implements BookService {
 
         String body = jsonb.toJson(copy);
 
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(URI.create(booksPath() + ".json"))
-                .timeout(Duration.ofSeconds(10))
+        HttpRequest req = request(booksPath() + ".json")
                 .header("Content-Type", "application/json")
                 .POST(HttpRequest.BodyPublishers.ofString(body))
                 .build();
-        try {
-            HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
+        return resilientHttp.sendAsync(req, HttpResponse.BodyHandlers.ofString()).thenAccept(res -> {
             if (res.statusCode() >= 200 && res.statusCode() < 300) {
                 Map<?, ?> map = jsonb.fromJson(res.body(), Map.class);
                 Object fbId = map.get("name");
@@ -59,55 +112,41 @@ public class FirebaseBookService implements BookService {
             } else {
                 throw new RuntimeException("Create failed: " + res.statusCode() + " " + res.body());
             }
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("Create failed: " + e.getMessage(), e);
-        }
+        });
     }
 
-    @Override
-    public List<Book> findAll() {
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(URI.create(booksPath() + ".json"))
-                .timeout(Duration.ofSeconds(10))
+    public CompletableFuture<List<Book>> findAllAsync() {
+        HttpRequest req = request(booksPath() + ".json")
                 .GET().build();
-        try {
-            HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
+        return resilientHttp.sendAsync(req, HttpResponse.BodyHandlers.ofString()).thenApply(res -> {
             if (res.statusCode() == 200 && res.body() != null && !"null".equals(res.body())) {
-                Map<String, Map<String, Object>> data =
-                        jsonb.fromJson(res.body(), new HashMap<String, Map<String, Object>>(){}.getClass().getGenericSuperclass());
+                // Bind straight to Book values instead of round-tripping each entry through JSON
+                LinkedHashMap<String, Book> data =
+                        jsonb.fromJson(res.body(), new LinkedHashMap<String, Book>(){}.getClass().getGenericSuperclass());
                 return data.entrySet().stream().map(e -> {
-                    Book b = jsonb.fromJson(jsonb.toJson(e.getValue()), Book.class);
+                    Book b = e.getValue();
                     b.setId(e.getKey());
                     return b;
                 }).collect(Collectors.toList());
             }
             return new ArrayList<>();
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("findAll failed: " + e.getMessage(), e);
-        }
+        });
     }
 
-    @Override
-    public Optional<Book> findById(String id) {
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(URI.create(booksPath() + "/" + id + ".json"))
-                .timeout(Duration.ofSeconds(10))
+    public CompletableFuture<Optional<Book>> findByIdAsync(String id) {
+        HttpRequest req = request(booksPath() + "/" + id + ".json")
                 .GET().build();
-        try {
-            HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
+        return resilientHttp.sendAsync(req, HttpResponse.BodyHandlers.ofString()).thenApply(res -> {
             if (res.statusCode() == 200 && res.body() != null && !"null".equals(res.body())) {
                 Book b = jsonb.fromJson(res.body(), Book.class);
                 b.setId(id);
                 return Optional.of(b);
             }
             return Optional.empty();
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("findById failed: " + e.getMessage(), e);
-        }
+        });
     }
 
-    @Override
-    public void update(String id, Book updatedBook) {
+    public CompletableFuture<Void> updateAsync(String id, Book updatedBook) {
         Book copy = new Book();
         copy.setTitle(updatedBook.getTitle());
         copy.setAuthor(updatedBook.getAuthor());
@@ -116,35 +155,36 @@ public class FirebaseBookService implements BookService {
 
         String body = jsonb.toJson(copy);
 
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(URI.create(booksPath() + "/" + id + ".json"))
-                .timeout(Duration.ofSeconds(10))
+        HttpRequest req = request(booksPath() + "/" + id + ".json")
                 .header("Content-Type", "application/json")
                 .method("PATCH", HttpRequest.BodyPublishers.ofString(body))
                 .build();
-        try {
-            HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
+        return resilientHttp.sendAsync(req, HttpResponse.BodyHandlers.ofString()).thenAccept(res -> {
             if (res.statusCode() < 200 || res.statusCode() >= 300) {
                 throw new RuntimeException("Update failed: " + res.statusCode() + " " + res.body());
             }
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("Update failed: " + e.getMessage(), e);
-        }
+        });
     }
 
-    @Override
-    public void delete(String id) {
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(URI.create(booksPath() + "/" + id + ".json"))
-                .timeout(Duration.ofSeconds(10))
+    public CompletableFuture<Void> deleteAsync(String id) {
+        HttpRequest req = request(booksPath() + "/" + id + ".json")
                 .DELETE().build();
-        try {
-            HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
+        return resilientHttp.sendAsync(req, HttpResponse.BodyHandlers.ofString()).thenAccept(res -> {
             if (res.statusCode() < 200 || res.statusCode() >= 300) {
                 throw new RuntimeException("Delete failed: " + res.statusCode() + " " + res.body());
             }
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("Delete failed: " + e.getMessage(), e);
+        });
+    }
+
+    // Rethrows the failure of an async call like the blocking calls did, with I/O errors wrapped in a RuntimeException
+    private static <T> T join(CompletableFuture<T> future, String operation) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new RuntimeException(operation + " failed: " + e.getCause().getMessage(), e.getCause());
         }
     }
 }
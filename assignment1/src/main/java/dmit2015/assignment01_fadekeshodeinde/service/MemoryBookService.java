@@ -6,11 +6,13 @@ import jakarta.enterprise.context.ApplicationScoped;
 import java.time.LocalDate;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 @ApplicationScoped
 public class MemoryBookService implements BookService {
 
     private final Map<String, Book> store = new ConcurrentHashMap<>();
+    private final AtomicLong changeCount = new AtomicLong();
 
     public MemoryBookService() {
         // seed 3
@@ -30,6 +32,7 @@ public class MemoryBookService implements BookService {
             newBook.setId(UUID.randomUUID().toString());
         }
         store.put(newBook.getId(), newBook);
+        changeCount.incrementAndGet();
     }
 
     @Override public List<Book> findAll() { return new ArrayList<>(store.values()); }
@@ -39,7 +42,12 @@ public class MemoryBookService implements BookService {
     @Override public void update(String id, Book updatedBook) {
         updatedBook.setId(id);
         store.put(id, updatedBook);
+        changeCount.incrementAndGet();
     }
 
-    @Override public void delete(String id) { store.remove(id); }
+    @Override public void delete(String id) {
+        if (store.remove(id) != null) changeCount.incrementAndGet();
+    }
+
+    @Override public long changeCount() { return changeCount.get(); }
 }
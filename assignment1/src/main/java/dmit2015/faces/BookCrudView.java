@@ -1,25 +1,36 @@
 package dmit2015.faces;
 
+import dmit2015.generator.BookGenerator;
+import dmit2015.metrics.Instrumented;
 import dmit2015.model.Book;
 import dmit2015.service.BookService;
+import dmit2015.service.BookVersionConflictException;
 import jakarta.annotation.PostConstruct;
 import jakarta.faces.view.ViewScoped;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
 import lombok.Getter;
 import lombok.Setter;
-import net.datafaker.Faker;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.omnifaces.util.Messages;
 import org.primefaces.PrimeFaces;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serial;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.time.LocalDate;
-import java.util.List;
 
 /**
  * This Jakarta Faces backing bean class contains the data and event handlers
  * to perform CRUD operations using a PrimeFaces DataTable configured to perform CRUD.
+ * The event handlers are {@link Instrumented}, so the metrics show how often each one runs and how long it takes.
+ * <p>
+ * The view state is kept small, since every open view of every session holds one and replicating the session
+ * serializes it: the data model keeps the ids of its page and, in lean view-state mode, reads the books from the
+ * application-wide {@link BookRowStore}. The selected Book is serialized field by field, without class descriptors.
  */
 @Named("currentBookCrudView")
 @ViewScoped // create this object for one HTTP request and keep in memory if the next is for the same page
@@ -27,15 +38,26 @@ public class BookCrudView implements Serializable {
 
     @Inject
     //@Named("memoryBookService")
+    //@Named("tieredBookService")
     @Named("firebaseHttpClientBookService")
     private BookService bookService;
 
+    @Inject
+    private BookRowStore rowStore;
+
+    /**
+     * True to keep only the ids of the page shown and read its books from the rowStore.
+     */
+    @Inject
+    @ConfigProperty(name = "faces.book.view.state.lean", defaultValue = "true")
+    private boolean leanViewState;
+
     /**
      * The selected Book instance to create, edit, update or delete.
      */
     @Getter
     @Setter
-    private Book selectedBook;
+    private transient Book selectedBook;
 
     /**
      * The unique name of the selected Book instance.
@@ -45,13 +67,13 @@ public class BookCrudView implements Serializable {
     private String selectedId;
 
     /**
-     * The list of Book objects fetched from the data source
+     * The lazy data model that fetches one page of Book objects at a time from the data source
      */
     @Getter
-    private List<Book> books;
+    private BookLazyDataModel books;
 
     /**
-     * Fetch all Book from the data source.
+     * Create the lazy data model that fetches each page of Book from the data source.
      * <p>
      * If FacesContext message sent from init() method annotated with @PostConstruct in the Faces backing bean class are not shown on page:
      * 1) Remove the @PostConstruct annotation from the Faces backing bean class
@@ -63,33 +85,64 @@ public class BookCrudView implements Serializable {
      */
     @PostConstruct
     public void init() {
-        try {
-            books = bookService.getAllBooks();
-        } catch (Exception e) {
-            Messages.addGlobalError("Error getting books %s", e.getMessage());
-        }
+        books = new BookLazyDataModel(bookService, rowStore, leanViewState);
     }
 
     /**
      * Event handler for the New button on the Faces crud page.
      * Create a new selected Book instance to enter data for.
      */
+    @Instrumented
     public void onOpenNew() {
         selectedBook = new Book();
         selectedId = null;
     }
 
+    /**
+     * Event handler for the Edit button on the Faces crud page.
+     * Fetch the selected Book again so it carries the version the update is checked against, and open the dialog
+     * only if it was found. The row of the page has no version, so it is never edited in place of the fetched book.
+     */
+    @Instrumented
+    public void onOpenEdit() {
+        try {
+            Book currentBook = bookService.getBookById(selectedId).orElse(null);
+            if (currentBook == null) {
+                Messages.addGlobalWarn("Book with id {0} was deleted by someone else.", selectedId);
+                closeEditDialog();
+                return;
+            }
+            selectedBook = currentBook;
+            PrimeFaces.current().executeScript("PF('manageBookDialog').show()");
+        } catch (RuntimeException ex) {
+            Messages.addGlobalError(ex.getMessage());
+            closeEditDialog();
+        }
+    }
 
     /**
-     * Event handler to generate fake data using DataFaker.
+     * Drop the selected book, hide the dialog if it is open, and re-render the DataTable to fetch the current page.
+     */
+    private void closeEditDialog() {
+        selectedBook = null;
+        PrimeFaces.current().executeScript("PF('manageBookDialog').hide()");
+        PrimeFaces.current().ajax().update("form:dt-Books");
+    }
+
+
+    /**
+     * Event handler to generate fake data using DataFaker, with the one Faker shared behind a lock by the BookGenerator,
+     * since a Faker is slow to create.
      *
      * @link <a href="https://www.datafaker.net/documentation/getting-started/">Getting started with DataFaker</a>
      */
+    @Instrumented
     public void onGenerateData() {
         try {
-            var faker = new Faker();
-            selectedBook = Book.of(faker);
+            String selectedVersion = selectedBook != null ? selectedBook.getVersion() : null;
+            selectedBook = BookGenerator.withFaker(Book::of);
             selectedBook.setId(selectedId);
+            selectedBook.setVersion(selectedVersion);
         } catch (Exception e) {
             Messages.addGlobalError("Error generating data {0}", e.getMessage());
         }
@@ -99,8 +152,10 @@ public class BookCrudView implements Serializable {
     /**
      * Event handler for Save button to create or update data.
      */
+    @Instrumented
     public void onSave() {
         try {
+            int updatedRowIndex = -1;
 
             // If selectedId is null then create new data otherwise update current data
             if (selectedId == null) {
@@ -111,19 +166,35 @@ public class BookCrudView implements Serializable {
                 // Reset the selected instance to null
                 selectedBook = null;
 
+            } else if (selectedBook.getVersion() == null) {
+                // Without a version the update would write over the book whatever someone else did to it since
+                Messages.addGlobalWarn("Book with id {0} could not be checked for changes by someone else. Open it again to edit it.", selectedId);
+                closeEditDialog();
+                return;
             } else {
-                bookService.updateBook(selectedBook);
+                Book updatedBook = bookService.updateBook(selectedBook);
 
                 Messages.addGlobalInfo("Update was successful");
 
+                // Apply the updated book to the loaded page, unless someone else changed the books since it was loaded
+                updatedRowIndex = books.replaceRow(updatedBook, bookService.changeCount());
             }
 
-            // Fetch a list of objects from the data source
-            books = bookService.getAllBooks();
-            PrimeFaces.current().ajax().update("dialogs:messages", "form:dt-Books");
+            if (updatedRowIndex >= 0) {
+                // Re-render only the updated row
+                PrimeFaces.current().ajax().update("dialogs:messages", "form:dt-Books:@row(" + updatedRowIndex + ")");
+            } else {
+                // Re-render the DataTable to fetch the current page from the data source
+                PrimeFaces.current().ajax().update("dialogs:messages", "form:dt-Books");
+            }
 
             // Hide the PrimeFaces dialog
             PrimeFaces.current().executeScript("PF('manageBookDialog').hide()");
+        } catch (BookVersionConflictException ex) {
+            // Someone else changed the book, so show its current data to edit again instead of overwriting it
+            Messages.addGlobalWarn(ex.getMessage());
+            onOpenEdit();
+            PrimeFaces.current().ajax().update("dialogs:messages", "form:dt-Books");
         } catch (RuntimeException ex) { // handle application generated exceptions
             Messages.addGlobalError(ex.getMessage());
         } catch (Exception ex) {    // handle system generated exceptions
@@ -136,15 +207,19 @@ public class BookCrudView implements Serializable {
     /**
      * Event handler for Delete to delete selected data.
      */
+    @Instrumented
     public void onDelete() {
         try {
             // Get the unique name of the Json object to delete
             selectedId = selectedBook.getId();
-            bookService.deleteBookById(selectedId);
+            // Only delete the version that was shown, not a version someone else saved since
+            bookService.deleteBookById(selectedId, selectedBook.getVersion());
+            books.removeRow(selectedId);
             Messages.addGlobalInfo("Delete was successful for id of {0}", selectedId);
-            // Fetch new data from the data source
-            books = bookService.getAllBooks();
-
+            // Re-render the DataTable to fetch the current page from the data source
+            PrimeFaces.current().ajax().update("dialogs:messages", "form:dt-Books");
+        } catch (BookVersionConflictException ex) {
+            Messages.addGlobalWarn(ex.getMessage());
             PrimeFaces.current().ajax().update("dialogs:messages", "form:dt-Books");
         } catch (RuntimeException ex) { // handle application generated exceptions
             Messages.addGlobalError(ex.getMessage());
@@ -172,4 +247,43 @@ public class BookCrudView implements Serializable {
         Messages.create(ex.getMessage()).detail(details.toString()).error().add("errors");
     }
 
+    @Serial
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        output.defaultWriteObject();
+        output.writeBoolean(selectedBook != null);
+        if (selectedBook != null) {
+            writeNullableUTF(output, selectedBook.getId());
+            writeNullableUTF(output, selectedBook.getTitle());
+            writeNullableUTF(output, selectedBook.getAuthor());
+            output.writeLong(selectedBook.getPublishDate() != null ? selectedBook.getPublishDate().toEpochDay() : Long.MIN_VALUE);
+            output.writeBoolean(selectedBook.isReadAlready());
+            writeNullableUTF(output, selectedBook.getVersion());
+        }
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        if (input.readBoolean()) {
+            selectedBook = new Book();
+            selectedBook.setId(readNullableUTF(input));
+            selectedBook.setTitle(readNullableUTF(input));
+            selectedBook.setAuthor(readNullableUTF(input));
+            long publishEpochDay = input.readLong();
+            selectedBook.setPublishDate(publishEpochDay != Long.MIN_VALUE ? LocalDate.ofEpochDay(publishEpochDay) : null);
+            selectedBook.setReadAlready(input.readBoolean());
+            selectedBook.setVersion(readNullableUTF(input));
+        }
+    }
+
+    private static void writeNullableUTF(ObjectOutputStream output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(ObjectInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
 }
@@ -0,0 +1,251 @@
+package dmit2015.faces;
+
+import dmit2015.model.Book;
+import dmit2015.service.BookPage;
+import dmit2015.service.BookService;
+import org.omnifaces.util.Messages;
+import org.primefaces.model.FilterMeta;
+import org.primefaces.model.LazyDataModel;
+import org.primefaces.model.SortMeta;
+import org.primefaces.model.SortOrder;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * This PrimeFaces LazyDataModel fetches one page of Book objects at a time from the BookService
+ * so the DataTable is sorted, filtered and paginated on the server.
+ * <p>
+ * It remembers the change count of the BookService when the page was loaded, so the view can apply its own
+ * update to the loaded page in place and only reload the page when someone else changed the books since.
+ * <p>
+ * The loaded page is kept as the ids of its books, which is all that is serialized with the view, and the books
+ * are put in the application-wide {@link BookRowStore}. In lean view-state mode the view keeps nothing else and reads
+ * its rows from the store; otherwise it also keeps its own references to the books of the page until the next load.
+ * The store only holds its own copies and the rows read from it are copies, so an edit of a row in one view,
+ * saved or not, never shows in another.
+ * A page deserialized from another node reads its rows from the store, or from the BookService if they are not there.
+ */
+public class BookLazyDataModel extends LazyDataModel<Book> {
+
+    private final BookService bookService;
+
+    private final BookRowStore rowStore;
+
+    /**
+     * True to keep only the ids of the loaded page and read its rows from the rowStore.
+     */
+    private final boolean leanViewState;
+
+    /**
+     * The index of the first row of the loaded page.
+     */
+    private int loadedFirst;
+
+    /**
+     * True if the loaded page is sorted or filtered, so an updated book may move to another row or page.
+     */
+    private boolean loadedSortedOrFiltered;
+
+    /**
+     * The change count of the BookService when the page was loaded, or -1 if it does not count changes.
+     */
+    private long loadedChangeCount = -1;
+
+    public BookLazyDataModel(BookService bookService, BookRowStore rowStore, boolean leanViewState) {
+        this.bookService = bookService;
+        this.rowStore = rowStore;
+        this.leanViewState = leanViewState;
+    }
+
+    @Override
+    public int count(Map<String, FilterMeta> filterBy) {
+        BookPage bookPage = bookService.page(0, 0, null, true, globalFilter(filterBy));
+        return Math.toIntExact(bookPage.totalCount());
+    }
+
+    @Override
+    public List<Book> load(int first, int pageSize, Map<String, SortMeta> sortBy, Map<String, FilterMeta> filterBy) {
+        // The DataTable sorts by a single column, so use the first active sort
+        SortMeta sortMeta = sortBy.values().stream()
+                .filter(currentSortMeta -> currentSortMeta.getOrder() != SortOrder.UNSORTED)
+                .findFirst()
+                .orElse(null);
+        String sortField = sortMeta != null ? sortMeta.getField() : null;
+        boolean ascending = sortMeta == null || sortMeta.getOrder() == SortOrder.ASCENDING;
+
+        try {
+            // Read the change count first, so a change made while the page is fetched triggers a reload later
+            long changeCount = bookService.changeCount();
+            String filter = globalFilter(filterBy);
+            BookPage bookPage = bookService.page(first, pageSize, sortField, ascending, filter);
+            setRowCount(Math.toIntExact(bookPage.totalCount()));
+            loadedFirst = first;
+            loadedSortedOrFiltered = sortField != null || (filter != null && !filter.isBlank());
+            loadedChangeCount = changeCount;
+            rowStore.putAll(bookPage.books().stream().map(Book::copyOf).toList());
+            return new PageRows(this, bookPage.books());
+        } catch (RuntimeException e) {
+            Messages.addGlobalError("Error getting books {0}", e.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * The id of the book, or null for the missing row of a book deleted since the page was loaded.
+     */
+    @Override
+    public String getRowKey(Book book) {
+        return book != null ? book.getId() : null;
+    }
+
+    @Override
+    public Book getRowData(String rowKey) {
+        if (!(getWrappedData() instanceof PageRows pageRows)) {
+            return null;
+        }
+        int index = pageRows.indexOfId(rowKey);
+        return index >= 0 ? pageRows.get(index) : null;
+    }
+
+    /**
+     * Replace the row of an updated book in the loaded page with the book returned by the BookService.
+     * <p>
+     * The row is only replaced when the change count shows that the update is the only change since the page was loaded,
+     * and the page is not sorted or filtered so the book keeps its row. A BookService that does not count changes,
+     * such as the Firebase one while its feed is not live, cannot show that, so the page is reloaded.
+     *
+     * @param updatedBook The book returned by BookService.updateBook().
+     * @param changeCount The change count of the BookService read after the update.
+     * @return the row index of the replaced row, or -1 if the page must be reloaded instead.
+     */
+    public int replaceRow(Book updatedBook, long changeCount) {
+        rowStore.put(Book.copyOf(updatedBook));
+        if (!(getWrappedData() instanceof PageRows pageRows) || loadedSortedOrFiltered) {
+            return -1;
+        }
+        if (changeCount < 0 || loadedChangeCount < 0 || changeCount != loadedChangeCount + 1) {
+            return -1;
+        }
+        int index = pageRows.indexOfId(updatedBook.getId());
+        if (index < 0) {
+            return -1;
+        }
+        pageRows.replace(index, updatedBook);
+        loadedChangeCount = changeCount;
+        return loadedFirst + index;
+    }
+
+    /**
+     * Drop a deleted book from the rowStore, so no view shows it again before its page is reloaded.
+     */
+    public void removeRow(String id) {
+        rowStore.remove(id);
+    }
+
+    /**
+     * Get the text entered in the DataTable global filter.
+     */
+    private static String globalFilter(Map<String, FilterMeta> filterBy) {
+        FilterMeta globalFilterMeta = filterBy.get(FilterMeta.GLOBAL_FILTER_KEY);
+        if (globalFilterMeta == null || globalFilterMeta.getFilterValue() == null) {
+            return null;
+        }
+        return globalFilterMeta.getFilterValue().toString();
+    }
+
+    /**
+     * The books of the loaded page, held as their ids. The books themselves are read from the rowStore of the model,
+     * unless the model keeps the books of its page itself when it is not in lean view-state mode.
+     * Only the ids are serialized, and a deserialized page reads its rows from the rowStore.
+     */
+    private static final class PageRows extends AbstractList<Book> implements Serializable {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final BookLazyDataModel model;
+
+        private transient String[] ids;
+
+        /**
+         * The books of the page, or null if they are read from the rowStore.
+         */
+        private transient Book[] books;
+
+        private PageRows(BookLazyDataModel model, List<Book> pageBooks) {
+            this.model = model;
+            ids = pageBooks.stream().map(Book::getId).toArray(String[]::new);
+            books = model.leanViewState ? null : pageBooks.toArray(Book[]::new);
+        }
+
+        /**
+         * The book in the row. The rows of books deleted since the page was loaded are dropped when they are found
+         * missing, which moves the later rows up, so this is null if the row is past the end of the remaining rows.
+         */
+        @Override
+        public Book get(int index) {
+            if (books != null) {
+                return books[index];
+            }
+            Book book = index < ids.length ? model.rowStore.get(ids[index]) : null;
+            if (book == null && index < ids.length) {
+                // Read every book of the page the store no longer has with one call, not one call per row,
+                // and drop the books that were not found, so they are not read again
+                List<Book> pageBooks = model.rowStore.getAll(Arrays.asList(ids), model.bookService::getBooksByIds).stream()
+                        .filter(Objects::nonNull)
+                        .toList();
+                ids = pageBooks.stream().map(Book::getId).toArray(String[]::new);
+                book = index < pageBooks.size() ? pageBooks.get(index) : null;
+            }
+            // The store is shared by every view, so a view must not change its books, for example by editing a row
+            return book != null ? Book.copyOf(book) : null;
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        int indexOfId(String id) {
+            for (int index = 0; index < ids.length; index++) {
+                if (Objects.equals(ids[index], id)) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        void replace(int index, Book book) {
+            if (books != null) {
+                books[index] = book;
+            }
+        }
+
+        @Serial
+        private void writeObject(ObjectOutputStream output) throws IOException {
+            output.defaultWriteObject();
+            output.writeInt(ids.length);
+            for (String currentId : ids) {
+                output.writeUTF(currentId);
+            }
+        }
+
+        @Serial
+        private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+            input.defaultReadObject();
+            ids = new String[input.readInt()];
+            for (int index = 0; index < ids.length; index++) {
+                ids[index] = input.readUTF();
+            }
+        }
+    }
+}
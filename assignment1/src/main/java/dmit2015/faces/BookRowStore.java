@@ -0,0 +1,30 @@
+package dmit2015.faces;
+
+import dmit2015.model.Book;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * The Book rows shown by every {@link BookCrudView} of the application, see {@link SharedRowStore}.
+ */
+@ApplicationScoped
+public class BookRowStore extends SharedRowStore<Book> {
+
+    /**
+     * The maximum number of books in the store.
+     */
+    @Inject
+    @ConfigProperty(name = "faces.book.row.store.max.size", defaultValue = "10000")
+    int maxSize;
+
+    @Override
+    protected String rowKey(Book row) {
+        return row.getId();
+    }
+
+    @Override
+    protected int maxSize() {
+        return maxSize;
+    }
+}
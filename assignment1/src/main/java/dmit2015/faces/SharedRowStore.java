@@ -0,0 +1,125 @@
+package dmit2015.faces;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * An application-wide store of the rows shown by the views, so a view in lean view-state mode keeps only the keys
+ * of its rows and every open view of the same rows shares one copy of them.
+ * <p>
+ * It holds a bounded number of rows by key in least recently used order. A row evicted while a view still shows it
+ * is read again from the data source, with the other missing rows of the page, the next time the view needs it.
+ * A view that loads or saves a row puts it here, so other views see the row as it was read last.
+ *
+ * @param <T> The type of row.
+ */
+public abstract class SharedRowStore<T> {
+
+    /**
+     * Guards the rows.
+     */
+    private final ReentrantLock rowsLock = new ReentrantLock();
+
+    /**
+     * The rows by key in least recently used order. Guarded by rowsLock.
+     */
+    private final Map<String, T> rowsByKey = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+            return size() > maxSize();
+        }
+    };
+
+    /**
+     * The key of a row.
+     */
+    protected abstract String rowKey(T row);
+
+    /**
+     * The maximum number of rows in the store.
+     */
+    protected abstract int maxSize();
+
+    public T get(String key) {
+        rowsLock.lock();
+        try {
+            return rowsByKey.get(key);
+        } finally {
+            rowsLock.unlock();
+        }
+    }
+
+    /**
+     * Get the rows of the keys in the order of the keys, reading the rows not in the store with one call of the loader.
+     *
+     * @param keys   The keys of the rows.
+     * @param loader Reads the rows of the missing keys from the data source.
+     * @return The rows, with null for a key the loader did not find either.
+     */
+    public List<T> getAll(List<String> keys, Function<Collection<String>, Collection<? extends T>> loader) {
+        var rows = new ArrayList<T>(keys.size());
+        Set<String> missingKeys = new LinkedHashSet<>();
+        rowsLock.lock();
+        try {
+            for (String currentKey : keys) {
+                T row = rowsByKey.get(currentKey);
+                rows.add(row);
+                if (row == null) {
+                    missingKeys.add(currentKey);
+                }
+            }
+        } finally {
+            rowsLock.unlock();
+        }
+        if (missingKeys.isEmpty()) {
+            return rows;
+        }
+        Map<String, T> loadedRows = new LinkedHashMap<>();
+        for (T currentRow : loader.apply(missingKeys)) {
+            loadedRows.put(rowKey(currentRow), currentRow);
+        }
+        putAll(loadedRows.values());
+        for (int index = 0; index < rows.size(); index++) {
+            if (rows.get(index) == null) {
+                rows.set(index, loadedRows.get(keys.get(index)));
+            }
+        }
+        return rows;
+    }
+
+    public void put(T row) {
+        rowsLock.lock();
+        try {
+            rowsByKey.put(rowKey(row), row);
+        } finally {
+            rowsLock.unlock();
+        }
+    }
+
+    public void putAll(Collection<? extends T> rows) {
+        rowsLock.lock();
+        try {
+            for (T currentRow : rows) {
+                rowsByKey.put(rowKey(currentRow), currentRow);
+            }
+        } finally {
+            rowsLock.unlock();
+        }
+    }
+
+    public void remove(String key) {
+        rowsLock.lock();
+        try {
+            rowsByKey.remove(key);
+        } finally {
+            rowsLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package dmit2015.generator;
+
+import java.time.Duration;
+
+/**
+ * The outcome of a run of the {@link BookGenerator}.
+ *
+ * @param generatedCount The number of books generated.
+ * @param failedCount    The number of generated books the BookService did not create.
+ * @param elapsedNanos   How long the run took, including writing the books.
+ */
+public record BookGenerationReport(long generatedCount, long failedCount, long elapsedNanos) {
+
+    public Duration elapsed() {
+        return Duration.ofNanos(elapsedNanos);
+    }
+
+    /**
+     * The number of books generated and written per second.
+     */
+    public double booksPerSecond() {
+        return elapsedNanos > 0 ? generatedCount * 1e9 / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d books in %.1f s, %.0f books/s, %d failed",
+                generatedCount, elapsedNanos / 1e9, booksPerSecond(), failedCount);
+    }
+}
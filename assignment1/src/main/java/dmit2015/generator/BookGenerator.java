@@ -0,0 +1,288 @@
+package dmit2015.generator;
+
+import dmit2015.model.Book;
+import dmit2015.service.BookBatchResult;
+import dmit2015.service.BookService;
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import net.datafaker.Faker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Generates realistic books in parallel for load tests, and writes them to a BookService or as NDJSON.
+ * <p>
+ * The books are generated in chunks of {@value #CHUNK_SIZE}. Each thread has its own Faker, since a Faker is not
+ * thread-safe and slow to create, and reseeds its Random from the seed of the run and the index of the chunk before
+ * generating one, so a run generates the same books in the same order whatever the number of threads.
+ * Titles come from Faker. Authors are picked from a pool of authorCount names with the author distribution of the
+ * settings, and publish dates with the publish date distribution.
+ * <p>
+ * At most two chunks per thread are in progress at a time, so a run of 50 million books needs no more memory than
+ * a run of a million. NDJSON is written in the order of the chunks, while books written to a BookService are created
+ * in batches by every thread at once, in no particular order.
+ */
+public final class BookGenerator {
+
+    /**
+     * The number of books generated with one seed.
+     */
+    static final int CHUNK_SIZE = 10_000;
+
+    /**
+     * One unseeded Faker for generating single books without creating a Faker each time. A Faker is not thread-safe,
+     * so it is used under the lock. It is not kept per thread, since a ThreadLocal on a container thread would keep
+     * the class loader of the application after a redeploy, and every virtual thread would create its own.
+     */
+    private static final Faker SHARED_FAKER = new Faker();
+
+    private static final ReentrantLock SHARED_FAKER_LOCK = new ReentrantLock();
+
+    /**
+     * A Faker with the Random it draws from, so the Random can be reseeded for each chunk.
+     */
+    private record SeededFaker(Random random, Faker faker) {
+    }
+
+    private final BookGeneratorSettings settings;
+
+    private final String[] authors;
+
+    /**
+     * The cumulative probability of picking each author under the ZIPF distribution, or null for UNIFORM.
+     */
+    private final double[] authorCumulativeProbabilities;
+
+    private final long firstEpochDay;
+
+    private final long dayCount;
+
+    private final ThreadLocal<SeededFaker> threadFaker = ThreadLocal.withInitial(() -> {
+        var random = new Random();
+        return new SeededFaker(random, new Faker(random));
+    });
+
+    public BookGenerator(BookGeneratorSettings settings) {
+        this.settings = settings;
+        var authorFaker = new Faker(new Random(settings.seed()));
+        authors = new String[settings.authorCount()];
+        for (int index = 0; index < authors.length; index++) {
+            authors[index] = authorFaker.name().fullName();
+        }
+        authorCumulativeProbabilities = settings.authorDistribution() == BookGeneratorSettings.AuthorDistribution.ZIPF
+                ? zipfCumulativeProbabilities(authors.length, settings.authorSkew())
+                : null;
+        firstEpochDay = settings.firstPublishDate().toEpochDay();
+        dayCount = settings.lastPublishDate().toEpochDay() - firstEpochDay + 1;
+    }
+
+    /**
+     * Call the action with the shared Faker, for code that generates one book at a time, such as a form filled with
+     * sample data. The Faker must not be used after the action returns.
+     */
+    public static <T> T withFaker(Function<Faker, T> action) {
+        SHARED_FAKER_LOCK.lock();
+        try {
+            return action.apply(SHARED_FAKER);
+        } finally {
+            SHARED_FAKER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Create the generated books with createBooks calls of batchSize books.
+     *
+     * @return The report of the run, counting the books the BookService did not create as failed.
+     */
+    public BookGenerationReport writeTo(BookService bookService) {
+        long startNanos = System.nanoTime();
+        long failedCount = run(chunkIndex -> {
+            List<Book> books = generateChunk(chunkIndex);
+            long chunkFailedCount = 0;
+            for (int fromIndex = 0; fromIndex < books.size(); fromIndex += settings.batchSize()) {
+                List<Book> batch = books.subList(fromIndex, Math.min(fromIndex + settings.batchSize(), books.size()));
+                for (BookBatchResult currentResult : bookService.createBooks(batch)) {
+                    if (!currentResult.isSuccessful()) {
+                        chunkFailedCount++;
+                    }
+                }
+            }
+            return chunkFailedCount;
+        }, Long::sum, 0L);
+        return new BookGenerationReport(settings.count(), failedCount, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Write the generated books to the output as one JSON object per line, in the format read by /book-data.
+     * The books have no id, so importing them creates them. The output is flushed but not closed.
+     */
+    public BookGenerationReport writeNdjson(OutputStream output) throws IOException {
+        long startNanos = System.nanoTime();
+        Jsonb jsonb = JsonbBuilder.create();
+        try {
+            run(chunkIndex -> {
+                var chunkOutput = new ByteArrayOutputStream(CHUNK_SIZE * 128);
+                try (Writer writer = new OutputStreamWriter(chunkOutput, StandardCharsets.UTF_8)) {
+                    for (Book currentBook : generateChunk(chunkIndex)) {
+                        writer.write(jsonb.toJson(currentBook));
+                        writer.write('\n');
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return chunkOutput;
+            }, (written, chunkOutput) -> {
+                try {
+                    chunkOutput.writeTo(output);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return written;
+            }, null);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            try {
+                jsonb.close();
+            } catch (Exception e) {
+                // Nothing left to release
+            }
+        }
+        output.flush();
+        return new BookGenerationReport(settings.count(), 0, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Generate the books of a chunk with the Faker of the current thread.
+     */
+    List<Book> generateChunk(long chunkIndex) {
+        SeededFaker seededFaker = threadFaker.get();
+        Random random = seededFaker.random();
+        random.setSeed(mix(settings.seed() + chunkIndex * 0x9e3779b97f4a7c15L));
+        long fromIndex = chunkIndex * CHUNK_SIZE;
+        int size = (int) Math.min(CHUNK_SIZE, settings.count() - fromIndex);
+        var books = new ArrayList<Book>(size);
+        for (int index = 0; index < size; index++) {
+            var newBook = new Book();
+            newBook.setTitle(seededFaker.faker().book().title());
+            newBook.setAuthor(nextAuthor(random));
+            newBook.setPublishDate(nextPublishDate(random));
+            newBook.setReadAlready(random.nextDouble() < settings.readAlreadyRatio());
+            books.add(newBook);
+        }
+        return books;
+    }
+
+    private String nextAuthor(Random random) {
+        if (authorCumulativeProbabilities == null) {
+            return authors[random.nextInt(authors.length)];
+        }
+        int index = Arrays.binarySearch(authorCumulativeProbabilities, random.nextDouble());
+        // A miss returns -(insertion point) - 1, and the insertion point is the first author whose range holds the value
+        return authors[Math.min(index >= 0 ? index : -index - 1, authors.length - 1)];
+    }
+
+    private LocalDate nextPublishDate(Random random) {
+        double position = switch (settings.publishDateDistribution()) {
+            case UNIFORM -> random.nextDouble();
+            // The square root of a uniform value has a density that grows linearly towards 1
+            case RECENT -> Math.sqrt(random.nextDouble());
+        };
+        return LocalDate.ofEpochDay(firstEpochDay + Math.min((long) (position * dayCount), dayCount - 1));
+    }
+
+    private static double[] zipfCumulativeProbabilities(int authorCount, double skew) {
+        var cumulativeProbabilities = new double[authorCount];
+        double total = 0;
+        for (int rank = 0; rank < authorCount; rank++) {
+            total += 1 / Math.pow(rank + 1, skew);
+            cumulativeProbabilities[rank] = total;
+        }
+        for (int rank = 0; rank < authorCount; rank++) {
+            cumulativeProbabilities[rank] /= total;
+        }
+        return cumulativeProbabilities;
+    }
+
+    /**
+     * The murmur3 finalizer, so the seeds of neighbouring chunks share no bit patterns.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    /**
+     * A task run on one chunk by a generator thread.
+     */
+    private interface ChunkTask<T> {
+        T run(long chunkIndex);
+    }
+
+    /**
+     * Combines the result of a chunk into the result of the run, on the calling thread in the order of the chunks.
+     */
+    private interface ChunkCombiner<R, T> {
+        R combine(R result, T chunkResult);
+    }
+
+    /**
+     * Run the task on every chunk with the threads of the settings, keeping at most two chunks per thread in progress.
+     */
+    private <R, T> R run(ChunkTask<T> task, ChunkCombiner<R, T> combiner, R initialResult) {
+        long chunkCount = (settings.count() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int threads = (int) Math.max(1, Math.min(settings.threads(), chunkCount));
+        var threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "book-generator-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<Future<T>> inProgress = new ArrayDeque<>();
+        R result = initialResult;
+        try {
+            for (long chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+                long currentChunkIndex = chunkIndex;
+                inProgress.add(executor.submit(() -> task.run(currentChunkIndex)));
+                if (inProgress.size() >= 2 * threads) {
+                    result = combiner.combine(result, inProgress.poll().get());
+                }
+            }
+            while (!inProgress.isEmpty()) {
+                result = combiner.combine(result, inProgress.poll().get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating books", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(String.format("Could not generate books: %s", e.getCause().getMessage()), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
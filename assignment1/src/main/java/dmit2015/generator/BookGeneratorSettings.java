@@ -0,0 +1,157 @@
+package dmit2015.generator;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * What the {@link BookGenerator} generates and how.
+ *
+ * @param count                   The number of books to generate.
+ * @param seed                    The seed of the run. The same settings generate the same books, whatever the number of threads.
+ * @param threads                 The number of threads generating and writing books.
+ * @param batchSize               The number of books written to a BookService per createBooks call.
+ * @param authorCount             The number of distinct authors.
+ * @param authorDistribution      How often each author is picked.
+ * @param authorSkew              The exponent of the ZIPF author distribution, where 1 is the classic Zipf law.
+ * @param firstPublishDate        The earliest publish date.
+ * @param lastPublishDate         The latest publish date.
+ * @param publishDateDistribution How publish dates are spread between the first and last date.
+ * @param readAlreadyRatio        The share of books that have been read already, from 0 to 1.
+ */
+public record BookGeneratorSettings(long count, long seed, int threads, int batchSize,
+                                    int authorCount, AuthorDistribution authorDistribution, double authorSkew,
+                                    LocalDate firstPublishDate, LocalDate lastPublishDate,
+                                    PublishDateDistribution publishDateDistribution, double readAlreadyRatio) {
+
+    public enum AuthorDistribution {
+        /**
+         * Every author writes about as many books as any other.
+         */
+        UNIFORM,
+        /**
+         * The n-th author writes about 1 / n^authorSkew as many books as the first, like real bestseller lists.
+         */
+        ZIPF
+    }
+
+    public enum PublishDateDistribution {
+        /**
+         * Every day between the first and last publish date is as likely.
+         */
+        UNIFORM,
+        /**
+         * The likelihood of a day grows linearly from the first to the last publish date, so most books are recent.
+         */
+        RECENT
+    }
+
+    public BookGeneratorSettings {
+        if (count < 0) {
+            throw new IllegalArgumentException(String.format("count %d must not be negative", count));
+        }
+        if (threads < 1 || batchSize < 1 || authorCount < 1) {
+            throw new IllegalArgumentException(String.format("threads %d, batchSize %d and authorCount %d must be at least 1", threads, batchSize, authorCount));
+        }
+        if (authorDistribution == null || publishDateDistribution == null) {
+            throw new IllegalArgumentException("authorDistribution and publishDateDistribution must not be null");
+        }
+        if (!(authorSkew > 0)) {
+            throw new IllegalArgumentException(String.format("authorSkew %s must be greater than 0", authorSkew));
+        }
+        if (firstPublishDate == null || lastPublishDate == null || lastPublishDate.isBefore(firstPublishDate)) {
+            throw new IllegalArgumentException(String.format("lastPublishDate %s must not be before firstPublishDate %s", lastPublishDate, firstPublishDate));
+        }
+        if (!(readAlreadyRatio >= 0 && readAlreadyRatio <= 1)) {
+            throw new IllegalArgumentException(String.format("readAlreadyRatio %s must be between 0 and 1", readAlreadyRatio));
+        }
+    }
+
+    /**
+     * The settings with the default of every option.
+     */
+    public static BookGeneratorSettings defaults(long count) {
+        return parse(name -> name.equals("count") ? Long.toString(count) : null);
+    }
+
+    /**
+     * Read the settings from options named like the components of this record, with the default of each missing one,
+     * for example from the parameters of a request or the name=value arguments of a command.
+     *
+     * @param options The value of the option with the name, or null if it is not given.
+     * @throws IllegalArgumentException if a value is not valid.
+     */
+    public static BookGeneratorSettings parse(Function<String, String> options) {
+        return new BookGeneratorSettings(
+                longOption(options, "count", 1_000_000),
+                longOption(options, "seed", 0),
+                intOption(options, "threads", Runtime.getRuntime().availableProcessors()),
+                intOption(options, "batchSize", 500),
+                intOption(options, "authorCount", 10_000),
+                enumOption(options, "authorDistribution", AuthorDistribution.ZIPF),
+                doubleOption(options, "authorSkew", 1.0),
+                dateOption(options, "firstPublishDate", LocalDate.of(1950, 1, 1)),
+                dateOption(options, "lastPublishDate", LocalDate.of(2025, 12, 31)),
+                enumOption(options, "publishDateDistribution", PublishDateDistribution.RECENT),
+                doubleOption(options, "readAlreadyRatio", 0.3));
+    }
+
+    private static long longOption(Function<String, String> options, String name, long defaultValue) {
+        String value = options.apply(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.strip().replace("_", ""));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("%s %s is not a whole number", name, value));
+        }
+    }
+
+    private static int intOption(Function<String, String> options, String name, int defaultValue) {
+        long value = longOption(options, name, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("%s %d is not between %d and %d", name, value, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        }
+        return (int) value;
+    }
+
+    private static double doubleOption(Function<String, String> options, String name, double defaultValue) {
+        String value = options.apply(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.strip());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("%s %s is not a number", name, value));
+        }
+    }
+
+    private static LocalDate dateOption(Function<String, String> options, String name, LocalDate defaultValue) {
+        String value = options.apply(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return LocalDate.parse(value.strip());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(String.format("%s %s is not a date like 2000-01-31", name, value));
+        }
+    }
+
+    private static <E extends Enum<E>> E enumOption(Function<String, String> options, String name, E defaultValue) {
+        String value = options.apply(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.strip().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("%s %s is not one of %s", name, value,
+                    Arrays.toString(defaultValue.getDeclaringClass().getEnumConstants())));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package dmit2015.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values, such as latencies in nanoseconds or sizes in bytes.
+ * <p>
+ * Values are counted in log-linear buckets: every power of two is split into {@value #SUB_BUCKETS} equal buckets,
+ * so a percentile read from the buckets is within 12.5% of the recorded value. Recording a value increments two
+ * striped counters and allocates nothing.
+ */
+final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+    private final LongAdder sum = new LongAdder();
+
+    Histogram() {
+        for (int index = 0; index < buckets.length; index++) {
+            buckets[index] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        long recordedValue = Math.max(0, value);
+        buckets[bucketIndex(recordedValue)].increment();
+        sum.add(recordedValue);
+    }
+
+    /**
+     * A copy of the bucket counts and sum, taken without stopping writers.
+     */
+    Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int index = 0; index < counts.length; index++) {
+            counts[index] = buckets[index].sum();
+        }
+        return new Snapshot(counts, sum.sum());
+    }
+
+    /**
+     * The bucket counts and sum of a histogram at one point in time.
+     */
+    record Snapshot(long[] counts, long sum) {
+
+        long count() {
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            return count;
+        }
+
+        /**
+         * The number of values below the power of two, which is always a bucket boundary.
+         */
+        long countBelowPowerOfTwo(int exponent) {
+            long count = 0;
+            for (int index = 0; index < counts.length && upperBound(index) <= 1L << exponent; index++) {
+                count += counts[index];
+            }
+            return count;
+        }
+
+        /**
+         * The upper bound of the bucket that holds the value at the quantile, or 0 if nothing was recorded.
+         *
+         * @param quantile A fraction between 0 and 1, such as 0.99 for the 99th percentile.
+         */
+        long valueAtQuantile(double quantile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int index = 0; index < counts.length; index++) {
+                seen += counts[index];
+                if (seen >= rank) {
+                    return upperBound(index);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The smallest value above the bucket, saturated at Long.MAX_VALUE for the last bucket.
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long upperBound = (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+        return upperBound > 0 ? upperBound : Long.MAX_VALUE;
+    }
+}
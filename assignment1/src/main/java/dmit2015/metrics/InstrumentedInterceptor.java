@@ -0,0 +1,41 @@
+package dmit2015.metrics;
+
+import jakarta.annotation.Priority;
+import jakarta.inject.Inject;
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+
+import java.io.Serializable;
+
+/**
+ * This CDI interceptor times the methods bound with {@link Instrumented}.
+ * <p>
+ * The metrics of a method are looked up without locks once they exist, and recording a call only increments
+ * striped counters, so a call allocates nothing. It runs before the application interceptors and decorators,
+ * so the time includes the CachingBookService. It is Serializable so it can be bound to view scoped beans.
+ */
+@Instrumented
+@Interceptor
+@Priority(Interceptor.Priority.LIBRARY_BEFORE)
+public class InstrumentedInterceptor implements Serializable {
+
+    @Inject
+    private MetricsRegistry metricsRegistry;
+
+    @AroundInvoke
+    public Object measure(InvocationContext invocationContext) throws Exception {
+        MethodMetrics methodMetrics = metricsRegistry.methodMetrics(invocationContext.getTarget().getClass(),
+                invocationContext.getMethod());
+        methodMetrics.enter();
+        long startNanos = System.nanoTime();
+        try {
+            return invocationContext.proceed();
+        } catch (Exception | Error e) {
+            methodMetrics.recordError(e);
+            throw e;
+        } finally {
+            methodMetrics.exit(System.nanoTime() - startNanos);
+        }
+    }
+}
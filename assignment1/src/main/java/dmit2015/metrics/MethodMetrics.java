@@ -0,0 +1,61 @@
+package dmit2015.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of one instrumented method: a latency histogram, the calls in flight and the errors by exception class.
+ */
+final class MethodMetrics {
+
+    private final String className;
+
+    private final String methodName;
+
+    private final Histogram latencyNanos = new Histogram();
+
+    private final LongAdder inFlight = new LongAdder();
+
+    private final ConcurrentMap<Class<?>, LongAdder> errorsByCause = new ConcurrentHashMap<>();
+
+    MethodMetrics(String className, String methodName) {
+        this.className = className;
+        this.methodName = methodName;
+    }
+
+    void enter() {
+        inFlight.increment();
+    }
+
+    void exit(long elapsedNanos) {
+        inFlight.decrement();
+        latencyNanos.record(elapsedNanos);
+    }
+
+    void recordError(Throwable throwable) {
+        // The lambda captures nothing, so counting a known cause allocates nothing
+        errorsByCause.computeIfAbsent(throwable.getClass(), cause -> new LongAdder()).increment();
+    }
+
+    String className() {
+        return className;
+    }
+
+    String methodName() {
+        return methodName;
+    }
+
+    Histogram.Snapshot latencySnapshot() {
+        return latencyNanos.snapshot();
+    }
+
+    long inFlight() {
+        return inFlight.sum();
+    }
+
+    Map<Class<?>, LongAdder> errorsByCause() {
+        return errorsByCause;
+    }
+}
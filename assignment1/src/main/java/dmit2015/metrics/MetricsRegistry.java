@@ -0,0 +1,312 @@
+package dmit2015.metrics;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Named;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * This class holds the metrics of the application and writes them in the Prometheus text format.
+ * <p>
+ * It keeps the metrics of the methods timed by the {@link InstrumentedInterceptor}, the status codes and response
+ * sizes of the Http Responses measured with {@link #measureResponses(String, HttpResponse.BodyHandler)}, and the
+ * counters and gauges that other beans register, such as the cache and resilience statistics.
+ * Every value is read when it is scraped, so recording never waits for a scrape.
+ */
+@Named("metricsRegistry")
+@ApplicationScoped
+public class MetricsRegistry {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * The powers of two of the nanosecond latency buckets that are exported, from about 1 microsecond to 34 seconds.
+     */
+    private static final int MIN_LATENCY_EXPONENT = 10;
+
+    private static final int MAX_LATENCY_EXPONENT = 35;
+
+    /**
+     * The powers of two of the response size buckets that are exported, from 64 bytes to 64 megabytes.
+     */
+    private static final int MIN_SIZE_EXPONENT = 6;
+
+    private static final int MAX_SIZE_EXPONENT = 26;
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    private static final List<String> HTTP_METHODS = List.of("DELETE", "GET", "PATCH", "POST", "PUT");
+
+    private static final int MAX_STATUS_CODE = 599;
+
+    /**
+     * A counter or gauge registered by another bean, read when it is scraped.
+     */
+    private record RegisteredMetric(String type, String help, DoubleSupplier value) {
+    }
+
+    /**
+     * The status codes and response sizes of the Http Responses to one request method.
+     */
+    private record HttpMethodMetrics(AtomicLongArray responsesByStatus, Histogram responseSizeBytes) {
+    }
+
+    /**
+     * The metrics of each method by the name of its bean class and method, so overloads share one series.
+     */
+    private final ConcurrentNavigableMap<String, MethodMetrics> methodMetricsByName = new ConcurrentSkipListMap<>();
+
+    /**
+     * The metrics of each method of a target class, looked up by the Method the interceptor is given.
+     */
+    private final ClassValue<ConcurrentMap<Method, MethodMetrics>> methodMetricsByTargetClass = new ClassValue<>() {
+        @Override
+        protected ConcurrentMap<Method, MethodMetrics> computeValue(Class<?> targetClass) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final Map<String, HttpMethodMetrics> httpMetricsByMethod = HTTP_METHODS.stream()
+            .collect(Collectors.toUnmodifiableMap(method -> method,
+                    method -> new HttpMethodMetrics(new AtomicLongArray(MAX_STATUS_CODE + 1), new Histogram())));
+
+    private final ConcurrentNavigableMap<String, RegisteredMetric> registeredMetrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * The metrics of a method of an instrumented bean, created on its first call.
+     *
+     * @param targetClass The class of the intercepted instance, which may be a subclass generated by the container.
+     * @param method      The intercepted method.
+     */
+    MethodMetrics methodMetrics(Class<?> targetClass, Method method) {
+        ConcurrentMap<Method, MethodMetrics> metricsByMethod = methodMetricsByTargetClass.get(targetClass);
+        MethodMetrics methodMetrics = metricsByMethod.get(method);
+        if (methodMetrics == null) {
+            String className = beanClass(targetClass).getSimpleName();
+            methodMetrics = metricsByMethod.computeIfAbsent(method, newMethod ->
+                    methodMetricsByName.computeIfAbsent(className + "." + newMethod.getName(),
+                            name -> new MethodMetrics(className, newMethod.getName())));
+        }
+        return methodMetrics;
+    }
+
+    /**
+     * Register a counter that is read from the supplier when it is scraped, replacing any metric with the same name.
+     *
+     * @param name  The metric name, ending with _total.
+     * @param help  The description of the metric.
+     * @param value Returns the current count.
+     */
+    public void registerCounter(String name, String help, LongSupplier value) {
+        registeredMetrics.put(name, new RegisteredMetric("counter", help, value::getAsLong));
+    }
+
+    /**
+     * Register a gauge that is read from the supplier when it is scraped, replacing any metric with the same name.
+     *
+     * @param name  The metric name.
+     * @param help  The description of the metric.
+     * @param value Returns the current value.
+     */
+    public void registerGauge(String name, String help, DoubleSupplier value) {
+        registeredMetrics.put(name, new RegisteredMetric("gauge", help, value));
+    }
+
+    /**
+     * Wrap a BodyHandler to count the status code of each Http Response and the size of its body.
+     * The body is counted as it is received, so a body that is discarded unread counts the bytes read so far.
+     *
+     * @param requestMethod The method of the Http Request, such as GET.
+     * @param bodyHandler   The BodyHandler to wrap.
+     */
+    public <T> HttpResponse.BodyHandler<T> measureResponses(String requestMethod, HttpResponse.BodyHandler<T> bodyHandler) {
+        HttpMethodMetrics httpMethodMetrics = httpMetricsByMethod.get(requestMethod);
+        if (httpMethodMetrics == null) {
+            return bodyHandler;
+        }
+        return responseInfo -> {
+            int statusCode = Math.min(Math.max(responseInfo.statusCode(), 0), MAX_STATUS_CODE);
+            httpMethodMetrics.responsesByStatus().incrementAndGet(statusCode);
+            return new MeasuredBodySubscriber<>(bodyHandler.apply(responseInfo), httpMethodMetrics.responseSizeBytes());
+        };
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format, version 0.0.4.
+     */
+    public void writePrometheusText(Writer writer) throws IOException {
+        var text = new StringBuilder(16 * 1024);
+        List<MethodMetrics> methodMetrics = List.copyOf(methodMetricsByName.values());
+        List<Histogram.Snapshot> latencySnapshots = methodMetrics.stream().map(MethodMetrics::latencySnapshot).toList();
+
+        writeHeader(text, "dmit2015_method_duration_seconds", "histogram",
+                "The time taken by the instrumented methods, including the calls that threw.");
+        for (int index = 0; index < methodMetrics.size(); index++) {
+            writeHistogram(text, "dmit2015_method_duration_seconds", methodLabels(methodMetrics.get(index)),
+                    latencySnapshots.get(index), MIN_LATENCY_EXPONENT, MAX_LATENCY_EXPONENT, NANOS_PER_SECOND);
+        }
+
+        writeHeader(text, "dmit2015_method_duration_quantile_seconds", "gauge",
+                "The percentiles of the time taken by the instrumented methods since startup, within 12.5%.");
+        for (int index = 0; index < methodMetrics.size(); index++) {
+            Histogram.Snapshot latencySnapshot = latencySnapshots.get(index);
+            for (double quantile : QUANTILES) {
+                writeSample(text, "dmit2015_method_duration_quantile_seconds",
+                        methodLabels(methodMetrics.get(index)) + ",quantile=\"" + quantile + "\"",
+                        Double.toString(latencySnapshot.valueAtQuantile(quantile) / NANOS_PER_SECOND));
+            }
+        }
+
+        writeHeader(text, "dmit2015_method_in_flight", "gauge", "The number of calls to the instrumented methods in progress.");
+        for (MethodMetrics currentMethodMetrics : methodMetrics) {
+            writeSample(text, "dmit2015_method_in_flight", methodLabels(currentMethodMetrics),
+                    Long.toString(currentMethodMetrics.inFlight()));
+        }
+
+        writeHeader(text, "dmit2015_method_errors_total", "counter", "The exceptions thrown by the instrumented methods by class.");
+        for (MethodMetrics currentMethodMetrics : methodMetrics) {
+            currentMethodMetrics.errorsByCause().entrySet().stream()
+                    .sorted(Comparator.comparing(causeErrors -> causeErrors.getKey().getName()))
+                    .forEach(causeErrors -> writeSample(text, "dmit2015_method_errors_total",
+                            methodLabels(currentMethodMetrics) + ",cause=\"" + escape(causeErrors.getKey().getName()) + "\"",
+                            Long.toString(causeErrors.getValue().sum())));
+        }
+
+        writeHeader(text, "dmit2015_http_client_responses_total", "counter", "The Http Responses received by request method and status code.");
+        for (String requestMethod : HTTP_METHODS) {
+            AtomicLongArray responsesByStatus = httpMetricsByMethod.get(requestMethod).responsesByStatus();
+            for (int statusCode = 0; statusCode <= MAX_STATUS_CODE; statusCode++) {
+                long responses = responsesByStatus.get(statusCode);
+                if (responses > 0) {
+                    writeSample(text, "dmit2015_http_client_responses_total",
+                            "method=\"" + requestMethod + "\",status=\"" + statusCode + "\"", Long.toString(responses));
+                }
+            }
+        }
+
+        writeHeader(text, "dmit2015_http_client_response_size_bytes", "histogram", "The size of the Http Response bodies received by request method.");
+        for (String requestMethod : HTTP_METHODS) {
+            writeHistogram(text, "dmit2015_http_client_response_size_bytes", "method=\"" + requestMethod + "\"",
+                    httpMetricsByMethod.get(requestMethod).responseSizeBytes().snapshot(), MIN_SIZE_EXPONENT, MAX_SIZE_EXPONENT, 1);
+        }
+
+        for (Map.Entry<String, RegisteredMetric> nameMetric : registeredMetrics.entrySet()) {
+            RegisteredMetric registeredMetric = nameMetric.getValue();
+            writeHeader(text, nameMetric.getKey(), registeredMetric.type(), registeredMetric.help());
+            double value = registeredMetric.value().getAsDouble();
+            writeSample(text, nameMetric.getKey(), "", value == Math.rint(value) && Math.abs(value) < 1e15
+                    ? Long.toString((long) value) : Double.toString(value));
+        }
+        writer.write(text.toString());
+    }
+
+    private static void writeHistogram(StringBuilder text, String name, String labels, Histogram.Snapshot snapshot,
+                                       int minExponent, int maxExponent, double unit) {
+        String labelPrefix = labels.isEmpty() ? "" : labels + ",";
+        for (int exponent = minExponent; exponent <= maxExponent; exponent++) {
+            writeSample(text, name + "_bucket", labelPrefix + "le=\"" + ((1L << exponent) / unit) + "\"",
+                    Long.toString(snapshot.countBelowPowerOfTwo(exponent)));
+        }
+        long count = snapshot.count();
+        writeSample(text, name + "_bucket", labelPrefix + "le=\"+Inf\"", Long.toString(count));
+        writeSample(text, name + "_sum", labels, Double.toString(snapshot.sum() / unit));
+        writeSample(text, name + "_count", labels, Long.toString(count));
+    }
+
+    private static void writeHeader(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder text, String name, String labels, String value) {
+        text.append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    private static String methodLabels(MethodMetrics methodMetrics) {
+        return "class=\"" + escape(methodMetrics.className()) + "\",method=\"" + escape(methodMetrics.methodName()) + "\"";
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * The bean class of an instance, skipping the subclasses the container generates for interceptors and decorators.
+     */
+    private static Class<?> beanClass(Class<?> targetClass) {
+        Class<?> beanClass = targetClass;
+        while (beanClass.getSuperclass() != null && (beanClass.isSynthetic() || beanClass.getName().contains("$$"))) {
+            beanClass = beanClass.getSuperclass();
+        }
+        return beanClass;
+    }
+
+    /**
+     * Counts the bytes of an Http Response body on their way to the wrapped BodySubscriber.
+     * The Flow contract delivers onNext calls one at a time, so the count needs no synchronization.
+     */
+    private static final class MeasuredBodySubscriber<T> implements HttpResponse.BodySubscriber<T> {
+
+        private final HttpResponse.BodySubscriber<T> bodySubscriber;
+
+        private final Histogram responseSizeBytes;
+
+        private long size;
+
+        MeasuredBodySubscriber(HttpResponse.BodySubscriber<T> bodySubscriber, Histogram responseSizeBytes) {
+            this.bodySubscriber = bodySubscriber;
+            this.responseSizeBytes = responseSizeBytes;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return bodySubscriber.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            bodySubscriber.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            for (ByteBuffer item : items) {
+                size += item.remaining();
+            }
+            bodySubscriber.onNext(items);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            responseSizeBytes.record(size);
+            bodySubscriber.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            responseSizeBytes.record(size);
+            bodySubscriber.onComplete();
+        }
+    }
+}
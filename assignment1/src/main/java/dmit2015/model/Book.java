@@ -1,5 +1,6 @@
 package dmit2015.model;
 
+import jakarta.json.bind.annotation.JsonbTransient;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 import lombok.*;
@@ -31,12 +32,20 @@ public class Book {
 
     private boolean readAlready = false;
 
+    /**
+     * The version of the stored book this instance was read from, used to detect concurrent updates.
+     * It is assigned by the BookService and is left out of the JSON representation of the book.
+     */
+    @JsonbTransient
+    private String version;
+
     public Book(Book other) {
         this.id = other.id;
         this.title = other.title;
         this.author = other.author;
         this.publishDate = other.publishDate;
         this.readAlready = other.readAlready;
+        this.version = other.version;
     }
 
     public static Book copyOf(Book other) {
@@ -0,0 +1,61 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking variant of {@link BookService} where every operation returns a CompletableFuture
+ * that completes when the data source responds, without holding the calling thread.
+ */
+public interface AsyncBookService {
+
+    CompletableFuture<Book> createBook(Book book);
+
+    CompletableFuture<Optional<Book>> getBookById(String id);
+
+    /**
+     * @see BookService#getBooksByIds(Collection)
+     */
+    CompletableFuture<List<Book>> getBooksByIds(Collection<String> ids);
+
+    CompletableFuture<List<Book>> getAllBooks();
+
+    /**
+     * @see BookService#forEachBook(Consumer)
+     */
+    CompletableFuture<Void> forEachBook(Consumer<? super Book> action);
+
+    CompletableFuture<Book> updateBook(Book book);
+
+    CompletableFuture<Void> deleteBookById(String id);
+
+    /**
+     * @see BookService#deleteBookById(String, String)
+     */
+    CompletableFuture<Void> deleteBookById(String id, String expectedVersion);
+
+    /**
+     * @see BookService#createBooks(Collection)
+     */
+    CompletableFuture<List<BookBatchResult>> createBooks(Collection<Book> books);
+
+    /**
+     * @see BookService#updateBooks(Collection)
+     */
+    CompletableFuture<List<BookBatchResult>> updateBooks(Collection<Book> books);
+
+    /**
+     * @see BookService#deleteBooksByIds(Collection)
+     */
+    CompletableFuture<List<BookBatchResult>> deleteBooksByIds(Collection<String> ids);
+
+    /**
+     * @see BookService#page(int, int, String, boolean, String)
+     */
+    CompletableFuture<BookPage> page(int offset, int limit, String sortField, boolean ascending, String filter);
+}
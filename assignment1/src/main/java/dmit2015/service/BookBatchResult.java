@@ -0,0 +1,25 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+
+/**
+ * The outcome of one item of a batch create, update or delete.
+ *
+ * @param id           The unique id of the book, or null when a create failed before an id was assigned.
+ * @param book         The created or updated book, or null for deletes and failures.
+ * @param errorMessage The reason the item failed, or null when it was successful.
+ */
+public record BookBatchResult(String id, Book book, String errorMessage) {
+
+    public static BookBatchResult success(String id, Book book) {
+        return new BookBatchResult(id, book, null);
+    }
+
+    public static BookBatchResult failure(String id, String errorMessage) {
+        return new BookBatchResult(id, null, errorMessage);
+    }
+
+    public boolean isSuccessful() {
+        return errorMessage == null;
+    }
+}
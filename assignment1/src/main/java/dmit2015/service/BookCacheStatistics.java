@@ -0,0 +1,67 @@
+package dmit2015.service;
+
+import dmit2015.metrics.MetricsRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts the hits, misses and evictions of the CachingBookService
+ * so we can see whether the cache in front of Firebase is paying off. The counts are also exported by the MetricsRegistry.
+ */
+@Named("bookCacheStatistics")
+@ApplicationScoped
+public class BookCacheStatistics {
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    @Inject
+    private MetricsRegistry metricsRegistry;
+
+    @PostConstruct
+    void init() {
+        metricsRegistry.registerCounter("dmit2015_book_cache_hits_total", "The book lookups served from the cache.", this::getHitCount);
+        metricsRegistry.registerCounter("dmit2015_book_cache_misses_total", "The book lookups fetched from Firebase.", this::getMissCount);
+        metricsRegistry.registerCounter("dmit2015_book_cache_evictions_total", "The books evicted from the cache.", this::getEvictionCount);
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * The fraction of cache lookups that were served from the cache, or 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        long hitCount = getHitCount();
+        long lookupCount = hitCount + getMissCount();
+        return lookupCount == 0 ? 0 : (double) hitCount / lookupCount;
+    }
+}
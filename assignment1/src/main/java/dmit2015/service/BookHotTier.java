@@ -0,0 +1,222 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The in-memory tier of the {@link TieredBookService}: books by id within a budget of bytes, kept by the W-TinyLFU policy.
+ * <p>
+ * A new book enters a small window, 1% of the budget, in least recently used order. A book pushed out of the window
+ * is only admitted to the main area if the {@link FrequencySketch} has seen it accessed more often than the book
+ * the main area would evict for it, so a scan of books read once cannot flush the books read often.
+ * The main area is a segmented LRU: admitted books start on probation, a book read again moves to the protected
+ * segment, 80% of the main area, and a book pushed out of the protected segment goes back on probation.
+ * <p>
+ * The size of a book is estimated from its strings, since a Book does not know its own size.
+ * Not thread-safe: the TieredBookService guards it with its lock.
+ */
+final class BookHotTier {
+
+    /**
+     * A book in the tier with its estimated size, the sequence of the change feed when it was read, and the System.nanoTime()
+     * it expires at.
+     */
+    record Entry(Book book, long weight, long changeSequence, long expiresAt) {
+        boolean isExpired() {
+            return System.nanoTime() - expiresAt > 0;
+        }
+    }
+
+    /**
+     * The bytes of a Book, its LocalDate, an Entry and a LinkedHashMap node on a 64-bit JVM with compressed oops.
+     */
+    private static final long ENTRY_OVERHEAD_BYTES = 160;
+
+    /**
+     * The bytes of a String and its array without the characters.
+     */
+    private static final long STRING_OVERHEAD_BYTES = 40;
+
+    private final long maxBytes;
+
+    private final long windowMaxBytes;
+
+    private final long protectedMaxBytes;
+
+    private final Map<String, Entry> window = new LinkedHashMap<>();
+
+    private final Map<String, Entry> probation = new LinkedHashMap<>();
+
+    private final Map<String, Entry> protectedSegment = new LinkedHashMap<>();
+
+    private long windowBytes;
+
+    private long probationBytes;
+
+    private long protectedBytes;
+
+    private final FrequencySketch sketch;
+
+    private long evictionCount;
+
+    private long rejectionCount;
+
+    BookHotTier(long maxBytes) {
+        this.maxBytes = maxBytes;
+        windowMaxBytes = Math.max(1, maxBytes / 100);
+        protectedMaxBytes = (maxBytes - windowMaxBytes) * 8 / 10;
+        // Size the sketch for books of about 256 bytes, the size of a book with short strings
+        sketch = new FrequencySketch(maxBytes / 256);
+    }
+
+    /**
+     * The estimated number of bytes a book takes in the tier.
+     */
+    static long weigh(String id, Book book) {
+        return ENTRY_OVERHEAD_BYTES + stringBytes(id) + stringBytes(book.getTitle()) + stringBytes(book.getAuthor())
+                + stringBytes(book.getVersion());
+    }
+
+    private static long stringBytes(String value) {
+        return value == null ? 0 : STRING_OVERHEAD_BYTES + 2L * value.length();
+    }
+
+    /**
+     * Count an access of the id and return its entry, moving it up in its segment, or null if it is not in the tier.
+     */
+    Entry get(String id) {
+        sketch.increment(id);
+        Entry entry = window.remove(id);
+        if (entry != null) {
+            window.put(id, entry);
+            return entry;
+        }
+        entry = protectedSegment.remove(id);
+        if (entry != null) {
+            protectedSegment.put(id, entry);
+            return entry;
+        }
+        entry = probation.remove(id);
+        if (entry != null) {
+            probationBytes -= entry.weight();
+            protectedSegment.put(id, entry);
+            protectedBytes += entry.weight();
+            demoteProtectedOverflow();
+        }
+        return entry;
+    }
+
+    /**
+     * Put an entry in the window, replacing any entry of the id, and evict until the tier is within its budget.
+     * An entry larger than the whole budget is not kept.
+     */
+    void put(String id, Entry entry) {
+        remove(id);
+        if (entry.weight() > maxBytes) {
+            return;
+        }
+        window.put(id, entry);
+        windowBytes += entry.weight();
+        while (windowBytes > windowMaxBytes) {
+            Map.Entry<String, Entry> eldest = removeEldest(window);
+            windowBytes -= eldest.getValue().weight();
+            admit(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Tag the entry of the id with a later change sequence, keeping its place and segment.
+     */
+    void updateChangeSequence(String id, long changeSequence) {
+        for (Map<String, Entry> currentSegment : List.of(window, probation, protectedSegment)) {
+            currentSegment.computeIfPresent(id, (key, entry) -> new Entry(entry.book(), entry.weight(), changeSequence, entry.expiresAt()));
+        }
+    }
+
+    void remove(String id) {
+        Entry entry = window.remove(id);
+        if (entry != null) {
+            windowBytes -= entry.weight();
+            return;
+        }
+        entry = probation.remove(id);
+        if (entry != null) {
+            probationBytes -= entry.weight();
+            return;
+        }
+        entry = protectedSegment.remove(id);
+        if (entry != null) {
+            protectedBytes -= entry.weight();
+        }
+    }
+
+    long residentBytes() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    int residentCount() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * The number of books leaving the window that were not admitted because they were read less often than the victim.
+     */
+    long rejectionCount() {
+        return rejectionCount;
+    }
+
+    /**
+     * Put a book leaving the window on probation, then evict from the main area until it fits, each time keeping
+     * whichever of the candidate and the eldest book on probation was read more often.
+     */
+    private void admit(String candidateId, Entry candidate) {
+        probation.put(candidateId, candidate);
+        probationBytes += candidate.weight();
+        boolean candidatePending = true;
+        while (probationBytes + protectedBytes > maxBytes - windowMaxBytes) {
+            Map<String, Entry> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+            String victimId = victimSegment.keySet().iterator().next();
+            if (candidatePending && !victimId.equals(candidateId)
+                    && sketch.frequency(candidateId) <= sketch.frequency(victimId)) {
+                probationBytes -= probation.remove(candidateId).weight();
+                rejectionCount++;
+                candidatePending = false;
+                continue;
+            }
+            if (victimId.equals(candidateId)) {
+                candidatePending = false;
+            }
+            long victimWeight = victimSegment.remove(victimId).weight();
+            if (victimSegment == probation) {
+                probationBytes -= victimWeight;
+            } else {
+                protectedBytes -= victimWeight;
+            }
+            evictionCount++;
+        }
+    }
+
+    private void demoteProtectedOverflow() {
+        while (protectedBytes > protectedMaxBytes) {
+            Map.Entry<String, Entry> eldest = removeEldest(protectedSegment);
+            protectedBytes -= eldest.getValue().weight();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().weight();
+        }
+    }
+
+    private static Map.Entry<String, Entry> removeEldest(Map<String, Entry> segment) {
+        Iterator<Map.Entry<String, Entry>> iterator = segment.entrySet().iterator();
+        Map.Entry<String, Entry> eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+}
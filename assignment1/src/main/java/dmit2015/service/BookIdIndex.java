@@ -0,0 +1,184 @@
+package dmit2015.service;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * An off-heap hash index of UUID book ids to record offsets, used by the {@link MappedBookService}.
+ * <p>
+ * The index is an open addressing table with linear probing in a memory-mapped file, so it does not count
+ * against the Java heap or the direct memory limit. Each slot holds the two halves of the UUID and the
+ * record offset plus one, where 0 marks an empty slot and -1 a deleted one. The table doubles when it is
+ * three quarters full, counting deleted slots. Not thread-safe: callers hold the lock of the store.
+ */
+final class BookIdIndex implements AutoCloseable {
+
+    private static final int SLOT_BYTES = Long.BYTES * 3;
+
+    private static final long EMPTY = 0;
+
+    private static final long DELETED = -1;
+
+    /**
+     * The largest table that fits in one mapping.
+     */
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private final Path directory;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer slots;
+
+    private Path path;
+
+    private int capacity;
+
+    private int size;
+
+    private int usedSlots;
+
+    /**
+     * The number of tables mapped so far, which names the file of the next table.
+     */
+    private int generation;
+
+    BookIdIndex(Path directory, int initialCapacity) throws IOException {
+        this.directory = directory;
+        int tableCapacity = 16;
+        while (tableCapacity < initialCapacity && tableCapacity < MAX_CAPACITY) {
+            tableCapacity <<= 1;
+        }
+        map(tableCapacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * The offset of the record with the id, or -1 if there is none.
+     */
+    long get(UUID id) {
+        int slot = find(id);
+        return slot >= 0 ? offsetAt(slot) - 1 : -1;
+    }
+
+    /**
+     * Add or replace the offset of the record with the id.
+     */
+    void put(UUID id, long offset) throws IOException {
+        int slot = find(id);
+        if (slot >= 0) {
+            slots.putLong(slot * SLOT_BYTES + Long.BYTES * 2, offset + 1);
+            return;
+        }
+        if (usedSlots + 1 > capacity - (capacity >> 2)) {
+            resize(size + 1 > (capacity >> 1) ? capacity << 1 : capacity);
+        }
+        insert(id, offset);
+    }
+
+    /**
+     * Remove the id from the index.
+     *
+     * @return true if the id was removed, false if it was not in the index.
+     */
+    boolean remove(UUID id) {
+        int slot = find(id);
+        if (slot < 0) {
+            return false;
+        }
+        slots.putLong(slot * SLOT_BYTES + Long.BYTES * 2, DELETED);
+        size--;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    private int find(UUID id) {
+        int mask = capacity - 1;
+        for (int slot = hash(id) & mask; ; slot = (slot + 1) & mask) {
+            long offset = offsetAt(slot);
+            if (offset == EMPTY) {
+                return -1;
+            }
+            int position = slot * SLOT_BYTES;
+            if (offset != DELETED && slots.getLong(position) == id.getMostSignificantBits()
+                    && slots.getLong(position + Long.BYTES) == id.getLeastSignificantBits()) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(UUID id, long offset) {
+        int mask = capacity - 1;
+        int slot = hash(id) & mask;
+        while (offsetAt(slot) > EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        if (offsetAt(slot) == EMPTY) {
+            usedSlots++;
+        }
+        int position = slot * SLOT_BYTES;
+        slots.putLong(position, id.getMostSignificantBits());
+        slots.putLong(position + Long.BYTES, id.getLeastSignificantBits());
+        slots.putLong(position + Long.BYTES * 2, offset + 1);
+        size++;
+    }
+
+    /**
+     * Rehash the live slots into a new table, which also drops the deleted slots.
+     */
+    private void resize(int newCapacity) throws IOException {
+        if (newCapacity > MAX_CAPACITY) {
+            throw new IllegalStateException(String.format("The book id index cannot hold more than %d books", MAX_CAPACITY * 3 / 4));
+        }
+        FileChannel oldChannel = channel;
+        MappedByteBuffer oldSlots = slots;
+        Path oldPath = path;
+        int oldCapacity = capacity;
+        map(newCapacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int position = slot * SLOT_BYTES;
+            long offset = oldSlots.getLong(position + Long.BYTES * 2);
+            if (offset > EMPTY) {
+                insert(new UUID(oldSlots.getLong(position), oldSlots.getLong(position + Long.BYTES)), offset - 1);
+            }
+        }
+        oldChannel.close();
+        Files.deleteIfExists(oldPath);
+    }
+
+    private void map(int newCapacity) throws IOException {
+        path = directory.resolve(String.format("books-%d.idx", ++generation));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Mapping past the end of the new file grows it to a sparse file of zeros, which are empty slots
+        slots = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) newCapacity * SLOT_BYTES);
+        capacity = newCapacity;
+        size = 0;
+        usedSlots = 0;
+    }
+
+    private long offsetAt(int slot) {
+        return slots.getLong(slot * SLOT_BYTES + Long.BYTES * 2);
+    }
+
+    private static int hash(UUID id) {
+        long bits = id.getMostSignificantBits() ^ id.getLeastSignificantBits();
+        bits ^= bits >>> 33;
+        bits *= 0xff51afd7ed558ccdL;
+        bits ^= bits >>> 33;
+        return (int) bits;
+    }
+}
@@ -0,0 +1,294 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The file formats of the {@link FileBookService}: numbered write-ahead log segments and one snapshot.
+ * <p>
+ * A log segment is a sequence of records. Each record is the payload length, the CRC32C checksum of the payload
+ * and the payload, which holds every operation of one write so a batch is recovered all-or-nothing.
+ * A record cut short by a crash fails its checksum and is truncated on recovery.
+ * Puts are logged with the version of the book; puts logged before versions were added are still read, without one.
+ * <p>
+ * The snapshot holds every book stored when the log was rotated to the next segment, so recovery loads the
+ * snapshot and replays only the segments after it. It is written to a temporary file and atomically renamed,
+ * so a crash while writing it leaves the previous snapshot in place.
+ */
+final class BookLog {
+
+    /**
+     * A put or delete of one book. A delete has no book.
+     */
+    record Operation(String id, Book book) {
+
+        static Operation put(Book book) {
+            return new Operation(book.getId(), book);
+        }
+
+        static Operation delete(String id) {
+            return new Operation(id, null);
+        }
+
+        boolean isDelete() {
+            return book == null;
+        }
+    }
+
+    private static final byte PUT = 1;
+
+    private static final byte DELETE = 2;
+
+    private static final byte PUT_VERSIONED = 3;
+
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES * 2;
+
+    private static final int MAX_PAYLOAD_BYTES = 64 * 1024 * 1024;
+
+    private static final int SNAPSHOT_MAGIC = 0x424F4F4B;
+
+    private static final int SNAPSHOT_VERSION = 2;
+
+    /**
+     * The snapshot format before book versions were stored.
+     */
+    private static final int UNVERSIONED_SNAPSHOT_VERSION = 1;
+
+    private static final String SNAPSHOT_FILE_NAME = "book-snapshot.dat";
+
+    private static final String SEGMENT_PREFIX = "book-log-";
+
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    private BookLog() {
+    }
+
+    static Path segmentPath(Path directory, long segmentNumber) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * The numbers of the log segments in the directory in ascending order.
+     */
+    static List<Long> segmentNumbers(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.map(path -> path.getFileName().toString())
+                    .filter(fileName -> fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX))
+                    .map(fileName -> Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Encode the operations as one framed record ready to append to a log segment.
+     */
+    static byte[] encodeRecord(List<Operation> operations) {
+        var payloadBytes = new ByteArrayOutputStream(64 * operations.size() + 16);
+        try (var payload = new DataOutputStream(payloadBytes)) {
+            payload.writeInt(operations.size());
+            for (Operation currentOperation : operations) {
+                if (currentOperation.isDelete()) {
+                    payload.writeByte(DELETE);
+                    writeString(payload, currentOperation.id());
+                } else {
+                    payload.writeByte(PUT_VERSIONED);
+                    writeVersionedBook(payload, currentOperation.book());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] payload = payloadBytes.toByteArray();
+        var checksum = new CRC32C();
+        checksum.update(payload);
+        return ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length)
+                .putInt(payload.length)
+                .putInt((int) checksum.getValue())
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * Replay every valid record of a log segment in order.
+     *
+     * @param truncateTornTail true to cut off a record left incomplete by a crash, false to fail on it.
+     */
+    static void replay(Path segment, boolean truncateTornTail, Consumer<List<Operation>> action) throws IOException {
+        long validLength = 0;
+        long segmentLength = Files.size(segment);
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 1 << 16))) {
+            while (validLength + RECORD_HEADER_BYTES <= segmentLength) {
+                int payloadLength = input.readInt();
+                int expectedChecksum = input.readInt();
+                if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_BYTES
+                        || validLength + RECORD_HEADER_BYTES + payloadLength > segmentLength) {
+                    break;
+                }
+                byte[] payload = input.readNBytes(payloadLength);
+                var checksum = new CRC32C();
+                checksum.update(payload);
+                if ((int) checksum.getValue() != expectedChecksum) {
+                    break;
+                }
+                action.accept(decodeOperations(payload));
+                validLength += RECORD_HEADER_BYTES + payloadLength;
+            }
+        }
+        if (validLength < segmentLength) {
+            if (!truncateTornTail) {
+                throw new IOException(String.format("The book log segment %s is corrupt at offset %d", segment, validLength));
+            }
+            try (var channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot of the books that covers the log up to and including the segment number.
+     */
+    static void writeSnapshot(Path directory, long lastSegmentNumber, List<Book> books) throws IOException {
+        Path temporaryPath = directory.resolve(SNAPSHOT_FILE_NAME + ".tmp");
+        try (var fileOutput = new FileOutputStream(temporaryPath.toFile())) {
+            var checkedOutput = new CheckedOutputStream(new BufferedOutputStream(fileOutput, 1 << 16), new CRC32C());
+            var output = new DataOutputStream(checkedOutput);
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeLong(lastSegmentNumber);
+            output.writeLong(books.size());
+            for (Book currentBook : books) {
+                writeVersionedBook(output, currentBook);
+            }
+            output.writeInt((int) checkedOutput.getChecksum().getValue());
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+        Files.move(temporaryPath, directory.resolve(SNAPSHOT_FILE_NAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(directory);
+    }
+
+    /**
+     * Read the snapshot if there is one.
+     *
+     * @return the number of the last log segment covered by the snapshot, or 0 if there is no snapshot.
+     */
+    static long readSnapshot(Path directory, Consumer<Book> action) throws IOException {
+        Path snapshotPath = directory.resolve(SNAPSHOT_FILE_NAME);
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+        try (var checkedInput = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath), 1 << 16), new CRC32C())) {
+            var input = new DataInputStream(checkedInput);
+            int magic = input.readInt();
+            int snapshotVersion = input.readInt();
+            if (magic != SNAPSHOT_MAGIC || (snapshotVersion != SNAPSHOT_VERSION && snapshotVersion != UNVERSIONED_SNAPSHOT_VERSION)) {
+                throw new IOException(String.format("%s is not a book snapshot", snapshotPath));
+            }
+            long lastSegmentNumber = input.readLong();
+            long bookCount = input.readLong();
+            for (long index = 0; index < bookCount; index++) {
+                action.accept(snapshotVersion == SNAPSHOT_VERSION ? readVersionedBook(input) : readBook(input));
+            }
+            int actualChecksum = (int) checkedInput.getChecksum().getValue();
+            if (input.readInt() != actualChecksum) {
+                throw new IOException(String.format("The book snapshot %s is corrupt", snapshotPath));
+            }
+            return lastSegmentNumber;
+        }
+    }
+
+    /**
+     * Make the creation, rename or removal of files in the directory durable. Not every platform supports it.
+     */
+    static void forceDirectory(Path directory) {
+        try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened for sync on every platform
+        }
+    }
+
+    private static List<Operation> decodeOperations(byte[] payload) {
+        try (var input = new DataInputStream(new ByteArrayInputStream(payload))) {
+            int operationCount = input.readInt();
+            var operations = new ArrayList<Operation>(operationCount);
+            for (int index = 0; index < operationCount; index++) {
+                byte type = input.readByte();
+                operations.add(switch (type) {
+                    case PUT -> Operation.put(readBook(input));
+                    case PUT_VERSIONED -> Operation.put(readVersionedBook(input));
+                    case DELETE -> Operation.delete(readString(input));
+                    default -> throw new IOException(String.format("Unknown book log operation: %d", type));
+                });
+            }
+            return operations;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeBook(DataOutput output, Book book) throws IOException {
+        writeString(output, book.getId());
+        writeString(output, book.getTitle());
+        writeString(output, book.getAuthor());
+        output.writeLong(book.getPublishDate() != null ? book.getPublishDate().toEpochDay() : Long.MIN_VALUE);
+        output.writeBoolean(book.isReadAlready());
+    }
+
+    private static Book readBook(DataInput input) throws IOException {
+        var book = new Book();
+        book.setId(readString(input));
+        book.setTitle(readString(input));
+        book.setAuthor(readString(input));
+        long epochDay = input.readLong();
+        book.setPublishDate(epochDay != Long.MIN_VALUE ? LocalDate.ofEpochDay(epochDay) : null);
+        book.setReadAlready(input.readBoolean());
+        return book;
+    }
+
+    private static void writeVersionedBook(DataOutput output, Book book) throws IOException {
+        writeBook(output, book);
+        writeString(output, book.getVersion());
+    }
+
+    private static Book readVersionedBook(DataInput input) throws IOException {
+        Book book = readBook(input);
+        book.setVersion(readString(input));
+        return book;
+    }
+
+    private static void writeString(DataOutput output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
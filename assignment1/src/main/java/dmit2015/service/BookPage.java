@@ -0,0 +1,14 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+
+import java.util.List;
+
+/**
+ * One page of books returned by {@link BookService#page(int, int, String, boolean, String)}.
+ *
+ * @param books      The books on this page.
+ * @param totalCount The number of books matching the filter across all pages.
+ */
+public record BookPage(List<Book> books, long totalCount) {
+}
@@ -0,0 +1,107 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Sort and filter rules shared by the BookService implementations when paging books.
+ */
+final class BookQueries {
+
+    private BookQueries() {
+    }
+
+    /**
+     * Create a comparator for a sortable Book property.
+     *
+     * @param sortField One of title, author, publishDate or readAlready, or null for the natural order.
+     * @param ascending true to sort in ascending order, false for descending order.
+     * @return The comparator, or null when the books should be kept in their natural order.
+     */
+    static Comparator<Book> comparator(String sortField, boolean ascending) {
+        if (sortField == null || sortField.isBlank()) {
+            return null;
+        }
+        Comparator<Book> comparator = switch (sortField) {
+            case "title" -> Comparator.comparing(Book::getTitle, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER));
+            case "author" -> Comparator.comparing(Book::getAuthor, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER));
+            case "publishDate" -> Comparator.comparing(Book::getPublishDate, Comparator.nullsLast(Comparator.naturalOrder()));
+            case "readAlready" -> Comparator.comparing(Book::isReadAlready);
+            default -> throw new IllegalArgumentException("Books cannot be sorted by " + sortField);
+        };
+        return ascending ? comparator : comparator.reversed();
+    }
+
+    /**
+     * Create a comparator that orders books the way a Firebase Realtime Database orderBy query on the property does:
+     * missing values first, strings compared case-sensitively, and books with equal values in the order of their keys.
+     * The rows of a page fetched with limitToFirst or limitToLast are the first or last rows in this order,
+     * so the page must be sorted with it, not with {@link #comparator}, to skip the right rows.
+     *
+     * @param sortField One of title, author, publishDate or readAlready, or null to order by key.
+     * @param ascending true to sort in ascending order, false for descending order.
+     * @return The comparator.
+     * @link <a href="https://firebase.google.com/docs/database/rest/retrieve-data#section-rest-ordered-data">How data is ordered</a>
+     */
+    static Comparator<Book> firebaseComparator(String sortField, boolean ascending) {
+        Comparator<Book> byKey = Comparator.comparing(Book::getId, Comparator.nullsFirst(Comparator.naturalOrder()));
+        if (sortField == null || sortField.isBlank()) {
+            return ascending ? byKey : byKey.reversed();
+        }
+        Comparator<Book> comparator = switch (sortField) {
+            case "title" -> Comparator.comparing(Book::getTitle, Comparator.nullsFirst(Comparator.naturalOrder()));
+            case "author" -> Comparator.comparing(Book::getAuthor, Comparator.nullsFirst(Comparator.naturalOrder()));
+            // Dates are stored as ISO strings, whose order is the order of the dates
+            case "publishDate" -> Comparator.comparing(Book::getPublishDate, Comparator.nullsFirst(Comparator.naturalOrder()));
+            case "readAlready" -> Comparator.comparing(Book::isReadAlready);
+            default -> throw new IllegalArgumentException("Books cannot be sorted by " + sortField);
+        };
+        comparator = comparator.thenComparing(byKey);
+        return ascending ? comparator : comparator.reversed();
+    }
+
+    /**
+     * Create a predicate that matches books whose title, author or publish date contains the filter text, ignoring case.
+     *
+     * @param filter The text to search for, or null or blank to match every book.
+     * @return The predicate.
+     */
+    static Predicate<Book> matching(String filter) {
+        if (filter == null || filter.isBlank()) {
+            return currentBook -> true;
+        }
+        String normalizedFilter = filter.strip().toLowerCase(Locale.ROOT);
+        return currentBook -> contains(currentBook.getTitle(), normalizedFilter)
+                || contains(currentBook.getAuthor(), normalizedFilter)
+                || (currentBook.getPublishDate() != null && currentBook.getPublishDate().toString().contains(normalizedFilter));
+    }
+
+    /**
+     * Filter, sort and page a stream of books in memory.
+     *
+     * @param books The books to page. The stream must not contain books that are exposed to callers.
+     * @return The page with copies of the selected books.
+     */
+    static BookPage page(Stream<Book> books, int offset, int limit, String sortField, boolean ascending, String filter) {
+        Comparator<Book> comparator = comparator(sortField, ascending);
+        List<Book> matchingBooks = books.filter(matching(filter)).toList();
+        if (comparator != null) {
+            matchingBooks = matchingBooks.stream().sorted(comparator).toList();
+        }
+        List<Book> pageBooks = matchingBooks.stream()
+                .skip(offset)
+                .limit(limit)
+                .map(Book::copyOf)
+                .toList();
+        return new BookPage(pageBooks, matchingBooks.size());
+    }
+
+    private static boolean contains(String value, String normalizedFilter) {
+        return value != null && value.toLowerCase(Locale.ROOT).contains(normalizedFilter);
+    }
+}
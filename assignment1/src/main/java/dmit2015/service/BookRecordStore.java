@@ -0,0 +1,319 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Compact binary book records in memory-mapped chunks of a file, used by the {@link MappedBookService}.
+ * <p>
+ * Records are appended in insertion order and never cross a chunk. Each record has a fixed layout:
+ * <pre>
+ * offset  size  field
+ *      0     4  record length, including the title capacity
+ *      4     1  flags: read already, deleted, forwarded, relocated
+ *      5     4  publish date as an epoch day, or Integer.MIN_VALUE for none
+ *      9     4  author id in the author dictionary, or -1 for none
+ *     13    16  book id as the two halves of a UUID
+ *     29     4  version of the book
+ *     33     2  title length in UTF-8 bytes, or -1 for none
+ *     35     n  title
+ * </pre>
+ * An update rewrites a record in place when the new title fits. Otherwise the new record is appended as relocated,
+ * and the original record becomes a forwarder whose publish date and author fields hold the offset of the new one,
+ * so a scan still visits the book at its insertion position. Deleted space is not reclaimed.
+ * <p>
+ * Not thread-safe: callers hold the lock of the store.
+ */
+final class BookRecordStore implements AutoCloseable {
+
+    static final byte READ_ALREADY = 1;
+
+    static final byte DELETED = 2;
+
+    static final byte FORWARDED = 4;
+
+    static final byte RELOCATED = 8;
+
+    private static final int LENGTH = 0;
+
+    private static final int FLAGS = 4;
+
+    private static final int EPOCH_DAY = 5;
+
+    private static final int AUTHOR_ID = 9;
+
+    private static final int FORWARD_OFFSET = 5;
+
+    private static final int ID = 13;
+
+    private static final int VERSION = 29;
+
+    private static final int TITLE_LENGTH = 33;
+
+    private static final int TITLE = 35;
+
+    private static final int NO_DATE = Integer.MIN_VALUE;
+
+    /**
+     * Marks the unused end of a chunk.
+     */
+    private static final int END_OF_CHUNK = -1;
+
+    private static final int CHUNK_BITS = 30;
+
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    /**
+     * The offset the next record is appended at.
+     */
+    private long endOffset;
+
+    private final Map<String, Integer> authorIds = new HashMap<>();
+
+    private final List<String> authors = new ArrayList<>();
+
+    BookRecordStore(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapChunk();
+    }
+
+    /**
+     * Append a record for the book.
+     *
+     * @param flags The flags besides read already, such as RELOCATED.
+     * @return the offset of the new record.
+     */
+    long append(Book book, UUID id, byte flags) throws IOException {
+        byte[] title = titleBytes(book);
+        int recordLength = TITLE + (title != null ? title.length : 0);
+        if (chunkPosition(endOffset) + recordLength > CHUNK_SIZE) {
+            if (chunkPosition(endOffset) + Integer.BYTES <= CHUNK_SIZE) {
+                chunk(endOffset).putInt(chunkPosition(endOffset), END_OF_CHUNK);
+            }
+            endOffset = (endOffset >>> CHUNK_BITS) + 1 << CHUNK_BITS;
+        }
+        if ((int) (endOffset >>> CHUNK_BITS) == chunks.size()) {
+            mapChunk();
+        }
+        long offset = endOffset;
+        MappedByteBuffer chunk = chunk(offset);
+        int position = chunkPosition(offset);
+        chunk.putInt(position + LENGTH, recordLength);
+        chunk.putLong(position + ID, id.getMostSignificantBits());
+        chunk.putLong(position + ID + Long.BYTES, id.getLeastSignificantBits());
+        writeFields(chunk, position, book, title, flags);
+        endOffset += recordLength;
+        return offset;
+    }
+
+    /**
+     * Rewrite the fields of the record in place if the title fits in its capacity.
+     *
+     * @return true if the record was rewritten, false if the title does not fit.
+     */
+    boolean rewrite(long offset, Book book) {
+        byte[] title = titleBytes(book);
+        MappedByteBuffer chunk = chunk(offset);
+        int position = chunkPosition(offset);
+        if (title != null && title.length > chunk.getInt(position + LENGTH) - TITLE) {
+            return false;
+        }
+        writeFields(chunk, position, book, title, (byte) (flags(offset) & RELOCATED));
+        return true;
+    }
+
+    /**
+     * Turn the record into a forwarder to the relocated record at the target offset.
+     */
+    void forward(long offset, long targetOffset) {
+        MappedByteBuffer chunk = chunk(offset);
+        int position = chunkPosition(offset);
+        chunk.put(position + FLAGS, FORWARDED);
+        chunk.putLong(position + FORWARD_OFFSET, targetOffset);
+    }
+
+    void markDeleted(long offset) {
+        MappedByteBuffer chunk = chunk(offset);
+        int position = chunkPosition(offset);
+        chunk.put(position + FLAGS, (byte) (chunk.get(position + FLAGS) | DELETED));
+    }
+
+    /**
+     * The offset of the record that holds the fields of the book whose insertion position is the offset.
+     */
+    long resolve(long offset) {
+        return (flags(offset) & FORWARDED) != 0 ? chunk(offset).getLong(chunkPosition(offset) + FORWARD_OFFSET) : offset;
+    }
+
+    byte flags(long offset) {
+        return chunk(offset).get(chunkPosition(offset) + FLAGS);
+    }
+
+    boolean isReadAlready(long offset) {
+        return (flags(resolve(offset)) & READ_ALREADY) != 0;
+    }
+
+    int authorId(long offset) {
+        long dataOffset = resolve(offset);
+        return chunk(dataOffset).getInt(chunkPosition(dataOffset) + AUTHOR_ID);
+    }
+
+    /**
+     * The version of the book whose insertion position is the offset.
+     */
+    int version(long offset) {
+        long dataOffset = resolve(offset);
+        return chunk(dataOffset).getInt(chunkPosition(dataOffset) + VERSION);
+    }
+
+    /**
+     * The publish date of the book as an epoch day, or Integer.MIN_VALUE if it has none.
+     */
+    int epochDay(long offset) {
+        long dataOffset = resolve(offset);
+        return chunk(dataOffset).getInt(chunkPosition(dataOffset) + EPOCH_DAY);
+    }
+
+    /**
+     * Decode the book whose insertion position is the offset into a new Book.
+     */
+    Book decode(long offset) {
+        long dataOffset = resolve(offset);
+        MappedByteBuffer chunk = chunk(dataOffset);
+        int position = chunkPosition(dataOffset);
+        var book = new Book();
+        book.setId(new UUID(chunk.getLong(position + ID), chunk.getLong(position + ID + Long.BYTES)).toString());
+        int titleLength = chunk.getShort(position + TITLE_LENGTH);
+        if (titleLength >= 0) {
+            byte[] title = new byte[titleLength];
+            chunk.get(position + TITLE, title);
+            book.setTitle(new String(title, StandardCharsets.UTF_8));
+        }
+        int authorId = chunk.getInt(position + AUTHOR_ID);
+        book.setAuthor(authorId >= 0 ? authors.get(authorId) : null);
+        int epochDay = chunk.getInt(position + EPOCH_DAY);
+        book.setPublishDate(epochDay != NO_DATE ? LocalDate.ofEpochDay(epochDay) : null);
+        book.setReadAlready((chunk.get(position + FLAGS) & READ_ALREADY) != 0);
+        book.setVersion(Integer.toString(chunk.getInt(position + VERSION)));
+        return book;
+    }
+
+    /**
+     * Visit the insertion position of every live book in insertion order, without decoding any record.
+     *
+     * @param fromOffset The offset to start from, 0 for the first record.
+     * @param visitor    Called with each offset. Return false to stop the scan after that record.
+     * @return the offset to resume the scan from, or the end offset when every record was visited.
+     */
+    long scan(long fromOffset, LongPredicate visitor) {
+        long offset = fromOffset;
+        while (offset < endOffset) {
+            MappedByteBuffer chunk = chunk(offset);
+            int position = chunkPosition(offset);
+            int recordLength = CHUNK_SIZE - position >= Integer.BYTES ? chunk.getInt(position + LENGTH) : END_OF_CHUNK;
+            if (recordLength == END_OF_CHUNK) {
+                offset = (offset >>> CHUNK_BITS) + 1 << CHUNK_BITS;
+                continue;
+            }
+            byte flags = chunk.get(position + FLAGS);
+            long recordOffset = offset;
+            offset += recordLength;
+            if ((flags & (DELETED | RELOCATED)) == 0 && !visitor.test(recordOffset)) {
+                return offset;
+            }
+        }
+        return endOffset;
+    }
+
+    long endOffset() {
+        return endOffset;
+    }
+
+    /**
+     * The ids of the authors in the dictionary that match, so a scan can compare ids instead of strings.
+     */
+    BitSet authorIdsMatching(Predicate<String> predicate) {
+        var matchingAuthorIds = new BitSet(authors.size());
+        for (int authorId = 0; authorId < authors.size(); authorId++) {
+            if (predicate.test(authors.get(authorId))) {
+                matchingAuthorIds.set(authorId);
+            }
+        }
+        return matchingAuthorIds;
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunks.clear();
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    private void writeFields(MappedByteBuffer chunk, int position, Book book, byte[] title, byte flags) {
+        chunk.put(position + FLAGS, (byte) (flags | (book.isReadAlready() ? READ_ALREADY : 0)));
+        chunk.putInt(position + EPOCH_DAY, book.getPublishDate() != null ? Math.toIntExact(book.getPublishDate().toEpochDay()) : NO_DATE);
+        chunk.putInt(position + AUTHOR_ID, internAuthor(book.getAuthor()));
+        chunk.putInt(position + VERSION, Integer.parseInt(book.getVersion()));
+        chunk.putShort(position + TITLE_LENGTH, (short) (title != null ? title.length : -1));
+        if (title != null) {
+            chunk.put(position + TITLE, title);
+        }
+    }
+
+    private int internAuthor(String author) {
+        if (author == null) {
+            return -1;
+        }
+        return authorIds.computeIfAbsent(author, newAuthor -> {
+            authors.add(newAuthor);
+            return authors.size() - 1;
+        });
+    }
+
+    private static byte[] titleBytes(Book book) {
+        if (book.getTitle() == null) {
+            return null;
+        }
+        byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+        if (title.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Book title must not be longer than %d bytes", Short.MAX_VALUE));
+        }
+        return title;
+    }
+
+    private void mapChunk() throws IOException {
+        chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, chunks.size() * CHUNK_SIZE, CHUNK_SIZE));
+    }
+
+    private MappedByteBuffer chunk(long offset) {
+        return chunks.get((int) (offset >>> CHUNK_BITS));
+    }
+
+    private static int chunkPosition(long offset) {
+        return (int) (offset & (CHUNK_SIZE - 1));
+    }
+}
@@ -0,0 +1,421 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * An inverted index of the words in book titles and authors, used by {@link BookService#search(String, int)}.
+ * <p>
+ * Titles and authors are split into words that are case folded and stripped of accents. Every word of a query must
+ * match a word of the title or the author, either exactly or as a prefix, so "tolk hobb" finds "The Hobbit" by
+ * J.R.R. Tolkien. Each query word scores {@value #TITLE_EXACT} for an exact title match, {@value #TITLE_PREFIX} for a
+ * title prefix, {@value #AUTHOR_EXACT} for an exact author match and {@value #AUTHOR_PREFIX} for an author prefix,
+ * and books with the same total score are ranked in insertion order.
+ * <p>
+ * The postings of every word are kept in insertion order. A query starts from the postings of its most selective word,
+ * visited from the highest scoring match to the lowest, and stops reading a posting as soon as no later book in it can
+ * make it into the top results, so a common word costs about as much as a rare one. A prefix is expanded to at most
+ * {@value #MAX_EXPANSIONS} indexed words, so a query made only of one or two letter prefixes may leave out some books.
+ * <p>
+ * Thread-safe: a book is added and removed while its caller holds the primary map entry of the book.
+ */
+final class BookSearchIndex {
+
+    static final int TITLE_EXACT = 4;
+
+    static final int TITLE_PREFIX = 3;
+
+    static final int AUTHOR_EXACT = 2;
+
+    static final int AUTHOR_PREFIX = 1;
+
+    /**
+     * The most indexed words a prefix is expanded to.
+     */
+    static final int MAX_EXPANSIONS = 1024;
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+
+    private static final String[] NO_WORDS = new String[0];
+
+    /**
+     * The words of one indexed book.
+     */
+    private record Entry(String id, long sequence, String[] titleWords, String[] authorWords) {
+
+        static final Comparator<Entry> BY_SEQUENCE = Comparator.comparingLong(Entry::sequence);
+    }
+
+    /**
+     * A book that matched a query, ordered from the worst match to the best so a heap keeps the best ones.
+     */
+    private record Hit(Entry entry, int score) {
+
+        static final Comparator<Hit> WORST_FIRST = Comparator.comparingInt(Hit::score)
+                .thenComparing(Comparator.comparingLong((Hit hit) -> hit.entry().sequence()).reversed());
+    }
+
+    /**
+     * A book that matched a query in a scan.
+     */
+    private record ScannedBook(Book book, long sequence, int score) {
+
+        static final Comparator<ScannedBook> WORST_FIRST = Comparator.comparingInt(ScannedBook::score)
+                .thenComparing(Comparator.comparingLong(ScannedBook::sequence).reversed());
+    }
+
+    private final ConcurrentMap<String, Entry> entriesById = new ConcurrentHashMap<>();
+
+    private final WordPostings titleWords = new WordPostings();
+
+    private final WordPostings authorWords = new WordPostings();
+
+    /**
+     * Add a book, replacing the words of any book already indexed with the same id.
+     *
+     * @param book     The book to index.
+     * @param sequence The insertion sequence of the book, which ranks books with the same score.
+     */
+    void add(Book book, long sequence) {
+        var entry = new Entry(book.getId(), sequence, words(book.getTitle()), words(book.getAuthor()));
+        Entry replaced = entriesById.put(entry.id(), entry);
+        if (replaced != null) {
+            removePostings(replaced);
+        }
+        titleWords.add(entry.titleWords(), entry);
+        authorWords.add(entry.authorWords(), entry);
+    }
+
+    /**
+     * Add many books at once. The words are found in parallel, and then every posting is filled in insertion order.
+     *
+     * @param storedBooks The books to index with their insertion sequences.
+     * @param book        Gets the book to index.
+     * @param sequence    Gets the insertion sequence of the book.
+     */
+    <T> void addAll(Collection<T> storedBooks, Function<T, Book> book, ToLongFunction<T> sequence) {
+        List<Entry> entries = storedBooks.parallelStream()
+                .map(storedBook -> {
+                    Book currentBook = book.apply(storedBook);
+                    return new Entry(currentBook.getId(), sequence.applyAsLong(storedBook),
+                            words(currentBook.getTitle()), words(currentBook.getAuthor()));
+                })
+                .sorted(Entry.BY_SEQUENCE)
+                .toList();
+        entries.parallelStream().forEach(entry -> entriesById.put(entry.id(), entry));
+        titleWords.addAll(entries, Entry::titleWords);
+        authorWords.addAll(entries, Entry::authorWords);
+    }
+
+    /**
+     * Remove the book with the id if it is indexed.
+     */
+    void remove(String id) {
+        Entry removed = entriesById.remove(id);
+        if (removed != null) {
+            removePostings(removed);
+        }
+    }
+
+    /**
+     * Find the ids of the best matching books.
+     *
+     * @param query The words to search for.
+     * @param limit The maximum number of ids to return.
+     * @return The ids of the matching books from the best match to the worst.
+     */
+    List<String> search(String query, int limit) {
+        String[] queryWords = words(query);
+        if (queryWords.length == 0 || limit == 0) {
+            return List.of();
+        }
+
+        // Start from the query word with the fewest postings
+        List<Postings> driverPostings = null;
+        long driverSize = Long.MAX_VALUE;
+        int driverIndex = -1;
+        for (int index = 0; index < queryWords.length; index++) {
+            List<Postings> currentPostings = postings(queryWords[index]);
+            long currentSize = currentPostings.stream().mapToLong(Postings::size).sum();
+            if (currentSize < driverSize) {
+                driverPostings = currentPostings;
+                driverSize = currentSize;
+                driverIndex = index;
+            }
+        }
+
+        var bestHits = new PriorityQueue<>(Math.min(limit, 1024), Hit.WORST_FIRST);
+        int otherWordsMaxScore = TITLE_EXACT * (queryWords.length - 1);
+        String driverWord = queryWords[driverIndex];
+        for (int position = 0; position < driverPostings.size(); position++) {
+            Postings currentPostings = driverPostings.get(position);
+            int maxScore = currentPostings.weight() + otherWordsMaxScore;
+            if (bestHits.size() == limit && bestHits.peek().score() > maxScore) {
+                break;
+            }
+            for (Entry currentEntry : currentPostings.entries()) {
+                // The rest of the posting was inserted later, so it can only tie with the worst hit and lose
+                Hit worstHit = bestHits.size() == limit ? bestHits.peek() : null;
+                if (worstHit != null && worstHit.score() >= maxScore && worstHit.entry().sequence() < currentEntry.sequence()) {
+                    break;
+                }
+                // Visit each book once, through the posting of its best match for the driver word
+                if (score(driverWord, currentEntry.titleWords(), currentEntry.authorWords()) != currentPostings.weight()
+                        || !currentPostings.word().equals(matchingWord(driverWord, currentEntry, currentPostings.weight()))) {
+                    continue;
+                }
+                int score = score(queryWords, currentEntry.titleWords(), currentEntry.authorWords());
+                if (score > 0) {
+                    offer(bestHits, new Hit(currentEntry, score), Hit.WORST_FIRST, limit);
+                }
+            }
+        }
+        return bestHits.stream()
+                .sorted(Hit.WORST_FIRST.reversed())
+                .map(hit -> hit.entry().id())
+                .toList();
+    }
+
+    /**
+     * Find the best matching books by scoring every book, for services without an index.
+     *
+     * @param query The words to search for.
+     * @param limit The maximum number of books to return.
+     * @param books Visits every book in insertion order.
+     * @return The matching books from the best match to the worst.
+     */
+    static List<Book> scan(String query, int limit, Consumer<Consumer<? super Book>> books) {
+        String[] queryWords = words(query);
+        if (queryWords.length == 0 || limit == 0) {
+            return List.of();
+        }
+        var bestBooks = new PriorityQueue<>(Math.min(limit, 1024), ScannedBook.WORST_FIRST);
+        var sequence = new long[1];
+        books.accept(currentBook -> {
+            int score = score(queryWords, words(currentBook.getTitle()), words(currentBook.getAuthor()));
+            if (score > 0) {
+                offer(bestBooks, new ScannedBook(currentBook, sequence[0], score), ScannedBook.WORST_FIRST, limit);
+            }
+            sequence[0]++;
+        });
+        return bestBooks.stream()
+                .sorted(ScannedBook.WORST_FIRST.reversed())
+                .map(ScannedBook::book)
+                .toList();
+    }
+
+    /**
+     * Split text into case folded words without accents.
+     *
+     * @return The distinct words in their order in the text.
+     */
+    static String[] words(String text) {
+        if (text == null || text.isBlank()) {
+            return NO_WORDS;
+        }
+        String folded = ACCENTS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        return Arrays.stream(WORD_SEPARATOR.split(folded))
+                .filter(word -> !word.isEmpty())
+                .distinct()
+                .toArray(String[]::new);
+    }
+
+    /**
+     * Score a book for a query.
+     *
+     * @return The sum of the best match of every query word, or 0 if any query word does not match.
+     */
+    static int score(String[] queryWords, String[] titleWords, String[] authorWords) {
+        int totalScore = 0;
+        for (String queryWord : queryWords) {
+            int score = score(queryWord, titleWords, authorWords);
+            if (score == 0) {
+                return 0;
+            }
+            totalScore += score;
+        }
+        return totalScore;
+    }
+
+    private static int score(String queryWord, String[] titleWords, String[] authorWords) {
+        int score = bestMatch(queryWord, titleWords, TITLE_EXACT, TITLE_PREFIX);
+        return score > 0 ? score : bestMatch(queryWord, authorWords, AUTHOR_EXACT, AUTHOR_PREFIX);
+    }
+
+    private static int bestMatch(String queryWord, String[] words, int exactScore, int prefixScore) {
+        int score = 0;
+        for (String word : words) {
+            if (word.equals(queryWord)) {
+                return exactScore;
+            }
+            if (word.startsWith(queryWord)) {
+                score = prefixScore;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * The word of the entry that gives the best match for the query word, whose posting the entry is visited through.
+     */
+    private static String matchingWord(String queryWord, Entry entry, int weight) {
+        if (weight == TITLE_EXACT || weight == AUTHOR_EXACT) {
+            return queryWord;
+        }
+        for (String word : weight == TITLE_PREFIX ? entry.titleWords() : entry.authorWords()) {
+            if (word.startsWith(queryWord)) {
+                return word;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The entries of one indexed word, and the score a match through it gives the query word.
+     */
+    private record Postings(String word, int weight, NavigableSet<Entry> entries, int size) {
+    }
+
+    /**
+     * The postings that match the query word, from the highest scoring match to the lowest.
+     */
+    private List<Postings> postings(String queryWord) {
+        var matchingPostings = new ArrayList<Postings>();
+        titleWords.addMatching(matchingPostings, queryWord, TITLE_EXACT, TITLE_PREFIX);
+        authorWords.addMatching(matchingPostings, queryWord, AUTHOR_EXACT, AUTHOR_PREFIX);
+        matchingPostings.sort(Comparator.comparingInt(Postings::weight).reversed());
+        return matchingPostings;
+    }
+
+    /**
+     * Keep the hit if it is among the best hits so far.
+     */
+    private static <T> void offer(PriorityQueue<T> bestHits, T hit, Comparator<T> worstFirst, int limit) {
+        if (bestHits.size() < limit) {
+            bestHits.add(hit);
+        } else if (worstFirst.compare(hit, bestHits.peek()) > 0) {
+            bestHits.poll();
+            bestHits.add(hit);
+        }
+    }
+
+    private void removePostings(Entry entry) {
+        titleWords.remove(entry.titleWords(), entry);
+        authorWords.remove(entry.authorWords(), entry);
+    }
+
+    /**
+     * The entries of every indexed word of one field. The words are also kept in order to expand prefixes,
+     * updated inside the map operation that adds the first entry of a word or removes its last one.
+     */
+    private static final class WordPostings {
+
+        /**
+         * The entries of one word in insertion order, counted so a query does not walk them to size them.
+         * The count is only changed inside the map operation on the word.
+         */
+        private static final class WordEntries {
+
+            private final NavigableSet<Entry> entries = new ConcurrentSkipListSet<>(Entry.BY_SEQUENCE);
+
+            private volatile int size;
+        }
+
+        private final ConcurrentMap<String, WordEntries> entriesByWord = new ConcurrentHashMap<>();
+
+        private final NavigableSet<String> words = new ConcurrentSkipListSet<>();
+
+        void add(String[] entryWords, Entry entry) {
+            for (String word : entryWords) {
+                entriesByWord.compute(word, (key, existingEntries) -> {
+                    WordEntries wordEntries = existingEntries;
+                    if (wordEntries == null) {
+                        wordEntries = new WordEntries();
+                        words.add(key);
+                    }
+                    if (wordEntries.entries.add(entry)) {
+                        wordEntries.size++;
+                    }
+                    return wordEntries;
+                });
+            }
+        }
+
+        /**
+         * Add the entries, which are in insertion order, grouped by word in parallel.
+         */
+        void addAll(List<Entry> entries, Function<Entry, String[]> entryWords) {
+            Map<String, List<Entry>> entriesByNewWord = entries.parallelStream()
+                    .flatMap(entry -> Arrays.stream(entryWords.apply(entry)).map(word -> Map.entry(word, entry)))
+                    .collect(Collectors.groupingBy(Map.Entry::getKey, Collectors.mapping(Map.Entry::getValue, Collectors.toList())));
+            entriesByNewWord.entrySet().parallelStream().forEach(newWordEntries ->
+                    entriesByWord.compute(newWordEntries.getKey(), (key, existingEntries) -> {
+                        WordEntries wordEntries = existingEntries;
+                        if (wordEntries == null) {
+                            wordEntries = new WordEntries();
+                            words.add(key);
+                        }
+                        wordEntries.entries.addAll(newWordEntries.getValue());
+                        wordEntries.size = wordEntries.entries.size();
+                        return wordEntries;
+                    }));
+        }
+
+        void remove(String[] entryWords, Entry entry) {
+            for (String word : entryWords) {
+                entriesByWord.computeIfPresent(word, (key, wordEntries) -> {
+                    if (wordEntries.entries.remove(entry)) {
+                        wordEntries.size--;
+                    }
+                    if (wordEntries.size > 0) {
+                        return wordEntries;
+                    }
+                    words.remove(key);
+                    return null;
+                });
+            }
+        }
+
+        /**
+         * Add the postings of the query word and of up to {@value #MAX_EXPANSIONS} words it is a prefix of.
+         */
+        void addMatching(List<Postings> matchingPostings, String queryWord, int exactWeight, int prefixWeight) {
+            int expansions = 0;
+            for (String word : words.tailSet(queryWord, true)) {
+                if (!word.startsWith(queryWord) || expansions == MAX_EXPANSIONS) {
+                    break;
+                }
+                WordEntries wordEntries = entriesByWord.get(word);
+                if (wordEntries == null) {
+                    continue;
+                }
+                boolean exact = word.equals(queryWord);
+                matchingPostings.add(new Postings(word, exact ? exactWeight : prefixWeight, wordEntries.entries, wordEntries.size));
+                if (!exact) {
+                    expansions++;
+                }
+            }
+        }
+    }
+}
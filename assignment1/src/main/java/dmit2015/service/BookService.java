@@ -2,8 +2,16 @@ package dmit2015.service;
 
 import dmit2015.model.Book;
 
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface BookService {
 
@@ -13,7 +21,220 @@ public interface BookService {
 
     List<Book> getAllBooks();
 
+    /**
+     * Perform the action on every book, one book at a time, without building a list of all books.
+     * Use this instead of {@link #getAllBooks()} to process large collections in constant memory.
+     *
+     * @param action The action to perform on each book.
+     */
+    default void forEachBook(Consumer<? super Book> action) {
+        getAllBooks().forEach(action);
+    }
+
+    /**
+     * Fetch the books with the given ids.
+     * <p>
+     * This default looks up one id at a time. Implementations that can fetch many books at once override it.
+     *
+     * @param ids The unique ids of the books to fetch.
+     * @return The books that exist, in the order of the ids and each book once.
+     */
+    default List<Book> getBooksByIds(Collection<String> ids) {
+        Objects.requireNonNull(ids, "ids must not be null");
+        var books = new ArrayList<Book>(ids.size());
+        for (String currentId : new LinkedHashSet<>(ids)) {
+            getBookById(currentId).ifPresent(books::add);
+        }
+        return books;
+    }
+
+    /**
+     * Update a book. When the book has a version, the update is applied only if it is still the stored version,
+     * so two editors cannot silently overwrite each other. A book without a version is updated unconditionally.
+     *
+     * @param book The book to update, with the version it was read with.
+     * @return The updated book with its new version.
+     * @throws BookVersionConflictException if the book was changed or deleted since it was read.
+     */
     Book updateBook(Book book);
 
     void deleteBookById(String id);
-}
\ No newline at end of file
+
+    /**
+     * A counter that increases every time a book is created, updated or deleted, so a client that remembers
+     * the count it last read can tell if anyone else changed the books since.
+     *
+     * @return the number of changes so far, or -1 if this service cannot count changes.
+     */
+    default long changeCount() {
+        return -1;
+    }
+
+    /**
+     * Delete a book only if its stored version is the expected version.
+     * <p>
+     * This default checks the version and then deletes, which is not atomic.
+     * Implementations that can compare and delete in one step override it.
+     *
+     * @param id              The unique id of the book to delete.
+     * @param expectedVersion The version the book was read with, or null to delete any version.
+     * @throws BookVersionConflictException if the book was changed since it was read.
+     */
+    default void deleteBookById(String id, String expectedVersion) {
+        if (expectedVersion != null) {
+            Book existingBook = getBookById(id)
+                    .orElseThrow(() -> new BookVersionConflictException(id, expectedVersion, null));
+            if (!expectedVersion.equals(existingBook.getVersion())) {
+                throw new BookVersionConflictException(id, expectedVersion, existingBook.getVersion());
+            }
+        }
+        deleteBookById(id);
+    }
+
+    /**
+     * Create many books in one batch.
+     *
+     * @param books The books to create.
+     * @return One result per book in the same order, with the created book or the reason it failed.
+     */
+    default List<BookBatchResult> createBooks(Collection<Book> books) {
+        var results = new ArrayList<BookBatchResult>(books.size());
+        for (Book currentBook : books) {
+            try {
+                Book createdBook = createBook(currentBook);
+                results.add(BookBatchResult.success(createdBook.getId(), createdBook));
+            } catch (RuntimeException e) {
+                results.add(BookBatchResult.failure(null, e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Update many books in one batch.
+     *
+     * @param books The books to update.
+     * @return One result per book in the same order, with the updated book or the reason it failed.
+     */
+    default List<BookBatchResult> updateBooks(Collection<Book> books) {
+        var results = new ArrayList<BookBatchResult>(books.size());
+        for (Book currentBook : books) {
+            try {
+                Book updatedBook = updateBook(currentBook);
+                results.add(BookBatchResult.success(updatedBook.getId(), updatedBook));
+            } catch (RuntimeException e) {
+                results.add(BookBatchResult.failure(currentBook != null ? currentBook.getId() : null, e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Delete many books in one batch.
+     *
+     * @param ids The unique ids of the books to delete.
+     * @return One result per id in the same order, with the reason the delete failed if it did.
+     */
+    default List<BookBatchResult> deleteBooksByIds(Collection<String> ids) {
+        var results = new ArrayList<BookBatchResult>(ids.size());
+        for (String currentId : ids) {
+            try {
+                deleteBookById(currentId);
+                results.add(BookBatchResult.success(currentId, null));
+            } catch (RuntimeException e) {
+                results.add(BookBatchResult.failure(currentId, e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Find all books written by the author. Authors are matched after normalizing
+     * with {@link #normalizeAuthor(String)}.
+     *
+     * @param author The name of the author to find books for.
+     * @return The matching books.
+     */
+    default List<Book> findByAuthor(String author) {
+        String normalizedAuthor = normalizeAuthor(author);
+        return getAllBooks().stream()
+                .filter(currentBook -> normalizeAuthor(currentBook.getAuthor()).equals(normalizedAuthor))
+                .toList();
+    }
+
+    /**
+     * Find all books published between two dates, both inclusive.
+     *
+     * @param fromDate The earliest publish date to include.
+     * @param toDate   The latest publish date to include.
+     * @return The matching books ordered by publish date.
+     */
+    default List<Book> findByPublishDateBetween(LocalDate fromDate, LocalDate toDate) {
+        Objects.requireNonNull(fromDate, "fromDate must not be null");
+        Objects.requireNonNull(toDate, "toDate must not be null");
+        return getAllBooks().stream()
+                .filter(currentBook -> currentBook.getPublishDate() != null
+                        && !currentBook.getPublishDate().isBefore(fromDate)
+                        && !currentBook.getPublishDate().isAfter(toDate))
+                .sorted(Comparator.comparing(Book::getPublishDate))
+                .toList();
+    }
+
+    /**
+     * Count the books that have or have not been read already.
+     *
+     * @param readAlready true to count read books, false to count unread books.
+     * @return The number of matching books.
+     */
+    default long countByReadAlready(boolean readAlready) {
+        return getAllBooks().stream()
+                .filter(currentBook -> currentBook.isReadAlready() == readAlready)
+                .count();
+    }
+
+    /**
+     * Fetch one page of books, optionally sorted and filtered.
+     *
+     * @param offset    The index of the first matching book to return.
+     * @param limit     The maximum number of books to return.
+     * @param sortField One of title, author, publishDate or readAlready, or null to keep the natural order.
+     * @param ascending true to sort in ascending order, false for descending order.
+     * @param filter    Text that the title, author or publish date must contain, or null or blank to match every book.
+     * @return The books on the page and the total number of matching books.
+     */
+    default BookPage page(int offset, int limit, String sortField, boolean ascending, String filter) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+        return BookQueries.page(getAllBooks().stream(), offset, limit, sortField, ascending, filter);
+    }
+
+    /**
+     * Search the titles and authors for words that start with each word of the query, ignoring case and accents.
+     * Books are ranked by how well they match: an exact word beats a prefix and a title match beats an author match.
+     *
+     * @param query The words to search for.
+     * @param limit The maximum number of books to return.
+     * @return The best matching books, best first, or an empty list for a blank query.
+     */
+    default List<Book> search(String query, int limit) {
+        Objects.requireNonNull(query, "query must not be null");
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        return BookSearchIndex.scan(query, limit, this::forEachBook);
+    }
+
+    /**
+     * Normalize an author name for matching: trimmed, inner whitespace collapsed and lower case.
+     *
+     * @param author The author name to normalize.
+     * @return The normalized author name, or an empty string for a null author.
+     */
+    static String normalizeAuthor(String author) {
+        if (author == null) {
+            return "";
+        }
+        return author.strip().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+}
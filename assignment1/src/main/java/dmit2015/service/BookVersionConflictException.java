@@ -0,0 +1,40 @@
+package dmit2015.service;
+
+import java.util.ConcurrentModificationException;
+
+/**
+ * Thrown when a book is updated or deleted with a version that is no longer the stored version,
+ * because someone else changed or deleted the book after it was read.
+ */
+public class BookVersionConflictException extends ConcurrentModificationException {
+
+    private final String id;
+
+    private final String expectedVersion;
+
+    private final String currentVersion;
+
+    /**
+     * @param id              The unique id of the book.
+     * @param expectedVersion The version the book was read with.
+     * @param currentVersion  The stored version, or null if the book was deleted or the version is unknown.
+     */
+    public BookVersionConflictException(String id, String expectedVersion, String currentVersion) {
+        super(String.format("Book with id: %s was changed by someone else. Reload it and try again.", id));
+        this.id = id;
+        this.expectedVersion = expectedVersion;
+        this.currentVersion = currentVersion;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    public String getCurrentVersion() {
+        return currentVersion;
+    }
+}
@@ -0,0 +1,410 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+import jakarta.annotation.Priority;
+import jakarta.decorator.Decorator;
+import jakarta.decorator.Delegate;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import jakarta.interceptor.Interceptor;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * This CDI decorator adds a read-through cache in front of the FirebaseHttpClientBookService.
+ * <p>
+ * It holds a bounded least recently used cache of books by id and a cached copy of the full list of books,
+ * both expiring after the time-to-live defined in `src/main/resources/META-INF/microprofile-config.properties`.
+ * Creates, updates and deletes are applied to the cached entries in place instead of flushing the cache.
+ * A book whose update or delete fails with a version conflict is evicted, so the next read fetches the current version.
+ * <p>
+ * While the {@link FirebaseBookChangeFeed} is live, lists and pages are read from its copy, which is already in process
+ * and more current than the cached list, and a cached book is dropped as soon as the feed reports a change to it.
+ */
+@Decorator
+@Priority(Interceptor.Priority.APPLICATION + 100)
+public abstract class CachingBookService implements BookService {
+
+    @Inject
+    @Delegate
+    @Named("firebaseHttpClientBookService")
+    private BookService delegate;
+
+    @Inject
+    private BookCacheStatistics statistics;
+
+    @Inject
+    private FirebaseBookChangeFeed changeFeed;
+
+    /**
+     * The number of seconds a cached book or the cached list of books stays valid.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.cache.ttl.seconds", defaultValue = "60")
+    private long ttlSeconds;
+
+    /**
+     * The maximum number of books in the cache of books by id.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.cache.max.size", defaultValue = "10000")
+    private int maxSize;
+
+    /**
+     * A cached value with the System.nanoTime() it expires at and the change sequence of the feed when it was read.
+     */
+    private record CacheEntry<T>(T value, long expiresAt, long changeSequence) {
+        boolean isExpired() {
+            return System.nanoTime() - expiresAt > 0;
+        }
+    }
+
+    /**
+     * Guards the cache of books by id and the cached list. A lock rather than a monitor, so a virtual thread waiting
+     * for it unmounts instead of pinning its carrier thread.
+     */
+    private final ReentrantLock cacheLock = new ReentrantLock();
+
+    /**
+     * The cache of books by id in least recently used order. Guarded by cacheLock.
+     */
+    private final Map<String, CacheEntry<Book>> booksById = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry<Book>> eldest) {
+            boolean evict = size() > maxSize;
+            if (evict) {
+                statistics.recordEviction();
+            }
+            return evict;
+        }
+    };
+
+    /**
+     * The cached full list of books by id in list order, or null when not cached. Guarded by cacheLock.
+     */
+    private CacheEntry<LinkedHashMap<String, Book>> allBooks;
+
+    @Override
+    public Book createBook(Book book) {
+        Book createdBook = delegate.createBook(book);
+        cacheLock.lock();
+        try {
+            booksById.put(createdBook.getId(), newEntry(Book.copyOf(createdBook)));
+            if (allBooks != null && !allBooks.isExpired()) {
+                allBooks.value().put(createdBook.getId(), Book.copyOf(createdBook));
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        return createdBook;
+    }
+
+    @Override
+    public Optional<Book> getBookById(String id) {
+        boolean feedLive = changeFeed.isLive();
+        cacheLock.lock();
+        try {
+            Book cachedBook = cachedCopy(id, feedLive);
+            if (cachedBook != null) {
+                statistics.recordHit();
+                return Optional.of(cachedBook);
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        statistics.recordMiss();
+
+        // Take the change sequence before fetching, so a change streamed during the fetch invalidates the entry
+        long changeSequence = changeFeed.changeSequence();
+        Optional<Book> fetchedBook = delegate.getBookById(id);
+        fetchedBook.ifPresent(currentBook -> {
+            cacheLock.lock();
+            try {
+                booksById.put(id, new CacheEntry<>(Book.copyOf(currentBook), expiresAt(), changeSequence));
+            } finally {
+                cacheLock.unlock();
+            }
+        });
+        return fetchedBook;
+    }
+
+    /**
+     * Serve the cached books and fetch the rest from the delegate in one call, keeping the order of the ids.
+     */
+    @Override
+    public List<Book> getBooksByIds(Collection<String> ids) {
+        Objects.requireNonNull(ids, "ids must not be null");
+        boolean feedLive = changeFeed.isLive();
+        var booksByDistinctId = new LinkedHashMap<String, Book>();
+        var missingIds = new ArrayList<String>();
+        cacheLock.lock();
+        try {
+            for (String currentId : ids) {
+                if (!booksByDistinctId.containsKey(currentId)) {
+                    Book cachedBook = cachedCopy(currentId, feedLive);
+                    booksByDistinctId.put(currentId, cachedBook);
+                    if (cachedBook != null) {
+                        statistics.recordHit();
+                    } else {
+                        statistics.recordMiss();
+                        missingIds.add(currentId);
+                    }
+                }
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        if (missingIds.isEmpty()) {
+            return List.copyOf(booksByDistinctId.values());
+        }
+
+        // Take the change sequence before fetching, as getBookById does
+        long changeSequence = changeFeed.changeSequence();
+        List<Book> fetchedBooks = delegate.getBooksByIds(missingIds);
+        cacheLock.lock();
+        try {
+            for (Book currentBook : fetchedBooks) {
+                booksById.put(currentBook.getId(), new CacheEntry<>(Book.copyOf(currentBook), expiresAt(), changeSequence));
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        fetchedBooks.forEach(currentBook -> booksByDistinctId.put(currentBook.getId(), currentBook));
+        return booksByDistinctId.values().stream().filter(Objects::nonNull).toList();
+    }
+
+    @Override
+    public List<Book> getAllBooks() {
+        if (changeFeed.isLive()) {
+            return delegate.getAllBooks();
+        }
+        cacheLock.lock();
+        try {
+            if (allBooks != null && !allBooks.isExpired()) {
+                statistics.recordHit();
+                return allBooks.value().values().stream().map(Book::copyOf).toList();
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        statistics.recordMiss();
+
+        List<Book> fetchedBooks = delegate.getAllBooks();
+        var fetchedBooksById = new LinkedHashMap<String, Book>();
+        fetchedBooks.forEach(currentBook -> fetchedBooksById.put(currentBook.getId(), Book.copyOf(currentBook)));
+        cacheLock.lock();
+        try {
+            allBooks = newEntry(fetchedBooksById);
+        } finally {
+            cacheLock.unlock();
+        }
+        return fetchedBooks;
+    }
+
+    /**
+     * Iterate over copies of the cached list when it is valid and the feed is not live, otherwise stream the books from the delegate.
+     */
+    @Override
+    public void forEachBook(Consumer<? super Book> action) {
+        if (changeFeed.isLive()) {
+            delegate.forEachBook(action);
+            return;
+        }
+        List<Book> cachedBooks = null;
+        cacheLock.lock();
+        try {
+            if (allBooks != null && !allBooks.isExpired()) {
+                statistics.recordHit();
+                cachedBooks = List.copyOf(allBooks.value().values());
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        if (cachedBooks == null) {
+            delegate.forEachBook(action);
+            return;
+        }
+        cachedBooks.forEach(currentBook -> action.accept(Book.copyOf(currentBook)));
+    }
+
+    @Override
+    public Book updateBook(Book book) {
+        Book updatedBook;
+        try {
+            updatedBook = delegate.updateBook(book);
+        } catch (BookVersionConflictException e) {
+            evict(book.getId());
+            throw e;
+        }
+        cacheLock.lock();
+        try {
+            booksById.put(updatedBook.getId(), newEntry(Book.copyOf(updatedBook)));
+            if (allBooks != null && !allBooks.isExpired()) {
+                allBooks.value().replace(updatedBook.getId(), Book.copyOf(updatedBook));
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        return updatedBook;
+    }
+
+    @Override
+    public void deleteBookById(String id) {
+        delegate.deleteBookById(id);
+        evict(id);
+    }
+
+    @Override
+    public void deleteBookById(String id, String expectedVersion) {
+        try {
+            delegate.deleteBookById(id, expectedVersion);
+        } catch (BookVersionConflictException e) {
+            evict(id);
+            throw e;
+        }
+        evict(id);
+    }
+
+    @Override
+    public List<BookBatchResult> createBooks(Collection<Book> books) {
+        List<BookBatchResult> results = delegate.createBooks(books);
+        cacheSuccessfulResults(results);
+        return results;
+    }
+
+    @Override
+    public List<BookBatchResult> updateBooks(Collection<Book> books) {
+        List<BookBatchResult> results = delegate.updateBooks(books);
+        cacheSuccessfulResults(results);
+        return results;
+    }
+
+    @Override
+    public List<BookBatchResult> deleteBooksByIds(Collection<String> ids) {
+        List<BookBatchResult> results = delegate.deleteBooksByIds(ids);
+        cacheLock.lock();
+        try {
+            for (BookBatchResult currentResult : results) {
+                if (currentResult.isSuccessful()) {
+                    booksById.remove(currentResult.id());
+                    if (allBooks != null) {
+                        allBooks.value().remove(currentResult.id());
+                    }
+                }
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        return results;
+    }
+
+    /**
+     * Page over the cached list of books when it is valid and the feed is not live, otherwise let the delegate page them.
+     */
+    @Override
+    public BookPage page(int offset, int limit, String sortField, boolean ascending, String filter) {
+        if (changeFeed.isLive()) {
+            return delegate.page(offset, limit, sortField, ascending, filter);
+        }
+        List<Book> cachedBooks = null;
+        cacheLock.lock();
+        try {
+            if (allBooks != null && !allBooks.isExpired()) {
+                statistics.recordHit();
+                cachedBooks = List.copyOf(allBooks.value().values());
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        // Cached books are replaced rather than changed, so the copied list is filtered and sorted outside the lock
+        if (cachedBooks == null) {
+            return delegate.page(offset, limit, sortField, ascending, filter);
+        }
+        return BookQueries.page(cachedBooks.stream(), offset, limit, sortField, ascending, filter);
+    }
+
+    @Override
+    public List<Book> findByAuthor(String author) {
+        return BookService.super.findByAuthor(author);
+    }
+
+    @Override
+    public List<Book> findByPublishDateBetween(LocalDate fromDate, LocalDate toDate) {
+        return BookService.super.findByPublishDateBetween(fromDate, toDate);
+    }
+
+    @Override
+    public long countByReadAlready(boolean readAlready) {
+        return BookService.super.countByReadAlready(readAlready);
+    }
+
+    /**
+     * Put the books of the successful batch results in the cache, adding new books to the cached list.
+     */
+    private void cacheSuccessfulResults(List<BookBatchResult> results) {
+        cacheLock.lock();
+        try {
+            boolean allBooksValid = allBooks != null && !allBooks.isExpired();
+            for (BookBatchResult currentResult : results) {
+                if (currentResult.isSuccessful()) {
+                    booksById.put(currentResult.id(), newEntry(Book.copyOf(currentResult.book())));
+                    if (allBooksValid) {
+                        allBooks.value().put(currentResult.id(), Book.copyOf(currentResult.book()));
+                    }
+                }
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /**
+     * A copy of the cached book if it is valid, or null if it must be fetched. Must hold the cache lock.
+     */
+    private Book cachedCopy(String id, boolean feedLive) {
+        CacheEntry<Book> cachedBook = booksById.get(id);
+        if (cachedBook != null && !cachedBook.isExpired()
+                && (!feedLive || cachedBook.changeSequence() >= changeFeed.changeSequenceOf(id))) {
+            return Book.copyOf(cachedBook.value());
+        }
+        // Books listed by getAllBooks() have no version, so they are only served once an update gave them one
+        Book listedBook = allBooks != null && !allBooks.isExpired() && !feedLive ? allBooks.value().get(id) : null;
+        if (listedBook != null && listedBook.getVersion() != null) {
+            return Book.copyOf(listedBook);
+        }
+        return null;
+    }
+
+    /**
+     * Remove the book from the cache of books by id and from the cached list.
+     */
+    private void evict(String id) {
+        cacheLock.lock();
+        try {
+            booksById.remove(id);
+            if (allBooks != null) {
+                allBooks.value().remove(id);
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    private <T> CacheEntry<T> newEntry(T value) {
+        return new CacheEntry<>(value, expiresAt(), changeFeed.changeSequence());
+    }
+
+    private long expiresAt() {
+        return System.nanoTime() + ttlSeconds * 1_000_000_000L;
+    }
+}
@@ -0,0 +1,704 @@
+package dmit2015.service;
+
+import dmit2015.metrics.Instrumented;
+import dmit2015.model.Book;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * This class implements the BookService with a write-ahead log on the local file system and an in-memory index.
+ * <p>
+ * Every create, update and delete is validated and queued as one checksummed {@link BookLog} record. A single writer
+ * thread appends all the records queued since its last write with one write and one fsync (group commit), then
+ * applies them to a {@link MemoryBookService} index that serves all reads, so a reader never sees a write that
+ * could be lost in a crash. A group is applied under the write lock of the index, so a reader sees all of a batch
+ * the log committed as one record or none of it. Writes that are queued but not yet applied are kept in a pending
+ * overlay, so later writes are validated against them. Versioned updates and deletes compare the version under the same short pending lock,
+ * so concurrent editors are never blocked on each other's fsync.
+ * <p>
+ * After a configured number of logged operations the writer rotates to a new log segment and a background thread writes a
+ * snapshot of the index, then removes the segments it covers. On startup the latest snapshot is loaded and the
+ * segments after it are replayed, and then the search index is built in one parallel pass.
+ * <p>
+ * The data directory, fsync policy and snapshot interval are defined in
+ * `src/main/resources/META-INF/microprofile-config.properties` file.
+ */
+@Named("fileBookService")
+@ApplicationScoped
+@Instrumented
+public class FileBookService implements BookService {
+
+    /**
+     * When the log is forced to the storage device.
+     */
+    public enum FsyncPolicy {
+        /**
+         * Force the log after every group commit, before the writes are acknowledged.
+         */
+        ALWAYS,
+        /**
+         * Force the log at most once per interval. A crash can lose the writes of the last interval.
+         */
+        INTERVAL,
+        /**
+         * Leave forcing the log to the operating system.
+         */
+        NEVER
+    }
+
+    /**
+     * A validated write waiting for the writer thread.
+     */
+    private record PendingWrite(List<BookLog.Operation> operations, byte[] record, CompletableFuture<Void> applied) {
+    }
+
+    /**
+     * The directory of the log segments and the snapshot.
+     */
+    @Inject
+    @ConfigProperty(name = "book.file.data.dir", defaultValue = "data/books")
+    private String dataDirectory;
+
+    @Inject
+    @ConfigProperty(name = "book.file.fsync.policy", defaultValue = "ALWAYS")
+    private FsyncPolicy fsyncPolicy;
+
+    /**
+     * The maximum number of milliseconds between forcing the log when the fsync policy is INTERVAL.
+     */
+    @Inject
+    @ConfigProperty(name = "book.file.fsync.interval.millis", defaultValue = "100")
+    private long fsyncIntervalMillis;
+
+    /**
+     * The number of book operations logged since the last snapshot that starts a new snapshot.
+     */
+    @Inject
+    @ConfigProperty(name = "book.file.snapshot.interval.operations", defaultValue = "1000000")
+    private long snapshotIntervalOperations;
+
+    /**
+     * The in-memory index of the books in the log, changed only by the writer thread.
+     */
+    private final MemoryBookService index = new MemoryBookService();
+
+    /**
+     * Readers of the index share the read lock, and the writer thread takes the write lock to apply a whole group.
+     */
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    /**
+     * Guards the pending writes and the pending overlay.
+     */
+    private final ReentrantLock pendingLock = new ReentrantLock();
+
+    private final Condition writesPending = pendingLock.newCondition();
+
+    private List<PendingWrite> pendingWrites = new ArrayList<>();
+
+    /**
+     * The latest queued operation on each book id that the writer thread has not applied yet.
+     */
+    private final Map<String, BookLog.Operation> pendingOperationsById = new HashMap<>();
+
+    private boolean closed;
+
+    /**
+     * The reason the log cannot be written to anymore, after which every write fails.
+     */
+    private volatile Throwable failure;
+
+    private Path directory;
+
+    private FileChannel segmentChannel;
+
+    private long segmentNumber;
+
+    private long operationsSinceSnapshot;
+
+    private long lastForceNanos;
+
+    private boolean unforcedWrites;
+
+    private Thread writerThread;
+
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "book-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+
+    @PostConstruct
+    void init() {
+        directory = Path.of(dataDirectory);
+        try {
+            Files.createDirectories(directory);
+            recover();
+            index.buildSearchIndex();
+            openSegment(segmentNumber + 1);
+        } catch (IOException e) {
+            String errorMessage = String.format("Could not recover the books in %s: %s", directory, e.getMessage());
+            throw new RuntimeException(errorMessage, e);
+        }
+        lastForceNanos = System.nanoTime();
+        writerThread = new Thread(this::writeLoop, "book-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Write all the queued records, force the log and stop the writer thread.
+     */
+    @PreDestroy
+    void close() {
+        pendingLock.lock();
+        try {
+            closed = true;
+            writesPending.signalAll();
+        } finally {
+            pendingLock.unlock();
+        }
+        try {
+            writerThread.join();
+            snapshotExecutor.shutdown();
+            snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            segmentChannel.force(false);
+            segmentChannel.close();
+        } catch (IOException e) {
+            // The log is closed on a best effort basis during shutdown
+        }
+    }
+
+    @Override
+    public Book createBook(Book book) {
+        Objects.requireNonNull(book, "Book to create must not be null");
+
+        // Assign a fresh id on create to ensure uniqueness (ignore any incoming id)
+        Book stored = Book.copyOf(book);
+        stored.setId(UUID.randomUUID().toString());
+        stored.setVersion(MemoryBookService.FIRST_VERSION);
+        await(queue(List.of(BookLog.Operation.put(stored))));
+        return Book.copyOf(stored);
+    }
+
+    @Override
+    public Optional<Book> getBookById(String id) {
+        return read(() -> index.getBookById(id));
+    }
+
+    @Override
+    public List<Book> getBooksByIds(Collection<String> ids) {
+        return read(() -> index.getBooksByIds(ids));
+    }
+
+    @Override
+    public List<Book> getAllBooks() {
+        return read(index::getAllBooks);
+    }
+
+    /**
+     * Stream the books without the read lock, so a long export does not hold up the writer thread.
+     * Like any iteration over books that change while it runs, it may see some writes of a group and not others.
+     */
+    @Override
+    public void forEachBook(Consumer<? super Book> action) {
+        index.forEachBook(action);
+    }
+
+    @Override
+    public Book updateBook(Book book) {
+        Objects.requireNonNull(book, "Book to update must not be null");
+        Objects.requireNonNull(book.getId(), "Book id must not be null");
+
+        Book stored = Book.copyOf(book);
+        CompletableFuture<Void> applied;
+        pendingLock.lock();
+        try {
+            String currentVersion = checkVersion(book.getId(), book.getVersion());
+            stored.setVersion(MemoryBookService.nextVersion(currentVersion));
+            applied = queue(List.of(BookLog.Operation.put(stored)));
+        } finally {
+            pendingLock.unlock();
+        }
+        await(applied);
+        return Book.copyOf(stored);
+    }
+
+    @Override
+    public void deleteBookById(String id) {
+        Objects.requireNonNull(id, "id must not be null");
+
+        CompletableFuture<Void> applied;
+        pendingLock.lock();
+        try {
+            if (!exists(id)) {
+                throw new NoSuchElementException("Could not find Book with id: " + id);
+            }
+            applied = queue(List.of(BookLog.Operation.delete(id)));
+        } finally {
+            pendingLock.unlock();
+        }
+        await(applied);
+    }
+
+    @Override
+    public void deleteBookById(String id, String expectedVersion) {
+        Objects.requireNonNull(id, "id must not be null");
+
+        CompletableFuture<Void> applied;
+        pendingLock.lock();
+        try {
+            checkVersion(id, expectedVersion);
+            applied = queue(List.of(BookLog.Operation.delete(id)));
+        } finally {
+            pendingLock.unlock();
+        }
+        await(applied);
+    }
+
+    /**
+     * Create the books all-or-nothing with one log record: if any book is null then none are created.
+     */
+    @Override
+    public List<BookBatchResult> createBooks(Collection<Book> books) {
+        Objects.requireNonNull(books, "Books to create must not be null");
+
+        var storedBooks = new ArrayList<Book>(books.size());
+        var errorMessages = new ArrayList<String>(books.size());
+        for (Book currentBook : books) {
+            if (currentBook == null) {
+                storedBooks.add(null);
+                errorMessages.add("Book to create must not be null");
+            } else {
+                Book stored = Book.copyOf(currentBook);
+                stored.setId(UUID.randomUUID().toString());
+                stored.setVersion(MemoryBookService.FIRST_VERSION);
+                storedBooks.add(stored);
+                errorMessages.add(null);
+            }
+        }
+        if (!storedBooks.isEmpty() && errorMessages.stream().allMatch(Objects::isNull)) {
+            await(queue(storedBooks.stream().map(BookLog.Operation::put).toList()));
+        }
+        return MemoryBookService.batchResults(storedBooks.stream().map(stored -> stored != null ? stored.getId() : null).toList(),
+                storedBooks, errorMessages);
+    }
+
+    /**
+     * Update the books all-or-nothing with one log record: if any book is null, cannot be found or has a stale version
+     * then none are updated.
+     */
+    @Override
+    public List<BookBatchResult> updateBooks(Collection<Book> books) {
+        Objects.requireNonNull(books, "Books to update must not be null");
+
+        var storedBooks = new ArrayList<Book>(books.size());
+        var errorMessages = new ArrayList<String>(books.size());
+        CompletableFuture<Void> applied = null;
+        pendingLock.lock();
+        try {
+            for (Book currentBook : books) {
+                storedBooks.add(currentBook != null ? Book.copyOf(currentBook) : null);
+                if (currentBook == null || currentBook.getId() == null) {
+                    errorMessages.add("Book and Book id must not be null");
+                } else if (!exists(currentBook.getId())) {
+                    errorMessages.add("Could not find Book with id: " + currentBook.getId());
+                } else if (currentBook.getVersion() != null && !currentBook.getVersion().equals(currentVersion(currentBook.getId()))) {
+                    errorMessages.add(new BookVersionConflictException(currentBook.getId(), currentBook.getVersion(), null).getMessage());
+                } else {
+                    errorMessages.add(null);
+                }
+            }
+            if (!storedBooks.isEmpty() && errorMessages.stream().allMatch(Objects::isNull)) {
+                for (Book stored : storedBooks) {
+                    stored.setVersion(MemoryBookService.nextVersion(currentVersion(stored.getId())));
+                }
+                applied = queue(storedBooks.stream().map(BookLog.Operation::put).toList());
+            }
+        } finally {
+            pendingLock.unlock();
+        }
+        if (applied != null) {
+            await(applied);
+        }
+        return MemoryBookService.batchResults(storedBooks.stream().map(stored -> stored != null ? stored.getId() : null).toList(),
+                storedBooks, errorMessages);
+    }
+
+    /**
+     * Delete the books all-or-nothing with one log record: if any id is null, repeated or cannot be found then none are deleted.
+     */
+    @Override
+    public List<BookBatchResult> deleteBooksByIds(Collection<String> ids) {
+        Objects.requireNonNull(ids, "ids must not be null");
+
+        var idList = new ArrayList<>(ids);
+        var errorMessages = new ArrayList<String>(idList.size());
+        var seenIds = new HashSet<String>();
+        CompletableFuture<Void> applied = null;
+        pendingLock.lock();
+        try {
+            for (String currentId : idList) {
+                if (currentId == null) {
+                    errorMessages.add("id must not be null");
+                } else if (!seenIds.add(currentId)) {
+                    errorMessages.add("Duplicate id in batch: " + currentId);
+                } else if (!exists(currentId)) {
+                    errorMessages.add("Could not find Book with id: " + currentId);
+                } else {
+                    errorMessages.add(null);
+                }
+            }
+            if (!idList.isEmpty() && errorMessages.stream().allMatch(Objects::isNull)) {
+                applied = queue(idList.stream().map(BookLog.Operation::delete).toList());
+            }
+        } finally {
+            pendingLock.unlock();
+        }
+        if (applied != null) {
+            await(applied);
+        }
+        return MemoryBookService.batchResults(idList, Collections.nCopies(idList.size(), null), errorMessages);
+    }
+
+    @Override
+    public List<Book> findByAuthor(String author) {
+        return read(() -> index.findByAuthor(author));
+    }
+
+    @Override
+    public List<Book> findByPublishDateBetween(LocalDate fromDate, LocalDate toDate) {
+        return read(() -> index.findByPublishDateBetween(fromDate, toDate));
+    }
+
+    @Override
+    public long countByReadAlready(boolean readAlready) {
+        return read(() -> index.countByReadAlready(readAlready));
+    }
+
+    @Override
+    public BookPage page(int offset, int limit, String sortField, boolean ascending, String filter) {
+        return read(() -> index.page(offset, limit, sortField, ascending, filter));
+    }
+
+    /**
+     * Count the writes applied to the index, so the count only moves once a write is durable and visible to readers.
+     */
+    @Override
+    public long changeCount() {
+        return read(index::changeCount);
+    }
+
+    @Override
+    public List<Book> search(String query, int limit) {
+        return read(() -> index.search(query, limit));
+    }
+
+    /**
+     * Read the index under the read lock, so no group is half applied.
+     */
+    private <T> T read(Supplier<T> reader) {
+        indexLock.readLock().lock();
+        try {
+            return reader.get();
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check if a book exists, counting the writes that are queued but not applied yet. Must hold the pending lock.
+     */
+    private boolean exists(String id) {
+        BookLog.Operation pendingOperation = pendingOperationsById.get(id);
+        return pendingOperation != null ? !pendingOperation.isDelete() : index.containsBook(id);
+    }
+
+    /**
+     * The version of a book, counting the writes that are queued but not applied yet, or null if the book does not exist.
+     * Must hold the pending lock.
+     */
+    private String currentVersion(String id) {
+        BookLog.Operation pendingOperation = pendingOperationsById.get(id);
+        if (pendingOperation != null) {
+            return pendingOperation.isDelete() ? null : pendingOperation.book().getVersion();
+        }
+        return index.versionOf(id);
+    }
+
+    /**
+     * Check that a book exists and is at the expected version. Must hold the pending lock.
+     *
+     * @param expectedVersion The version the book was read with, or null to accept any version.
+     * @return the current version of the book.
+     */
+    private String checkVersion(String id, String expectedVersion) {
+        String currentVersion = currentVersion(id);
+        if (currentVersion == null && expectedVersion == null) {
+            throw new NoSuchElementException("Could not find Book with id: " + id);
+        }
+        if (expectedVersion != null && !expectedVersion.equals(currentVersion)) {
+            throw new BookVersionConflictException(id, expectedVersion, currentVersion);
+        }
+        return currentVersion;
+    }
+
+    /**
+     * Queue the operations as one log record for the writer thread.
+     *
+     * @return a future completed once the record is written and applied to the index.
+     */
+    private CompletableFuture<Void> queue(List<BookLog.Operation> operations) {
+        var pendingWrite = new PendingWrite(operations, BookLog.encodeRecord(operations), new CompletableFuture<>());
+        pendingLock.lock();
+        try {
+            if (failure != null || closed) {
+                throw new RuntimeException("The book log is not accepting writes", failure);
+            }
+            pendingWrites.add(pendingWrite);
+            for (BookLog.Operation currentOperation : operations) {
+                pendingOperationsById.put(currentOperation.id(), currentOperation);
+            }
+            writesPending.signal();
+        } finally {
+            pendingLock.unlock();
+        }
+        return pendingWrite.applied();
+    }
+
+    /**
+     * Wait for the write to be applied and rethrow its failure as a RuntimeException.
+     */
+    private static void await(CompletableFuture<Void> applied) {
+        try {
+            applied.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * The writer thread: take every queued write as one group, append and force it, then apply it to the index.
+     */
+    private void writeLoop() {
+        while (true) {
+            List<PendingWrite> group = takeGroup();
+            if (group == null) {
+                return;
+            }
+            try {
+                if (!group.isEmpty()) {
+                    append(group);
+                }
+                if (fsyncPolicy == FsyncPolicy.ALWAYS
+                        || (fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastForceNanos >= TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis))) {
+                    force();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(group, e);
+                return;
+            }
+            if (!group.isEmpty()) {
+                apply(group);
+            }
+            if (operationsSinceSnapshot >= snapshotIntervalOperations && snapshotRunning.compareAndSet(false, true)) {
+                try {
+                    startSnapshot();
+                } catch (IOException | RuntimeException e) {
+                    snapshotRunning.set(false);
+                    fail(List.of(), e);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for queued writes and take all of them.
+     *
+     * @return the queued writes, an empty list when an interval fsync is due, or null when closed with nothing queued.
+     */
+    private List<PendingWrite> takeGroup() {
+        pendingLock.lock();
+        try {
+            while (pendingWrites.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                if (fsyncPolicy == FsyncPolicy.INTERVAL && unforcedWrites) {
+                    if (writesPending.await(fsyncIntervalMillis, TimeUnit.MILLISECONDS) || !pendingWrites.isEmpty()) {
+                        continue;
+                    }
+                    return List.of();
+                }
+                writesPending.awaitUninterruptibly();
+            }
+            List<PendingWrite> group = pendingWrites;
+            pendingWrites = new ArrayList<>();
+            return group;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    private void append(List<PendingWrite> group) throws IOException {
+        int groupLength = group.stream().mapToInt(currentWrite -> currentWrite.record().length).sum();
+        ByteBuffer buffer = ByteBuffer.allocate(groupLength);
+        group.forEach(currentWrite -> buffer.put(currentWrite.record()));
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segmentChannel.write(buffer);
+        }
+        unforcedWrites = true;
+        operationsSinceSnapshot += group.stream().mapToInt(currentWrite -> currentWrite.operations().size()).sum();
+    }
+
+    private void force() throws IOException {
+        if (unforcedWrites) {
+            segmentChannel.force(false);
+            unforcedWrites = false;
+        }
+        lastForceNanos = System.nanoTime();
+    }
+
+    /**
+     * Apply the written group to the index in log order, then drop the pending operations it superseded.
+     */
+    private void apply(List<PendingWrite> group) {
+        indexLock.writeLock().lock();
+        try {
+            for (PendingWrite currentWrite : group) {
+                currentWrite.operations().forEach(this::applyToIndex);
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        pendingLock.lock();
+        try {
+            for (PendingWrite currentWrite : group) {
+                // Keep the pending operation if a later write to the same book is still queued
+                currentWrite.operations().forEach(currentOperation ->
+                        pendingOperationsById.remove(currentOperation.id(), currentOperation));
+            }
+        } finally {
+            pendingLock.unlock();
+        }
+        group.forEach(currentWrite -> currentWrite.applied().complete(null));
+    }
+
+    private void applyToIndex(BookLog.Operation operation) {
+        if (operation.isDelete()) {
+            index.restoreDeletion(operation.id());
+        } else {
+            index.restoreBook(Book.copyOf(operation.book()));
+        }
+    }
+
+    /**
+     * Stop accepting writes after the log could not be written, failing every queued write.
+     */
+    private void fail(List<PendingWrite> group, Exception exception) {
+        var logFailure = new RuntimeException(String.format("Could not write to the book log: %s", exception.getMessage()), exception);
+        List<PendingWrite> failedWrites = new ArrayList<>(group);
+        pendingLock.lock();
+        try {
+            failure = logFailure;
+            failedWrites.addAll(pendingWrites);
+            pendingWrites = new ArrayList<>();
+            pendingOperationsById.clear();
+        } finally {
+            pendingLock.unlock();
+        }
+        failedWrites.forEach(currentWrite -> currentWrite.applied().completeExceptionally(logFailure));
+    }
+
+    /**
+     * Rotate to a new log segment, then write a snapshot of the index in the background.
+     * The index matches the closed segments exactly because only the writer thread changes it.
+     */
+    private void startSnapshot() throws IOException {
+        force();
+        segmentChannel.close();
+        long lastSegmentNumber = segmentNumber;
+        openSegment(segmentNumber + 1);
+        operationsSinceSnapshot = 0;
+        List<Book> books = index.getAllBooks();
+        snapshotExecutor.execute(() -> {
+            try {
+                BookLog.writeSnapshot(directory, lastSegmentNumber, books);
+                for (long currentSegmentNumber : BookLog.segmentNumbers(directory)) {
+                    if (currentSegmentNumber <= lastSegmentNumber) {
+                        Files.deleteIfExists(BookLog.segmentPath(directory, currentSegmentNumber));
+                    }
+                }
+            } catch (IOException e) {
+                // The segments are kept, so the next snapshot or a recovery still has every write
+            } finally {
+                snapshotRunning.set(false);
+            }
+        });
+    }
+
+    /**
+     * Load the snapshot and replay the log segments after it, truncating a record torn by a crash in the last segment.
+     */
+    private void recover() throws IOException {
+        long lastSnapshotSegmentNumber = BookLog.readSnapshot(directory, index::restoreBook);
+        segmentNumber = lastSnapshotSegmentNumber;
+        List<Long> segmentNumbers = BookLog.segmentNumbers(directory).stream()
+                .filter(currentSegmentNumber -> currentSegmentNumber > lastSnapshotSegmentNumber)
+                .toList();
+        for (int position = 0; position < segmentNumbers.size(); position++) {
+            segmentNumber = segmentNumbers.get(position);
+            boolean lastSegment = position == segmentNumbers.size() - 1;
+            BookLog.replay(BookLog.segmentPath(directory, segmentNumber), lastSegment, operations -> {
+                operations.forEach(this::applyToIndex);
+                operationsSinceSnapshot += operations.size();
+            });
+        }
+    }
+
+    private void openSegment(long newSegmentNumber) throws IOException {
+        segmentChannel = FileChannel.open(BookLog.segmentPath(directory, newSegmentNumber),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentNumber = newSegmentNumber;
+        BookLog.forceDirectory(directory);
+    }
+}
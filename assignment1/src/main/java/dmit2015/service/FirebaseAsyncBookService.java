@@ -0,0 +1,627 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import jakarta.json.JsonObject;
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * This class implements the AsyncBookService using HttpClient.sendAsync to send Http Request to the Firebase Realtime Database REST API
+ * without blocking the calling thread while waiting for the response.
+ * <p>
+ * The version of a book is the ETag Firebase returns for it. A book read with getBookById carries its ETag,
+ * and updating or deleting it sends the ETag in an if-match header, so a concurrent change is detected by
+ * Firebase instead of being overwritten. Books returned by queries and batches have no version.
+ * <p>
+ * Concurrent reads of the same book share one GET request, so many users opening the same book cost one request.
+ */
+@Named("firebaseAsyncBookService")
+@ApplicationScoped
+public class FirebaseAsyncBookService implements AsyncBookService {
+    /**
+     * The base URL to the Firebase Realtime Database that is defined in `src/main/resources/META-INF/microprofile-config.properties` file.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.base.url")
+    private String firebaseRtdbBaseUrl;
+
+    /**
+     * The maximum number of seconds to wait for a response to each Http Request.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.http.request.timeout.seconds", defaultValue = "10")
+    private long requestTimeoutSeconds;
+
+    /**
+     * The maximum number of books written by one multi-path PATCH request.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.batch.size", defaultValue = "500")
+    private int batchSize;
+
+    /**
+     * The maximum number of GET requests one getBooksByIds call keeps in flight.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.fetch.concurrency", defaultValue = "16")
+    private int fetchConcurrency;
+
+    /**
+     * Sends the Http Request with the shared HttpClient through the retry, circuit breaker and bulkhead policies.
+     */
+    @Inject
+    private FirebaseResilientHttpClient resilientHttpClient;
+
+    /**
+     * The Http Request templates for the paths of the Book collection.
+     */
+    private FirebaseBookRequests requests;
+
+    /**
+     * Jsonb is used for converting Java objects to a JSON string or visa-versa
+     */
+    private Jsonb jsonb;
+
+    /**
+     * The GET request in flight for each book id, shared by the getBookById calls for that id until it completes.
+     */
+    private final ConcurrentMap<String, CompletableFuture<Optional<Book>>> inFlightGetsById = new ConcurrentHashMap<>();
+
+    /**
+     * How long the number of books from a shallow GET is reused, long enough for the count() and load() of one
+     * DataTable render to share it.
+     */
+    private static final long KEY_COUNT_TTL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * A number of books with the System.nanoTime() it expires at.
+     */
+    private record KeyCount(long count, long expiresAt) {
+    }
+
+    /**
+     * The last number of books counted by a shallow GET, or null after a create or delete by this service.
+     */
+    private volatile KeyCount cachedKeyCount;
+
+    /**
+     * Incremented by every create and delete, so a count read before one is not cached after it.
+     */
+    private final AtomicLong keyCountGeneration = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        requests = new FirebaseBookRequests(firebaseRtdbBaseUrl, Book.class.getSimpleName(), Duration.ofSeconds(requestTimeoutSeconds));
+        jsonb = JsonbBuilder.create();
+    }
+
+    /**
+     * Pushing currentBook data to Firebase Realtime Database using the REST API
+     *
+     * @link <a href="https://firebase.google.com/docs/reference/rest/database">Firebase Realtime Database REST API</a>
+     */
+    @Override
+    public CompletableFuture<Book> createBook(Book book) {
+        // Convert the Java object to a JSON string using JSONB
+        String requestBodyJson = jsonb.toJson(book);
+
+        // Create a Http Request for sending a Http POST request to push new data
+        var httpRequest = requests.post(requestBodyJson);
+        // Send the Http Request
+        return resilientHttpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
+                .thenApply(httpResponse -> {
+                    // Check if the Http Request response is successful
+                    if (httpResponse.statusCode() != 200) {
+                        String errorMessage = String.format("Create was not successful with status code: %s", httpResponse.statusCode());
+                        throw new RuntimeException(errorMessage);
+                    }
+                    // Convert the JSON String to a JsonObject
+                    JsonObject responseJsonObject = jsonb.fromJson(httpResponse.body(), JsonObject.class);
+                    // Set the unique key name for this object
+                    book.setId(responseJsonObject.getString("name"));
+                    return book;
+                })
+                .whenComplete((createdBook, exception) -> invalidateKeyCount());
+    }
+
+    /**
+     * Fetch a book, joining the GET request of a concurrent call for the same id if there is one.
+     * Every caller receives its own copy of the book, since books are mutable.
+     */
+    @Override
+    public CompletableFuture<Optional<Book>> getBookById(String id) {
+        CompletableFuture<Optional<Book>> inFlightGet = inFlightGetsById.get(id);
+        if (inFlightGet == null) {
+            var newGet = new CompletableFuture<Optional<Book>>();
+            inFlightGet = inFlightGetsById.putIfAbsent(id, newGet);
+            if (inFlightGet == null) {
+                inFlightGet = newGet;
+                CompletableFuture<Optional<Book>> fetchedBook;
+                try {
+                    fetchedBook = fetchBookById(id);
+                } catch (RuntimeException e) {
+                    inFlightGetsById.remove(id, newGet);
+                    newGet.completeExceptionally(e);
+                    throw e;
+                }
+                fetchedBook.whenComplete((book, exception) -> {
+                    inFlightGetsById.remove(id, newGet);
+                    if (exception != null) {
+                        newGet.completeExceptionally(exception);
+                    } else {
+                        newGet.complete(book);
+                    }
+                });
+            }
+        }
+        return inFlightGet.thenApply(book -> book.map(Book::copyOf));
+    }
+
+    /**
+     * Fetch the books with at most fetchConcurrency GET requests in flight, each shared like a getBookById call.
+     * Fails with the first request that fails.
+     */
+    @Override
+    public CompletableFuture<List<Book>> getBooksByIds(Collection<String> ids) {
+        if (ids == null) {
+            return CompletableFuture.failedFuture(new NullPointerException("ids must not be null"));
+        }
+        return new BooksByIdsFetch(List.copyOf(new LinkedHashSet<>(ids))).start();
+    }
+
+    private CompletableFuture<Optional<Book>> fetchBookById(String id) {
+        // Create an GET Http Request to fetch the data
+        var httpRequest = requests.get(id);
+        // Send the GET Http Request
+        return resilientHttpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
+                .thenApply(httpResponse -> {
+                    // Check if the Http Request was successful
+                    if (httpResponse.statusCode() != 200) {
+                        String errorMessage = String.format("Get was not successful with status code: %s", httpResponse.statusCode());
+                        throw new RuntimeException(errorMessage);
+                    }
+                    // Firebase returns null when there is no data at the path
+                    var responseBodyJson = httpResponse.body();
+                    if (responseBodyJson.equals("null")) {
+                        return Optional.empty();
+                    }
+                    Book responseData = jsonb.fromJson(responseBodyJson, Book.class);
+                    responseData.setId(id);
+                    responseData.setVersion(httpResponse.headers().firstValue("ETag").orElse(null));
+                    return Optional.of(responseData);
+                });
+    }
+
+    @Override
+    public CompletableFuture<List<Book>> getAllBooks() {
+        var books = new ArrayList<Book>();
+        return forEachBook(books::add)
+                .thenApply(ignored -> Collections.unmodifiableList(books));
+    }
+
+    /**
+     * Stream all data from Firebase Realtime Database using the REST API, parsing each Book as it arrives.
+     * <p>
+     * The Http Response body is read as an InputStream and parsed with the JsonParser event API,
+     * so only one Book at a time is held in memory no matter how large the collection is.
+     *
+     * @param action The action to perform on each Book. It runs on an executor thread.
+     */
+    @Override
+    public CompletableFuture<Void> forEachBook(Consumer<? super Book> action) {
+        // Reuse the GET Http Request to fetch all data
+        var httpRequest = requests.getAll();
+        // Send the GET Http Request
+        return resilientHttpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofInputStream())
+                .thenAccept(httpResponse -> {
+                    // Check if the Http Request was successful
+                    if (httpResponse.statusCode() != 200) {
+                        closeQuietly(httpResponse.body());
+                        String errorMessage = String.format("Get all was not successful with status code: %s", httpResponse.statusCode());
+                        throw new RuntimeException(errorMessage);
+                    }
+                    FirebaseBookJsonReader.forEachBook(httpResponse.body(), action);
+                });
+    }
+
+    /**
+     * Writing currentBook data to Firebase Realtime Database using the REST API
+     *
+     * @link <a href="https://firebase.google.com/docs/reference/rest/database">Firebase Realtime Database REST API</a>
+     */
+    @Override
+    public CompletableFuture<Book> updateBook(Book book) {
+        // Convert the Java object to a JSON string using JSONB
+        String requestBodyJson = jsonb.toJson(book);
+
+        // Create and Http Request to send an HTTP PUT request to write over existing data, if it is still at the version that was read
+        var httpRequest = requests.put(book.getId(), requestBodyJson, book.getVersion());
+        // Send the Http Request
+        return resilientHttpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
+                .thenApply(httpResponse -> {
+                    checkVersion(httpResponse, book.getId(), book.getVersion());
+                    // Check if the Http Response was successful
+                    if (httpResponse.statusCode() != 200) {
+                        String errorMessage = String.format("Update was not successful with status code: %s", httpResponse.statusCode());
+                        throw new RuntimeException(errorMessage);
+                    }
+                    book.setVersion(httpResponse.headers().firstValue("ETag").orElse(null));
+                    return book;
+                })
+                // A later read must not join a GET that was sent before the write
+                .whenComplete((updatedBook, exception) -> inFlightGetsById.remove(book.getId()));
+    }
+
+    /**
+     * Remove data from Firebase Realtime Database using the REST API
+     *
+     * @link <a href="https://firebase.google.com/docs/reference/rest/database">Firebase Realtime Database REST API</a>
+     */
+    @Override
+    public CompletableFuture<Void> deleteBookById(String id) {
+        return deleteBookById(id, null);
+    }
+
+    /**
+     * Remove data from Firebase Realtime Database using the REST API if it is still at the expected version.
+     *
+     * @param expectedVersion The ETag the book was read with, or null to delete any version.
+     */
+    @Override
+    public CompletableFuture<Void> deleteBookById(String id, String expectedVersion) {
+        // Create an DELETE Http Request
+        var httpRequest = requests.delete(id, expectedVersion);
+        // Send the DELETE Http Request
+        return resilientHttpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
+                .thenAccept(httpResponse -> {
+                    checkVersion(httpResponse, id, expectedVersion);
+                    // Check if the Http Response was successful
+                    if (httpResponse.statusCode() != 200) {
+                        String errorMessage = String.format("Delete was not successful with status code: %s", httpResponse.statusCode());
+                        throw new RuntimeException(errorMessage);
+                    }
+                })
+                .whenComplete((ignored, exception) -> {
+                    inFlightGetsById.remove(id);
+                    invalidateKeyCount();
+                });
+    }
+
+    /**
+     * Push many books with client-generated push keys using one multi-path PATCH request per batch.
+     *
+     * @link <a href="https://firebase.google.com/docs/database/rest/save-data#section-patch">Updating Data with PATCH</a>
+     */
+    @Override
+    public CompletableFuture<List<BookBatchResult>> createBooks(Collection<Book> books) {
+        var bookList = new ArrayList<>(books);
+        var jsonValuesByKey = new LinkedHashMap<String, String>();
+        for (Book currentBook : bookList) {
+            if (currentBook != null) {
+                // Set the unique key name for this object
+                currentBook.setId(FirebasePushIds.next());
+                jsonValuesByKey.put(currentBook.getId(), jsonb.toJson(currentBook));
+            }
+        }
+        return patchInBatches(jsonValuesByKey)
+                .thenApply(errorMessagesByKey -> bookList.stream()
+                        .map(currentBook -> currentBook == null
+                                ? BookBatchResult.failure(null, "Book to create must not be null")
+                                : batchResult(currentBook.getId(), currentBook, errorMessagesByKey))
+                        .toList());
+    }
+
+    /**
+     * Write over many books using one multi-path PATCH request per batch.
+     * A multi-path PATCH cannot be conditional, so the versions of the books are not checked.
+     *
+     * @link <a href="https://firebase.google.com/docs/database/rest/save-data#section-patch">Updating Data with PATCH</a>
+     */
+    @Override
+    public CompletableFuture<List<BookBatchResult>> updateBooks(Collection<Book> books) {
+        var bookList = new ArrayList<>(books);
+        var jsonValuesByKey = new LinkedHashMap<String, String>();
+        for (Book currentBook : bookList) {
+            if (currentBook != null && currentBook.getId() != null) {
+                jsonValuesByKey.put(currentBook.getId(), jsonb.toJson(currentBook));
+            }
+        }
+        return patchInBatches(jsonValuesByKey)
+                .thenApply(errorMessagesByKey -> bookList.stream()
+                        .map(currentBook -> currentBook == null || currentBook.getId() == null
+                                ? BookBatchResult.failure(null, "Book and Book id must not be null")
+                                : batchResult(currentBook.getId(), currentBook, errorMessagesByKey))
+                        .toList())
+                .whenComplete((results, exception) -> jsonValuesByKey.keySet().forEach(inFlightGetsById::remove));
+    }
+
+    /**
+     * Remove many books by writing null to their keys using one multi-path PATCH request per batch.
+     *
+     * @link <a href="https://firebase.google.com/docs/database/rest/save-data#section-patch">Updating Data with PATCH</a>
+     */
+    @Override
+    public CompletableFuture<List<BookBatchResult>> deleteBooksByIds(Collection<String> ids) {
+        var idList = new ArrayList<>(ids);
+        var jsonValuesByKey = new LinkedHashMap<String, String>();
+        for (String currentId : idList) {
+            if (currentId != null) {
+                jsonValuesByKey.put(currentId, "null");
+            }
+        }
+        return patchInBatches(jsonValuesByKey)
+                .thenApply(errorMessagesByKey -> idList.stream()
+                        .map(currentId -> currentId == null
+                                ? BookBatchResult.failure(null, "id must not be null")
+                                : batchResult(currentId, null, errorMessagesByKey))
+                        .toList())
+                .whenComplete((results, exception) -> jsonValuesByKey.keySet().forEach(inFlightGetsById::remove));
+    }
+
+    /**
+     * Fetch one page of books using the Firebase Realtime Database REST API query parameters.
+     * <p>
+     * The total count comes from a shallow GET that only returns the keys, reused for a second so the count and load
+     * of one DataTable render share it. The rows come from an orderBy query limited with limitToFirst (ascending)
+     * or limitToLast (descending) to offset + limit entries, because the REST API has no offset parameter.
+     * Firebase returns query results unordered, so the rows are sorted again here in the order Firebase chose them in,
+     * case-sensitive with missing values first (see {@link BookQueries#firebaseComparator}), or the offset would skip
+     * the wrong rows. Queries rejected for a missing ".indexOn" rule are paged over getAllBooks() in the same order.
+     * A filter cannot be expressed as a REST query, so filtered pages are paged over getAllBooks() like other services.
+     *
+     * @link <a href="https://firebase.google.com/docs/database/rest/retrieve-data">Retrieving Data with the REST API</a>
+     */
+    @Override
+    public CompletableFuture<BookPage> page(int offset, int limit, String sortField, boolean ascending, String filter) {
+        if (offset < 0 || limit < 0) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("offset and limit must not be negative"));
+        }
+        if (filter != null && !filter.isBlank()) {
+            return getAllBooks()
+                    .thenApply(books -> BookQueries.page(books.stream(), offset, limit, sortField, ascending, filter));
+        }
+        Comparator<Book> comparator;
+        try {
+            comparator = BookQueries.firebaseComparator(sortField, ascending);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return countKeys()
+                .thenCompose(totalCount -> {
+                    if (limit == 0 || offset >= totalCount) {
+                        return CompletableFuture.completedFuture(new BookPage(List.of(), totalCount));
+                    }
+
+                    // Fetch the first offset + limit books in the requested order
+                    String orderBy = sortField != null && !sortField.isBlank() ? sortField : "$key";
+                    String query = String.format("?orderBy=%s&%s=%d",
+                            URLEncoder.encode("\"" + orderBy + "\"", StandardCharsets.UTF_8),
+                            ascending ? "limitToFirst" : "limitToLast",
+                            (long) offset + limit);
+                    var pageRequest = requests.query(query);
+                    return resilientHttpClient.sendAsync(pageRequest, HttpResponse.BodyHandlers.ofInputStream())
+                            .thenCompose(pageResponse -> {
+                                if (pageResponse.statusCode() != 200) {
+                                    closeQuietly(pageResponse.body());
+                                }
+                                if (pageResponse.statusCode() == 400) {
+                                    // The database rules do not define an index for the sort field, so sort in the same order here
+                                    return getAllBooks()
+                                            .thenApply(books -> new BookPage(books.stream()
+                                                    .sorted(comparator)
+                                                    .skip(offset)
+                                                    .limit(limit)
+                                                    .toList(), books.size()));
+                                }
+                                if (pageResponse.statusCode() != 200) {
+                                    String errorMessage = String.format("Page was not successful with status code: %s", pageResponse.statusCode());
+                                    throw new RuntimeException(errorMessage);
+                                }
+                                var queriedBooks = new ArrayList<Book>();
+                                FirebaseBookJsonReader.forEachBook(pageResponse.body(), queriedBooks::add);
+                                List<Book> pageBooks = queriedBooks.stream()
+                                        .sorted(comparator)
+                                        .skip(offset)
+                                        .limit(limit)
+                                        .toList();
+                                return CompletableFuture.completedFuture(new BookPage(pageBooks, totalCount));
+                            });
+                });
+    }
+
+    /**
+     * Count the books with a shallow GET that only returns the keys, or reuse the count of the last one
+     * if it is less than {@link #KEY_COUNT_TTL_NANOS} old and this service has not created or deleted a book since.
+     */
+    private CompletableFuture<Long> countKeys() {
+        KeyCount keyCount = cachedKeyCount;
+        if (keyCount != null && System.nanoTime() - keyCount.expiresAt() < 0) {
+            return CompletableFuture.completedFuture(keyCount.count());
+        }
+        long generation = keyCountGeneration.get();
+        var countRequest = requests.getKeys();
+        return resilientHttpClient.sendAsync(countRequest, HttpResponse.BodyHandlers.ofString())
+                .thenApply(countResponse -> {
+                    if (countResponse.statusCode() != 200) {
+                        String errorMessage = String.format("Count was not successful with status code: %s", countResponse.statusCode());
+                        throw new RuntimeException(errorMessage);
+                    }
+                    JsonObject keys = jsonb.fromJson(countResponse.body(), JsonObject.class);
+                    long totalCount = keys != null ? keys.size() : 0;
+                    if (keyCountGeneration.get() == generation) {
+                        cachedKeyCount = new KeyCount(totalCount, System.nanoTime() + KEY_COUNT_TTL_NANOS);
+                    }
+                    return totalCount;
+                });
+    }
+
+    private void invalidateKeyCount() {
+        keyCountGeneration.incrementAndGet();
+        cachedKeyCount = null;
+    }
+
+    /**
+     * One getBooksByIds call. Each of its fetchConcurrency workers fetches the next id as soon as its last GET completes,
+     * and the books are collected in the order of the ids.
+     */
+    private final class BooksByIdsFetch {
+
+        private final List<String> ids;
+
+        private final AtomicReferenceArray<Book> booksByIndex;
+
+        private final AtomicInteger nextIndex = new AtomicInteger();
+
+        private final AtomicInteger remainingCount;
+
+        private final CompletableFuture<List<Book>> result = new CompletableFuture<>();
+
+        BooksByIdsFetch(List<String> ids) {
+            this.ids = ids;
+            booksByIndex = new AtomicReferenceArray<>(ids.size());
+            remainingCount = new AtomicInteger(ids.size());
+        }
+
+        CompletableFuture<List<Book>> start() {
+            if (ids.isEmpty()) {
+                result.complete(List.of());
+            }
+            for (int worker = 0; worker < Math.min(fetchConcurrency, ids.size()); worker++) {
+                fetchNext();
+            }
+            return result;
+        }
+
+        private void fetchNext() {
+            int index = nextIndex.getAndIncrement();
+            if (index >= ids.size() || result.isDone()) {
+                return;
+            }
+            CompletableFuture<Optional<Book>> fetchedBook;
+            try {
+                fetchedBook = getBookById(ids.get(index));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            fetchedBook.whenComplete((book, exception) -> {
+                if (exception != null) {
+                    result.completeExceptionally(exception);
+                    return;
+                }
+                book.ifPresent(currentBook -> booksByIndex.set(index, currentBook));
+                if (remainingCount.decrementAndGet() == 0) {
+                    var books = new ArrayList<Book>(ids.size());
+                    for (int bookIndex = 0; bookIndex < ids.size(); bookIndex++) {
+                        if (booksByIndex.get(bookIndex) != null) {
+                            books.add(booksByIndex.get(bookIndex));
+                        }
+                    }
+                    result.complete(books);
+                } else {
+                    fetchNext();
+                }
+            });
+        }
+    }
+
+    /**
+     * Send the JSON values keyed by unique key name as multi-path PATCH requests of at most batchSize keys,
+     * one batch after the other. Firebase applies each PATCH atomically, so a batch either succeeds or fails as a whole.
+     *
+     * @param jsonValuesByKey The JSON value to write at each key, where "null" removes the key.
+     * @return The error message for each key of a failed batch. Keys of successful batches are not included.
+     */
+    private CompletableFuture<Map<String, String>> patchInBatches(LinkedHashMap<String, String> jsonValuesByKey) {
+        var errorMessagesByKey = new ConcurrentHashMap<String, String>();
+        var keys = new ArrayList<>(jsonValuesByKey.keySet());
+        CompletableFuture<Void> previousBatch = CompletableFuture.completedFuture(null);
+        for (int fromIndex = 0; fromIndex < keys.size(); fromIndex += batchSize) {
+            List<String> batchKeys = keys.subList(fromIndex, Math.min(fromIndex + batchSize, keys.size()));
+
+            // Build a JSON object with one property per key to write
+            var requestBodyJson = new StringBuilder("{");
+            for (String currentKey : batchKeys) {
+                if (requestBodyJson.length() > 1) {
+                    requestBodyJson.append(',');
+                }
+                requestBodyJson.append(jsonb.toJson(currentKey)).append(':').append(jsonValuesByKey.get(currentKey));
+            }
+            requestBodyJson.append('}');
+
+            // Create a Http Request for sending a Http PATCH request to write all the keys at once
+            var httpRequest = requests.patch(requestBodyJson.toString());
+            previousBatch = previousBatch
+                    .thenCompose(ignored -> resilientHttpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString()))
+                    .handle((httpResponse, exception) -> {
+                        String errorMessage = null;
+                        if (exception != null) {
+                            errorMessage = String.format("Batch was not successful: %s", exception.getMessage());
+                        } else if (httpResponse.statusCode() != 200) {
+                            errorMessage = String.format("Batch was not successful with status code: %s", httpResponse.statusCode());
+                        }
+                        if (errorMessage != null) {
+                            for (String currentKey : batchKeys) {
+                                errorMessagesByKey.put(currentKey, errorMessage);
+                            }
+                        }
+                        return null;
+                    });
+        }
+        return previousBatch
+                .thenApply(ignored -> (Map<String, String>) errorMessagesByKey)
+                .whenComplete((ignored, exception) -> invalidateKeyCount());
+    }
+
+    /**
+     * Throw a BookVersionConflictException if Firebase rejected a conditional request because the ETag no longer matches.
+     */
+    private static void checkVersion(HttpResponse<String> httpResponse, String id, String expectedVersion) {
+        if (httpResponse.statusCode() == 412) {
+            throw new BookVersionConflictException(id, expectedVersion, httpResponse.headers().firstValue("ETag").orElse(null));
+        }
+    }
+
+    private static BookBatchResult batchResult(String id, Book book, Map<String, String> errorMessagesByKey) {
+        String errorMessage = errorMessagesByKey.get(id);
+        return errorMessage == null ? BookBatchResult.success(id, book) : BookBatchResult.failure(id, errorMessage);
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            // The connection is released either way
+        }
+    }
+}
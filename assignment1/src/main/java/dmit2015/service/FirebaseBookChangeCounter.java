@@ -0,0 +1,201 @@
+package dmit2015.service;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Counts the changes to the books for the change count of a BookService that writes to Firebase
+ * while the {@link FirebaseBookChangeFeed} is live.
+ * <p>
+ * Each write of the service is counted once as soon as it completes. The feed later reports the same write back,
+ * so the counter expects an event for every book the service writes and does not count it again.
+ * Every other event of the feed is a change made by someone else and is counted for each book it changed.
+ * An expected event that has not arrived after {@link #EXPECTED_EVENT_NANOS}, for example because the write failed,
+ * is no longer expected.
+ */
+final class FirebaseBookChangeCounter {
+
+    private static final long EXPECTED_EVENT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final FirebaseBookChangeFeed changeFeed;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The deadlines of the events expected for the writes of each book, oldest first.
+     */
+    private final Map<String, Deque<Long>> expectedEventsById = new HashMap<>();
+
+    private long writeCount;
+
+    /**
+     * The changes reported by the feed that were not writes of the service.
+     */
+    private long otherChangeCount;
+
+    /**
+     * The sequence number of the last event the feed told the counter about.
+     */
+    private long notifiedSequence;
+
+    /**
+     * The sequence number of the last event that replaced the whole collection.
+     */
+    private long reloadSequence;
+
+    FirebaseBookChangeCounter(FirebaseBookChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+        changeFeed.addChangeListener(this::onChange);
+    }
+
+    /**
+     * The number of changes counted, or -1 while the feed is not live, since the changes of others are not seen then.
+     */
+    long changeCount() {
+        if (!changeFeed.isLive()) {
+            return -1;
+        }
+        lock.lock();
+        try {
+            return writeCount + otherChangeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send a write and wait for it to complete like {@link FirebaseHttpClientBookService#await(CompletableFuture)},
+     * counting it even if it failed, since part of a batch may have been written.
+     *
+     * @param ids        The ids of the existing books the write changes.
+     * @param write      Sends the write.
+     * @param createdIds The ids of the books the write created, from its result.
+     */
+    <T> T awaitWrite(Collection<String> ids, Supplier<CompletableFuture<T>> write, Function<T, Collection<String>> createdIds) {
+        long sequence = beforeWrite(ids);
+        Collection<String> newIds = List.of();
+        try {
+            T result = FirebaseHttpClientBookService.await(write.get());
+            newIds = createdIds.apply(result);
+            return result;
+        } finally {
+            countWrite(newIds, sequence);
+        }
+    }
+
+    /**
+     * The ids of the books a batch wrote.
+     */
+    static List<String> successfulIds(List<BookBatchResult> results) {
+        return results.stream().filter(BookBatchResult::isSuccessful).map(BookBatchResult::id).toList();
+    }
+
+    /**
+     * Expect the events of a write of the books with the ids. Call it before the write is sent.
+     *
+     * @return the sequence number of the feed to pass to {@link #countWrite}.
+     */
+    long beforeWrite(Collection<String> ids) {
+        long sequence = changeFeed.changeSequence();
+        if (!changeFeed.isLive() || ids.isEmpty()) {
+            return sequence;
+        }
+        long now = System.nanoTime();
+        long deadline = now + EXPECTED_EVENT_NANOS;
+        lock.lock();
+        try {
+            // Forget the expected events of failed writes, so they do not pile up
+            expectedEventsById.values().removeIf(currentDeadlines -> {
+                currentDeadlines.removeIf(currentDeadline -> currentDeadline - now < 0);
+                return currentDeadlines.isEmpty();
+            });
+            ids.stream().filter(Objects::nonNull).forEach(currentId -> expectedEventsById.computeIfAbsent(currentId, id -> new ArrayDeque<>()).addLast(deadline));
+        } finally {
+            lock.unlock();
+        }
+        return sequence;
+    }
+
+    /**
+     * Count a completed write, even one that failed, since part of a batch may have been written.
+     *
+     * @param createdIds The ids of the books the write created, which were not known before it was sent.
+     * @param sequence   The sequence number returned by {@link #beforeWrite} for the write.
+     */
+    void countWrite(Collection<String> createdIds, long sequence) {
+        lock.lock();
+        try {
+            writeCount++;
+            if (!changeFeed.isLive()) {
+                return;
+            }
+            long deadline = System.nanoTime() + EXPECTED_EVENT_NANOS;
+            for (String currentId : createdIds) {
+                if (currentId == null) {
+                    continue;
+                }
+                long bookSequence = changeFeed.lastChangeSequenceOf(currentId);
+                if (bookSequence == reloadSequence) {
+                    // The new book was loaded with the whole collection, which was counted once for all its books
+                    continue;
+                }
+                if (bookSequence > sequence && bookSequence <= notifiedSequence) {
+                    // The event of the new book arrived before its id was known and was counted as someone else's change
+                    otherChangeCount--;
+                } else {
+                    expectedEventsById.computeIfAbsent(currentId, id -> new ArrayDeque<>()).addLast(deadline);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onChange(long sequence, Set<String> ids) {
+        lock.lock();
+        try {
+            notifiedSequence = sequence;
+            if (ids == null) {
+                // The copy was reloaded, so the expected events may have been missed
+                expectedEventsById.clear();
+                reloadSequence = sequence;
+                otherChangeCount++;
+                return;
+            }
+            long now = System.nanoTime();
+            for (String currentId : ids) {
+                if (!consumeExpectedEvent(currentId, now)) {
+                    otherChangeCount++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean consumeExpectedEvent(String id, long now) {
+        Deque<Long> deadlines = expectedEventsById.get(id);
+        if (deadlines == null) {
+            return false;
+        }
+        while (!deadlines.isEmpty() && deadlines.peekFirst() - now < 0) {
+            deadlines.pollFirst();
+        }
+        boolean expected = deadlines.pollFirst() != null;
+        if (deadlines.isEmpty()) {
+            expectedEventsById.remove(id);
+        }
+        return expected;
+    }
+}
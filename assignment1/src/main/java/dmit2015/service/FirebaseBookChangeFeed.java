@@ -0,0 +1,456 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+import jakarta.faces.push.Push;
+import jakarta.faces.push.PushContext;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonValue;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.StringReader;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class keeps an in-process copy of the Book collection in step with the Firebase Realtime Database
+ * by listening to the Server-Sent Events of its REST streaming API, and pushes a message to the open book pages
+ * through the Faces websocket whenever the collection changes.
+ * <p>
+ * One streaming connection is kept per application. Its first put event holds the whole collection and the later
+ * put and patch events hold the changed paths, which are applied to the copy in place. Firebase sends a keep-alive
+ * event every 30 seconds, so a connection that stays silent for longer than the idle timeout is reopened, as is a
+ * connection that fails or ends. The copy is live only once the first put event of the current connection has been
+ * applied; until then readers fall back to the REST API.
+ * <p>
+ * Streaming is off unless enabled in `src/main/resources/META-INF/microprofile-config.properties` file.
+ *
+ * @link <a href="https://firebase.google.com/docs/reference/rest/database#section-streaming">Streaming from the REST API</a>
+ */
+@Named("firebaseBookChangeFeed")
+@ApplicationScoped
+public class FirebaseBookChangeFeed {
+
+    /**
+     * The Faces push channel the change messages are sent on.
+     */
+    public static final String PUSH_CHANNEL = "bookChanges";
+
+    /**
+     * The message pushed when the books changed, which is the event name of the f:ajax listening to the channel.
+     */
+    public static final String CHANGED_MESSAGE = "changed";
+
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.base.url")
+    private String firebaseRtdbBaseUrl;
+
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.http.request.timeout.seconds", defaultValue = "10")
+    private long requestTimeoutSeconds;
+
+    /**
+     * True to open the streaming connection on startup.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.stream.enabled", defaultValue = "false")
+    private boolean enabled;
+
+    /**
+     * The number of seconds without any event after which the connection is considered dead.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.stream.idle.timeout.seconds", defaultValue = "75")
+    private long idleTimeoutSeconds;
+
+    /**
+     * The number of milliseconds to wait before reopening a connection that failed or ended.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.stream.reconnect.delay.millis", defaultValue = "1000")
+    private long reconnectDelayMillis;
+
+    /**
+     * The number of milliseconds changes are collected for before one message is pushed for all of them.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.stream.push.interval.millis", defaultValue = "250")
+    private long pushIntervalMillis;
+
+    @Inject
+    private HttpClient httpClient;
+
+    @Inject
+    @Push(channel = PUSH_CHANNEL)
+    private PushContext pushContext;
+
+    /**
+     * A book of the copy with the change sequence number of the event that last changed it.
+     */
+    private record FeedBook(Book book, long changeSequence) {
+    }
+
+    /**
+     * Told about every event applied to the copy, after it has been applied.
+     */
+    interface ChangeListener {
+
+        /**
+         * @param sequence The sequence number of the event.
+         * @param ids      The ids of the books the event changed, or null if it replaced the whole collection.
+         */
+        void onChange(long sequence, Set<String> ids);
+    }
+
+    /**
+     * The copy of the books by unique key name in key order, which is the order Firebase returns them in.
+     * A put of the whole collection replaces the map, so readers never see it half loaded.
+     */
+    private volatile ConcurrentNavigableMap<String, FeedBook> booksById = new ConcurrentSkipListMap<>();
+
+    /**
+     * The sequence number of the last event applied to the copy.
+     */
+    private final AtomicLong changeSequence = new AtomicLong();
+
+    /**
+     * The number of the current connection, so callbacks of a replaced connection are ignored.
+     */
+    private final AtomicLong connectionNumber = new AtomicLong();
+
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicBoolean pushPending = new AtomicBoolean();
+
+    /**
+     * The number of connections that ended since the copy was last live, which doubles the reconnect delay up to 32 times.
+     */
+    private final AtomicInteger failedConnections = new AtomicInteger();
+
+    private volatile boolean live;
+
+    private volatile boolean closed;
+
+    private volatile long lastEventNanos;
+
+    private volatile Flow.Subscription subscription;
+
+    /**
+     * Runs the reconnects, the idle check and the coalesced pushes.
+     */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "book-change-feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private FirebaseBookRequests requests;
+
+    @PostConstruct
+    void init() {
+        requests = new FirebaseBookRequests(firebaseRtdbBaseUrl, Book.class.getSimpleName(), Duration.ofSeconds(requestTimeoutSeconds));
+    }
+
+    /**
+     * Open the streaming connection when the application starts, if streaming is enabled.
+     */
+    void onStartup(@Observes @Initialized(ApplicationScoped.class) Object ignored) {
+        if (enabled) {
+            long checkIntervalMillis = Math.max(1000, idleTimeoutSeconds * 1000 / 2);
+            scheduler.scheduleWithFixedDelay(this::checkIdle, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+            connect();
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        closed = true;
+        live = false;
+        Flow.Subscription currentSubscription = subscription;
+        if (currentSubscription != null) {
+            currentSubscription.cancel();
+        }
+        scheduler.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Check if the copy holds every change streamed so far, so reads can be served from it.
+     */
+    public boolean isLive() {
+        return live;
+    }
+
+    public Optional<Book> getBookById(String id) {
+        return Optional.ofNullable(booksById.get(id))
+                .map(currentFeedBook -> Book.copyOf(currentFeedBook.book()));
+    }
+
+    public List<Book> getAllBooks() {
+        return booksById.values().stream()
+                .map(currentFeedBook -> Book.copyOf(currentFeedBook.book()))
+                .toList();
+    }
+
+    public void forEachBook(Consumer<? super Book> action) {
+        booksById.values().forEach(currentFeedBook -> action.accept(Book.copyOf(currentFeedBook.book())));
+    }
+
+    public BookPage page(int offset, int limit, String sortField, boolean ascending, String filter) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+        return BookQueries.page(booksById.values().stream().map(FeedBook::book), offset, limit, sortField, ascending, filter);
+    }
+
+    /**
+     * The sequence number of the last event applied to the copy.
+     */
+    public long changeSequence() {
+        return changeSequence.get();
+    }
+
+    /**
+     * The sequence number of the last event that changed the book with the id. A book that is not in the copy
+     * may have just been deleted, so the sequence number of the last event of any book is returned for it.
+     */
+    public long changeSequenceOf(String id) {
+        FeedBook feedBook = booksById.get(id);
+        return feedBook != null ? feedBook.changeSequence() : changeSequence.get();
+    }
+
+    /**
+     * The sequence number of the last event that changed the book with the id, or 0 if the copy does not have the book.
+     */
+    long lastChangeSequenceOf(String id) {
+        FeedBook feedBook = booksById.get(id);
+        return feedBook != null ? feedBook.changeSequence() : 0;
+    }
+
+    /**
+     * Tell the listener about every event applied to the copy from now on. Listeners are called on the thread that
+     * applies the events, one event at a time, so they must not block.
+     */
+    void addChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Open a new streaming connection. Events are parsed line by line as they arrive on the HttpClient executor.
+     */
+    private void connect() {
+        long connection = connectionNumber.incrementAndGet();
+        live = false;
+        lastEventNanos = System.nanoTime();
+        var eventSubscriber = new EventSubscriber(connection);
+        httpClient.sendAsync(requests.stream(), responseInfo -> responseInfo.statusCode() == 200
+                        ? HttpResponse.BodySubscribers.fromLineSubscriber(eventSubscriber)
+                        : HttpResponse.BodySubscribers.discarding())
+                // The body completes only when the connection ends, normally or not
+                .whenComplete((httpResponse, exception) -> reconnect(connection));
+    }
+
+    /**
+     * Reopen the connection after the reconnect delay, unless it has already been replaced or the feed is closed.
+     */
+    private void reconnect(long connection) {
+        if (closed || !connectionNumber.compareAndSet(connection, connection + 1)) {
+            return;
+        }
+        live = false;
+        // Keep the idle check from dropping the connection again while it is being reopened
+        lastEventNanos = System.nanoTime();
+        long delayMillis = reconnectDelayMillis << Math.min(failedConnections.getAndIncrement(), 5);
+        scheduler.schedule(this::connect, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drop a connection that has been silent for longer than the idle timeout. Cancelling does not complete
+     * the Http Response, so the reconnect is scheduled here.
+     */
+    private void checkIdle() {
+        long connection = connectionNumber.get();
+        if (System.nanoTime() - lastEventNanos > TimeUnit.SECONDS.toNanos(idleTimeoutSeconds)) {
+            Flow.Subscription currentSubscription = subscription;
+            if (currentSubscription != null) {
+                currentSubscription.cancel();
+            }
+            reconnect(connection);
+        }
+    }
+
+    /**
+     * Apply one Server-Sent Event to the copy.
+     */
+    private void onEvent(String eventName, String data) {
+        switch (eventName) {
+            case "put", "patch" -> {
+                JsonObject eventObject;
+                try (var jsonReader = Json.createReader(new StringReader(data))) {
+                    eventObject = jsonReader.readObject();
+                }
+                String path = eventObject.getString("path");
+                JsonValue value = eventObject.get("data");
+                long sequence = changeSequence.incrementAndGet();
+                Set<String> changedIds = new HashSet<>();
+                if (eventName.equals("put")) {
+                    changedIds.add(put(path, value, sequence));
+                } else if (value instanceof JsonObject changesByPath) {
+                    // A patch writes each child of the object at its own path below the event path
+                    String parentPath = path.endsWith("/") ? path : path + "/";
+                    changesByPath.forEach((childPath, childValue) -> changedIds.add(put(parentPath + childPath, childValue, sequence)));
+                }
+                // A null id is a put of the whole collection
+                Set<String> ids = changedIds.contains(null) ? null : changedIds;
+                changeListeners.forEach(currentListener -> currentListener.onChange(sequence, ids));
+                schedulePush();
+            }
+            // Security rules no longer allow reading the collection, so the copy cannot be trusted until reconnected
+            case "cancel", "auth_revoked" -> throw new IllegalStateException("The book stream was " + eventName);
+            default -> {
+                // keep-alive events only reset the idle timer
+            }
+        }
+    }
+
+    /**
+     * Write the value at the path of the collection: the whole collection, one book or one property of a book.
+     *
+     * @return the id of the changed book, or null if the whole collection was replaced.
+     */
+    private String put(String path, JsonValue value, long sequence) {
+        String[] segments = Arrays.stream(path.split("/")).filter(segment -> !segment.isEmpty()).toArray(String[]::new);
+        if (segments.length == 0) {
+            var newBooksById = new ConcurrentSkipListMap<String, FeedBook>();
+            if (value instanceof JsonObject booksObject) {
+                for (Map.Entry<String, JsonValue> currentEntry : booksObject.entrySet()) {
+                    if (currentEntry.getValue() instanceof JsonObject bookObject) {
+                        newBooksById.put(currentEntry.getKey(),
+                                new FeedBook(FirebaseBookJsonReader.toBook(currentEntry.getKey(), bookObject), sequence));
+                    }
+                }
+            }
+            booksById = newBooksById;
+            live = true;
+            failedConnections.set(0);
+            return null;
+        }
+        if (segments.length == 1) {
+            if (value instanceof JsonObject bookObject) {
+                booksById.put(segments[0], new FeedBook(FirebaseBookJsonReader.toBook(segments[0], bookObject), sequence));
+            } else {
+                booksById.remove(segments[0]);
+            }
+        } else if (segments.length == 2) {
+            FeedBook existing = booksById.get(segments[0]);
+            Book changedBook;
+            if (existing != null) {
+                changedBook = Book.copyOf(existing.book());
+            } else {
+                changedBook = new Book();
+                changedBook.setId(segments[0]);
+            }
+            FirebaseBookJsonReader.setProperty(changedBook, segments[1], value);
+            booksById.put(segments[0], new FeedBook(changedBook, sequence));
+        }
+        return segments[0];
+    }
+
+    /**
+     * Push one message for all the changes applied within the push interval.
+     */
+    private void schedulePush() {
+        if (pushPending.compareAndSet(false, true)) {
+            scheduler.schedule(() -> {
+                pushPending.set(false);
+                pushContext.send(CHANGED_MESSAGE);
+            }, pushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Collects the lines of the event stream into events. A blank line ends an event.
+     */
+    private class EventSubscriber implements Flow.Subscriber<String> {
+
+        private final long connection;
+
+        private String eventName = "message";
+
+        private final StringBuilder data = new StringBuilder();
+
+        EventSubscriber(long connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription newSubscription) {
+            subscription = newSubscription;
+            newSubscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(String line) {
+            if (connection != connectionNumber.get()) {
+                return;
+            }
+            lastEventNanos = System.nanoTime();
+            if (line.isEmpty()) {
+                try {
+                    onEvent(eventName, data.toString());
+                } catch (RuntimeException e) {
+                    // An event that cannot be applied leaves the copy out of step, so start over with a new connection
+                    subscription.cancel();
+                    reconnect(connection);
+                }
+                eventName = "message";
+                data.setLength(0);
+            } else if (line.startsWith("event:")) {
+                eventName = line.substring("event:".length()).strip();
+            } else if (line.startsWith("data:")) {
+                if (!data.isEmpty()) {
+                    data.append('\n');
+                }
+                data.append(line.substring("data:".length()).stripLeading());
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            // The Http Response completes exceptionally, which reconnects
+        }
+
+        @Override
+        public void onComplete() {
+            // The Http Response completes, which reconnects
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+import jakarta.json.stream.JsonParser;
+
+import java.io.InputStream;
+import java.time.LocalDate;
+import java.util.function.Consumer;
+
+/**
+ * Reads a Firebase Realtime Database JSON object of Book objects keyed by their unique key name
+ * with the streaming JsonParser event API, building one Book at a time without binding the whole document.
+ */
+final class FirebaseBookJsonReader {
+
+    private FirebaseBookJsonReader() {
+    }
+
+    /**
+     * Parse the JSON object and pass each Book to the action as soon as it has been read.
+     *
+     * @param inputStream The JSON object returned by Firebase, or null when there are no books. The stream is closed.
+     * @param action      The action to perform on each Book, with its id set to its key name.
+     */
+    static void forEachBook(InputStream inputStream, Consumer<? super Book> action) {
+        try (JsonParser parser = Json.createParser(inputStream)) {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+                // Firebase returns null when there is no data at the path
+                return;
+            }
+            while (parser.hasNext()) {
+                JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_OBJECT) {
+                    return;
+                }
+                // Each property name is the unique key name of a Book object
+                String id = parser.getString();
+                if (parser.next() != JsonParser.Event.START_OBJECT) {
+                    skipValue(parser);
+                    continue;
+                }
+                action.accept(readBook(parser, id));
+            }
+        }
+    }
+
+    /**
+     * Read the properties of a Book object after its START_OBJECT event up to and including its END_OBJECT event.
+     */
+    private static Book readBook(JsonParser parser, String id) {
+        var currentBook = new Book();
+        currentBook.setId(id);
+        JsonParser.Event event;
+        while ((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+            if (event != JsonParser.Event.KEY_NAME) {
+                continue;
+            }
+            String propertyName = parser.getString();
+            JsonParser.Event valueEvent = parser.next();
+            switch (propertyName) {
+                case "title" -> currentBook.setTitle(stringValue(parser, valueEvent));
+                case "author" -> currentBook.setAuthor(stringValue(parser, valueEvent));
+                case "publishDate" -> {
+                    String publishDate = stringValue(parser, valueEvent);
+                    currentBook.setPublishDate(publishDate != null ? LocalDate.parse(publishDate) : null);
+                }
+                case "readAlready" -> currentBook.setReadAlready(valueEvent == JsonParser.Event.VALUE_TRUE);
+                default -> skipValue(parser, valueEvent);
+            }
+        }
+        return currentBook;
+    }
+
+    /**
+     * Build a Book from a JSON object that has already been parsed, such as the data of a streaming event.
+     */
+    static Book toBook(String id, JsonObject bookObject) {
+        var currentBook = new Book();
+        currentBook.setId(id);
+        bookObject.forEach((propertyName, value) -> setProperty(currentBook, propertyName, value));
+        return currentBook;
+    }
+
+    /**
+     * Set one property of a Book from its JSON value, where a JSON null clears it. Unknown properties are ignored.
+     */
+    static void setProperty(Book book, String propertyName, JsonValue value) {
+        String stringValue = value instanceof JsonString jsonString ? jsonString.getString() : null;
+        switch (propertyName) {
+            case "title" -> book.setTitle(stringValue);
+            case "author" -> book.setAuthor(stringValue);
+            case "publishDate" -> book.setPublishDate(stringValue != null ? LocalDate.parse(stringValue) : null);
+            case "readAlready" -> book.setReadAlready(value == JsonValue.TRUE);
+            default -> {
+                // Not a Book property
+            }
+        }
+    }
+
+    private static String stringValue(JsonParser parser, JsonParser.Event valueEvent) {
+        if (valueEvent == JsonParser.Event.VALUE_STRING) {
+            return parser.getString();
+        }
+        skipValue(parser, valueEvent);
+        return null;
+    }
+
+    private static void skipValue(JsonParser parser) {
+        skipValue(parser, parser.currentEvent());
+    }
+
+    private static void skipValue(JsonParser parser, JsonParser.Event valueEvent) {
+        if (valueEvent == JsonParser.Event.START_OBJECT) {
+            parser.skipObject();
+        } else if (valueEvent == JsonParser.Event.START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+}
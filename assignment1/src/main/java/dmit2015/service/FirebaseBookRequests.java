@@ -0,0 +1,142 @@
+package dmit2015.service;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * Immutable Http Request templates for the Firebase Realtime Database REST API paths of a collection of books.
+ * <p>
+ * The requests for the collection path are built once and reused, and per-key requests are copied from a
+ * template that already carries the request timeout and headers, so no format string is parsed per call.
+ * <p>
+ * Requests for one key ask Firebase for the ETag of the data, and writes given an ETag are conditional
+ * on it, so Firebase rejects them with status code 412 when the data was changed in the meantime.
+ *
+ * @link <a href="https://firebase.google.com/docs/database/rest/app-management#conditional_requests">Conditional Requests</a>
+ */
+final class FirebaseBookRequests {
+
+    /**
+     * The request header that asks Firebase to return the ETag of the data in the ETag response header.
+     */
+    private static final String ETAG_REQUEST_HEADER = "X-Firebase-ETag";
+
+    /**
+     * The URL to the collection without the .json suffix, for example https://example.firebaseio.com/Book
+     */
+    private final String collectionUrl;
+
+    /**
+     * The URL to the Firebase Realtime Database to access all data.
+     */
+    private final URI collectionUri;
+
+    /**
+     * The template that every request is copied from.
+     */
+    private final HttpRequest template;
+
+    private final HttpRequest getAllRequest;
+
+    private final HttpRequest getKeysRequest;
+
+    private final HttpRequest streamRequest;
+
+    FirebaseBookRequests(String firebaseRtdbBaseUrl, String collectionName, Duration requestTimeout) {
+        collectionUrl = firebaseRtdbBaseUrl + "/" + collectionName;
+        collectionUri = URI.create(collectionUrl + ".json");
+        template = HttpRequest.newBuilder(collectionUri)
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json")
+                .GET()
+                .build();
+        getAllRequest = template;
+        getKeysRequest = copy().uri(URI.create(collectionUrl + ".json?shallow=true")).build();
+        streamRequest = copy().header("Accept", "text/event-stream").build();
+    }
+
+    /**
+     * GET all data of the collection.
+     */
+    HttpRequest getAll() {
+        return getAllRequest;
+    }
+
+    /**
+     * GET only the keys of the collection using a shallow query.
+     */
+    HttpRequest getKeys() {
+        return getKeysRequest;
+    }
+
+    /**
+     * GET the collection as a stream of Server-Sent Events with every change to it.
+     * The request timeout only applies until the response headers arrive.
+     */
+    HttpRequest stream() {
+        return streamRequest;
+    }
+
+    /**
+     * GET the collection with the query string, which must start with "?" and be URL encoded.
+     */
+    HttpRequest query(String queryString) {
+        return copy().uri(URI.create(collectionUrl + ".json" + queryString)).build();
+    }
+
+    /**
+     * POST the JSON to push new data to the collection.
+     */
+    HttpRequest post(String requestBodyJson) {
+        return copy().POST(HttpRequest.BodyPublishers.ofString(requestBodyJson, StandardCharsets.UTF_8)).build();
+    }
+
+    /**
+     * PATCH the collection with the JSON object to write many keys at once.
+     */
+    HttpRequest patch(String requestBodyJson) {
+        return copy().method("PATCH", HttpRequest.BodyPublishers.ofString(requestBodyJson, StandardCharsets.UTF_8)).build();
+    }
+
+    /**
+     * GET the data with the unique key name and its ETag.
+     */
+    HttpRequest get(String id) {
+        return copy().uri(itemUri(id)).header(ETAG_REQUEST_HEADER, "true").build();
+    }
+
+    /**
+     * PUT the JSON to write over the data with the unique key name.
+     *
+     * @param etag The ETag the data must still have, or null to write over any data.
+     */
+    HttpRequest put(String id, String requestBodyJson, String etag) {
+        return conditional(copy().uri(itemUri(id)), etag)
+                .PUT(HttpRequest.BodyPublishers.ofString(requestBodyJson, StandardCharsets.UTF_8))
+                .build();
+    }
+
+    /**
+     * DELETE the data with the unique key name.
+     *
+     * @param etag The ETag the data must still have, or null to delete any data.
+     */
+    HttpRequest delete(String id, String etag) {
+        return conditional(copy().uri(itemUri(id)), etag).DELETE().build();
+    }
+
+    private static HttpRequest.Builder conditional(HttpRequest.Builder builder, String etag) {
+        builder.header(ETAG_REQUEST_HEADER, "true");
+        return etag != null ? builder.header("if-match", etag) : builder;
+    }
+
+    private HttpRequest.Builder copy() {
+        return HttpRequest.newBuilder(template, (name, value) -> true);
+    }
+
+    private URI itemUri(String id) {
+        return URI.create(collectionUrl + "/" + id + ".json");
+    }
+}
@@ -0,0 +1,651 @@
+package dmit2015.service;
+
+import dmit2015.metrics.MetricsRegistry;
+import dmit2015.model.Book;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps the write-behind queue of the Book collection: a write is applied to the pending writes and
+ * acknowledged at once, then flushed to the Firebase Realtime Database in the background.
+ * <p>
+ * Every write is appended to a journal and forced to the storage device before it is acknowledged, in the log format
+ * of the {@link FileBookService}, so the pending writes survive a crash and are flushed after the restart.
+ * Only the latest pending write of each book is kept, so repeated edits of a book are coalesced into one.
+ * A flush sends up to batch size pending writes as multi-path PATCH requests through the {@link FirebaseAsyncBookService},
+ * and flushes run one at a time, so the writes of one book reach Firebase in the order they were made.
+ * Writes that fail stay pending and are retried with an exponential backoff. Once the pending writes are all flushed,
+ * or the journal grows past 1 MiB, the journal is rewritten with only the writes still pending.
+ * <p>
+ * Writes are flushed at least once: a crash after a flush and before the journal is rewritten sends them again.
+ * A multi-path PATCH cannot be conditional, so versions are only checked against the pending writes,
+ * and a flushed write replaces any change another client made to the book in Firebase.
+ * <p>
+ * Write-behind is off unless enabled in `src/main/resources/META-INF/microprofile-config.properties` file.
+ */
+@Named("firebaseBookWriteBehind")
+@ApplicationScoped
+public class FirebaseBookWriteBehind {
+
+    /**
+     * The latest write of a book that is not flushed yet, with the sequence number it was written with.
+     * A delete has no book.
+     */
+    public record PendingWrite(long sequence, Book book) {
+
+        public boolean isDelete() {
+            return book == null;
+        }
+    }
+
+    private static final long JOURNAL_ROTATE_BYTES = 1 << 20;
+
+    /**
+     * True to acknowledge writes once they are journaled and flush them to Firebase in the background.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.write.behind.enabled", defaultValue = "false")
+    private boolean enabled;
+
+    /**
+     * The directory of the journal segments of the pending writes.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.write.behind.journal.dir", defaultValue = "data/write-behind")
+    private String journalDirectory;
+
+    /**
+     * The number of milliseconds writes are collected for before they are flushed together.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.write.behind.flush.interval.millis", defaultValue = "200")
+    private long flushIntervalMillis;
+
+    /**
+     * The maximum number of milliseconds to wait before retrying a failed flush.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.write.behind.max.retry.delay.millis", defaultValue = "30000")
+    private long maxRetryDelayMillis;
+
+    /**
+     * The maximum number of pending writes sent by one flush.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.batch.size", defaultValue = "500")
+    private int batchSize;
+
+    @Inject
+    private FirebaseAsyncBookService asyncBookService;
+
+    /**
+     * The service the queue writes for, whose change count is told to expect the flushed writes back from the feed.
+     */
+    @Inject
+    private FirebaseHttpClientBookService firebaseBookService;
+
+    @Inject
+    private MetricsRegistry metricsRegistry;
+
+    /**
+     * Serializes the writes to the journal, so the journal has the writes in the order they are applied.
+     * Taken before the pending lock.
+     */
+    private final ReentrantLock journalLock = new ReentrantLock();
+
+    /**
+     * Guards the pending writes. Only held briefly, so reads never wait for the journal to be forced.
+     */
+    private final ReentrantLock pendingLock = new ReentrantLock();
+
+    /**
+     * The pending write of each book id, in the order the books were first written. Guarded by pendingLock.
+     */
+    private final Map<String, PendingWrite> pendingWritesById = new LinkedHashMap<>();
+
+    /**
+     * The sequence number of the last write. Written under journalLock and volatile, so it can be read as a change count without it.
+     */
+    private volatile long lastSequence;
+
+    /**
+     * Tells the local versions given by this run apart from those restored from the journal of an earlier run.
+     */
+    private final String versionPrefix = String.format("local-%x-", System.currentTimeMillis());
+
+    private Path directory;
+
+    private FileChannel journalChannel;
+
+    private long segmentNumber;
+
+    private final LongAdder flushedWriteCount = new LongAdder();
+
+    private final LongAdder failedFlushCount = new LongAdder();
+
+    /**
+     * The number of flushes that failed in a row, which doubles the retry delay. Only used by the scheduler thread.
+     */
+    private int consecutiveFailures;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "book-write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        directory = Path.of(journalDirectory);
+        try {
+            Files.createDirectories(directory);
+            recover();
+            rotateJournal();
+        } catch (IOException e) {
+            String errorMessage = String.format("Could not recover the pending book writes in %s: %s", directory, e.getMessage());
+            throw new RuntimeException(errorMessage, e);
+        }
+        metricsRegistry.registerGauge("dmit2015_book_write_behind_pending", "The book writes acknowledged and not flushed to Firebase yet.", this::getPendingCount);
+        metricsRegistry.registerCounter("dmit2015_book_write_behind_flushed_total", "The book writes flushed to Firebase.", this::getFlushedWriteCount);
+        metricsRegistry.registerCounter("dmit2015_book_write_behind_failed_flushes_total", "The flushes that failed and were retried.", this::getFailedFlushCount);
+        scheduler.schedule(this::flushAndReschedule, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create the bean when the application starts, so the writes left in the journal are flushed without waiting for a request.
+     */
+    void onStartup(@Observes @Initialized(ApplicationScoped.class) Object ignored) {
+    }
+
+    /**
+     * Stop flushing and close the journal. The writes still pending are flushed after the next start.
+     */
+    @PreDestroy
+    void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (journalChannel != null) {
+            journalLock.lock();
+            try {
+                journalChannel.close();
+            } catch (IOException e) {
+                // Every write was already forced before it was acknowledged
+            } finally {
+                journalLock.unlock();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Write a new book with a client-generated push key as its id.
+     *
+     * @return The book with its id and local version set.
+     */
+    public Book createBook(Book book) {
+        Objects.requireNonNull(book, "Book to create must not be null");
+        Book pendingBook = Book.copyOf(book);
+        pendingBook.setId(FirebasePushIds.next());
+        write(List.of(BookLog.Operation.put(pendingBook)), null, null);
+        book.setId(pendingBook.getId());
+        book.setVersion(pendingBook.getVersion());
+        return book;
+    }
+
+    /**
+     * Write over a book. When the book has a version and a write of it is pending, the version must be that of the pending write.
+     *
+     * @return The book with its new local version set.
+     * @throws BookVersionConflictException if a write pending for the book has another version.
+     */
+    public Book updateBook(Book book) {
+        Objects.requireNonNull(book, "Book to update must not be null");
+        Objects.requireNonNull(book.getId(), "Book id must not be null");
+        Book pendingBook = Book.copyOf(book);
+        write(List.of(BookLog.Operation.put(pendingBook)), book.getId(), book.getVersion());
+        book.setVersion(pendingBook.getVersion());
+        return book;
+    }
+
+    /**
+     * Delete a book, checking the expected version like {@link #updateBook(Book)}.
+     *
+     * @param expectedVersion The version the book was read with, or null to delete any version.
+     */
+    public void deleteBookById(String id, String expectedVersion) {
+        Objects.requireNonNull(id, "id must not be null");
+        write(List.of(BookLog.Operation.delete(id)), id, expectedVersion);
+    }
+
+    /**
+     * Write new books with client-generated push keys as one journal record.
+     */
+    public List<BookBatchResult> createBooks(Collection<Book> books) {
+        var pendingBooks = new ArrayList<Book>(books.size());
+        var operations = new ArrayList<BookLog.Operation>(books.size());
+        for (Book currentBook : books) {
+            Book pendingBook = null;
+            if (currentBook != null) {
+                pendingBook = Book.copyOf(currentBook);
+                pendingBook.setId(FirebasePushIds.next());
+                operations.add(BookLog.Operation.put(pendingBook));
+            }
+            pendingBooks.add(pendingBook);
+        }
+        String errorMessage = writeBatch(operations);
+        var results = new ArrayList<BookBatchResult>(books.size());
+        int index = 0;
+        for (Book currentBook : books) {
+            Book pendingBook = pendingBooks.get(index++);
+            if (currentBook == null) {
+                results.add(BookBatchResult.failure(null, "Book to create must not be null"));
+            } else if (errorMessage != null) {
+                results.add(BookBatchResult.failure(null, errorMessage));
+            } else {
+                currentBook.setId(pendingBook.getId());
+                currentBook.setVersion(pendingBook.getVersion());
+                results.add(BookBatchResult.success(currentBook.getId(), currentBook));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Write over many books as one journal record. Like a multi-path PATCH, the versions are not checked.
+     */
+    public List<BookBatchResult> updateBooks(Collection<Book> books) {
+        var pendingBooks = new ArrayList<Book>(books.size());
+        var operations = new ArrayList<BookLog.Operation>(books.size());
+        for (Book currentBook : books) {
+            Book pendingBook = null;
+            if (currentBook != null && currentBook.getId() != null) {
+                pendingBook = Book.copyOf(currentBook);
+                operations.add(BookLog.Operation.put(pendingBook));
+            }
+            pendingBooks.add(pendingBook);
+        }
+        String errorMessage = writeBatch(operations);
+        var results = new ArrayList<BookBatchResult>(books.size());
+        int index = 0;
+        for (Book currentBook : books) {
+            Book pendingBook = pendingBooks.get(index++);
+            if (pendingBook == null) {
+                results.add(BookBatchResult.failure(null, "Book and Book id must not be null"));
+            } else if (errorMessage != null) {
+                results.add(BookBatchResult.failure(currentBook.getId(), errorMessage));
+            } else {
+                currentBook.setVersion(pendingBook.getVersion());
+                results.add(BookBatchResult.success(currentBook.getId(), currentBook));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Delete many books as one journal record.
+     */
+    public List<BookBatchResult> deleteBooksByIds(Collection<String> ids) {
+        List<BookLog.Operation> operations = ids.stream()
+                .filter(Objects::nonNull)
+                .map(BookLog.Operation::delete)
+                .toList();
+        String errorMessage = writeBatch(operations);
+        return ids.stream()
+                .map(currentId -> currentId == null
+                        ? BookBatchResult.failure(null, "id must not be null")
+                        : errorMessage != null ? BookBatchResult.failure(currentId, errorMessage) : BookBatchResult.success(currentId, null))
+                .toList();
+    }
+
+    public boolean hasPendingWrites() {
+        pendingLock.lock();
+        try {
+            return !pendingWritesById.isEmpty();
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * The pending write of the book with a copy of its book, or null if no write of the book is pending.
+     */
+    public PendingWrite getPendingWrite(String id) {
+        pendingLock.lock();
+        try {
+            return copyOf(pendingWritesById.get(id));
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * Copies of the pending writes by book id, in the order the books were first written.
+     */
+    public Map<String, PendingWrite> getPendingWrites() {
+        pendingLock.lock();
+        try {
+            var pendingWrites = new LinkedHashMap<String, PendingWrite>(pendingWritesById.size() * 2);
+            pendingWritesById.forEach((id, pendingWrite) -> pendingWrites.put(id, copyOf(pendingWrite)));
+            return pendingWrites;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    public int getPendingCount() {
+        pendingLock.lock();
+        try {
+            return pendingWritesById.size();
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * The number of writes accepted so far, including those recovered from the journal.
+     */
+    public long getWriteCount() {
+        return lastSequence;
+    }
+
+    public long getFlushedWriteCount() {
+        return flushedWriteCount.sum();
+    }
+
+    public long getFailedFlushCount() {
+        return failedFlushCount.sum();
+    }
+
+    /**
+     * Write a batch, returning the reason it failed instead of throwing, so each book of the batch can report it.
+     */
+    private String writeBatch(List<BookLog.Operation> operations) {
+        if (operations.isEmpty()) {
+            return null;
+        }
+        try {
+            write(operations, null, null);
+            return null;
+        } catch (RuntimeException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * Give the books of the puts their local version, append the operations to the journal as one record,
+     * force it and apply the operations to the pending writes.
+     *
+     * @param checkedId       The id of the book whose version is checked, or null to check none.
+     * @param expectedVersion The version the pending write of the checked book must have, or null to check none.
+     */
+    private void write(List<BookLog.Operation> operations, String checkedId, String expectedVersion) {
+        journalLock.lock();
+        try {
+            if (journalChannel == null) {
+                throw new IllegalStateException("Write-behind is not enabled");
+            }
+            if (checkedId != null && expectedVersion != null) {
+                PendingWrite pendingWrite = getPendingWrite(checkedId);
+                String pendingVersion = pendingWrite == null || pendingWrite.isDelete() ? null : pendingWrite.book().getVersion();
+                if (pendingWrite != null && !expectedVersion.equals(pendingVersion)) {
+                    throw new BookVersionConflictException(checkedId, expectedVersion, pendingVersion);
+                }
+            }
+            long firstSequence = lastSequence + 1;
+            for (int index = 0; index < operations.size(); index++) {
+                if (!operations.get(index).isDelete()) {
+                    operations.get(index).book().setVersion(versionPrefix + (firstSequence + index));
+                }
+            }
+            append(BookLog.encodeRecord(operations));
+            lastSequence += operations.size();
+            pendingLock.lock();
+            try {
+                for (int index = 0; index < operations.size(); index++) {
+                    BookLog.Operation currentOperation = operations.get(index);
+                    pendingWritesById.put(currentOperation.id(), new PendingWrite(firstSequence + index, currentOperation.book()));
+                }
+            } finally {
+                pendingLock.unlock();
+            }
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Append a record to the journal and force it. A record that cannot be written completely is cut off again,
+     * so the next record does not follow a torn one. Must hold the journal lock.
+     */
+    private void append(byte[] record) {
+        long position = -1;
+        try {
+            position = journalChannel.size();
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                journalChannel.write(buffer);
+            }
+            journalChannel.force(false);
+        } catch (IOException e) {
+            if (position >= 0) {
+                try {
+                    journalChannel.truncate(position);
+                } catch (IOException truncateException) {
+                    e.addSuppressed(truncateException);
+                }
+            }
+            String errorMessage = String.format("Could not journal the book write: %s", e.getMessage());
+            throw new UncheckedIOException(errorMessage, e);
+        }
+    }
+
+    /**
+     * Flush until no full batch is pending, then schedule the next flush after the interval,
+     * or after the retry delay if the flush failed.
+     */
+    private void flushAndReschedule() {
+        long delayMillis = flushIntervalMillis;
+        try {
+            while (flush()) {
+                // A full batch was flushed, so more writes may be waiting
+            }
+            consecutiveFailures = 0;
+        } catch (RuntimeException e) {
+            failedFlushCount.increment();
+            consecutiveFailures++;
+            delayMillis = Math.min(maxRetryDelayMillis, flushIntervalMillis << Math.min(consecutiveFailures, 20));
+        }
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(this::flushAndReschedule, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send up to batch size pending writes to Firebase, then drop those that were flushed unless the book was written again since.
+     *
+     * @return true if a full batch was flushed.
+     * @throws RuntimeException if any of the writes could not be flushed. Those writes stay pending.
+     */
+    private boolean flush() {
+        var flushedWrites = new LinkedHashMap<String, PendingWrite>();
+        pendingLock.lock();
+        try {
+            for (Map.Entry<String, PendingWrite> currentEntry : pendingWritesById.entrySet()) {
+                if (flushedWrites.size() == batchSize) {
+                    break;
+                }
+                flushedWrites.put(currentEntry.getKey(), currentEntry.getValue());
+            }
+        } finally {
+            pendingLock.unlock();
+        }
+        if (flushedWrites.isEmpty()) {
+            return false;
+        }
+
+        var books = new ArrayList<Book>();
+        var deletedIds = new ArrayList<String>();
+        flushedWrites.forEach((id, pendingWrite) -> {
+            if (pendingWrite.isDelete()) {
+                deletedIds.add(id);
+            } else {
+                books.add(pendingWrite.book());
+            }
+        });
+        // The writes were counted when they were queued, so the feed reporting them back must not count them again
+        firebaseBookService.expectWrites(flushedWrites.keySet());
+        CompletableFuture<List<BookBatchResult>> putResults = books.isEmpty()
+                ? CompletableFuture.completedFuture(List.of())
+                : asyncBookService.updateBooks(books);
+        CompletableFuture<List<BookBatchResult>> deleteResults = deletedIds.isEmpty()
+                ? CompletableFuture.completedFuture(List.of())
+                : asyncBookService.deleteBooksByIds(deletedIds);
+        Set<String> successfulIds = new HashSet<>();
+        for (BookBatchResult currentResult : putResults.join()) {
+            if (currentResult.isSuccessful()) {
+                successfulIds.add(currentResult.id());
+            }
+        }
+        for (BookBatchResult currentResult : deleteResults.join()) {
+            if (currentResult.isSuccessful()) {
+                successfulIds.add(currentResult.id());
+            }
+        }
+
+        journalLock.lock();
+        try {
+            boolean journalCompactable;
+            pendingLock.lock();
+            try {
+                for (String currentId : successfulIds) {
+                    // A book written again during the flush keeps its newer pending write
+                    pendingWritesById.remove(currentId, flushedWrites.get(currentId));
+                }
+                journalCompactable = pendingWritesById.isEmpty();
+            } finally {
+                pendingLock.unlock();
+            }
+            flushedWriteCount.add(successfulIds.size());
+            if (journalCompactable || journalChannel.size() > JOURNAL_ROTATE_BYTES) {
+                rotateJournal();
+            }
+        } catch (IOException e) {
+            // The flushed writes are sent again after a restart, which rewrites the journal
+        } finally {
+            journalLock.unlock();
+        }
+
+        if (successfulIds.size() < flushedWrites.size()) {
+            String errorMessage = String.format("%d of %d book writes could not be flushed", flushedWrites.size() - successfulIds.size(), flushedWrites.size());
+            throw new RuntimeException(errorMessage);
+        }
+        return flushedWrites.size() == batchSize;
+    }
+
+    /**
+     * Replay every journal segment in order into the pending writes, truncating a record torn by a crash in the last segment.
+     */
+    private void recover() throws IOException {
+        List<Long> segmentNumbers = BookLog.segmentNumbers(directory);
+        for (int position = 0; position < segmentNumbers.size(); position++) {
+            segmentNumber = segmentNumbers.get(position);
+            boolean lastSegment = position == segmentNumbers.size() - 1;
+            BookLog.replay(BookLog.segmentPath(directory, segmentNumber), lastSegment, operations -> {
+                for (BookLog.Operation currentOperation : operations) {
+                    pendingWritesById.put(currentOperation.id(), new PendingWrite(++lastSequence, currentOperation.book()));
+                }
+            });
+        }
+    }
+
+    /**
+     * Start a new journal segment that holds the pending writes, then delete the segments before it.
+     * Must hold the journal lock.
+     */
+    private void rotateJournal() throws IOException {
+        long newSegmentNumber = segmentNumber + 1;
+        FileChannel newJournalChannel = FileChannel.open(BookLog.segmentPath(directory, newSegmentNumber),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            var operations = new ArrayList<BookLog.Operation>();
+            pendingLock.lock();
+            try {
+                pendingWritesById.forEach((id, pendingWrite) -> operations.add(pendingWrite.isDelete()
+                        ? BookLog.Operation.delete(id)
+                        : BookLog.Operation.put(pendingWrite.book())));
+            } finally {
+                pendingLock.unlock();
+            }
+            if (!operations.isEmpty()) {
+                ByteBuffer buffer = ByteBuffer.wrap(BookLog.encodeRecord(operations));
+                while (buffer.hasRemaining()) {
+                    newJournalChannel.write(buffer);
+                }
+                newJournalChannel.force(false);
+            }
+            BookLog.forceDirectory(directory);
+        } catch (IOException e) {
+            newJournalChannel.close();
+            Files.deleteIfExists(BookLog.segmentPath(directory, newSegmentNumber));
+            throw e;
+        }
+
+        FileChannel oldJournalChannel = journalChannel;
+        journalChannel = newJournalChannel;
+        segmentNumber = newSegmentNumber;
+        if (oldJournalChannel != null) {
+            oldJournalChannel.close();
+        }
+        for (long currentSegmentNumber : BookLog.segmentNumbers(directory)) {
+            if (currentSegmentNumber < newSegmentNumber) {
+                Files.deleteIfExists(BookLog.segmentPath(directory, currentSegmentNumber));
+            }
+        }
+        BookLog.forceDirectory(directory);
+    }
+
+    private static PendingWrite copyOf(PendingWrite pendingWrite) {
+        if (pendingWrite == null || pendingWrite.isDelete()) {
+            return pendingWrite;
+        }
+        return new PendingWrite(pendingWrite.sequence(), Book.copyOf(pendingWrite.book()));
+    }
+}
@@ -0,0 +1,112 @@
+package dmit2015.service;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Disposes;
+import jakarta.enterprise.inject.Produces;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class produces the one HttpClient shared by all the Firebase services so they share its connection pool.
+ * <p>
+ * The HTTP version, connect timeout, executor and keep-alive behavior are defined in
+ * `src/main/resources/META-INF/microprofile-config.properties` file.
+ */
+@ApplicationScoped
+public class FirebaseHttpClientProducer {
+
+    /**
+     * The preferred HTTP version, HTTP_2 or HTTP_1_1. HTTP_2 falls back to HTTP/1.1 when the server does not support it.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.http.version", defaultValue = "HTTP_2")
+    private HttpClient.Version version;
+
+    /**
+     * The maximum number of seconds to wait for a connection to be established.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.http.connect.timeout.seconds", defaultValue = "5")
+    private long connectTimeoutSeconds;
+
+    /**
+     * The number of platform threads that complete the Http Response futures and run their dependent stages.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.http.executor.threads", defaultValue = "8")
+    private int executorThreads;
+
+    /**
+     * Run the HttpClient tasks on virtual threads instead of the bounded platform thread pool.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.http.executor.virtual", defaultValue = "false")
+    private boolean virtualThreadExecutor;
+
+    /**
+     * The number of seconds an idle HTTP/1.1 connection is kept in the connection pool.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.http.keepalive.timeout.seconds", defaultValue = "30")
+    private long keepAliveTimeoutSeconds;
+
+    /**
+     * The maximum number of idle HTTP/1.1 connections kept in the connection pool, or 0 for no limit.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.http.connection.pool.size", defaultValue = "0")
+    private int connectionPoolSize;
+
+    /**
+     * The executor used by the shared HttpClient for asynchronous tasks
+     */
+    private ExecutorService executor;
+
+    @Produces
+    @Singleton
+    HttpClient produceHttpClient() {
+        // The JDK HttpClient reads its connection pool settings from system properties once, so only set them when absent
+        setSystemPropertyIfAbsent("jdk.httpclient.keepalive.timeout", String.valueOf(keepAliveTimeoutSeconds));
+        setSystemPropertyIfAbsent("jdk.httpclient.connectionPoolSize", String.valueOf(connectionPoolSize));
+
+        if (virtualThreadExecutor) {
+            executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("firebase-http-", 1).factory());
+        } else {
+            var threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                var thread = new Thread(runnable, "firebase-http-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            executor = Executors.newFixedThreadPool(executorThreads, threadFactory);
+        }
+        return HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(Duration.ofSeconds(connectTimeoutSeconds))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+    }
+
+    void closeHttpClient(@Disposes HttpClient httpClient) throws InterruptedException {
+        httpClient.shutdown();
+        httpClient.awaitTermination(Duration.ofSeconds(connectTimeoutSeconds));
+        executor.shutdown();
+        executor.awaitTermination(connectTimeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    private static void setSystemPropertyIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+}
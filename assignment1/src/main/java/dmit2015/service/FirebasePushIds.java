@@ -0,0 +1,77 @@
+package dmit2015.service;
+
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Generates Firebase push-style keys on the client so new books can be written with a multi-path PATCH.
+ * <p>
+ * A push key is 20 characters: 8 characters encoding the current time in milliseconds followed by
+ * 12 random characters. Keys created in the same millisecond increment the random part, so keys sort
+ * in creation order just like the keys generated by a Firebase POST.
+ * <p>
+ * The random characters are drawn before taking the lock, since SecureRandom may read from the operating system,
+ * and the lock is a ReentrantLock so a virtual thread waiting for it does not pin its carrier thread.
+ *
+ * @link <a href="https://firebase.blog/posts/2015/02/the-2120-ways-to-ensure-unique_68">The 2^120 Ways to Ensure Unique Identifiers</a>
+ */
+public final class FirebasePushIds {
+
+    private static final String PUSH_CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    private static long lastPushTime;
+
+    private static final int[] lastRandomChars = new int[12];
+
+    private FirebasePushIds() {
+    }
+
+    /**
+     * Generate the next push key.
+     */
+    public static String next() {
+        // One draw of 12 bytes, each masked to one of the 64 characters
+        byte[] randomBytes = new byte[12];
+        RANDOM.nextBytes(randomBytes);
+
+        char[] pushIdChars = new char[20];
+        LOCK.lock();
+        try {
+            long now = System.currentTimeMillis();
+            boolean duplicateTime = now == lastPushTime;
+            lastPushTime = now;
+
+            for (int index = 7; index >= 0; index--) {
+                pushIdChars[index] = PUSH_CHARS.charAt((int) (now % 64));
+                now = now / 64;
+            }
+
+            if (!duplicateTime) {
+                for (int index = 0; index < 12; index++) {
+                    lastRandomChars[index] = randomBytes[index] & 63;
+                }
+            } else {
+                // Increment the random characters by one, carrying over from the last character
+                int index = 11;
+                while (index >= 0 && lastRandomChars[index] == 63) {
+                    lastRandomChars[index] = 0;
+                    index--;
+                }
+                if (index >= 0) {
+                    lastRandomChars[index]++;
+                }
+            }
+
+            for (int index = 0; index < 12; index++) {
+                pushIdChars[8 + index] = PUSH_CHARS.charAt(lastRandomChars[index]);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+        return new String(pushIdChars);
+    }
+}
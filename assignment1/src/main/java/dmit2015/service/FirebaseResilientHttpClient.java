@@ -0,0 +1,285 @@
+package dmit2015.service;
+
+import dmit2015.metrics.MetricsRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * This class sends the Http Request of the Firebase services through a resilience layer around the shared HttpClient:
+ * <ul>
+ *     <li>a bulkhead that caps the number of requests in flight and rejects the rest immediately,</li>
+ *     <li>a circuit breaker that opens after consecutive failures and fails fast until a trial request succeeds,</li>
+ *     <li>retries with jittered exponential backoff for idempotent GET, PUT and DELETE requests.</li>
+ * </ul>
+ * A PUT or DELETE with an if-match header is only retried after a 429 status code, which Firebase sends before
+ * applying the request. After an I/O error, a timeout or a 5xx status code the first attempt may have been applied,
+ * and a retry would then fail the ETag check with a 412 status code and report a conflict with itself.
+ * A failure is an I/O error, a timeout, a 5xx status code or a 429 status code. All the limits are defined in
+ * `src/main/resources/META-INF/microprofile-config.properties` file and the state is exposed through the getters.
+ * The status code and body size of every Http Response are counted in the MetricsRegistry.
+ */
+@Named("firebaseResilientHttpClient")
+@ApplicationScoped
+public class FirebaseResilientHttpClient {
+
+    public enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "PUT", "DELETE");
+
+    @Inject
+    private HttpClient httpClient;
+
+    @Inject
+    private MetricsRegistry metricsRegistry;
+
+    /**
+     * The maximum number of attempts for an idempotent request, including the first one.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.resilience.retry.max.attempts", defaultValue = "3")
+    private int retryMaxAttempts;
+
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.resilience.retry.base.delay.millis", defaultValue = "100")
+    private long retryBaseDelayMillis;
+
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.resilience.retry.max.delay.millis", defaultValue = "2000")
+    private long retryMaxDelayMillis;
+
+    /**
+     * The number of consecutive failures that opens the circuit.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.resilience.circuit.failure.threshold", defaultValue = "5")
+    private int circuitFailureThreshold;
+
+    /**
+     * The number of seconds the circuit stays open before a trial request is let through.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.resilience.circuit.open.seconds", defaultValue = "30")
+    private long circuitOpenSeconds;
+
+    /**
+     * The maximum number of requests in flight at the same time.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.resilience.bulkhead.max.concurrent", defaultValue = "64")
+    private int bulkheadMaxConcurrent;
+
+    private Semaphore bulkhead;
+
+    private final AtomicReference<CircuitState> circuitState = new AtomicReference<>(CircuitState.CLOSED);
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile long circuitOpenedAt;
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder rejectedByCircuitBreaker = new LongAdder();
+
+    private final LongAdder rejectedByBulkhead = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        bulkhead = new Semaphore(bulkheadMaxConcurrent);
+        metricsRegistry.registerCounter("dmit2015_firebase_requests_total", "The attempts sent to Firebase, including retries.", this::getRequestCount);
+        metricsRegistry.registerCounter("dmit2015_firebase_failures_total", "The attempts that failed with an I/O error, a timeout, a 5xx or a 429 status code.", this::getFailureCount);
+        metricsRegistry.registerCounter("dmit2015_firebase_retries_total", "The attempts retried after a failure.", this::getRetryCount);
+        metricsRegistry.registerCounter("dmit2015_firebase_rejected_by_circuit_breaker_total", "The requests rejected while the circuit was open.", this::getRejectedByCircuitBreakerCount);
+        metricsRegistry.registerCounter("dmit2015_firebase_rejected_by_bulkhead_total", "The requests rejected because too many were in flight.", this::getRejectedByBulkheadCount);
+        metricsRegistry.registerGauge("dmit2015_firebase_in_flight", "The requests to Firebase in flight.", this::getInFlightCount);
+        metricsRegistry.registerGauge("dmit2015_firebase_circuit_state", "The state of the circuit breaker: 0 closed, 1 open, 2 half open.", () -> getCircuitState().ordinal());
+    }
+
+    /**
+     * Send the Http Request through the bulkhead, circuit breaker and retry policy.
+     * <p>
+     * When every attempt fails with a 5xx or 429 status code, the last Http Response is returned so the caller
+     * reports the status code as before. The body of a discarded Http Response is closed before retrying.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest httpRequest, HttpResponse.BodyHandler<T> bodyHandler) {
+        if (!bulkhead.tryAcquire()) {
+            rejectedByBulkhead.increment();
+            return CompletableFuture.failedFuture(new FirebaseUnavailableException("Too many requests to Firebase are in flight"));
+        }
+        int maxAttempts = IDEMPOTENT_METHODS.contains(httpRequest.method()) ? Math.max(1, retryMaxAttempts) : 1;
+        boolean conditional = httpRequest.headers().firstValue("if-match").isPresent();
+        return attempt(httpRequest, bodyHandler, 1, maxAttempts, conditional)
+                .whenComplete((httpResponse, exception) -> bulkhead.release());
+    }
+
+    /**
+     * Send the Http Request through the resilience layer and wait for the Http Response.
+     *
+     * @throws IOException          if the request failed with an I/O error on its last attempt.
+     * @throws InterruptedException if the calling thread was interrupted while waiting.
+     */
+    public <T> HttpResponse<T> send(HttpRequest httpRequest, HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        CompletableFuture<HttpResponse<T>> future = sendAsync(httpRequest, bodyHandler);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> attempt(HttpRequest httpRequest, HttpResponse.BodyHandler<T> bodyHandler,
+                                                           int attempt, int maxAttempts, boolean conditional) {
+        if (!allowRequest()) {
+            rejectedByCircuitBreaker.increment();
+            return CompletableFuture.failedFuture(new FirebaseUnavailableException("Firebase is unavailable, the circuit breaker is open"));
+        }
+        requests.increment();
+        return httpClient.sendAsync(httpRequest, metricsRegistry.measureResponses(httpRequest.method(), bodyHandler))
+                .handle((httpResponse, exception) -> {
+                    Throwable cause = exception instanceof CompletionException ? exception.getCause() : exception;
+                    boolean failed = cause != null || isFailureStatus(httpResponse.statusCode());
+                    if (failed) {
+                        recordFailure();
+                    } else {
+                        recordSuccess();
+                    }
+                    // Only a 429 proves a conditional request was not applied
+                    boolean retryable = !conditional || (httpResponse != null && httpResponse.statusCode() == 429);
+                    if (failed && retryable && attempt < maxAttempts) {
+                        if (httpResponse != null) {
+                            closeBody(httpResponse);
+                        }
+                        retries.increment();
+                        var delayedExecutor = CompletableFuture.delayedExecutor(backoffMillis(attempt, httpResponse), TimeUnit.MILLISECONDS,
+                                httpClient.executor().orElse(ForkJoinPool.commonPool()));
+                        return CompletableFuture.runAsync(() -> {
+                        }, delayedExecutor).thenCompose(ignored -> attempt(httpRequest, bodyHandler, attempt + 1, maxAttempts, conditional));
+                    }
+                    return cause != null
+                            ? CompletableFuture.<HttpResponse<T>>failedFuture(cause)
+                            : CompletableFuture.completedFuture(httpResponse);
+                })
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * Decide whether the circuit breaker lets a request through, moving from OPEN to HALF_OPEN
+     * for exactly one trial request once the open duration has passed.
+     */
+    private boolean allowRequest() {
+        CircuitState state = circuitState.get();
+        if (state == CircuitState.CLOSED) {
+            return true;
+        }
+        if (state == CircuitState.OPEN
+                && System.nanoTime() - circuitOpenedAt >= TimeUnit.SECONDS.toNanos(circuitOpenSeconds)) {
+            return circuitState.compareAndSet(CircuitState.OPEN, CircuitState.HALF_OPEN);
+        }
+        return false;
+    }
+
+    private void recordSuccess() {
+        consecutiveFailures.set(0);
+        circuitState.set(CircuitState.CLOSED);
+    }
+
+    private void recordFailure() {
+        failures.increment();
+        int failureCount = consecutiveFailures.incrementAndGet();
+        if (circuitState.get() == CircuitState.HALF_OPEN || failureCount >= circuitFailureThreshold) {
+            circuitOpenedAt = System.nanoTime();
+            circuitState.set(CircuitState.OPEN);
+        }
+    }
+
+    /**
+     * The delay before the next attempt: a random value up to the exponential backoff ("full jitter"),
+     * but never less than the Retry-After seconds sent with a 429 status code.
+     */
+    private long backoffMillis(int attempt, HttpResponse<?> httpResponse) {
+        long exponentialDelay = Math.min(retryMaxDelayMillis, retryBaseDelayMillis << Math.min(attempt - 1, 20));
+        long delay = ThreadLocalRandom.current().nextLong(exponentialDelay + 1);
+        if (httpResponse != null) {
+            long retryAfterMillis = httpResponse.headers().firstValueAsLong("Retry-After").orElse(0) * 1000;
+            delay = Math.max(delay, Math.min(retryAfterMillis, retryMaxDelayMillis));
+        }
+        return delay;
+    }
+
+    private static boolean isFailureStatus(int statusCode) {
+        return statusCode >= 500 || statusCode == 429;
+    }
+
+    private static void closeBody(HttpResponse<?> httpResponse) {
+        if (httpResponse.body() instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                // The connection is released either way
+            }
+        }
+    }
+
+    public CircuitState getCircuitState() {
+        return circuitState.get();
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    public long getRejectedByCircuitBreakerCount() {
+        return rejectedByCircuitBreaker.sum();
+    }
+
+    public long getRejectedByBulkheadCount() {
+        return rejectedByBulkhead.sum();
+    }
+
+    public int getInFlightCount() {
+        return bulkheadMaxConcurrent - bulkhead.availablePermits();
+    }
+}
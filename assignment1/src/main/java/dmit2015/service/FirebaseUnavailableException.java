@@ -0,0 +1,11 @@
+package dmit2015.service;
+
+/**
+ * Thrown without contacting Firebase when the circuit breaker is open or too many requests are already in flight.
+ */
+public class FirebaseUnavailableException extends RuntimeException {
+
+    public FirebaseUnavailableException(String message) {
+        super(message);
+    }
+}
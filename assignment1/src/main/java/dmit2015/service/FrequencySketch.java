@@ -0,0 +1,99 @@
+package dmit2015.service;
+
+/**
+ * A Count-Min Sketch of how often keys were accessed recently, used by the {@link BookHotTier} to decide which book
+ * is worth keeping in memory.
+ * <p>
+ * Each key has four 4-bit counters, one per row, packed sixteen to a long, and its frequency is the smallest of them.
+ * Once as many accesses as ten times the number of counters per row have been counted, every counter is halved,
+ * so keys that were popular long ago fade out. A counter saturates at 15, which is enough to compare two keys.
+ * Not thread-safe: the caller guards it.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final long[] table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * @param expectedKeys The number of keys the sketch should tell apart, rounded up to a power of two.
+     */
+    FrequencySketch(long expectedKeys) {
+        int tableLength = Integer.highestOneBit((int) Math.min(Math.max(expectedKeys, 64), 1 << 24) - 1) << 1;
+        table = new long[tableLength];
+        tableMask = tableLength - 1;
+        sampleSize = 10 * tableLength;
+    }
+
+    /**
+     * The estimated number of recent accesses of the key, from 0 to 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int row = 0; row < 4; row++) {
+            int count = (int) ((table[indexOf(hash, row)] >>> ((start + row) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Count an access of the key, halving every counter once the sample is full.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            added |= incrementAt(indexOf(hash, row), start + row);
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        long mask = 0xfL << (counter << 2);
+        if ((table[index] & mask) == mask) {
+            return false;
+        }
+        table[index] += 1L << (counter << 2);
+        return true;
+    }
+
+    private void reset() {
+        int oddCounters = 0;
+        for (int index = 0; index < table.length; index++) {
+            oddCounters += Long.bitCount(table[index] & ONE_MASK);
+            table[index] = (table[index] >>> 1) & RESET_MASK;
+        }
+        additions = (additions - (oddCounters >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int row) {
+        long rowHash = (hash + SEEDS[row]) * SEEDS[row];
+        rowHash += rowHash >>> 32;
+        return (int) rowHash & tableMask;
+    }
+
+    /**
+     * Mix the bits of a hash code, since String hash codes of similar ids differ only in their low bits.
+     */
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -0,0 +1,541 @@
+package dmit2015.service;
+
+import dmit2015.metrics.Instrumented;
+import dmit2015.model.Book;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * This class implements the BookService with compact binary records in memory-mapped files instead of Book objects.
+ * <p>
+ * Each book is one {@link BookRecordStore} record of about 35 bytes plus its UTF-8 title: authors are interned
+ * into a dictionary, publish dates are stored as epoch days and the read flag is packed into a flags byte.
+ * An off-heap {@link BookIdIndex} maps ids to record offsets, so the heap holds only the author dictionary
+ * no matter how many books are stored. A Book is decoded only when it is returned, and scans for
+ * findByAuthor, findByPublishDateBetween and unfiltered pages read the record fields in place.
+ * Versioned updates and deletes compare the version stored in the record under the write lock.
+ * <p>
+ * Ids are random UUIDs assigned on create. The mapped files are scratch space recreated on startup in the
+ * directory defined in `src/main/resources/META-INF/microprofile-config.properties` file; use the
+ * {@link FileBookService} for books that must survive a restart.
+ */
+@Named("mappedBookService")
+@ApplicationScoped
+@Instrumented
+public class MappedBookService implements BookService {
+
+    /**
+     * The number of books decoded under the read lock before forEachBook runs the action on them.
+     */
+    private static final int FOR_EACH_BATCH_SIZE = 1024;
+
+    @Inject
+    @ConfigProperty(name = "book.mapped.data.dir", defaultValue = "data/mapped-books")
+    private String dataDirectory;
+
+    /**
+     * The number of books the id index holds before it first grows.
+     */
+    @Inject
+    @ConfigProperty(name = "book.mapped.index.initial.capacity", defaultValue = "1048576")
+    private int indexInitialCapacity;
+
+    private BookRecordStore records;
+
+    private BookIdIndex offsetsById;
+
+    private long readCount;
+
+    private long changeCount;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @PostConstruct
+    void init() {
+        try {
+            Path directory = Files.createDirectories(Path.of(dataDirectory));
+            records = new BookRecordStore(directory.resolve("books.dat"));
+            offsetsById = new BookIdIndex(directory, indexInitialCapacity);
+        } catch (IOException e) {
+            String errorMessage = String.format("Could not create the book store in %s: %s", dataDirectory, e.getMessage());
+            throw new RuntimeException(errorMessage, e);
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        lock.writeLock().lock();
+        try {
+            records.close();
+            offsetsById.close();
+        } catch (IOException e) {
+            // The scratch files are removed on a best effort basis during shutdown
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Book createBook(Book book) {
+        Objects.requireNonNull(book, "Book to create must not be null");
+
+        // Assign a fresh id on create to ensure uniqueness (ignore any incoming id)
+        Book stored = Book.copyOf(book);
+        stored.setId(UUID.randomUUID().toString());
+        stored.setVersion(MemoryBookService.FIRST_VERSION);
+        lock.writeLock().lock();
+        try {
+            insert(stored);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return stored;
+    }
+
+    @Override
+    public Optional<Book> getBookById(String id) {
+        Objects.requireNonNull(id, "id must not be null");
+
+        UUID uuid = parseId(id);
+        if (uuid == null) {
+            return Optional.empty();
+        }
+        lock.readLock().lock();
+        try {
+            long offset = offsetsById.get(uuid);
+            return offset >= 0 ? Optional.of(records.decode(offset)) : Optional.empty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Book> getBooksByIds(Collection<String> ids) {
+        Objects.requireNonNull(ids, "ids must not be null");
+
+        var books = new ArrayList<Book>(ids.size());
+        // Decode every book under one read lock, skipping repeated and unknown ids
+        lock.readLock().lock();
+        try {
+            for (String currentId : new LinkedHashSet<>(ids)) {
+                UUID uuid = parseId(currentId);
+                long offset = uuid != null ? offsetsById.get(uuid) : -1;
+                if (offset >= 0) {
+                    books.add(records.decode(offset));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return books;
+    }
+
+    @Override
+    public List<Book> getAllBooks() {
+        lock.readLock().lock();
+        try {
+            var books = new ArrayList<Book>(offsetsById.size());
+            records.scan(0, offset -> books.add(records.decode(offset)));
+            return Collections.unmodifiableList(books);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Decode the books a batch at a time and run the action outside the lock, so the action may change books.
+     */
+    @Override
+    public void forEachBook(Consumer<? super Book> action) {
+        var books = new ArrayList<Book>(FOR_EACH_BATCH_SIZE);
+        long offset = 0;
+        while (true) {
+            long endOffset;
+            lock.readLock().lock();
+            try {
+                offset = records.scan(offset, currentOffset -> {
+                    books.add(records.decode(currentOffset));
+                    return books.size() < FOR_EACH_BATCH_SIZE;
+                });
+                endOffset = records.endOffset();
+            } finally {
+                lock.readLock().unlock();
+            }
+            books.forEach(action);
+            books.clear();
+            if (offset >= endOffset) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public Book updateBook(Book book) {
+        Objects.requireNonNull(book, "Book to update must not be null");
+        Objects.requireNonNull(book.getId(), "Book id must not be null");
+
+        Book stored = Book.copyOf(book);
+        lock.writeLock().lock();
+        try {
+            long offset = checkVersion(stored.getId(), book.getVersion());
+            stored.setVersion(MemoryBookService.nextVersion(Integer.toString(records.version(offset))));
+            replace(offset, stored);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return stored;
+    }
+
+    @Override
+    public void deleteBookById(String id) {
+        Objects.requireNonNull(id, "id must not be null");
+
+        lock.writeLock().lock();
+        try {
+            long offset = findOffset(id);
+            if (offset < 0) {
+                throw new NoSuchElementException("Could not find Book with id: " + id);
+            }
+            remove(id, offset);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteBookById(String id, String expectedVersion) {
+        Objects.requireNonNull(id, "id must not be null");
+
+        lock.writeLock().lock();
+        try {
+            remove(id, checkVersion(id, expectedVersion));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Create the books all-or-nothing: if any book is null then none are created.
+     */
+    @Override
+    public List<BookBatchResult> createBooks(Collection<Book> books) {
+        Objects.requireNonNull(books, "Books to create must not be null");
+
+        var storedBooks = new ArrayList<Book>(books.size());
+        var errorMessages = new ArrayList<String>(books.size());
+        for (Book currentBook : books) {
+            if (currentBook == null) {
+                storedBooks.add(null);
+                errorMessages.add("Book to create must not be null");
+            } else {
+                Book stored = Book.copyOf(currentBook);
+                stored.setId(UUID.randomUUID().toString());
+                stored.setVersion(MemoryBookService.FIRST_VERSION);
+                storedBooks.add(stored);
+                errorMessages.add(null);
+            }
+        }
+
+        if (errorMessages.stream().allMatch(Objects::isNull)) {
+            lock.writeLock().lock();
+            try {
+                storedBooks.forEach(this::insert);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return MemoryBookService.batchResults(storedBooks.stream().map(stored -> stored != null ? stored.getId() : null).toList(),
+                storedBooks, errorMessages);
+    }
+
+    /**
+     * Update the books all-or-nothing: if any book is null, cannot be found or has a stale version then none are updated.
+     */
+    @Override
+    public List<BookBatchResult> updateBooks(Collection<Book> books) {
+        Objects.requireNonNull(books, "Books to update must not be null");
+
+        var storedBooks = new ArrayList<Book>(books.size());
+        var offsets = new long[books.size()];
+        var errorMessages = new ArrayList<String>(books.size());
+        lock.writeLock().lock();
+        try {
+            for (Book currentBook : books) {
+                storedBooks.add(currentBook != null ? Book.copyOf(currentBook) : null);
+                long offset = currentBook != null && currentBook.getId() != null ? findOffset(currentBook.getId()) : -1;
+                offsets[errorMessages.size()] = offset;
+                if (currentBook == null || currentBook.getId() == null) {
+                    errorMessages.add("Book and Book id must not be null");
+                } else if (offset < 0) {
+                    errorMessages.add("Could not find Book with id: " + currentBook.getId());
+                } else if (currentBook.getVersion() != null
+                        && !currentBook.getVersion().equals(Integer.toString(records.version(offset)))) {
+                    errorMessages.add(new BookVersionConflictException(currentBook.getId(), currentBook.getVersion(), null).getMessage());
+                } else {
+                    errorMessages.add(null);
+                }
+            }
+            if (errorMessages.stream().allMatch(Objects::isNull)) {
+                for (int index = 0; index < storedBooks.size(); index++) {
+                    Book stored = storedBooks.get(index);
+                    stored.setVersion(MemoryBookService.nextVersion(Integer.toString(records.version(offsets[index]))));
+                    replace(offsets[index], stored);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return MemoryBookService.batchResults(storedBooks.stream().map(stored -> stored != null ? stored.getId() : null).toList(),
+                storedBooks, errorMessages);
+    }
+
+    /**
+     * Delete the books all-or-nothing: if any id is null, repeated or cannot be found then none are deleted.
+     */
+    @Override
+    public List<BookBatchResult> deleteBooksByIds(Collection<String> ids) {
+        Objects.requireNonNull(ids, "ids must not be null");
+
+        var idList = new ArrayList<>(ids);
+        var offsets = new long[idList.size()];
+        var errorMessages = new ArrayList<String>(idList.size());
+        var seenIds = new HashSet<String>();
+        lock.writeLock().lock();
+        try {
+            for (String currentId : idList) {
+                long offset = currentId != null ? findOffset(currentId) : -1;
+                offsets[errorMessages.size()] = offset;
+                if (currentId == null) {
+                    errorMessages.add("id must not be null");
+                } else if (!seenIds.add(currentId)) {
+                    errorMessages.add("Duplicate id in batch: " + currentId);
+                } else if (offset < 0) {
+                    errorMessages.add("Could not find Book with id: " + currentId);
+                } else {
+                    errorMessages.add(null);
+                }
+            }
+            if (errorMessages.stream().allMatch(Objects::isNull)) {
+                for (int index = 0; index < idList.size(); index++) {
+                    remove(idList.get(index), offsets[index]);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return MemoryBookService.batchResults(idList, Collections.nCopies(idList.size(), null), errorMessages);
+    }
+
+    /**
+     * Scan the author ids of the records and decode only the matching books.
+     */
+    @Override
+    public List<Book> findByAuthor(String author) {
+        String normalizedAuthor = BookService.normalizeAuthor(author);
+        lock.readLock().lock();
+        try {
+            BitSet matchingAuthorIds = records.authorIdsMatching(currentAuthor ->
+                    BookService.normalizeAuthor(currentAuthor).equals(normalizedAuthor));
+            boolean matchNullAuthor = normalizedAuthor.isEmpty();
+            var books = new ArrayList<Book>();
+            records.scan(0, offset -> {
+                int authorId = records.authorId(offset);
+                if (authorId >= 0 ? matchingAuthorIds.get(authorId) : matchNullAuthor) {
+                    books.add(records.decode(offset));
+                }
+                return true;
+            });
+            return Collections.unmodifiableList(books);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Scan the epoch days of the records and decode only the matching books.
+     */
+    @Override
+    public List<Book> findByPublishDateBetween(LocalDate fromDate, LocalDate toDate) {
+        Objects.requireNonNull(fromDate, "fromDate must not be null");
+        Objects.requireNonNull(toDate, "toDate must not be null");
+        if (fromDate.isAfter(toDate)) {
+            return List.of();
+        }
+
+        long fromEpochDay = fromDate.toEpochDay();
+        long toEpochDay = toDate.toEpochDay();
+        lock.readLock().lock();
+        try {
+            var matchingOffsets = new ArrayList<long[]>();
+            records.scan(0, offset -> {
+                int epochDay = records.epochDay(offset);
+                if (epochDay != Integer.MIN_VALUE && epochDay >= fromEpochDay && epochDay <= toEpochDay) {
+                    matchingOffsets.add(new long[]{epochDay, offset});
+                }
+                return true;
+            });
+            // Books on the same date stay in insertion order because the sort is stable
+            matchingOffsets.sort(Comparator.comparingLong(epochDayAndOffset -> epochDayAndOffset[0]));
+            return matchingOffsets.stream()
+                    .map(epochDayAndOffset -> records.decode(epochDayAndOffset[1]))
+                    .toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long countByReadAlready(boolean readAlready) {
+        lock.readLock().lock();
+        try {
+            return readAlready ? readCount : offsetsById.size() - readCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long changeCount() {
+        lock.readLock().lock();
+        try {
+            return changeCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public BookPage page(int offset, int limit, String sortField, boolean ascending, String filter) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+
+        lock.readLock().lock();
+        try {
+            if ((filter == null || filter.isBlank()) && (sortField == null || sortField.isBlank())) {
+                // Skip the records before the page without decoding them
+                var pageBooks = new ArrayList<Book>(Math.min(limit, offsetsById.size()));
+                var skipped = new int[1];
+                if (limit > 0) {
+                    records.scan(0, recordOffset -> {
+                        if (skipped[0] < offset) {
+                            skipped[0]++;
+                            return true;
+                        }
+                        pageBooks.add(records.decode(recordOffset));
+                        return pageBooks.size() < limit;
+                    });
+                }
+                return new BookPage(Collections.unmodifiableList(pageBooks), offsetsById.size());
+            }
+            var books = new ArrayList<Book>(offsetsById.size());
+            records.scan(0, recordOffset -> books.add(records.decode(recordOffset)));
+            return BookQueries.page(books.stream(), offset, limit, sortField, ascending, filter);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The offset of the record with the id, or -1 if there is none. Must hold the lock.
+     */
+    private long findOffset(String id) {
+        UUID uuid = parseId(id);
+        return uuid != null ? offsetsById.get(uuid) : -1;
+    }
+
+    /**
+     * Find the record of a book and check that it is at the expected version. Must hold the write lock.
+     *
+     * @param expectedVersion The version the book was read with, or null to accept any version.
+     * @return the offset of the record.
+     */
+    private long checkVersion(String id, String expectedVersion) {
+        long offset = findOffset(id);
+        if (offset < 0) {
+            if (expectedVersion != null) {
+                throw new BookVersionConflictException(id, expectedVersion, null);
+            }
+            throw new NoSuchElementException("Could not find Book with id: " + id);
+        }
+        String currentVersion = Integer.toString(records.version(offset));
+        if (expectedVersion != null && !expectedVersion.equals(currentVersion)) {
+            throw new BookVersionConflictException(id, expectedVersion, currentVersion);
+        }
+        return offset;
+    }
+
+    /**
+     * Append a record for a new book. Must hold the write lock.
+     */
+    private void insert(Book stored) {
+        try {
+            UUID id = UUID.fromString(stored.getId());
+            offsetsById.put(id, records.append(stored, id, (byte) 0));
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Could not write to the book store: %s", e.getMessage()), e);
+        }
+        if (stored.isReadAlready()) {
+            readCount++;
+        }
+        changeCount++;
+    }
+
+    /**
+     * Rewrite the record of a book in place, or relocate it when the new title does not fit. Must hold the write lock.
+     */
+    private void replace(long offset, Book stored) {
+        if (records.isReadAlready(offset)) {
+            readCount--;
+        }
+        if (!records.rewrite(records.resolve(offset), stored)) {
+            try {
+                records.forward(offset, records.append(stored, UUID.fromString(stored.getId()), BookRecordStore.RELOCATED));
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("Could not write to the book store: %s", e.getMessage()), e);
+            }
+        }
+        if (stored.isReadAlready()) {
+            readCount++;
+        }
+        changeCount++;
+    }
+
+    /**
+     * Mark the record of a book deleted and remove it from the index. Must hold the write lock.
+     */
+    private void remove(String id, long offset) {
+        if (records.isReadAlready(offset)) {
+            readCount--;
+        }
+        records.markDeleted(offset);
+        offsetsById.remove(UUID.fromString(id));
+        changeCount++;
+    }
+
+    /**
+     * Parse a book id, or return null if it is not a UUID and so cannot be the id of a stored book.
+     */
+    private static UUID parseId(String id) {
+        try {
+            UUID uuid = UUID.fromString(id);
+            // UUID.fromString also accepts shortened forms that are not the id of any stored book
+            return uuid.toString().equalsIgnoreCase(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -1,29 +1,129 @@
 package dmit2015.service;
 
+import dmit2015.generator.BookGenerator;
+import dmit2015.generator.BookGeneratorSettings;
+import dmit2015.metrics.Instrumented;
 import dmit2015.model.Book;
 import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 import jakarta.inject.Named;
-import net.datafaker.Faker;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import java.time.LocalDate;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.random.RandomGenerator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+/**
+ * This class implements the BookService using an in-memory index.
+ * <p>
+ * Books are stored in a concurrent id to Book primary map for O(1) lookups and mutations,
+ * and a concurrent sorted map of insertion sequence to id keeps the order returned by getAllBooks().
+ * Secondary indexes on author, publish date and read status are maintained inside the same
+ * atomic primary map operation that changes a book, so they stay consistent under concurrent writes.
+ * Batch creates, updates and deletes are validated first and then applied all-or-nothing.
+ * <p>
+ * A {@link BookSearchIndex} of the words in titles and authors serves {@link #search(String, int)}. It is built with
+ * a parallel pass once the initial books are loaded and then kept up to date in the same way as the other indexes.
+ * <p>
+ * Every stored book has a numeric version that is incremented on each update. A versioned update or delete
+ * compares the version inside the same atomic primary map operation, so concurrent editors never need a lock.
+ */
 @Named("memoryBookService")
 @ApplicationScoped
+@Instrumented
 public class MemoryBookService implements BookService {
 
-    private final List<Book> books = new CopyOnWriteArrayList<>();
+    /**
+     * A stored Book together with the sequence number it was inserted with.
+     */
+    private record StoredBook(long sequence, Book book) {
+    }
+
+    /**
+     * The version of a newly created book.
+     */
+    static final String FIRST_VERSION = "1";
+
+    /**
+     * The primary index of stored books by id.
+     */
+    private final ConcurrentMap<String, StoredBook> booksById = new ConcurrentHashMap<>();
+
+    /**
+     * The ids of stored books ordered by insertion sequence.
+     */
+    private final ConcurrentNavigableMap<Long, String> idsByInsertionOrder = new ConcurrentSkipListMap<>();
+
+    /**
+     * The source of insertion sequence numbers.
+     */
+    private final AtomicLong insertionSequence = new AtomicLong();
+
+    /**
+     * The hash index of book ids by normalized author.
+     */
+    private final ConcurrentMap<String, Set<String>> idsByAuthor = new ConcurrentHashMap<>();
+
+    /**
+     * The sorted index of book ids by publish date. Each date holds a hash set of ids,
+     * which keeps the sorted part of the index small enough to load millions of books quickly.
+     */
+    private final ConcurrentNavigableMap<LocalDate, Set<String>> idsByPublishDate = new ConcurrentSkipListMap<>();
+
+    /**
+     * The number of stored books that have been read already.
+     */
+    private final AtomicLong readCount = new AtomicLong();
+
+    /**
+     * The number of stored books that have not been read yet.
+     */
+    private final AtomicLong unreadCount = new AtomicLong();
+
+    /**
+     * The full-text index of titles and authors, or null until it is built.
+     */
+    private volatile BookSearchIndex searchIndex;
+
+    /**
+     * The number of creates, updates and deletes applied so far.
+     */
+    private final AtomicLong changeCount = new AtomicLong();
+
+    /**
+     * Single book mutations share the read lock so they run concurrently,
+     * while batches take the write lock so each batch is applied all-or-nothing without interleaving.
+     */
+    private final ReadWriteLock mutationLock = new ReentrantReadWriteLock();
+
+    /**
+     * The number of books generated by the {@link BookGenerator} when the service starts.
+     */
+    @Inject
+    @ConfigProperty(name = "book.memory.seed.count", defaultValue = "5")
+    long seedCount;
 
     @PostConstruct
     public void init() {
 
-        var faker = new Faker();
-        for (int counter = 1; counter <= 5; counter++) {
-            var currentBook = Book.of(faker);
-            books.add(currentBook);
+        if (seedCount > 0) {
+            new BookGenerator(BookGeneratorSettings.parse(name -> switch (name) {
+                case "count" -> Long.toString(seedCount);
+                // A pool of authors larger than the books would only slow down the start
+                case "authorCount" -> Long.toString(Math.min(seedCount, 10_000));
+                default -> null;
+            })).writeTo(this);
         }
+        buildSearchIndex();
 
     }
 
@@ -34,7 +134,13 @@ public class MemoryBookService implements BookService {
         // Assign a fresh id on create to ensure uniqueness (ignore any incoming id)
         Book stored = Book.copyOf(book);
         stored.setId(UUID.randomUUID().toString());
-        books.add(stored);
+        stored.setVersion(FIRST_VERSION);
+        mutationLock.readLock().lock();
+        try {
+            insert(stored);
+        } finally {
+            mutationLock.readLock().unlock();
+        }
 
         // Return a defensive copy
         return Book.copyOf(stored);
@@ -44,17 +150,44 @@ public class MemoryBookService implements BookService {
     public Optional<Book> getBookById(String id) {
         Objects.requireNonNull(id, "id must not be null");
 
-        return books.stream()
-                .filter(currentBook -> currentBook.getId().equals(id))
-                .findFirst()
+        return Optional.ofNullable(booksById.get(id))
+                .map(StoredBook::book)
                 .map(Book::copyOf); // return a copy to avoid external mutation
 
     }
 
+    @Override
+    public List<Book> getBooksByIds(Collection<String> ids) {
+        Objects.requireNonNull(ids, "ids must not be null");
+
+        // One pass over the ids, skipping repeated and unknown ids
+        return ids.stream()
+                .distinct()
+                .map(booksById::get)
+                .filter(Objects::nonNull)
+                .map(currentStoredBook -> Book.copyOf(currentStoredBook.book()))
+                .toList();
+    }
+
     @Override
     public List<Book> getAllBooks() {
-        // Unmodifiable snapshot of copies
-        return books.stream().map(Book::copyOf).toList();
+        // Unmodifiable snapshot of copies in insertion order
+        return idsByInsertionOrder.values().stream()
+                .map(booksById::get)
+                .filter(Objects::nonNull) // skip books deleted while iterating
+                .map(currentStoredBook -> Book.copyOf(currentStoredBook.book()))
+                .toList();
+    }
+
+    @Override
+    public void forEachBook(Consumer<? super Book> action) {
+        // Copy one book at a time in insertion order
+        for (String currentId : idsByInsertionOrder.values()) {
+            StoredBook currentStoredBook = booksById.get(currentId);
+            if (currentStoredBook != null) {
+                action.accept(Book.copyOf(currentStoredBook.book()));
+            }
+        }
     }
 
     @Override
@@ -62,21 +195,14 @@ public class MemoryBookService implements BookService {
         Objects.requireNonNull(book, "Book to update must not be null");
         Objects.requireNonNull(book.getId(), "Book id must not be null");
 
-        // Find index of existing task by id
-        int index = -1;
-        for (int i = 0; i < books.size(); i++) {
-            if (books.get(i).getId().equals(book.getId())) {
-                index = i;
-                break;
-            }
-        }
-        if (index < 0) {
-            throw new NoSuchElementException("Could not find Task with id: " + book.getId());
-        }
-
-        // Replace stored item with a copy (preserve id)
+        // Replace stored item with a copy (preserve id and insertion order)
         Book stored = Book.copyOf(book);
-        books.set(index, stored);
+        mutationLock.readLock().lock();
+        try {
+            replaceIfVersionMatches(stored, book.getVersion());
+        } finally {
+            mutationLock.readLock().unlock();
+        }
 
         return Book.copyOf(stored);
     }
@@ -85,9 +211,442 @@ public class MemoryBookService implements BookService {
     public void deleteBookById(String id) {
         Objects.requireNonNull(id, "id must not be null");
 
-        boolean removed = books.removeIf(currentBook -> id.equals(currentBook.getId()));
-        if (!removed) {
-            throw new NoSuchElementException("Could not find Task with id: " + id);
+        mutationLock.readLock().lock();
+        try {
+            if (!remove(id)) {
+                throw new NoSuchElementException("Could not find Book with id: " + id);
+            }
+        } finally {
+            mutationLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteBookById(String id, String expectedVersion) {
+        Objects.requireNonNull(id, "id must not be null");
+        if (expectedVersion == null) {
+            deleteBookById(id);
+            return;
+        }
+
+        mutationLock.readLock().lock();
+        try {
+            var removed = new StoredBook[1];
+            // Compare the version inside the atomic remove; throwing leaves the stored book unchanged
+            booksById.computeIfPresent(id, (key, existing) -> {
+                if (!expectedVersion.equals(existing.book().getVersion())) {
+                    throw new BookVersionConflictException(id, expectedVersion, existing.book().getVersion());
+                }
+                removeFromIndexes(existing.book());
+                removed[0] = existing;
+                return null;
+            });
+            if (removed[0] == null) {
+                throw new BookVersionConflictException(id, expectedVersion, null);
+            }
+            idsByInsertionOrder.remove(removed[0].sequence());
+            changeCount.incrementAndGet();
+        } finally {
+            mutationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Create the books all-or-nothing: if any book is null then none are created.
+     */
+    @Override
+    public List<BookBatchResult> createBooks(Collection<Book> books) {
+        Objects.requireNonNull(books, "Books to create must not be null");
+
+        var storedBooks = new ArrayList<Book>(books.size());
+        var errorMessages = new ArrayList<String>(books.size());
+        for (Book currentBook : books) {
+            if (currentBook == null) {
+                storedBooks.add(null);
+                errorMessages.add("Book to create must not be null");
+            } else {
+                Book stored = Book.copyOf(currentBook);
+                stored.setId(UUID.randomUUID().toString());
+                stored.setVersion(FIRST_VERSION);
+                storedBooks.add(stored);
+                errorMessages.add(null);
+            }
+        }
+
+        mutationLock.writeLock().lock();
+        try {
+            if (errorMessages.stream().allMatch(Objects::isNull)) {
+                storedBooks.forEach(this::insert);
+            }
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+        return batchResults(storedBooks.stream().map(stored -> stored != null ? stored.getId() : null).toList(),
+                storedBooks, errorMessages);
+    }
+
+    /**
+     * Update the books all-or-nothing: if any book is null, cannot be found or has a stale version then none are updated.
+     */
+    @Override
+    public List<BookBatchResult> updateBooks(Collection<Book> books) {
+        Objects.requireNonNull(books, "Books to update must not be null");
+
+        var storedBooks = new ArrayList<Book>(books.size());
+        var errorMessages = new ArrayList<String>(books.size());
+        mutationLock.writeLock().lock();
+        try {
+            for (Book currentBook : books) {
+                storedBooks.add(currentBook != null ? Book.copyOf(currentBook) : null);
+                if (currentBook == null || currentBook.getId() == null) {
+                    errorMessages.add("Book and Book id must not be null");
+                } else if (!booksById.containsKey(currentBook.getId())) {
+                    errorMessages.add("Could not find Book with id: " + currentBook.getId());
+                } else if (currentBook.getVersion() != null
+                        && !currentBook.getVersion().equals(booksById.get(currentBook.getId()).book().getVersion())) {
+                    errorMessages.add(new BookVersionConflictException(currentBook.getId(), currentBook.getVersion(), null).getMessage());
+                } else {
+                    errorMessages.add(null);
+                }
+            }
+            if (errorMessages.stream().allMatch(Objects::isNull)) {
+                for (Book stored : storedBooks) {
+                    stored.setVersion(nextVersion(booksById.get(stored.getId()).book().getVersion()));
+                    replace(stored);
+                }
+            }
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+        return batchResults(storedBooks.stream().map(stored -> stored != null ? stored.getId() : null).toList(),
+                storedBooks, errorMessages);
+    }
+
+    /**
+     * Delete the books all-or-nothing: if any id is null, repeated or cannot be found then none are deleted.
+     */
+    @Override
+    public List<BookBatchResult> deleteBooksByIds(Collection<String> ids) {
+        Objects.requireNonNull(ids, "ids must not be null");
+
+        var idList = new ArrayList<>(ids);
+        var errorMessages = new ArrayList<String>(idList.size());
+        var seenIds = new HashSet<String>();
+        mutationLock.writeLock().lock();
+        try {
+            for (String currentId : idList) {
+                if (currentId == null) {
+                    errorMessages.add("id must not be null");
+                } else if (!seenIds.add(currentId)) {
+                    errorMessages.add("Duplicate id in batch: " + currentId);
+                } else if (!booksById.containsKey(currentId)) {
+                    errorMessages.add("Could not find Book with id: " + currentId);
+                } else {
+                    errorMessages.add(null);
+                }
+            }
+            if (errorMessages.stream().allMatch(Objects::isNull)) {
+                idList.forEach(this::remove);
+            }
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+        return batchResults(idList, Collections.nCopies(idList.size(), null), errorMessages);
+    }
+
+    @Override
+    public List<Book> findByAuthor(String author) {
+        Set<String> ids = idsByAuthor.getOrDefault(BookService.normalizeAuthor(author), Set.of());
+        return ids.stream()
+                .map(booksById::get)
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparingLong(StoredBook::sequence))
+                .map(currentStoredBook -> Book.copyOf(currentStoredBook.book()))
+                .toList();
+    }
+
+    @Override
+    public List<Book> findByPublishDateBetween(LocalDate fromDate, LocalDate toDate) {
+        Objects.requireNonNull(fromDate, "fromDate must not be null");
+        Objects.requireNonNull(toDate, "toDate must not be null");
+        if (fromDate.isAfter(toDate)) {
+            return List.of();
+        }
+
+        // Books on the same date are returned in insertion order
+        return idsByPublishDate.subMap(fromDate, true, toDate, true).values().stream()
+                .flatMap(ids -> ids.stream()
+                        .map(booksById::get)
+                        .filter(Objects::nonNull)
+                        .sorted(Comparator.comparingLong(StoredBook::sequence)))
+                .map(currentStoredBook -> Book.copyOf(currentStoredBook.book()))
+                .toList();
+    }
+
+    @Override
+    public long countByReadAlready(boolean readAlready) {
+        return readAlready ? readCount.get() : unreadCount.get();
+    }
+
+    @Override
+    public long changeCount() {
+        return changeCount.get();
+    }
+
+    @Override
+    public List<Book> search(String query, int limit) {
+        Objects.requireNonNull(query, "query must not be null");
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+
+        BookSearchIndex currentSearchIndex = searchIndex;
+        if (currentSearchIndex == null) {
+            return BookService.super.search(query, limit);
+        }
+        return currentSearchIndex.search(query, limit).stream()
+                .map(booksById::get)
+                .filter(Objects::nonNull) // skip books deleted since the search
+                .map(currentStoredBook -> Book.copyOf(currentStoredBook.book()))
+                .toList();
+    }
+
+    @Override
+    public BookPage page(int offset, int limit, String sortField, boolean ascending, String filter) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+
+        // Page over the stored books in insertion order and copy only the books on the requested page
+        Stream<Book> storedBooks = idsByInsertionOrder.values().stream()
+                .map(booksById::get)
+                .filter(Objects::nonNull)
+                .map(StoredBook::book);
+        if ((filter == null || filter.isBlank()) && (sortField == null || sortField.isBlank())) {
+            List<Book> pageBooks = storedBooks
+                    .skip(offset)
+                    .limit(limit)
+                    .map(Book::copyOf)
+                    .toList();
+            return new BookPage(pageBooks, booksById.size());
+        }
+        return BookQueries.page(storedBooks, offset, limit, sortField, ascending, filter);
+    }
+
+    /**
+     * The version that follows the version of a stored book. A book stored without a version is at version 0.
+     */
+    static String nextVersion(String version) {
+        return Long.toString(version != null ? Long.parseLong(version) + 1 : 1);
+    }
+
+    /**
+     * Check if there is a stored book with the id.
+     */
+    boolean containsBook(String id) {
+        return booksById.containsKey(id);
+    }
+
+    /**
+     * The version of the stored book with the id, or null if there is no book with the id.
+     */
+    String versionOf(String id) {
+        StoredBook stored = booksById.get(id);
+        return stored != null ? stored.book().getVersion() : null;
+    }
+
+    /**
+     * Store the book with its own id, keeping its version, replacing any stored book with the same id in place.
+     * Used by services that keep this index in step with their own durable storage.
+     *
+     * @param stored The Book instance to be owned by this service.
+     */
+    void restoreBook(Book stored) {
+        if (stored.getVersion() == null) {
+            stored.setVersion(FIRST_VERSION);
+        }
+        mutationLock.readLock().lock();
+        try {
+            if (!replace(stored)) {
+                insert(stored);
+            }
+        } finally {
+            mutationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Build the search index with a parallel pass over the stored books, after the initial books are loaded.
+     * Until it is built, searches scan every book. Must not run concurrently with writes.
+     */
+    void buildSearchIndex() {
+        var newSearchIndex = new BookSearchIndex();
+        newSearchIndex.addAll(booksById.values(), StoredBook::book, StoredBook::sequence);
+        searchIndex = newSearchIndex;
+    }
+
+    /**
+     * Remove the book with the id if it is stored.
+     */
+    void restoreDeletion(String id) {
+        mutationLock.readLock().lock();
+        try {
+            remove(id);
+        } finally {
+            mutationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Build the results of an all-or-nothing batch. When any item failed, the other items report that they were not applied.
+     */
+    static List<BookBatchResult> batchResults(List<String> ids, List<Book> storedBooks, List<String> errorMessages) {
+        boolean applied = errorMessages.stream().allMatch(Objects::isNull);
+        var results = new ArrayList<BookBatchResult>(ids.size());
+        for (int index = 0; index < ids.size(); index++) {
+            if (applied) {
+                Book stored = storedBooks.get(index);
+                results.add(BookBatchResult.success(ids.get(index), stored != null ? Book.copyOf(stored) : null));
+            } else {
+                String errorMessage = errorMessages.get(index);
+                results.add(BookBatchResult.failure(ids.get(index),
+                        errorMessage != null ? errorMessage : "Not applied because another item in the batch failed"));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Add the book to the primary and secondary indexes and record its insertion order.
+     *
+     * @param stored The Book instance owned by this service.
+     */
+    private void insert(Book stored) {
+        if (stored.getVersion() == null) {
+            stored.setVersion(FIRST_VERSION);
+        }
+        long sequence = insertionSequence.incrementAndGet();
+        booksById.compute(stored.getId(), (id, existing) -> {
+            if (existing != null) {
+                removeFromIndexes(existing.book());
+            }
+            addToIndexes(stored, sequence);
+            return new StoredBook(sequence, stored);
+        });
+        idsByInsertionOrder.put(sequence, stored.getId());
+        changeCount.incrementAndGet();
+    }
+
+    /**
+     * Replace a stored book, keeping its insertion order.
+     *
+     * @param stored The Book instance owned by this service.
+     * @return true if the book was replaced, false if there is no book with its id.
+     */
+    private boolean replace(Book stored) {
+        StoredBook replaced = booksById.computeIfPresent(stored.getId(), (id, existing) -> {
+            removeFromIndexes(existing.book());
+            addToIndexes(stored, existing.sequence());
+            return new StoredBook(existing.sequence(), stored);
+        });
+        if (replaced == null) {
+            return false;
+        }
+        changeCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Replace a stored book if its version is still the expected version, and give the replacement the next version.
+     * The version is compared inside the atomic primary map operation, which leaves the stored book unchanged when it throws.
+     *
+     * @param stored          The Book instance owned by this service.
+     * @param expectedVersion The version the book was read with, or null to replace any version.
+     * @throws NoSuchElementException       if there is no book with its id and no version was expected.
+     * @throws BookVersionConflictException if the stored version is not the expected version or the book was deleted.
+     */
+    private void replaceIfVersionMatches(Book stored, String expectedVersion) {
+        StoredBook replaced = booksById.computeIfPresent(stored.getId(), (id, existing) -> {
+            String currentVersion = existing.book().getVersion();
+            if (expectedVersion != null && !expectedVersion.equals(currentVersion)) {
+                throw new BookVersionConflictException(id, expectedVersion, currentVersion);
+            }
+            stored.setVersion(nextVersion(currentVersion));
+            removeFromIndexes(existing.book());
+            addToIndexes(stored, existing.sequence());
+            return new StoredBook(existing.sequence(), stored);
+        });
+        if (replaced == null) {
+            if (expectedVersion != null) {
+                throw new BookVersionConflictException(stored.getId(), expectedVersion, null);
+            }
+            throw new NoSuchElementException("Could not find Book with id: " + stored.getId());
+        }
+        changeCount.incrementAndGet();
+    }
+
+    /**
+     * Remove a stored book from all indexes.
+     *
+     * @param id The unique id of the book to remove.
+     * @return true if the book was removed, false if there is no book with the id.
+     */
+    private boolean remove(String id) {
+        var removed = new StoredBook[1];
+        booksById.computeIfPresent(id, (key, existing) -> {
+            removeFromIndexes(existing.book());
+            removed[0] = existing;
+            return null;
+        });
+        if (removed[0] == null) {
+            return false;
+        }
+        idsByInsertionOrder.remove(removed[0].sequence());
+        changeCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Add the book to the secondary indexes. Must be called while holding the primary map entry for the book.
+     */
+    private void addToIndexes(Book stored, long sequence) {
+        idsByAuthor.compute(BookService.normalizeAuthor(stored.getAuthor()), (author, ids) -> {
+            Set<String> authorIds = ids != null ? ids : ConcurrentHashMap.newKeySet();
+            authorIds.add(stored.getId());
+            return authorIds;
+        });
+        if (stored.getPublishDate() != null) {
+            idsByPublishDate.compute(stored.getPublishDate(), (publishDate, ids) -> {
+                Set<String> publishDateIds = ids != null ? ids : ConcurrentHashMap.newKeySet();
+                publishDateIds.add(stored.getId());
+                return publishDateIds;
+            });
+        }
+        (stored.isReadAlready() ? readCount : unreadCount).incrementAndGet();
+        BookSearchIndex currentSearchIndex = searchIndex;
+        if (currentSearchIndex != null) {
+            currentSearchIndex.add(stored, sequence);
+        }
+    }
+
+    /**
+     * Remove the book from the secondary indexes. Must be called while holding the primary map entry for the book.
+     */
+    private void removeFromIndexes(Book stored) {
+        idsByAuthor.computeIfPresent(BookService.normalizeAuthor(stored.getAuthor()), (author, ids) -> {
+            ids.remove(stored.getId());
+            return ids.isEmpty() ? null : ids;
+        });
+        if (stored.getPublishDate() != null) {
+            idsByPublishDate.computeIfPresent(stored.getPublishDate(), (publishDate, ids) -> {
+                ids.remove(stored.getId());
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+        (stored.isReadAlready() ? readCount : unreadCount).decrementAndGet();
+        BookSearchIndex currentSearchIndex = searchIndex;
+        if (currentSearchIndex != null) {
+            currentSearchIndex.remove(stored.getId());
         }
     }
 }
@@ -0,0 +1,468 @@
+package dmit2015.service;
+
+import dmit2015.metrics.Instrumented;
+import dmit2015.metrics.MetricsRegistry;
+import dmit2015.model.Book;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * This class implements the BookService with two tiers: a hot tier of books by id in memory, kept within a budget
+ * of bytes by the W-TinyLFU policy of the {@link BookHotTier}, over Firebase as the cold tier.
+ * <p>
+ * A book read by id is served from the hot tier, or read from Firebase through the {@link FirebaseAsyncBookService}
+ * and offered to the hot tier. Writes go to Firebase first and then replace or remove the book in the hot tier,
+ * so the hot tier never holds a write Firebase does not have. A book in the hot tier expires after
+ * firebase.rtdb.Book.cache.ttl.seconds, or as soon as the {@link FirebaseBookChangeFeed} reports a change to it.
+ * Lists, pages and searches read every book, so they come from the feed while it is live and from Firebase otherwise,
+ * without filling the hot tier. Changes are counted while the feed is live, so the views can tell their own write
+ * from the writes of others.
+ * <p>
+ * Unlike the {@link CachingBookService}, which bounds its cache by a number of books, the hot tier is bounded by
+ * firebase.rtdb.Book.tiered.max.bytes, and a book read once is not admitted in place of a book read often.
+ * The hit ratio, the time spent reading each tier, and the resident size of the hot tier are exported by the MetricsRegistry.
+ */
+@Named("tieredBookService")
+@ApplicationScoped
+@Instrumented
+public class TieredBookService implements BookService {
+
+    @Inject
+    private FirebaseAsyncBookService asyncBookService;
+
+    @Inject
+    private FirebaseBookChangeFeed changeFeed;
+
+    @Inject
+    private MetricsRegistry metricsRegistry;
+
+    /**
+     * The maximum number of bytes the books in the hot tier are estimated to take.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.tiered.max.bytes", defaultValue = "67108864")
+    private long maxBytes;
+
+    /**
+     * The number of seconds a book stays valid in the hot tier.
+     */
+    @Inject
+    @ConfigProperty(name = "firebase.rtdb.Book.cache.ttl.seconds", defaultValue = "60")
+    private long ttlSeconds;
+
+    /**
+     * Guards the hot tier and the write generation.
+     */
+    private final ReentrantLock tierLock = new ReentrantLock();
+
+    /**
+     * The hot tier. Guarded by tierLock.
+     */
+    private BookHotTier hotTier;
+
+    /**
+     * Counts the writes, so a book read from Firebase while a write was in progress is not put in the hot tier
+     * over the write. Guarded by tierLock.
+     */
+    private long writeGeneration;
+
+    /**
+     * Counts the writes sent through this service and the changes of others the feed reports.
+     */
+    private FirebaseBookChangeCounter changeCounter;
+
+    private final LongAdder hotHits = new LongAdder();
+
+    private final LongAdder hotReadNanos = new LongAdder();
+
+    private final LongAdder coldReads = new LongAdder();
+
+    private final LongAdder coldReadNanos = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        hotTier = new BookHotTier(maxBytes);
+        changeCounter = new FirebaseBookChangeCounter(changeFeed);
+        metricsRegistry.registerCounter("dmit2015_book_tiered_hits_total", "The book lookups served from the hot tier.", this::getHitCount);
+        metricsRegistry.registerCounter("dmit2015_book_tiered_misses_total", "The book lookups read from the cold tier.", this::getMissCount);
+        metricsRegistry.registerCounter("dmit2015_book_tiered_hot_read_nanoseconds_total", "The time spent serving lookups from the hot tier.", hotReadNanos::sum);
+        metricsRegistry.registerCounter("dmit2015_book_tiered_cold_read_nanoseconds_total", "The time spent reading lookups from the cold tier.", coldReadNanos::sum);
+        metricsRegistry.registerCounter("dmit2015_book_tiered_evictions_total", "The books evicted from the hot tier.", this::getEvictionCount);
+        metricsRegistry.registerCounter("dmit2015_book_tiered_rejections_total", "The books not admitted to the hot tier because they were read less often than the book they would replace.", this::getRejectionCount);
+        metricsRegistry.registerGauge("dmit2015_book_tiered_resident_bytes", "The estimated bytes of the books in the hot tier.", this::getResidentBytes);
+        metricsRegistry.registerGauge("dmit2015_book_tiered_resident_books", "The number of books in the hot tier.", this::getResidentCount);
+    }
+
+    @Override
+    public Book createBook(Book book) {
+        Book createdBook = changeCounter.awaitWrite(List.of(), () -> asyncBookService.createBook(book), newBook -> List.of(newBook.getId()));
+        putWritten(createdBook);
+        return createdBook;
+    }
+
+    @Override
+    public Optional<Book> getBookById(String id) {
+        long startTime = System.nanoTime();
+        long generation;
+        tierLock.lock();
+        try {
+            Book hotBook = hotCopy(id);
+            if (hotBook != null) {
+                hotHits.increment();
+                hotReadNanos.add(System.nanoTime() - startTime);
+                return Optional.of(hotBook);
+            }
+            generation = writeGeneration;
+        } finally {
+            tierLock.unlock();
+        }
+
+        long changeSequence = changeFeed.changeSequence();
+        long coldStartTime = System.nanoTime();
+        Optional<Book> coldBook = FirebaseHttpClientBookService.await(asyncBookService.getBookById(id));
+        coldReads.increment();
+        coldReadNanos.add(System.nanoTime() - coldStartTime);
+        coldBook.ifPresent(book -> putRead(List.of(book), generation, changeSequence));
+        return coldBook;
+    }
+
+    /**
+     * Serve the books in the hot tier and read only the others from Firebase, in one batch.
+     */
+    @Override
+    public List<Book> getBooksByIds(Collection<String> ids) {
+        Objects.requireNonNull(ids, "ids must not be null");
+        long startTime = System.nanoTime();
+        var hotBooksById = new LinkedHashMap<String, Book>();
+        var missingIds = new ArrayList<String>();
+        long generation;
+        tierLock.lock();
+        try {
+            for (String currentId : new LinkedHashSet<>(ids)) {
+                Book hotBook = hotCopy(currentId);
+                if (hotBook != null) {
+                    hotBooksById.put(currentId, hotBook);
+                } else {
+                    missingIds.add(currentId);
+                }
+            }
+            generation = writeGeneration;
+        } finally {
+            tierLock.unlock();
+        }
+        hotHits.add(hotBooksById.size());
+        hotReadNanos.add(System.nanoTime() - startTime);
+        if (missingIds.isEmpty()) {
+            return new ArrayList<>(hotBooksById.values());
+        }
+
+        long changeSequence = changeFeed.changeSequence();
+        long coldStartTime = System.nanoTime();
+        List<Book> coldBooks = FirebaseHttpClientBookService.await(asyncBookService.getBooksByIds(missingIds));
+        coldReads.add(missingIds.size());
+        coldReadNanos.add(System.nanoTime() - coldStartTime);
+        putRead(coldBooks, generation, changeSequence);
+
+        Map<String, Book> coldBooksById = new LinkedHashMap<>();
+        coldBooks.forEach(book -> coldBooksById.put(book.getId(), book));
+        var books = new ArrayList<Book>(hotBooksById.size() + coldBooks.size());
+        for (String currentId : new LinkedHashSet<>(ids)) {
+            Book book = hotBooksById.containsKey(currentId) ? hotBooksById.get(currentId) : coldBooksById.get(currentId);
+            if (book != null) {
+                books.add(book);
+            }
+        }
+        return books;
+    }
+
+    @Override
+    public List<Book> getAllBooks() {
+        if (changeFeed.isLive()) {
+            return changeFeed.getAllBooks();
+        }
+        return FirebaseHttpClientBookService.await(asyncBookService.getAllBooks());
+    }
+
+    @Override
+    public void forEachBook(Consumer<? super Book> action) {
+        if (changeFeed.isLive()) {
+            changeFeed.forEachBook(action);
+            return;
+        }
+        FirebaseHttpClientBookService.await(asyncBookService.forEachBook(action));
+    }
+
+    @Override
+    public Book updateBook(Book book) {
+        Book updatedBook;
+        try {
+            updatedBook = changeCounter.awaitWrite(Collections.singleton(book.getId()), () -> asyncBookService.updateBook(book), writtenBook -> List.of());
+        } catch (BookVersionConflictException e) {
+            remove(List.of(e.getId()));
+            throw e;
+        }
+        putWritten(updatedBook);
+        return updatedBook;
+    }
+
+    @Override
+    public void deleteBookById(String id) {
+        try {
+            changeCounter.awaitWrite(Collections.singleton(id), () -> asyncBookService.deleteBookById(id), ignored -> List.of());
+        } finally {
+            remove(List.of(id));
+        }
+    }
+
+    @Override
+    public void deleteBookById(String id, String expectedVersion) {
+        try {
+            changeCounter.awaitWrite(Collections.singleton(id), () -> asyncBookService.deleteBookById(id, expectedVersion), ignored -> List.of());
+        } finally {
+            remove(List.of(id));
+        }
+    }
+
+    @Override
+    public List<BookBatchResult> createBooks(Collection<Book> books) {
+        List<BookBatchResult> results = changeCounter.awaitWrite(List.of(), () -> asyncBookService.createBooks(books),
+                FirebaseBookChangeCounter::successfulIds);
+        putWritten(successfulBooks(results));
+        return results;
+    }
+
+    /**
+     * Write over many books. A multi-path PATCH does not return the new versions, so the books are removed from the
+     * hot tier rather than replaced, even if the write failed part way.
+     */
+    @Override
+    public List<BookBatchResult> updateBooks(Collection<Book> books) {
+        List<String> ids = books.stream().filter(Objects::nonNull).map(Book::getId).filter(Objects::nonNull).toList();
+        List<BookBatchResult> results;
+        try {
+            results = changeCounter.awaitWrite(ids, () -> asyncBookService.updateBooks(books), writtenResults -> List.of());
+        } finally {
+            remove(ids);
+        }
+        return results;
+    }
+
+    @Override
+    public List<BookBatchResult> deleteBooksByIds(Collection<String> ids) {
+        try {
+            return changeCounter.awaitWrite(ids, () -> asyncBookService.deleteBooksByIds(ids), writtenResults -> List.of());
+        } finally {
+            remove(ids.stream().filter(Objects::nonNull).toList());
+        }
+    }
+
+    @Override
+    public BookPage page(int offset, int limit, String sortField, boolean ascending, String filter) {
+        if (changeFeed.isLive()) {
+            return changeFeed.page(offset, limit, sortField, ascending, filter);
+        }
+        return FirebaseHttpClientBookService.await(asyncBookService.page(offset, limit, sortField, ascending, filter));
+    }
+
+    /**
+     * Count changes like the {@link FirebaseHttpClientBookService}: only while the feed is live, and each write of this
+     * service once, whether it completed or the feed reported it back.
+     */
+    @Override
+    public long changeCount() {
+        return changeCounter.changeCount();
+    }
+
+    public long getHitCount() {
+        return hotHits.sum();
+    }
+
+    public long getMissCount() {
+        return coldReads.sum();
+    }
+
+    /**
+     * The fraction of book lookups that were served from the hot tier, or 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        long hitCount = getHitCount();
+        long lookupCount = hitCount + getMissCount();
+        return lookupCount == 0 ? 0 : (double) hitCount / lookupCount;
+    }
+
+    /**
+     * The mean time to serve a book from the hot tier, or 0 before the first hit.
+     */
+    public double getMeanHotReadNanos() {
+        long hitCount = getHitCount();
+        return hitCount == 0 ? 0 : (double) hotReadNanos.sum() / hitCount;
+    }
+
+    /**
+     * The mean time to read a book from the cold tier, or 0 before the first miss. A batch of misses counts as
+     * one read of each book.
+     */
+    public double getMeanColdReadNanos() {
+        long missCount = getMissCount();
+        return missCount == 0 ? 0 : (double) coldReadNanos.sum() / missCount;
+    }
+
+    public long getResidentBytes() {
+        tierLock.lock();
+        try {
+            return hotTier.residentBytes();
+        } finally {
+            tierLock.unlock();
+        }
+    }
+
+    public int getResidentCount() {
+        tierLock.lock();
+        try {
+            return hotTier.residentCount();
+        } finally {
+            tierLock.unlock();
+        }
+    }
+
+    public long getEvictionCount() {
+        tierLock.lock();
+        try {
+            return hotTier.evictionCount();
+        } finally {
+            tierLock.unlock();
+        }
+    }
+
+    public long getRejectionCount() {
+        tierLock.lock();
+        try {
+            return hotTier.rejectionCount();
+        } finally {
+            tierLock.unlock();
+        }
+    }
+
+    /**
+     * A copy of the book in the hot tier if it is still valid, or null if it must be read from Firebase.
+     * An expired book or one the feed reports changed is removed. Must hold the tier lock.
+     * <p>
+     * A book written by this service is tagged with the change sequence from before the feed reports the write back.
+     * When the feed has the same values as the hot tier, the change it reports is that write, or a write of the same
+     * values, which Firebase gives the same ETag, so the book is kept and tagged with the later sequence.
+     */
+    private Book hotCopy(String id) {
+        BookHotTier.Entry entry = hotTier.get(id);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired()) {
+            hotTier.remove(id);
+            return null;
+        }
+        if (changeFeed.isLive()) {
+            long changeSequence = changeFeed.changeSequenceOf(id);
+            if (entry.changeSequence() < changeSequence) {
+                Book feedBook = changeFeed.getBookById(id).orElse(null);
+                if (feedBook == null || !hasSameValues(feedBook, entry.book())) {
+                    hotTier.remove(id);
+                    return null;
+                }
+                hotTier.updateChangeSequence(id, changeSequence);
+            }
+        }
+        return Book.copyOf(entry.book());
+    }
+
+    private static boolean hasSameValues(Book book, Book otherBook) {
+        return Objects.equals(book.getTitle(), otherBook.getTitle())
+                && Objects.equals(book.getAuthor(), otherBook.getAuthor())
+                && Objects.equals(book.getPublishDate(), otherBook.getPublishDate())
+                && book.isReadAlready() == otherBook.isReadAlready();
+    }
+
+    /**
+     * Offer books read from Firebase to the hot tier, unless a write happened since the read started.
+     */
+    private void putRead(List<Book> books, long generation, long changeSequence) {
+        tierLock.lock();
+        try {
+            if (generation != writeGeneration) {
+                return;
+            }
+            for (Book currentBook : books) {
+                put(currentBook, changeSequence);
+            }
+        } finally {
+            tierLock.unlock();
+        }
+    }
+
+    private void putWritten(Book book) {
+        putWritten(List.of(book));
+    }
+
+    /**
+     * Put written books in the hot tier. A book written without getting a version back, such as a created book,
+     * is removed instead, so the next read fetches the version an update is checked against.
+     */
+    private void putWritten(List<Book> books) {
+        long changeSequence = changeFeed.changeSequence();
+        tierLock.lock();
+        try {
+            writeGeneration++;
+            for (Book currentBook : books) {
+                if (currentBook.getVersion() == null) {
+                    hotTier.remove(currentBook.getId());
+                } else {
+                    put(currentBook, changeSequence);
+                }
+            }
+        } finally {
+            tierLock.unlock();
+        }
+    }
+
+    /**
+     * Put a copy of a book in the hot tier. Must hold the tier lock.
+     */
+    private void put(Book book, long changeSequence) {
+        long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds);
+        Book hotBook = Book.copyOf(book);
+        hotTier.put(hotBook.getId(), new BookHotTier.Entry(hotBook, BookHotTier.weigh(hotBook.getId(), hotBook), changeSequence, expiresAt));
+    }
+
+    private void remove(List<String> ids) {
+        tierLock.lock();
+        try {
+            writeGeneration++;
+            ids.forEach(hotTier::remove);
+        } finally {
+            tierLock.unlock();
+        }
+    }
+
+    private static List<Book> successfulBooks(List<BookBatchResult> results) {
+        return results.stream()
+                .filter(BookBatchResult::isSuccessful)
+                .map(BookBatchResult::book)
+                .toList();
+    }
+}
@@ -0,0 +1,320 @@
+package dmit2015.service;
+
+import dmit2015.model.Book;
+import jakarta.annotation.Priority;
+import jakarta.decorator.Decorator;
+import jakarta.decorator.Delegate;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import jakarta.interceptor.Interceptor;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * This CDI decorator sends the writes of the FirebaseHttpClientBookService to the {@link FirebaseBookWriteBehind} queue
+ * when write-behind is enabled, so a write returns once it is journaled instead of after the round trip to Firebase.
+ * <p>
+ * Reads see the writes still pending: a pending book replaces the one read from Firebase, a pending delete hides it,
+ * and new books are listed after the books read from Firebase. Lists are merged with the pending writes taken before
+ * the read, so a write flushed while the list is read is never lost from it.
+ * <p>
+ * Lookups, queries and counts are answered by the delegate and corrected with the pending writes, so they stay
+ * as cheap as without write-behind. Only a page whose rows a pending write can change is paged over the merged list.
+ * <p>
+ * It runs inside the {@link CachingBookService}, so the cache holds the acknowledged writes.
+ */
+@Decorator
+@Priority(Interceptor.Priority.APPLICATION + 200)
+public abstract class WriteBehindBookService implements BookService {
+
+    @Inject
+    @Delegate
+    @Named("firebaseHttpClientBookService")
+    private BookService delegate;
+
+    @Inject
+    private FirebaseBookWriteBehind writeBehind;
+
+    @Override
+    public Book createBook(Book book) {
+        if (!writeBehind.isEnabled()) {
+            return delegate.createBook(book);
+        }
+        return writeBehind.createBook(book);
+    }
+
+    @Override
+    public Optional<Book> getBookById(String id) {
+        if (!writeBehind.isEnabled()) {
+            return delegate.getBookById(id);
+        }
+        FirebaseBookWriteBehind.PendingWrite pendingWrite = writeBehind.getPendingWrite(id);
+        if (pendingWrite != null) {
+            return Optional.ofNullable(pendingWrite.book());
+        }
+        return delegate.getBookById(id);
+    }
+
+    @Override
+    public List<Book> getBooksByIds(Collection<String> ids) {
+        if (!writeBehind.isEnabled() || !writeBehind.hasPendingWrites()) {
+            return delegate.getBooksByIds(ids);
+        }
+        Objects.requireNonNull(ids, "ids must not be null");
+        Map<String, FirebaseBookWriteBehind.PendingWrite> pendingWrites = writeBehind.getPendingWrites();
+        // Read the books without a pending write in one call, then put the pending writes in their place
+        var storedBooksById = new HashMap<String, Book>();
+        List<String> storedIds = ids.stream().filter(currentId -> !pendingWrites.containsKey(currentId)).toList();
+        for (Book currentBook : delegate.getBooksByIds(storedIds)) {
+            storedBooksById.put(currentBook.getId(), currentBook);
+        }
+        var books = new ArrayList<Book>(ids.size());
+        for (String currentId : new LinkedHashSet<>(ids)) {
+            FirebaseBookWriteBehind.PendingWrite pendingWrite = pendingWrites.get(currentId);
+            Book book = pendingWrite != null ? pendingWrite.book() : storedBooksById.get(currentId);
+            if (book != null) {
+                books.add(book);
+            }
+        }
+        return books;
+    }
+
+    @Override
+    public List<Book> getAllBooks() {
+        if (!writeBehind.isEnabled() || !writeBehind.hasPendingWrites()) {
+            return delegate.getAllBooks();
+        }
+        Map<String, FirebaseBookWriteBehind.PendingWrite> pendingWrites = writeBehind.getPendingWrites();
+        var books = new ArrayList<Book>();
+        delegate.forEachBook(currentBook -> mergeBook(currentBook, pendingWrites, books::add));
+        addNewBooks(pendingWrites, books::add);
+        return books;
+    }
+
+    @Override
+    public void forEachBook(Consumer<? super Book> action) {
+        if (!writeBehind.isEnabled() || !writeBehind.hasPendingWrites()) {
+            delegate.forEachBook(action);
+            return;
+        }
+        Map<String, FirebaseBookWriteBehind.PendingWrite> pendingWrites = writeBehind.getPendingWrites();
+        delegate.forEachBook(currentBook -> mergeBook(currentBook, pendingWrites, action));
+        addNewBooks(pendingWrites, action);
+    }
+
+    @Override
+    public Book updateBook(Book book) {
+        if (!writeBehind.isEnabled()) {
+            return delegate.updateBook(book);
+        }
+        return writeBehind.updateBook(book);
+    }
+
+    @Override
+    public void deleteBookById(String id) {
+        if (!writeBehind.isEnabled()) {
+            delegate.deleteBookById(id);
+            return;
+        }
+        writeBehind.deleteBookById(id, null);
+    }
+
+    @Override
+    public void deleteBookById(String id, String expectedVersion) {
+        if (!writeBehind.isEnabled()) {
+            delegate.deleteBookById(id, expectedVersion);
+            return;
+        }
+        writeBehind.deleteBookById(id, expectedVersion);
+    }
+
+    @Override
+    public List<BookBatchResult> createBooks(Collection<Book> books) {
+        if (!writeBehind.isEnabled()) {
+            return delegate.createBooks(books);
+        }
+        return writeBehind.createBooks(books);
+    }
+
+    @Override
+    public List<BookBatchResult> updateBooks(Collection<Book> books) {
+        if (!writeBehind.isEnabled()) {
+            return delegate.updateBooks(books);
+        }
+        return writeBehind.updateBooks(books);
+    }
+
+    @Override
+    public List<BookBatchResult> deleteBooksByIds(Collection<String> ids) {
+        if (!writeBehind.isEnabled()) {
+            return delegate.deleteBooksByIds(ids);
+        }
+        return writeBehind.deleteBooksByIds(ids);
+    }
+
+    /**
+     * Add the writes accepted by the queue to the count of the delegate, so a write moves it before it is flushed.
+     * The queue tells the delegate to expect its flushes back from the feed, so a write is not counted again when flushed.
+     */
+    @Override
+    public long changeCount() {
+        long changeCount = delegate.changeCount();
+        if (!writeBehind.isEnabled() || changeCount < 0) {
+            return changeCount;
+        }
+        return changeCount + writeBehind.getWriteCount();
+    }
+
+    /**
+     * Let the delegate page the books and put the pending updates in place of their rows. A pending create or delete
+     * changes the total, and an update of the sort field or of the text the filter matches can move a book onto or off
+     * the page, so with one of those pending the page is taken from the merged list instead.
+     */
+    @Override
+    public BookPage page(int offset, int limit, String sortField, boolean ascending, String filter) {
+        if (!writeBehind.isEnabled() || !writeBehind.hasPendingWrites()) {
+            return delegate.page(offset, limit, sortField, ascending, filter);
+        }
+        Map<String, FirebaseBookWriteBehind.PendingWrite> pendingWrites = writeBehind.getPendingWrites();
+        // Compares equal only when the sort field is unchanged, since both books have the same id
+        Comparator<Book> sortKey = BookQueries.firebaseComparator(sortField, true);
+        Predicate<Book> matches = BookQueries.matching(filter);
+        var storedBooksById = new HashMap<String, Book>();
+        for (Book currentBook : delegate.getBooksByIds(pendingWrites.keySet())) {
+            storedBooksById.put(currentBook.getId(), currentBook);
+        }
+        for (Map.Entry<String, FirebaseBookWriteBehind.PendingWrite> currentEntry : pendingWrites.entrySet()) {
+            Book storedBook = storedBooksById.get(currentEntry.getKey());
+            Book pendingBook = currentEntry.getValue().book();
+            if (storedBook == null && pendingBook == null) {
+                // Created and deleted before a flush, so never in Firebase
+                continue;
+            }
+            if (storedBook == null || pendingBook == null
+                    || sortKey.compare(storedBook, pendingBook) != 0
+                    || matches.test(storedBook) != matches.test(pendingBook)) {
+                return BookService.super.page(offset, limit, sortField, ascending, filter);
+            }
+        }
+        BookPage bookPage = delegate.page(offset, limit, sortField, ascending, filter);
+        List<Book> pageBooks = bookPage.books().stream()
+                .map(currentBook -> pendingWrites.containsKey(currentBook.getId()) ? pendingWrites.get(currentBook.getId()).book() : currentBook)
+                .toList();
+        return new BookPage(pageBooks, bookPage.totalCount());
+    }
+
+    /**
+     * Let the delegate search its index when no write is pending, otherwise scan the merged books.
+     */
+    @Override
+    public List<Book> search(String query, int limit) {
+        if (!writeBehind.isEnabled() || !writeBehind.hasPendingWrites()) {
+            return delegate.search(query, limit);
+        }
+        return BookService.super.search(query, limit);
+    }
+
+    @Override
+    public List<Book> findByAuthor(String author) {
+        if (!writeBehind.isEnabled() || !writeBehind.hasPendingWrites()) {
+            return delegate.findByAuthor(author);
+        }
+        Map<String, FirebaseBookWriteBehind.PendingWrite> pendingWrites = writeBehind.getPendingWrites();
+        String normalizedAuthor = BookService.normalizeAuthor(author);
+        return mergeMatches(delegate.findByAuthor(author), pendingWrites,
+                currentBook -> BookService.normalizeAuthor(currentBook.getAuthor()).equals(normalizedAuthor));
+    }
+
+    @Override
+    public List<Book> findByPublishDateBetween(LocalDate fromDate, LocalDate toDate) {
+        if (!writeBehind.isEnabled() || !writeBehind.hasPendingWrites()) {
+            return delegate.findByPublishDateBetween(fromDate, toDate);
+        }
+        Objects.requireNonNull(fromDate, "fromDate must not be null");
+        Objects.requireNonNull(toDate, "toDate must not be null");
+        Map<String, FirebaseBookWriteBehind.PendingWrite> pendingWrites = writeBehind.getPendingWrites();
+        List<Book> books = mergeMatches(delegate.findByPublishDateBetween(fromDate, toDate), pendingWrites,
+                currentBook -> currentBook.getPublishDate() != null
+                        && !currentBook.getPublishDate().isBefore(fromDate)
+                        && !currentBook.getPublishDate().isAfter(toDate));
+        return books.stream().sorted(Comparator.comparing(Book::getPublishDate)).toList();
+    }
+
+    @Override
+    public long countByReadAlready(boolean readAlready) {
+        if (!writeBehind.isEnabled() || !writeBehind.hasPendingWrites()) {
+            return delegate.countByReadAlready(readAlready);
+        }
+        // Take the stored versions of the books with a pending write out of the count and add the pending versions
+        Map<String, FirebaseBookWriteBehind.PendingWrite> pendingWrites = writeBehind.getPendingWrites();
+        long count = delegate.countByReadAlready(readAlready);
+        for (Book currentBook : delegate.getBooksByIds(pendingWrites.keySet())) {
+            if (currentBook.isReadAlready() == readAlready) {
+                count--;
+            }
+        }
+        for (FirebaseBookWriteBehind.PendingWrite currentPendingWrite : pendingWrites.values()) {
+            if (!currentPendingWrite.isDelete() && currentPendingWrite.book().isReadAlready() == readAlready) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Pass on the pending write of a book read from Firebase in its place, or the book itself if none is pending.
+     * The pending write is removed from the map, so only writes of books not in Firebase are left for {@link #addNewBooks}.
+     */
+    private static void mergeBook(Book book, Map<String, FirebaseBookWriteBehind.PendingWrite> pendingWrites, Consumer<? super Book> action) {
+        FirebaseBookWriteBehind.PendingWrite pendingWrite = pendingWrites.remove(book.getId());
+        if (pendingWrite == null) {
+            action.accept(book);
+        } else if (!pendingWrite.isDelete()) {
+            action.accept(pendingWrite.book());
+        }
+    }
+
+    /**
+     * Correct the books a query of the delegate matched with the pending writes: a book with a pending write is replaced
+     * by it if it still matches and left out otherwise, and pending books the delegate did not match are added if they match.
+     */
+    private static List<Book> mergeMatches(List<Book> matchedBooks, Map<String, FirebaseBookWriteBehind.PendingWrite> pendingWrites,
+                                           Predicate<Book> matches) {
+        var books = new ArrayList<Book>(matchedBooks.size());
+        var matchedIds = new HashSet<String>();
+        for (Book currentBook : matchedBooks) {
+            matchedIds.add(currentBook.getId());
+            FirebaseBookWriteBehind.PendingWrite pendingWrite = pendingWrites.get(currentBook.getId());
+            if (pendingWrite == null) {
+                books.add(currentBook);
+            } else if (!pendingWrite.isDelete() && matches.test(pendingWrite.book())) {
+                books.add(pendingWrite.book());
+            }
+        }
+        pendingWrites.forEach((id, pendingWrite) -> {
+            if (!matchedIds.contains(id) && !pendingWrite.isDelete() && matches.test(pendingWrite.book())) {
+                books.add(pendingWrite.book());
+            }
+        });
+        return books;
+    }
+
+    private static void addNewBooks(Map<String, FirebaseBookWriteBehind.PendingWrite> pendingWrites, Consumer<? super Book> action) {
+        pendingWrites.values().stream()
+                .filter(pendingWrite -> !pendingWrite.isDelete())
+                .map(FirebaseBookWriteBehind.PendingWrite::book)
+                .forEach(action);
+    }
+}